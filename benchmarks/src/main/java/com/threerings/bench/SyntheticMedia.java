@@ -0,0 +1,119 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.bench;
+
+import java.util.Map;
+import java.util.Random;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+import com.google.common.collect.Maps;
+
+import com.threerings.media.image.Colorization;
+import com.threerings.media.image.ImageManager;
+import com.threerings.media.tile.SimpleCachingImageProvider;
+
+/**
+ * Creates the headless, synthetic images and services used by our benchmarks, so that they need
+ * no resource bundles, display or other external fixtures.
+ */
+public class SyntheticMedia
+{
+    /** The root color of the colorization created by {@link #createColorization}. */
+    public static final Color ROOT_COLOR = new Color(200, 40, 40);
+
+    /**
+     * Creates an 8-bit color mapped image of the specified size filled with noise drawn from a
+     * palette of several hue bands, one of which is matched by {@link #createColorization}.
+     */
+    public static BufferedImage createIndexedImage (int width, int height, long seed)
+    {
+        byte[] reds = new byte[256], greens = new byte[256], blues = new byte[256];
+        float[] hues = { 0f, 0.33f, 0.66f, 0.15f };
+        for (int ii = 1; ii < 256; ii++) {
+            float hue = hues[ii % hues.length];
+            float val = 0.3f + 0.7f * (ii / 255f);
+            int rgb = Color.HSBtoRGB(hue, 0.8f, val);
+            reds[ii] = (byte)(rgb >> 16);
+            greens[ii] = (byte)(rgb >> 8);
+            blues[ii] = (byte)rgb;
+        }
+        // index zero is transparent
+        IndexColorModel icm = new IndexColorModel(8, 256, reds, greens, blues, 0);
+        BufferedImage image = new BufferedImage(
+            width, height, BufferedImage.TYPE_BYTE_INDEXED, icm);
+
+        Random rando = new Random(seed);
+        byte[] pixels = new byte[width];
+        for (int yy = 0; yy < height; yy++) {
+            rando.nextBytes(pixels);
+            image.getRaster().setDataElements(0, yy, width, 1, pixels);
+        }
+        return image;
+    }
+
+    /**
+     * Creates a colorization that shifts the red band of an image created by {@link
+     * #createIndexedImage} toward blue.
+     */
+    public static Colorization createColorization (int colorizationId)
+    {
+        return new Colorization(colorizationId, ROOT_COLOR, new float[] { 0.1f, 0.5f, 0.7f },
+                                new float[] { 0.5f + 0.01f * colorizationId, 0f, 0f });
+    }
+
+    /**
+     * Creates an image manager that needs no resource manager or display: images it loads must
+     * come from data providers and the images it creates are plain ARGB images.
+     */
+    public static ImageManager createImageManager ()
+    {
+        return new ImageManager(null, new ImageManager.OptimalImageCreator() {
+            public BufferedImage createImage (int width, int height, int trans) {
+                return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            }
+        });
+    }
+
+    /**
+     * An image provider that serves the images registered with it by path, for use by tilesets.
+     */
+    public static class ImageProvider extends SimpleCachingImageProvider
+    {
+        /**
+         * Registers an image to be provided for the specified path.
+         */
+        public ImageProvider add (String path, BufferedImage image)
+        {
+            _images.put(path, image);
+            return this;
+        }
+
+        @Override
+        protected BufferedImage loadImage (String path)
+        {
+            return _images.get(path);
+        }
+
+        protected Map<String, BufferedImage> _images = Maps.newHashMap();
+    }
+}
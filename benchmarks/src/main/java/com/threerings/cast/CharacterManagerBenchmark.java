@@ -0,0 +1,223 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.cast;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.collect.Lists;
+
+import com.threerings.media.image.Colorization;
+import com.threerings.media.tile.UniformTileSet;
+import com.threerings.util.DirectionCodes;
+
+import com.threerings.cast.bundle.BundledComponentRepository;
+
+import com.threerings.bench.SyntheticMedia;
+
+/**
+ * Measures compositing a character's action frames via {@link CharacterManager#getActionFrames}
+ * with the frame caches emptied before every invocation, so that each one pays for colorizing
+ * and compositing every component of one orientation (or of every orientation), either into an
+ * image per frame or into a single {@link CompositedAtlas}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CharacterManagerBenchmark
+{
+    /** The number of components layered in the character. */
+    @Param({ "2", "5" })
+    public int components;
+
+    /** Whether or not each component is colorized. */
+    @Param({ "false", "true" })
+    public boolean colorize;
+
+    /** Whether or not each action is composited into a single atlas image. */
+    @Param({ "false", "true" })
+    public boolean atlas;
+
+    @Setup
+    public void setup ()
+    {
+        _actseq = new ActionSequence();
+        _actseq.name = ACTION;
+        _actseq.framesPerSecond = 8;
+        _actseq.orients = new int[DirectionCodes.DIRECTION_COUNT];
+        for (int ii = 0; ii < _actseq.orients.length; ii++) {
+            _actseq.orients[ii] = ii;
+        }
+
+        SyntheticMedia.ImageProvider improv = new SyntheticMedia.ImageProvider();
+        int[] cids = new int[components];
+        Colorization[][] zations = colorize ? new Colorization[components][] : null;
+        for (int ii = 0; ii < components; ii++) {
+            ComponentClass cclass = new ComponentClass();
+            cclass.name = "class" + ii;
+            cclass.renderPriority = ii;
+
+            // each orientation is a row of frames in the component's tileset image
+            String path = "component" + ii;
+            improv.add(path, SyntheticMedia.createIndexedImage(
+                           FRAME_SIZE * FRAMES, FRAME_SIZE * _actseq.orients.length, ii));
+            final UniformTileSet set = new UniformTileSet();
+            set.setName(path);
+            set.setImagePath(path);
+            set.setWidth(FRAME_SIZE);
+            set.setHeight(FRAME_SIZE);
+            set.setImageProvider(improv);
+
+            cids[ii] = ii;
+            _repo.components.add(new CharacterComponent(ii, path, cclass, new FrameProvider() {
+                public ActionFrames getFrames (
+                    CharacterComponent component, String action, String type) {
+                    return (type == null) ?
+                        new BundledComponentRepository.TileSetFrameImage(set, _actseq) : null;
+                }
+                public String getFramePath (CharacterComponent component, String action,
+                                            String type, Set<String> existentPaths) {
+                    return null;
+                }
+            }));
+            if (colorize) {
+                zations[ii] = new Colorization[] { SyntheticMedia.createColorization(ii) };
+            }
+        }
+
+        CharacterManager.setUseAtlases(atlas);
+        _cmgr = new CharacterManager(SyntheticMedia.createImageManager(), _repo);
+        _desc = new CharacterDescriptor(cids, zations);
+    }
+
+    @Benchmark
+    public Object compositeFrames ()
+        throws NoSuchComponentException
+    {
+        _cmgr._frameCache.clear();
+        _cmgr._actionFrames.clear();
+        return _cmgr.getActionFrames(_desc, ACTION).getFrames(DirectionCodes.SOUTH);
+    }
+
+    @Benchmark
+    public void compositeAllOrients (Blackhole hole)
+        throws NoSuchComponentException
+    {
+        _cmgr._frameCache.clear();
+        _cmgr._actionFrames.clear();
+        ActionFrames frames = _cmgr.getActionFrames(_desc, ACTION);
+        for (int orient : _actseq.orients) {
+            hole.consume(frames.getFrames(orient));
+        }
+    }
+
+    /** A component repository that serves our synthetic components. */
+    protected class Repository implements ComponentRepository
+    {
+        public List<CharacterComponent> components = Lists.newArrayList();
+
+        // from interface ComponentRepository
+        public CharacterComponent getComponent (int componentId)
+            throws NoSuchComponentException
+        {
+            if (componentId < 0 || componentId >= components.size()) {
+                throw new NoSuchComponentException(componentId);
+            }
+            return components.get(componentId);
+        }
+
+        // from interface ComponentRepository
+        public CharacterComponent getComponent (String className, String compName)
+            throws NoSuchComponentException
+        {
+            for (CharacterComponent ccomp : components) {
+                if (ccomp.componentClass.name.equals(className) && ccomp.name.equals(compName)) {
+                    return ccomp;
+                }
+            }
+            throw new NoSuchComponentException(className, compName);
+        }
+
+        // from interface ComponentRepository
+        public ComponentClass getComponentClass (String className)
+        {
+            for (CharacterComponent ccomp : components) {
+                if (ccomp.componentClass.name.equals(className)) {
+                    return ccomp.componentClass;
+                }
+            }
+            return null;
+        }
+
+        // from interface ComponentRepository
+        public Iterator<ComponentClass> enumerateComponentClasses ()
+        {
+            List<ComponentClass> classes = Lists.newArrayList();
+            for (CharacterComponent ccomp : components) {
+                classes.add(ccomp.componentClass);
+            }
+            return classes.iterator();
+        }
+
+        // from interface ComponentRepository
+        public Iterator<ActionSequence> enumerateActionSequences ()
+        {
+            return Lists.newArrayList(_actseq).iterator();
+        }
+
+        // from interface ComponentRepository
+        public Iterator<Integer> enumerateComponentIds (ComponentClass compClass)
+        {
+            List<Integer> ids = Lists.newArrayList();
+            for (CharacterComponent ccomp : components) {
+                if (ccomp.componentClass == compClass) {
+                    ids.add(ccomp.componentId);
+                }
+            }
+            return ids.iterator();
+        }
+    }
+
+    protected Repository _repo = new Repository();
+    protected ActionSequence _actseq;
+    protected CharacterManager _cmgr;
+    protected CharacterDescriptor _desc;
+
+    protected static final String ACTION = "walking";
+    protected static final int FRAME_SIZE = 64, FRAMES = 8;
+}
@@ -0,0 +1,109 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.image;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import java.awt.Color;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link Quantize#quantizeImage(int[],int,java.util.concurrent.Executor)} on a sheet of
+ * shaded, partially transparent sprites like those reduced to indexed color at bundle time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuantizeBenchmark
+{
+    /** The width and height of the source image. */
+    @Param({ "256", "1024" })
+    public int size;
+
+    /** The number of threads on which to quantize, or zero to quantize on the calling thread. */
+    @Param({ "0", "4" })
+    public int threads;
+
+    @Setup
+    public void setup ()
+    {
+        // each 32x32 cell holds a shaded disc of a random hue on a transparent background
+        Random rando = new Random(42L);
+        _source = new int[size*size];
+        for (int yy = 0; yy < size; yy += CELL) {
+            for (int xx = 0; xx < size; xx += CELL) {
+                float hue = rando.nextFloat();
+                for (int cy = 0; cy < CELL; cy++) {
+                    for (int cx = 0; cx < CELL; cx++) {
+                        float dx = cx - CELL/2f, dy = cy - CELL/2f;
+                        float dist = (float)Math.sqrt(dx*dx + dy*dy) / (CELL/2f);
+                        if (dist < 1f) {
+                            _source[(yy + cy)*size + xx + cx] = Color.HSBtoRGB(
+                                hue, 0.3f + 0.6f*dist, 1f - 0.7f*dist);
+                        }
+                    }
+                }
+            }
+        }
+        _pixels = new int[_source.length];
+        if (threads > 0) {
+            _exec = Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    @TearDown
+    public void tearDown ()
+    {
+        if (_exec != null) {
+            _exec.shutdown();
+        }
+    }
+
+    @Benchmark
+    public int[] quantize ()
+    {
+        // the pixels are quantized in place, so we start each run from a fresh copy
+        System.arraycopy(_source, 0, _pixels, 0, _source.length);
+        return Quantize.quantizeImage(_pixels, 256, _exec);
+    }
+
+    protected int[] _source, _pixels;
+    protected ExecutorService _exec;
+
+    protected static final int CELL = 32;
+}
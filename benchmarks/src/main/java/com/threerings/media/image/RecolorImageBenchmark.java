@@ -0,0 +1,77 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.image;
+
+import java.util.concurrent.TimeUnit;
+
+import java.awt.image.BufferedImage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.threerings.bench.SyntheticMedia;
+
+/**
+ * Measures {@link ImageUtil#recolorImage(BufferedImage,Colorization[])} on color mapped images.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecolorImageBenchmark
+{
+    /** The width and height of the source image. */
+    @Param({ "64", "256", "1024" })
+    public int size;
+
+    /** The number of colorizations applied at once. */
+    @Param({ "1", "3" })
+    public int zations;
+
+    @Setup
+    public void setup ()
+    {
+        _image = SyntheticMedia.createIndexedImage(size, size, 42L);
+        _zations = new Colorization[zations];
+        for (int ii = 0; ii < zations; ii++) {
+            _zations[ii] = SyntheticMedia.createColorization(ii);
+        }
+    }
+
+    @Benchmark
+    public BufferedImage recolor ()
+    {
+        return ImageUtil.recolorImage(_image, _zations);
+    }
+
+    protected BufferedImage _image;
+    protected Colorization[] _zations;
+}
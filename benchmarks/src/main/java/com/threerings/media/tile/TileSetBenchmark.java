@@ -0,0 +1,91 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.tile;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.threerings.media.image.Colorization;
+
+import com.threerings.bench.SyntheticMedia;
+
+/**
+ * Measures {@link TileSet#getTile} when the requested tiles are already in the active tile cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileSetBenchmark
+{
+    @Setup
+    public void setup ()
+    {
+        _set = new UniformTileSet();
+        _set.setName("bench");
+        _set.setImagePath("tiles");
+        _set.setWidth(TILE_SIZE);
+        _set.setHeight(TILE_SIZE);
+        _set.setImageProvider(new SyntheticMedia.ImageProvider().add(
+            "tiles", SyntheticMedia.createIndexedImage(TILE_SIZE*16, TILE_SIZE*16, 42L)));
+        _zations = new Colorization[] { SyntheticMedia.createColorization(1) };
+
+        // warm the cache (and hold references to the tiles so that they remain active)
+        _count = _set.getTileCount();
+        _tiles = new Tile[_count*2];
+        for (int ii = 0; ii < _count; ii++) {
+            _tiles[ii] = _set.getTile(ii);
+            _tiles[_count + ii] = _set.getTile(ii, _zations);
+        }
+    }
+
+    @Benchmark
+    public Tile getTile ()
+    {
+        _index = (_index + 1) % _count;
+        return _set.getTile(_index);
+    }
+
+    @Benchmark
+    public Tile getColorizedTile ()
+    {
+        _index = (_index + 1) % _count;
+        return _set.getTile(_index, _zations);
+    }
+
+    protected UniformTileSet _set;
+    protected Colorization[] _zations;
+    protected Tile[] _tiles;
+    protected int _count, _index;
+
+    protected static final int TILE_SIZE = 32;
+}
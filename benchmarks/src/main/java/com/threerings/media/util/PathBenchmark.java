@@ -0,0 +1,104 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.util;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import java.awt.Point;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link AStarPathUtil} (and {@link JumpPointPathUtil}) finding a path across a square
+ * grid scattered with short walls.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathBenchmark
+{
+    /** The width and height of the grid. */
+    @Param({ "64", "256" })
+    public int size;
+
+    @Setup
+    public void setup ()
+    {
+        _blocked = new boolean[size*size];
+        Random rando = new Random(42L);
+        for (int ii = 0, ll = size*size/40; ii < ll; ii++) {
+            int x = rando.nextInt(size), y = rando.nextInt(size);
+            boolean horiz = rando.nextBoolean();
+            for (int ww = 0; ww < 8; ww++) {
+                int wx = horiz ? x + ww : x, wy = horiz ? y : y + ww;
+                if (wx < size && wy < size) {
+                    _blocked[wy*size + wx] = true;
+                }
+            }
+        }
+        // keep the corners clear
+        _blocked[size + 1] = false;
+        _blocked[(size-2)*size + size-2] = false;
+    }
+
+    @Benchmark
+    public List<Point> aStarPoints ()
+    {
+        return AStarPathUtil.getPath(_pred, null, size*4, 1, 1, size-2, size-2, true);
+    }
+
+    @Benchmark
+    public boolean aStarBuffer ()
+    {
+        return AStarPathUtil.getPath(
+            _pred, null, null, size*4, 1, 1, size-2, size-2, true, _path);
+    }
+
+    @Benchmark
+    public boolean jumpPointBuffer ()
+    {
+        return JumpPointPathUtil.getPath(
+            _pred, null, size*4, 1, 1, size-2, size-2, true, _path);
+    }
+
+    protected AStarPathUtil.TraversalPred _pred = new AStarPathUtil.TraversalPred() {
+        public boolean canTraverse (Object traverser, int x, int y) {
+            return x >= 0 && y >= 0 && x < size && y < size && !_blocked[y*size + x];
+        }
+    };
+
+    protected boolean[] _blocked;
+    protected AStarPathUtil.PathBuffer _path = new AStarPathUtil.PathBuffer();
+}
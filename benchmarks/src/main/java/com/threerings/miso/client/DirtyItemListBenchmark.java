@@ -0,0 +1,114 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.miso.client;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.threerings.media.sprite.ImageSprite;
+import com.threerings.media.sprite.Sprite;
+import com.threerings.media.tile.ObjectTile;
+import com.threerings.media.tile.ObjectTileSet;
+
+import com.threerings.miso.data.ObjectInfo;
+import com.threerings.miso.util.MisoSceneMetrics;
+
+import com.threerings.bench.SyntheticMedia;
+
+/**
+ * Measures {@link DirtyItemList#sort} on a randomly scattered mix of sprites and multi-tile
+ * scene objects.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirtyItemListBenchmark
+{
+    /** The number of sprites and the number of objects added to the list. */
+    @Param({ "16", "64", "256" })
+    public int items;
+
+    @Setup
+    public void setup ()
+    {
+        MisoSceneMetrics metrics = new MisoSceneMetrics(64, 48, 4);
+        ObjectTileSet set = new ObjectTileSet();
+        set.setName("objects");
+        set.setImagePath("objects");
+        set.setTileCounts(new int[] { 4 });
+        set.setWidths(new int[] { 64 });
+        set.setHeights(new int[] { 64 });
+        set.setObjectWidths(new int[] { 1, 2, 2, 3 });
+        set.setObjectHeights(new int[] { 1, 1, 2, 2 });
+        set.setImageProvider(new SyntheticMedia.ImageProvider().add(
+            "objects", SyntheticMedia.createIndexedImage(256, 64, 42L)));
+
+        // scatter our sprites and objects over a square scene that grows with the item count
+        Random rando = new Random(42L);
+        int range = Math.max(8, (int)Math.sqrt(items) * 3);
+        _sprites = new Sprite[items];
+        _stx = new int[items];
+        _sty = new int[items];
+        _objects = new SceneObject[items];
+        for (int ii = 0; ii < items; ii++) {
+            _stx[ii] = rando.nextInt(range);
+            _sty[ii] = rando.nextInt(range);
+            _sprites[ii] = new ImageSprite();
+            _sprites[ii].setLocation(_stx[ii] * 64, _sty[ii] * 48);
+
+            ObjectTile tile = (ObjectTile)set.getTile(rando.nextInt(set.getTileCount()));
+            ObjectInfo info = new ObjectInfo(0, rando.nextInt(range), rando.nextInt(range));
+            _objects[ii] = new SceneObject(metrics, info, tile);
+        }
+    }
+
+    @Benchmark
+    public int sort ()
+    {
+        for (int ii = 0; ii < items; ii++) {
+            _list.appendDirtySprite(_sprites[ii], _stx[ii], _sty[ii]);
+            _list.appendDirtyObject(_objects[ii]);
+        }
+        _list.sort();
+        int size = _list.size();
+        _list.clear();
+        return size;
+    }
+
+    protected DirtyItemList _list = new DirtyItemList();
+    protected Sprite[] _sprites;
+    protected int[] _stx, _sty;
+    protected SceneObject[] _objects;
+}
@@ -0,0 +1,242 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.miso.tile;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+import java.awt.image.BufferedImage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Maps;
+
+import com.threerings.media.image.ImageManager;
+import com.threerings.media.tile.NoSuchTileSetException;
+import com.threerings.media.tile.TileManager;
+import com.threerings.media.tile.TileSet;
+import com.threerings.media.tile.TileSetRepository;
+import com.threerings.media.tile.TileUtil;
+import com.threerings.media.tile.UniformTileSet;
+
+import com.threerings.miso.data.SimpleMisoSceneModel;
+import com.threerings.miso.tile.AutoFringer.FringeTile;
+
+import com.threerings.bench.SyntheticMedia;
+
+/**
+ * Measures fringing every tile of a randomly painted scene with {@link AutoFringer}, both with
+ * the fringe tile and mask caches already populated (as when a scene block is re-resolved) and
+ * with empty caches (as when a scene is first displayed), and measures computing the fringe
+ * keys of every tile into a fresh {@link FringeMap} (as when a scene is first resolved).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AutoFringerBenchmark
+{
+    /** The width and height of the fringed region, in tiles. */
+    @Param({ "16", "32" })
+    public int size;
+
+    @Setup
+    public void setup ()
+    {
+        SyntheticMedia.ImageProvider improv = new SyntheticMedia.ImageProvider();
+        FringeConfiguration fringeconf = new FringeConfiguration();
+        for (int ii = 0; ii < BASE_SETS; ii++) {
+            int baseId = BASE_TSID + ii, fringeId = FRINGE_TSID + ii;
+
+            BaseTileSet bset = new BaseTileSet();
+            bset.setName("base" + ii);
+            bset.setImagePath("base" + ii);
+            bset.setTileCounts(new int[] { 1 });
+            bset.setWidths(new int[] { TILE_WIDTH });
+            bset.setHeights(new int[] { TILE_HEIGHT });
+            bset.setPassability(new boolean[] { true });
+            bset.setImageProvider(improv.add("base" + ii, SyntheticMedia.createIndexedImage(
+                                                 TILE_WIDTH, TILE_HEIGHT, ii)));
+            _sets.put(baseId, bset);
+
+            UniformTileSet fset = new UniformTileSet();
+            fset.setName("fringe" + ii);
+            fset.setImagePath("fringe" + ii);
+            fset.setWidth(TILE_WIDTH);
+            fset.setHeight(TILE_HEIGHT);
+            fset.setImageProvider(improv.add("fringe" + ii, SyntheticMedia.createIndexedImage(
+                                                 TILE_WIDTH * 5, TILE_HEIGHT * 4, 100 + ii)));
+            _sets.put(fringeId, fset);
+
+            // the first base set uses a stamped fringe, the rest are masked
+            FringeConfiguration.FringeTileSetRecord tsr =
+                new FringeConfiguration.FringeTileSetRecord();
+            tsr.fringe_tsid = fringeId;
+            tsr.mask = (ii > 0);
+            FringeConfiguration.FringeRecord frec = new FringeConfiguration.FringeRecord();
+            frec.base_tsid = baseId;
+            frec.priority = ii + 1;
+            frec.addTileset(tsr);
+            fringeconf.addFringeRecord(frec);
+        }
+
+        _fringeconf = fringeconf;
+        _imgr = SyntheticMedia.createImageManager();
+        _tmgr = new TileManager(_imgr);
+        _tmgr.setTileSetRepository(new Repository());
+        _fringer = new AutoFringer(fringeconf, _imgr, _tmgr);
+
+        // paint the scene with random blobs of each base set
+        _scene = new SimpleMisoSceneModel(size + 2, size + 2, size + 2, size + 2);
+        Random rando = new Random(42L);
+        for (int yy = 0; yy < size + 2; yy += 2) {
+            for (int xx = 0; xx < size + 2; xx += 2) {
+                int fqTileId = TileUtil.getFQTileId(BASE_TSID + rando.nextInt(BASE_SETS), 0);
+                _scene.setBaseTile(fqTileId, xx, yy);
+                _scene.setBaseTile(fqTileId, xx + 1, yy);
+                _scene.setBaseTile(fqTileId, xx, yy + 1);
+                _scene.setBaseTile(fqTileId, xx + 1, yy + 1);
+            }
+        }
+
+        // populate the caches used by the cached benchmark
+        fringe(_fringer, _fringes, _masks);
+    }
+
+    @Benchmark
+    public int fringeCached ()
+    {
+        return fringe(_fringer, _fringes, _masks);
+    }
+
+    @Benchmark
+    public int fringeUncached ()
+    {
+        // a fresh fringer has no recently used fringe tiles
+        return fringe(new AutoFringer(_fringeconf, _imgr, _tmgr),
+                      new WeakHashMap<FringeTile, WeakReference<FringeTile>>(),
+                      Maps.<Long, BufferedImage>newHashMap());
+    }
+
+    @Benchmark
+    public int mapKeys ()
+    {
+        FringeMap fringes = new FringeMap(_fringer, _scene);
+        int count = 0;
+        for (int yy = 1; yy <= size; yy++) {
+            for (int xx = 1; xx <= size; xx++) {
+                if (fringes.getFringeKey(xx, yy) != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    protected int fringe (AutoFringer fringer, Map<FringeTile, WeakReference<FringeTile>> fringes,
+                          Map<Long, BufferedImage> masks)
+    {
+        int count = 0;
+        for (int yy = 1; yy <= size; yy++) {
+            for (int xx = 1; xx <= size; xx++) {
+                if (fringer.getFringeTile(_scene, xx, yy, fringes, masks) != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /** Serves our synthetic tilesets to the tile manager. */
+    protected class Repository implements TileSetRepository
+    {
+        // from interface TileSetRepository
+        public Iterator<Integer> enumerateTileSetIds ()
+        {
+            return _sets.keySet().iterator();
+        }
+
+        // from interface TileSetRepository
+        public Iterator<TileSet> enumerateTileSets ()
+        {
+            return _sets.values().iterator();
+        }
+
+        // from interface TileSetRepository
+        public TileSet getTileSet (int tileSetId)
+            throws NoSuchTileSetException
+        {
+            TileSet set = _sets.get(tileSetId);
+            if (set == null) {
+                throw new NoSuchTileSetException(tileSetId);
+            }
+            return set;
+        }
+
+        // from interface TileSetRepository
+        public int getTileSetId (String setName)
+            throws NoSuchTileSetException
+        {
+            for (Map.Entry<Integer, TileSet> entry : _sets.entrySet()) {
+                if (entry.getValue().getName().equals(setName)) {
+                    return entry.getKey();
+                }
+            }
+            throw new NoSuchTileSetException(setName);
+        }
+
+        // from interface TileSetRepository
+        public TileSet getTileSet (String setName)
+            throws NoSuchTileSetException
+        {
+            return getTileSet(getTileSetId(setName));
+        }
+    }
+
+    protected Map<Integer, TileSet> _sets = Maps.newHashMap();
+    protected FringeConfiguration _fringeconf;
+    protected ImageManager _imgr;
+    protected TileManager _tmgr;
+    protected AutoFringer _fringer;
+    protected SimpleMisoSceneModel _scene;
+    protected Map<FringeTile, WeakReference<FringeTile>> _fringes =
+        new WeakHashMap<FringeTile, WeakReference<FringeTile>>();
+    protected Map<Long, BufferedImage> _masks = Maps.newHashMap();
+
+    protected static final int BASE_SETS = 3;
+    protected static final int BASE_TSID = 10, FRINGE_TSID = 20;
+    protected static final int TILE_WIDTH = 64, TILE_HEIGHT = 48;
+}
@@ -0,0 +1,108 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.resource;
+
+import java.util.concurrent.TimeUnit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.awt.image.BufferedImage;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.threerings.bench.SyntheticMedia;
+
+/**
+ * Compares decoding an image from our {@link FastImageIO} format (both copied into the heap and
+ * left memory mapped) with decoding the same image from a PNG via {@link ImageIO}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageReadBenchmark
+{
+    /** The width and height of the image. */
+    @Param({ "128", "512" })
+    public int size;
+
+    @Setup
+    public void setup ()
+        throws IOException
+    {
+        BufferedImage image = SyntheticMedia.createIndexedImage(size, size, 42L);
+        _raw = File.createTempFile("bench", FastImageIO.FILE_SUFFIX);
+        FileOutputStream out = new FileOutputStream(_raw);
+        try {
+            FastImageIO.write(image, out);
+        } finally {
+            out.close();
+        }
+        _png = File.createTempFile("bench", ".png");
+        ImageIO.write(image, "PNG", _png);
+    }
+
+    @TearDown
+    public void tearDown ()
+    {
+        _raw.delete();
+        _png.delete();
+    }
+
+    @Benchmark
+    public BufferedImage fastRead ()
+        throws IOException
+    {
+        return FastImageIO.read(_raw);
+    }
+
+    @Benchmark
+    public BufferedImage fastReadMapped ()
+        throws IOException
+    {
+        return FastImageIO.readMapped(_raw);
+    }
+
+    @Benchmark
+    public BufferedImage imageIORead ()
+        throws IOException
+    {
+        return ImageIO.read(_png);
+    }
+
+    protected File _raw, _png;
+}
@@ -32,6 +32,9 @@ public interface ActionCache
 
     /**
      * Requests that the specified set of action frames for the specified character be cached.
+     * This is called on one of the image manager's loader threads (see {@link
+     * com.threerings.media.image.ImageManager#getLoaderExecutor}), as caching the frames may
+     * require that they be composited.
      */
     public void cacheActionFrames (CharacterDescriptor descrip, String action, ActionFrames frames);
 }
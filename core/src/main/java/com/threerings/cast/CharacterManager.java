@@ -20,14 +20,21 @@
 package com.threerings.cast;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import java.awt.Point;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
 
 import com.samskivert.util.LRUHashMap;
 import com.samskivert.util.StringUtil;
@@ -63,6 +70,16 @@ public class CharacterManager
         _runCacheSize = cacheKilobytes;
     }
 
+    /**
+     * Configures whether all of the orientations of an action are composited together into a
+     * single {@link CompositedAtlas} image rather than one image per frame. This must be called
+     * before the CharacterManager is created.
+     */
+    public static void setUseAtlases (boolean useAtlases)
+    {
+        _runUseAtlases = useAtlases;
+    }
+
     /**
      * Constructs the character manager.
      */
@@ -81,9 +98,9 @@ public class CharacterManager
 
         // create a cache for our composited action frames
         log.debug("Creating action cache [size=" + _runCacheSize + "k].");
-        _frameCache = new LRUHashMap<CompositedFramesKey, CompositedMultiFrameImage>(
-                _runCacheSize * 1024, new LRUHashMap.ItemSizer<CompositedMultiFrameImage>() {
-            public int computeSize (CompositedMultiFrameImage value) {
+        _frameCache = new LRUHashMap<CompositedFramesKey, CompositedImage>(
+                _runCacheSize * 1024, new LRUHashMap.ItemSizer<CompositedImage>() {
+            public int computeSize (CompositedImage value) {
                 return (int)value.getEstimatedMemoryUsage();
             }
         });
@@ -113,7 +130,9 @@ public class CharacterManager
 
     /**
      * Instructs the character manager to use the provided cache for
-     * composited action animations.
+     * composited action animations. Frames are fetched from the cache
+     * before being composited, and are supplied to the cache when they
+     * are composited. See {@link DiskActionCache}.
      */
     public void setActionCache (ActionCache cache)
     {
@@ -169,44 +188,143 @@ public class CharacterManager
     public ActionFrames getActionFrames (
         CharacterDescriptor descrip, String action)
         throws NoSuchComponentException
+    {
+        return getActionFrames(descrip, action, true);
+    }
+
+    /**
+     * Helper for {@link #getActionFrames(CharacterDescriptor,String)}.
+     *
+     * @param cacheNew whether to supply newly created frames to our action cache, if we have
+     * one. The cache composites every orientation of the frames, so they are supplied to it on
+     * the image manager's loader threads (see {@link #cacheActionFrames}).
+     */
+    protected ActionFrames getActionFrames (
+        CharacterDescriptor descrip, String action, boolean cacheNew)
+        throws NoSuchComponentException
     {
         Tuple<CharacterDescriptor, String> key = new Tuple<CharacterDescriptor, String>(descrip, action);
         ActionFrames frames = _actionFrames.get(key);
+        if (frames == null && _acache != null) {
+            frames = _acache.getActionFrames(descrip, action);
+            if (frames != null) {
+                _actionFrames.put(key, frames);
+            }
+        }
         if (frames == null) {
             // this doesn't actually composite the images, but prepares an
             // object to be able to do so
             frames = createCompositeFrames(descrip, action);
             _actionFrames.put(key, frames);
+            if (cacheNew && _acache != null) {
+                cacheActionFrames(descrip, action, frames);
+            }
         }
 
         // periodically report our frame image cache performance
         if (!_cacheStatThrottle.throttleOp()) {
-            long size = getEstimatedCacheMemoryUsage();
-            int[] eff = _frameCache.getTrackedEffectiveness();
-            log.debug("CharacterManager LRU [mem=" + (size / 1024) + "k" +
-                      ", size=" + _frameCache.size() + ", hits=" + eff[0] +
-                      ", misses=" + eff[1] + "].");
+            synchronized (_frameCache) {
+                long size = getEstimatedCacheMemoryUsage();
+                int[] eff = _frameCache.getTrackedEffectiveness();
+                log.debug("CharacterManager LRU [mem=" + (size / 1024) + "k" +
+                          ", size=" + _frameCache.size() + ", hits=" + eff[0] +
+                          ", misses=" + eff[1] + "].");
+            }
         }
 
         return frames;
     }
 
+    /**
+     * Supplies newly created frames to our action cache on the image manager's loader threads
+     * (see {@link ImageManager#getLoaderExecutor}), rather than making the caller wait while
+     * every orientation of them is composited and cached.
+     */
+    protected void cacheActionFrames (
+        final CharacterDescriptor descrip, final String action, final ActionFrames frames)
+    {
+        _imgr.getLoaderExecutor().execute(new Runnable() {
+            public void run () {
+                try {
+                    _acache.cacheActionFrames(descrip, action, frames);
+                } catch (Exception e) {
+                    log.warning("Failed to cache action", "desc", descrip, "action", action, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Obtains the composited animation frames for the specified action for a character with the
+     * specified descriptor, as does {@link #getActionFrames}, and composites every orientation
+     * of them on the image manager's loader threads (see {@link ImageManager#getLoaderExecutor}).
+     * Until the returned future completes, a caller may display whatever frames it was showing
+     * before (as does {@link CharacterSprite#setCompositeInBackground}); thereafter, the frames
+     * of each orientation can be obtained without compositing, unless they have since been
+     * flushed from the cache. Requests for a descriptor and action that are already being
+     * composited are merged with the compositing in progress.
+     *
+     * <p> Like {@link #getActionFrames}, this must be called on the thread that uses the frames.
+     *
+     * @exception NoSuchComponentException thrown if any of the components in the supplied
+     * descriptor do not exist.
+     */
+    public ListenableFuture<ActionFrames> resolveActionFrames (
+        final CharacterDescriptor descrip, final String action)
+        throws NoSuchComponentException
+    {
+        final Tuple<CharacterDescriptor, String> key =
+            new Tuple<CharacterDescriptor, String>(descrip, action);
+        ListenableFuture<ActionFrames> pending = _composites.get(key);
+        if (pending != null) {
+            return pending;
+        }
+        // newly created frames are cached once they're composited, off of this thread
+        final ActionFrames frames = getActionFrames(descrip, action, false);
+        final ActionSequence actseq = _actions.get(action);
+        if (actseq == null) {
+            return Futures.immediateFuture(frames);
+        }
+        ListenableFutureTask<ActionFrames> task =
+            ListenableFutureTask.create(new Callable<ActionFrames>() {
+            public ActionFrames call () throws Exception {
+                try {
+                    for (int orient : actseq.orients) {
+                        frames.getFrames(orient);
+                    }
+                    if (_acache != null) {
+                        _acache.cacheActionFrames(descrip, action, frames);
+                    }
+                    return frames;
+                } catch (Exception e) {
+                    log.warning("Failed to composite action", "desc", descrip, "action", action,
+                                e);
+                    throw e;
+                } finally {
+                    _composites.remove(key);
+                }
+            }
+        });
+        pending = _composites.putIfAbsent(key, task);
+        if (pending != null) {
+            return pending;
+        }
+        _imgr.getLoaderExecutor().execute(task);
+        return task;
+    }
+
     /**
      * Informs the character manager that the action sequence for the
      * given character descriptor is likely to be needed in the near
      * future and so any efforts that can be made to load it into the
-     * action sequence cache in advance should be undertaken.
-     *
-     * <p> This will eventually be revamped to spiffily load action
-     * sequences in the background.
+     * action sequence cache in advance should be undertaken. The
+     * frames are composited in the background (see {@link
+     * #resolveActionFrames}).
      */
     public void resolveActionSequence (CharacterDescriptor desc, String action)
     {
         try {
-            if (getActionFrames(desc, action) == null) {
-                log.warning("Failed to resolve action sequence " +
-                            "[desc=" + desc + ", action=" + action + "].");
-            }
+            resolveActionFrames(desc, action);
 
         } catch (NoSuchComponentException nsce) {
             log.warning("Failed to resolve action sequence " +
@@ -214,6 +332,101 @@ public class CharacterManager
         }
     }
 
+    /**
+     * Loads the component images needed to composite the specified actions for a character with
+     * the specified descriptor on the image manager's loader threads (see {@link
+     * ImageManager#getLoaderExecutor}), so that compositing them later need not wait on the
+     * disk. The frames themselves are not composited. Requests for a descriptor and action that
+     * are already being prefetched are merged with the prefetch in progress.
+     *
+     * @return a future that will be completed when all of the images have been loaded.
+     */
+    public ListenableFuture<List<Object>> prefetch (
+        CharacterDescriptor desc, Collection<String> actions)
+    {
+        List<ListenableFuture<?>> loads = Lists.newArrayListWithCapacity(actions.size());
+        for (String action : actions) {
+            loads.add(prefetch(desc, action));
+        }
+        return Futures.<Object>successfulAsList(loads);
+    }
+
+    /**
+     * Helper for {@link #prefetch(CharacterDescriptor,Collection)}.
+     */
+    protected ListenableFuture<?> prefetch (final CharacterDescriptor desc, final String action)
+    {
+        final Tuple<CharacterDescriptor, String> key =
+            new Tuple<CharacterDescriptor, String>(desc, action);
+        ListenableFuture<?> pending = _prefetches.get(key);
+        if (pending != null) {
+            return pending;
+        }
+        ListenableFutureTask<Void> task = ListenableFutureTask.create(new Callable<Void>() {
+            public Void call () throws Exception {
+                try {
+                    loadComponentImages(desc, action);
+                    return null;
+                } catch (Exception e) {
+                    log.warning("Failed to prefetch action", "desc", desc, "action", action, e);
+                    throw e;
+                } finally {
+                    _prefetches.remove(key);
+                }
+            }
+        });
+        pending = _prefetches.putIfAbsent(key, task);
+        if (pending != null) {
+            return pending;
+        }
+        _imgr.getLoaderExecutor().execute(task);
+        return task;
+    }
+
+    /**
+     * Loads (into the image manager's cache) the colorized component images that will be needed
+     * by {@link #createCompositeFrames} for the specified descriptor and action, along with any
+     * shadow and crop images.
+     */
+    protected void loadComponentImages (CharacterDescriptor descrip, String action)
+        throws NoSuchComponentException
+    {
+        ActionSequence actseq = _actions.get(action);
+        if (actseq == null) {
+            return;
+        }
+        int[] cids = descrip.getComponentIds();
+        Colorization[][] zations = descrip.getColorizations();
+        for (int ii = 0; ii < cids.length; ii++) {
+            CharacterComponent ccomp = _crepo.getComponent(cids[ii]);
+            ActionFrames source = ccomp.getFrames(action, null);
+            if (source != null) {
+                if (zations != null && zations[ii] != null) {
+                    source = source.cloneColorized(zations[ii]);
+                }
+                loadFrameImages(actseq, source);
+            }
+            loadFrameImages(actseq, ccomp.getFrames(action, StandardActions.SHADOW_TYPE));
+            loadFrameImages(actseq, ccomp.getFrames(action, StandardActions.CROP_TYPE));
+        }
+    }
+
+    /**
+     * Touches every frame of the supplied action frames to force their images to be loaded.
+     */
+    protected static void loadFrameImages (ActionSequence actseq, ActionFrames frames)
+    {
+        if (frames == null) {
+            return;
+        }
+        for (int orient : actseq.orients) {
+            TrimmedMultiFrameImage mfimg = frames.getFrames(orient);
+            for (int ii = 0, ll = mfimg.getFrameCount(); ii < ll; ii++) {
+                mfimg.getWidth(ii);
+            }
+        }
+    }
+
     /**
      * Returns the action sequence instance with the specified name or
      * null if no such sequence exists.
@@ -230,7 +443,7 @@ public class CharacterManager
     protected long getEstimatedCacheMemoryUsage ()
     {
         long size = 0;
-        Iterator<CompositedMultiFrameImage> iter = _frameCache.values().iterator();
+        Iterator<CompositedImage> iter = _frameCache.values().iterator();
         while (iter.hasNext()) {
             size += iter.next().getEstimatedMemoryUsage();
         }
@@ -328,7 +541,9 @@ public class CharacterManager
         // use those to create an entity that will lazily composite things
         // together as they are needed
         ComponentFrames[] cfvec = sources.toArray(new ComponentFrames[sources.size()]);
-        return new CompositedActionFrames(_imgr, _frameCache, action, cfvec);
+        ActionSequence actseq = _runUseAtlases ? _actions.get(action) : null;
+        return new CompositedActionFrames(
+            _imgr, _frameCache, action, cfvec, (actseq == null) ? null : actseq.orients);
     }
 
     protected ComponentFrames compositeShadow (
@@ -435,8 +650,18 @@ public class CharacterManager
     protected Map<Tuple<CharacterDescriptor, String>, ActionFrames> _actionFrames =
         Maps.newHashMap();
 
+    /** Descriptor and action pairs whose images are currently being prefetched. */
+    protected ConcurrentHashMap<Tuple<CharacterDescriptor, String>, ListenableFuture<?>>
+        _prefetches =
+        new ConcurrentHashMap<Tuple<CharacterDescriptor, String>, ListenableFuture<?>>();
+
+    /** Descriptor and action pairs whose frames are currently being composited. */
+    protected ConcurrentHashMap<Tuple<CharacterDescriptor, String>, ListenableFuture<ActionFrames>>
+        _composites = new ConcurrentHashMap<Tuple<CharacterDescriptor, String>,
+            ListenableFuture<ActionFrames>>();
+
     /** A cache of composited animation frames. */
-    protected LRUHashMap<CompositedFramesKey, CompositedMultiFrameImage> _frameCache;
+    protected LRUHashMap<CompositedFramesKey, CompositedImage> _frameCache;
 
     /** The character class to be created. */
     protected Class<? extends CharacterSprite> _charClass = CharacterSprite.class;
@@ -460,4 +685,17 @@ public class CharacterManager
      * the stored value.
      */
     protected static int _runCacheSize = _cacheSize.getValue();
+
+    /** Register our atlas compositing preference with the runtime adjustments framework. */
+    protected static RuntimeAdjust.BooleanAdjust _useAtlases =
+        new RuntimeAdjust.BooleanAdjust(
+            "Composite each character action into a single atlas image " +
+            "[requires restart]", "narya.cast.action_atlases",
+            CastPrefs.config, false);
+
+    /**
+     * Whether to composite atlases in this run. Adjusted by setUseAtlases without affecting
+     * the stored value.
+     */
+    protected static boolean _runUseAtlases = _useAtlases.getValue();
 }
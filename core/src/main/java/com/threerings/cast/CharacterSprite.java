@@ -19,12 +19,16 @@
 
 package com.threerings.cast;
 
+import java.util.concurrent.ExecutionException;
+
 import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.Rectangle;
 
 import javax.swing.SwingUtilities;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 import com.threerings.media.sprite.ImageSprite;
 
 import static com.threerings.cast.Log.log;
@@ -78,6 +82,18 @@ public class CharacterSprite extends ImageSprite
         updateActionFrames();
     }
 
+    /**
+     * Configures whether this sprite composites its action frames on the character manager's
+     * background threads (see {@link CharacterManager#resolveActionFrames}) rather than on the
+     * calling thread when its descriptor or action changes. While new frames are being
+     * composited, the sprite continues to display its previous frames (or nothing, if it has
+     * none), and swaps in the new ones on the first tick after they are ready.
+     */
+    public void setCompositeInBackground (boolean background)
+    {
+        _background = background;
+    }
+
     /**
      * Specifies the action to use when the sprite is at rest. The default is
      * <code>STANDING</code>.
@@ -237,14 +253,16 @@ public class CharacterSprite extends ImageSprite
         }
 
         try {
-            // obtain our animation frames for this action sequence
-            _aframes = _charmgr.getActionFrames(_descrip, _action);
-
-            // clear out our frames so that we recomposite on next tick
-            _frames = null;
+            if (_background) {
+                // keep our current frames until the new ones are composited
+                _pending = _charmgr.resolveActionFrames(_descrip, _action);
+                _pendingSeq = actseq;
+                return;
+            }
 
-            // update the sprite render attributes
-            setFrameRate(actseq.framesPerSecond);
+            // obtain our animation frames for this action sequence
+            _pending = null;
+            setActionFrames(_charmgr.getActionFrames(_descrip, _action), actseq);
 
         } catch (NoSuchComponentException nsce) {
             log.warning("Character sprite references non-existent component",
@@ -256,9 +274,37 @@ public class CharacterSprite extends ImageSprite
         }
     }
 
+    /**
+     * Switches to the supplied action frames.
+     */
+    protected void setActionFrames (ActionFrames aframes, ActionSequence actseq)
+    {
+        _aframes = aframes;
+
+        // clear out our frames so that we recomposite on next tick
+        _frames = null;
+
+        // update the sprite render attributes
+        setFrameRate(actseq.framesPerSecond);
+    }
+
     /** Called to recomposite our action frames if needed. */
     protected final void compositeActionFrames ()
     {
+        // switch to any frames that have been composited in the background
+        if (_pending != null && _pending.isDone()) {
+            ListenableFuture<ActionFrames> pending = _pending;
+            _pending = null;
+            try {
+                setActionFrames(pending.get(), _pendingSeq);
+            } catch (ExecutionException ee) {
+                log.warning("Failed to obtain action frames",
+                    "sprite", this, "descrip", _descrip, "action", _action, ee.getCause());
+            } catch (InterruptedException ie) {
+                // can't happen; the future is done
+            }
+        }
+
         if (_frames == null && _aframes != null) {
             setFrames(_aframes.getFrames(_orient));
         }
@@ -377,6 +423,13 @@ public class CharacterSprite extends ImageSprite
     /** The animation frames for the active action sequence in each orientation. */
     protected ActionFrames _aframes;
 
+    /** Whether we composite our action frames in the background. */
+    protected boolean _background;
+
+    /** Action frames being composited in the background, if any, and their sequence. */
+    protected ListenableFuture<ActionFrames> _pending;
+    protected ActionSequence _pendingSeq;
+
     /** The offset from the upper-left of the total sprite bounds to the upper-left of the image
      * within those bounds. */
     protected Point _ioff = new Point();
@@ -65,8 +65,23 @@ public class CompositedActionFrames
      * frame images will not be composited until they are requested.
      */
     public CompositedActionFrames (
-        ImageManager imgr, Map<CompositedFramesKey, CompositedMultiFrameImage> frameCache,
+        ImageManager imgr, Map<CompositedFramesKey, CompositedImage> frameCache,
         String action, ComponentFrames[] sources)
+    {
+        this(imgr, frameCache, action, sources, null);
+    }
+
+    /**
+     * Constructs a set of composited action frames with the supplied
+     * source frames and colorization configuration.
+     *
+     * @param orients if non-null, the orientations of the action, all
+     * of which will be composited into a single {@link CompositedAtlas}
+     * when frames of any of them are first requested.
+     */
+    public CompositedActionFrames (
+        ImageManager imgr, Map<CompositedFramesKey, CompositedImage> frameCache,
+        String action, ComponentFrames[] sources, int[] orients)
     {
         // sanity check
         if (sources == null || sources.length == 0) {
@@ -80,6 +95,7 @@ public class CompositedActionFrames
         _frameCache = frameCache;
         _sources = sources;
         _action = action;
+        _orients = orients;
 
         // the sources must all have the same orientation count, so we
         // just use the first
@@ -95,12 +111,25 @@ public class CompositedActionFrames
     // documentation inherited from interface
     public TrimmedMultiFrameImage getFrames (int orient)
     {
-        _key.setOrient(orient);
-        CompositedMultiFrameImage cmfi =
-            _frameCache.get(_key);
+        if (_orients != null) {
+            CompositedAtlas.Frames frames = getAtlas().getFrames(orient);
+            if (frames != null) {
+                return frames;
+            }
+        }
+
+        CompositedMultiFrameImage cmfi;
+        synchronized (_frameCache) {
+            _key.setOrient(orient);
+            cmfi = (CompositedMultiFrameImage)_frameCache.get(_key);
+        }
         if (cmfi == null) {
+            // we composite outside the lock so as not to hold up threads
+            // compositing or using other frames
             cmfi = createFrames(orient);
-            _frameCache.put(new CompositedFramesKey(orient), cmfi);
+            synchronized (_frameCache) {
+                _frameCache.put(new CompositedFramesKey(orient), cmfi);
+            }
         }
         return cmfi;
     }
@@ -108,17 +137,21 @@ public class CompositedActionFrames
     // documentation inherited from interface
     public int getXOrigin (int orient, int frameIdx)
     {
-        CompositedMultiFrameImage cmfi = (CompositedMultiFrameImage)
-            getFrames(orient);
-        return cmfi.getXOrigin(frameIdx);
+        TrimmedMultiFrameImage frames = getFrames(orient);
+        if (frames instanceof CompositedAtlas.Frames) {
+            return ((CompositedAtlas.Frames)frames).getXOrigin(frameIdx);
+        }
+        return ((CompositedMultiFrameImage)frames).getXOrigin(frameIdx);
     }
 
     // documentation inherited from interface
     public int getYOrigin (int orient, int frameIdx)
     {
-        CompositedMultiFrameImage cmfi = (CompositedMultiFrameImage)
-            getFrames(orient);
-        return cmfi.getYOrigin(frameIdx);
+        TrimmedMultiFrameImage frames = getFrames(orient);
+        if (frames instanceof CompositedAtlas.Frames) {
+            return ((CompositedAtlas.Frames)frames).getYOrigin(frameIdx);
+        }
+        return ((CompositedMultiFrameImage)frames).getYOrigin(frameIdx);
     }
 
     // documentation inherited from interface
@@ -135,7 +168,26 @@ public class CompositedActionFrames
             tsources[ii] = new ComponentFrames(
                 _sources[ii].ccomp, _sources[ii].frames.cloneTranslated(dx, dy));
         }
-        return new CompositedActionFrames(_imgr, _frameCache, _action, tsources);
+        return new CompositedActionFrames(_imgr, _frameCache, _action, tsources, _orients);
+    }
+
+    /**
+     * Returns our atlas, compositing it if it is not in the cache.
+     */
+    protected CompositedAtlas getAtlas ()
+    {
+        CompositedAtlas atlas;
+        synchronized (_frameCache) {
+            _key.setOrient(ATLAS_ORIENT);
+            atlas = (CompositedAtlas)_frameCache.get(_key);
+        }
+        if (atlas == null) {
+            atlas = new CompositedAtlas(_imgr, _sources, _action, _orients);
+            synchronized (_frameCache) {
+                _frameCache.put(new CompositedFramesKey(ATLAS_ORIENT), atlas);
+            }
+        }
+        return atlas;
     }
 
     /**
@@ -181,8 +233,10 @@ public class CompositedActionFrames
      * onto which to render our composited actions. */
     protected ImageManager _imgr;
 
-    /** Used to cache our composited action frame images. */
-    protected Map<CompositedFramesKey, CompositedMultiFrameImage> _frameCache;
+    /** Used to cache our composited action frame images. Frames may be
+     * composited on more than one thread, so all access to the cache
+     * synchronizes on it. */
+    protected Map<CompositedFramesKey, CompositedImage> _frameCache;
 
     /** The action for which we're compositing frames. */
     protected String _action;
@@ -193,7 +247,14 @@ public class CompositedActionFrames
     /** Our source components and action frames. */
     protected ComponentFrames[] _sources;
 
+    /** The orientations to composite into our atlas, or null if we
+     * composite an image per frame. */
+    protected int[] _orients;
+
     /** Used to avoid creating a new key object every time we do a cache
      * lookup. */
     protected CompositedFramesKey _key = new CompositedFramesKey(0);
+
+    /** The orientation under which our atlas is cached. */
+    protected static final int ATLAS_ORIENT = Integer.MIN_VALUE;
 }
@@ -0,0 +1,477 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.cast;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+
+import com.samskivert.util.HashIntMap;
+import com.samskivert.util.IntMap;
+
+import com.threerings.resource.FastImageIO;
+
+import com.threerings.media.image.ImageManager;
+import com.threerings.media.image.ImageUtil;
+import com.threerings.media.image.Quantize;
+
+import com.threerings.cast.CompositedActionFrames.ComponentFrames;
+
+/**
+ * Composites every frame of every orientation of an action into a single image in which the
+ * frames are packed in rows, along with a table of the bounds of each frame in that image. Used
+ * by {@link CompositedActionFrames} in place of an image per frame when action atlases are
+ * enabled (see {@link CharacterManager#setUseAtlases}), which means one cached image per action
+ * rather than one per frame, and all of the frames composited at once. Also the form in which
+ * {@link DiskActionCache} stores composited frames.
+ */
+public class CompositedAtlas
+    implements CompositedImage
+{
+    /**
+     * The frames of a single orientation, painted from the atlas.
+     */
+    public class Frames
+        implements TrimmedMultiFrameImage
+    {
+        protected Frames (int first, int count)
+        {
+            _first = first;
+            _count = count;
+        }
+
+        // documentation inherited from interface
+        public int getFrameCount ()
+        {
+            return _count;
+        }
+
+        // documentation inherited from interface
+        public int getWidth (int index)
+        {
+            return _width[_first + index];
+        }
+
+        // documentation inherited from interface
+        public int getHeight (int index)
+        {
+            return _height[_first + index];
+        }
+
+        /**
+         * Returns the x coordinate of the origin of the specified frame.
+         */
+        public int getXOrigin (int index)
+        {
+            return _xorigin[_first + index];
+        }
+
+        /**
+         * Returns the y coordinate of the origin of the specified frame.
+         */
+        public int getYOrigin (int index)
+        {
+            return _yorigin[_first + index];
+        }
+
+        // documentation inherited from interface
+        public void paintFrame (Graphics2D g, int index, int x, int y)
+        {
+            int frame = _first + index, sx = _x[frame], sy = _y[frame];
+            int width = _width[frame], height = _height[frame];
+            g.drawImage(_image, x, y, x + width, y + height,
+                        sx, sy, sx + width, sy + height, null);
+        }
+
+        // documentation inherited from interface
+        public boolean hitTest (int index, int x, int y)
+        {
+            int frame = _first + index;
+            if (x < 0 || y < 0 || x >= _width[frame] || y >= _height[frame]) {
+                return false;
+            }
+            return ImageUtil.hitTest(_image, _x[frame] + x, _y[frame] + y);
+        }
+
+        // documentation inherited from interface
+        public void getTrimmedBounds (int index, Rectangle bounds)
+        {
+            bounds.setBounds(0, 0, getWidth(index), getHeight(index));
+        }
+
+        /** The index of our first frame in the atlas tables and our frame count. */
+        protected int _first, _count;
+    }
+
+    /**
+     * Composites the frames of the specified orientations of an action into an atlas.
+     */
+    public CompositedAtlas (
+        ImageManager imgr, ComponentFrames[] sources, final String action, int[] orients)
+    {
+        // determine how many frames we have in all
+        int total = 0;
+        for (int orient : orients) {
+            total += sources[0].frames.getFrames(orient).getFrameCount();
+        }
+        allocate(total);
+
+        // determine the bounds that will enclose all of the components of each frame, and the
+        // origin of each frame relative to those bounds
+        Rectangle[] bounds = new Rectangle[total];
+        Rectangle tbounds = new Rectangle();
+        int frame = 0;
+        for (int orient : orients) {
+            int fcount = sources[0].frames.getFrames(orient).getFrameCount();
+            _orients.put(orient, new Frames(frame, fcount));
+            for (int ii = 0; ii < fcount; ii++, frame++) {
+                Rectangle fbounds = new Rectangle();
+                for (ComponentFrames source : sources) {
+                    source.frames.getFrames(orient).getTrimmedBounds(ii, tbounds);
+                    if (fbounds.width == 0 && fbounds.height == 0) {
+                        fbounds.setBounds(tbounds);
+                    } else {
+                        fbounds.add(tbounds);
+                    }
+                }
+                bounds[frame] = fbounds;
+                setFrame(frame, fbounds, sources[0].frames.getXOrigin(orient, ii),
+                         sources[0].frames.getYOrigin(orient, ii));
+            }
+        }
+
+        // pack the frames into the atlas and composite them
+        Graphics2D g = createImage(imgr);
+        try {
+            frame = 0;
+            for (final int orient : orients) {
+                // sort the sources appropriately for this orientation
+                ComponentFrames[] sorted = sources.clone();
+                Arrays.sort(sorted, new Comparator<ComponentFrames>() {
+                    public int compare (ComponentFrames cf1, ComponentFrames cf2) {
+                        return (cf1.ccomp.getRenderPriority(action, orient) -
+                                cf2.ccomp.getRenderPriority(action, orient));
+                    }
+                });
+                TrimmedMultiFrameImage[] images = new TrimmedMultiFrameImage[sorted.length];
+                for (int ii = 0; ii < sorted.length; ii++) {
+                    images[ii] = sorted[ii].frames.getFrames(orient);
+                }
+
+                // now render each of the components into the frame's region of the atlas
+                for (int ii = 0, ll = _orients.get(orient).getFrameCount(); ii < ll;
+                        ii++, frame++) {
+                    for (TrimmedMultiFrameImage image : images) {
+                        paintFrame(g, frame, bounds[frame], image, ii);
+                    }
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /**
+     * Copies the frames of the specified orientations of an already composited set of action
+     * frames into an atlas.
+     */
+    public CompositedAtlas (ImageManager imgr, ActionFrames frames, int[] orients)
+    {
+        int total = 0;
+        for (int orient : orients) {
+            total += frames.getFrames(orient).getFrameCount();
+        }
+        allocate(total);
+
+        Rectangle[] bounds = new Rectangle[total];
+        int frame = 0;
+        for (int orient : orients) {
+            TrimmedMultiFrameImage images = frames.getFrames(orient);
+            int fcount = images.getFrameCount();
+            _orients.put(orient, new Frames(frame, fcount));
+            for (int ii = 0; ii < fcount; ii++, frame++) {
+                Rectangle fbounds = new Rectangle();
+                images.getTrimmedBounds(ii, fbounds);
+                bounds[frame] = fbounds;
+                setFrame(frame, fbounds, frames.getXOrigin(orient, ii),
+                         frames.getYOrigin(orient, ii));
+            }
+        }
+
+        Graphics2D g = createImage(imgr);
+        try {
+            frame = 0;
+            for (int orient : orients) {
+                TrimmedMultiFrameImage images = frames.getFrames(orient);
+                for (int ii = 0, ll = images.getFrameCount(); ii < ll; ii++, frame++) {
+                    paintFrame(g, frame, bounds[frame], images, ii);
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /**
+     * Reads an atlas previously written via {@link #write}.
+     *
+     * @exception IOException thrown if an error occurs reading from the stream.
+     */
+    public CompositedAtlas (ImageManager imgr, DataInputStream in)
+        throws IOException
+    {
+        for (int ii = 0, ll = in.readInt(); ii < ll; ii++) {
+            int orient = in.readInt(), first = in.readInt();
+            _orients.put(orient, new Frames(first, in.readInt()));
+        }
+        allocate(in.readInt());
+        for (int ii = 0; ii < _x.length; ii++) {
+            _x[ii] = in.readInt();
+            _y[ii] = in.readInt();
+            _width[ii] = in.readInt();
+            _height[ii] = in.readInt();
+            _xorigin[ii] = in.readInt();
+            _yorigin[ii] = in.readInt();
+        }
+
+        // copy the indexed image into one like those we composite, which renders faster
+        BufferedImage indexed = FastImageIO.read(in);
+        _image = imgr.createImage(
+            indexed.getWidth(), indexed.getHeight(), Transparency.BITMASK);
+        Graphics2D g = _image.createGraphics();
+        try {
+            g.drawImage(indexed, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /**
+     * Returns the frames of the specified orientation, or null if the atlas does not contain
+     * that orientation.
+     */
+    public Frames getFrames (int orient)
+    {
+        return _orients.get(orient);
+    }
+
+    /**
+     * Returns the number of frames in the atlas.
+     */
+    public int getFrameCount ()
+    {
+        return _x.length;
+    }
+
+    /**
+     * Returns the image containing all of our frames.
+     */
+    public BufferedImage getImage ()
+    {
+        return _image;
+    }
+
+    /**
+     * Writes our frame table and image to the supplied stream, the latter in the {@link
+     * FastImageIO} format. Nothing is written if our image cannot be reduced to 8-bit indexed
+     * color without loss, which is the case when it contains more than 255 colors or any
+     * translucent pixels.
+     *
+     * @return true if the atlas was written, false if it could not be.
+     *
+     * @exception IOException thrown if an error occurs writing to the stream.
+     */
+    public boolean write (OutputStream out)
+        throws IOException
+    {
+        BufferedImage indexed = createIndexedImage();
+        if (indexed == null) {
+            return false;
+        }
+
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(_orients.size());
+        for (IntMap.IntEntry<Frames> entry : _orients.intEntrySet()) {
+            dout.writeInt(entry.getIntKey());
+            dout.writeInt(entry.getValue()._first);
+            dout.writeInt(entry.getValue()._count);
+        }
+        dout.writeInt(_x.length);
+        for (int ii = 0; ii < _x.length; ii++) {
+            dout.writeInt(_x[ii]);
+            dout.writeInt(_y[ii]);
+            dout.writeInt(_width[ii]);
+            dout.writeInt(_height[ii]);
+            dout.writeInt(_xorigin[ii]);
+            dout.writeInt(_yorigin[ii]);
+        }
+        FastImageIO.write(indexed, dout);
+        return true;
+    }
+
+    // documentation inherited from interface
+    public long getEstimatedMemoryUsage ()
+    {
+        return ImageUtil.getEstimatedMemoryUsage(_image);
+    }
+
+    /**
+     * Creates our frame tables to hold the specified number of frames.
+     */
+    protected void allocate (int count)
+    {
+        _x = new int[count];
+        _y = new int[count];
+        _width = new int[count];
+        _height = new int[count];
+        _xorigin = new int[count];
+        _yorigin = new int[count];
+    }
+
+    /**
+     * Notes the size and origin of a frame that will be painted within the supplied bounds.
+     */
+    protected void setFrame (int frame, Rectangle bounds, int xorigin, int yorigin)
+    {
+        bounds.width = Math.max(bounds.width, 1);
+        bounds.height = Math.max(bounds.height, 1);
+        _width[frame] = bounds.width;
+        _height[frame] = bounds.height;
+        _xorigin[frame] = xorigin - bounds.x;
+        _yorigin[frame] = yorigin - bounds.y;
+    }
+
+    /**
+     * Packs our frames and creates an image to hold them.
+     *
+     * @return a graphics context for painting into the image, which the caller must dispose.
+     */
+    protected Graphics2D createImage (ImageManager imgr)
+    {
+        Rectangle size = pack();
+        _image = imgr.createImage(size.width, size.height, Transparency.BITMASK);
+        return _image.createGraphics();
+    }
+
+    /**
+     * Paints a frame of the supplied image into its region of the atlas.
+     *
+     * @param bounds the bounds of the atlas frame relative to the image frame's origin.
+     */
+    protected void paintFrame (
+        Graphics2D g, int frame, Rectangle bounds, TrimmedMultiFrameImage image, int index)
+    {
+        g.setClip(_x[frame], _y[frame], _width[frame], _height[frame]);
+        image.paintFrame(g, index, _x[frame] - bounds.x, _y[frame] - bounds.y);
+    }
+
+    /**
+     * Returns a copy of our image in 8-bit indexed color, or null if it cannot be represented
+     * exactly in that form.
+     */
+    protected BufferedImage createIndexedImage ()
+    {
+        int width = _image.getWidth(), height = _image.getHeight();
+        int[] source = _image.getRGB(0, 0, width, height, null, 0, width);
+        int[] pixels = source.clone();
+        int[] cmap = Quantize.quantizeImage(pixels, 256);
+
+        byte[] data = new byte[pixels.length];
+        for (int ii = 0; ii < pixels.length; ii++) {
+            int argb = source[ii], mapped = cmap[pixels[ii]];
+            if ((argb >>> 24) == 0 ? (mapped >>> 24) != 0 : argb != mapped) {
+                return null;
+            }
+            data[ii] = (byte)pixels[ii];
+        }
+
+        IndexColorModel cmodel = new IndexColorModel(
+            8, cmap.length, cmap, 0, true, -1, DataBuffer.TYPE_BYTE);
+        BufferedImage image = new BufferedImage(
+            width, height, BufferedImage.TYPE_BYTE_INDEXED, cmodel);
+        image.getRaster().setDataElements(0, 0, width, height, data);
+        return image;
+    }
+
+    /**
+     * Assigns each frame a position in the atlas, placing the frames from tallest to shortest in
+     * rows of roughly the width that makes the atlas square.
+     *
+     * @return the size of the atlas.
+     */
+    protected Rectangle pack ()
+    {
+        int count = _x.length;
+        Integer[] order = new Integer[count];
+        long area = 0;
+        int maxWidth = 0;
+        for (int ii = 0; ii < count; ii++) {
+            order[ii] = ii;
+            area += (long)_width[ii] * _height[ii];
+            maxWidth = Math.max(maxWidth, _width[ii]);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare (Integer f1, Integer f2) {
+                return _height[f2] - _height[f1];
+            }
+        });
+
+        int rowWidth = Math.max(maxWidth, (int)Math.ceil(Math.sqrt(area)));
+        Rectangle size = new Rectangle(0, 0, 1, 1);
+        int x = 0, y = 0, rowHeight = 0;
+        for (int frame : order) {
+            if (x + _width[frame] > rowWidth) {
+                // start a new row
+                x = 0;
+                y += rowHeight;
+                rowHeight = 0;
+            }
+            _x[frame] = x;
+            _y[frame] = y;
+            x += _width[frame];
+            rowHeight = Math.max(rowHeight, _height[frame]);
+            size.add(x, y + rowHeight);
+        }
+        return size;
+    }
+
+    /** The image into which our frames are composited. */
+    protected BufferedImage _image;
+
+    /** The frames of each orientation, mapped by orientation. */
+    protected HashIntMap<Frames> _orients = new HashIntMap<Frames>();
+
+    /** The position and size of each frame in the atlas. */
+    protected int[] _x, _y, _width, _height;
+
+    /** The origin of each frame relative to its upper left corner. */
+    protected int[] _xorigin, _yorigin;
+}
@@ -40,7 +40,7 @@ import com.threerings.cast.bundle.BundledComponentRepository.TileSetFrameImage;
  * {@link CompositedActionFrames}.
  */
 public class CompositedMultiFrameImage
-    implements TrimmedMultiFrameImage
+    implements TrimmedMultiFrameImage, CompositedImage
 {
     public CompositedMultiFrameImage (
         ImageManager imgr, ComponentFrames[] sources,
@@ -99,9 +99,7 @@ public class CompositedMultiFrameImage
         bounds.setBounds(0, 0, getWidth(index), getHeight(index));
     }
 
-    /**
-     * Returns the estimated memory usage of our composited frame images.
-     */
+    // documentation inherited from interface
     public long getEstimatedMemoryUsage ()
     {
         long size = 0;
@@ -0,0 +1,455 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.cast;
+
+import java.lang.ref.SoftReference;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.awt.Point;
+
+import com.samskivert.io.StreamUtil;
+import com.samskivert.util.StringUtil;
+
+import com.threerings.resource.FileResourceBundle;
+
+import com.threerings.media.image.Colorization;
+
+import static com.threerings.cast.Log.log;
+
+/**
+ * An {@link ActionCache} that stores composited action frames on disk, so that characters
+ * composited in one session need not be composited again in the next. Every orientation of an
+ * action is stored as a single {@link CompositedAtlas} in a file named for a hash of the
+ * character's components, colorizations and translations and of the action. Caching an action
+ * thus composites all of its orientations at once. The least recently used files are deleted
+ * when the cache grows beyond its maximum size.
+ *
+ * <p> Frames read from the cache are held by soft reference and reread as needed. Actions whose
+ * frames cannot be stored exactly in 8-bit indexed color are not cached.
+ */
+public class DiskActionCache
+    implements ActionCache
+{
+    /**
+     * Creates a cache that stores its files in a directory in the user's home directory (or, if
+     * that is unknown, a directory named for the user alongside the {@link FileResourceBundle}
+     * cache directory). Unlike the latter, this directory persists across sessions.
+     *
+     * @param mediaVersion a string identifying the version of the component media, which should
+     * be changed when the components change so that stale frames are not used.
+     * @param maxBytes the total size of the files beyond which the cache will be trimmed.
+     */
+    public DiskActionCache (CharacterManager cmgr, String mediaVersion, long maxBytes)
+    {
+        this(cmgr, getDefaultDir(), mediaVersion, maxBytes);
+    }
+
+    /**
+     * Creates a cache that stores its files in the specified directory. The directory may be
+     * shared by other processes (run by the same user), each of which trims the files it knows of
+     * (those present when it was created and those it has since written or read) to its maximum
+     * size.
+     *
+     * @param mediaVersion a string identifying the version of the component media, which should
+     * be changed when the components change so that stale frames are not used.
+     * @param maxBytes the total size of the files beyond which the cache will be trimmed.
+     */
+    public DiskActionCache (CharacterManager cmgr, File dir, String mediaVersion, long maxBytes)
+    {
+        _cmgr = cmgr;
+        _dir = dir;
+        _mediaVersion = mediaVersion;
+        _maxBytes = maxBytes;
+
+        if (!_dir.isDirectory() && !_dir.mkdirs()) {
+            log.warning("Failed to create action cache directory", "dir", _dir);
+        }
+
+        // note the files already in the cache, from least to most recently used
+        File[] files = _dir.listFiles();
+        if (files == null) {
+            files = new File[0];
+        }
+        long now = System.currentTimeMillis();
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare (File f1, File f2) {
+                long m1 = f1.lastModified(), m2 = f2.lastModified();
+                return (m1 < m2) ? -1 : ((m1 == m2) ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(FILE_SUFFIX)) {
+                noteFile(file.getName(), file.length());
+            } else if (file.getName().endsWith(TEMP_SUFFIX) &&
+                       file.lastModified() < now - TEMP_EXPIRY) {
+                // left behind by a session that failed mid-write (younger files may be being
+                // written by another process)
+                file.delete();
+            }
+        }
+        synchronized (this) {
+            prune();
+        }
+    }
+
+    // documentation inherited from interface
+    public ActionFrames getActionFrames (CharacterDescriptor descrip, String action)
+    {
+        ActionSequence actseq = _cmgr.getActionSequence(action);
+        if (actseq == null) {
+            return null;
+        }
+        String name = getFileName(descrip, action);
+        File file = new File(_dir, name);
+        synchronized (this) {
+            // this also marks the file as the most recently used
+            if (_files.get(name) == null) {
+                // another process may have since cached the frames
+                if (!file.isFile()) {
+                    return null;
+                }
+                noteFile(name, file.length());
+                prune();
+            }
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return new CachedActionFrames(descrip, action, actseq, file);
+    }
+
+    // documentation inherited from interface
+    public void cacheActionFrames (CharacterDescriptor descrip, String action, ActionFrames frames)
+    {
+        ActionSequence actseq = _cmgr.getActionSequence(action);
+        if (actseq == null || frames instanceof CachedActionFrames) {
+            return;
+        }
+        String name = getFileName(descrip, action);
+        synchronized (this) {
+            // skip frames that are cached or being cached (by another thread)
+            if (_files.containsKey(name) || !_writing.add(name)) {
+                return;
+            }
+        }
+
+        // write to a temporary file (uniquely named, lest another process be writing the same
+        // frames) and move that into place, so that a partially written file is never read
+        File temp = null;
+        try {
+            temp = File.createTempFile(name, TEMP_SUFFIX, _dir);
+            CompositedAtlas atlas = new CompositedAtlas(_cmgr._imgr, frames, actseq.orients);
+            boolean written;
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(FILE_MAGIC);
+                written = atlas.write(out);
+            } finally {
+                StreamUtil.close(out);
+            }
+            if (!written) {
+                log.debug("Not caching action frames that cannot be indexed",
+                          "descrip", descrip, "action", action);
+                temp.delete();
+                return;
+            }
+
+            File file = new File(_dir, name);
+            file.delete();
+            if (!temp.renameTo(file)) {
+                if (!file.isFile()) {
+                    throw new IOException("Failed to rename " + temp + " to " + file);
+                }
+                // another process moved its copy into place first
+                temp.delete();
+            }
+            synchronized (this) {
+                noteFile(name, file.length());
+                prune();
+            }
+
+        } catch (IOException ioe) {
+            log.warning("Failed to cache action frames", "descrip", descrip, "action", action,
+                        ioe);
+            if (temp != null) {
+                temp.delete();
+            }
+
+        } finally {
+            synchronized (this) {
+                _writing.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Returns the directory in which we store our files by default.
+     */
+    protected static File getDefaultDir ()
+    {
+        String home = System.getProperty("user.home");
+        if (home != null) {
+            return new File(home, "." + CACHE_DIR);
+        }
+        return new File(FileResourceBundle.getCacheDir().getParentFile(),
+                        CACHE_DIR + "_" + System.getProperty("user.name"));
+    }
+
+    /**
+     * Returns the name of the file in which the frames of the specified action of the specified
+     * character are cached.
+     */
+    protected String getFileName (CharacterDescriptor descrip, String action)
+    {
+        StringBuilder buf = new StringBuilder(_mediaVersion).append('/').append(action);
+        int[] cids = descrip.getComponentIds();
+        Colorization[][] zations = descrip.getColorizations();
+        Point[] xlations = descrip.getTranslations();
+        for (int ii = 0; ii < cids.length; ii++) {
+            buf.append('/').append(cids[ii]);
+            Colorization[] czations = (zations == null) ? null : zations[ii];
+            if (czations != null) {
+                for (Colorization zation : czations) {
+                    if (zation == null) {
+                        buf.append(":-");
+                        continue;
+                    }
+                    // the colorization's parameters are included lest the ids be reassigned
+                    buf.append(':').append(zation.colorizationId);
+                    buf.append(',').append(zation.rootColor.getRGB());
+                    buf.append(',').append(StringUtil.toString(zation.range));
+                    buf.append(',').append(StringUtil.toString(zation.offsets));
+                }
+            }
+            Point xlation = (xlations == null) ? null : xlations[ii];
+            if (xlation != null) {
+                buf.append('@').append(xlation.x).append(',').append(xlation.y);
+            }
+        }
+        return StringUtil.md5hex(buf.toString()) + FILE_SUFFIX;
+    }
+
+    /**
+     * Reads the atlas stored in the specified file, returning null if it cannot be read.
+     */
+    protected CompositedAtlas readAtlas (File file)
+    {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("Unknown file format");
+            }
+            return new CompositedAtlas(_cmgr._imgr, in);
+
+        } catch (IOException ioe) {
+            log.warning("Failed to read cached action frames", "file", file, ioe);
+            synchronized (this) {
+                Long size = _files.remove(file.getName());
+                if (size != null) {
+                    _size -= size;
+                }
+            }
+            file.delete();
+            return null;
+
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    /**
+     * Adds a file to our records as the most recently used.
+     */
+    protected synchronized void noteFile (String name, long size)
+    {
+        Long osize = _files.put(name, size);
+        _size += size - ((osize == null) ? 0L : osize);
+    }
+
+    /**
+     * Deletes the least recently used files until we are within our maximum size.
+     */
+    protected void prune ()
+    {
+        for (Iterator<Map.Entry<String, Long>> iter = _files.entrySet().iterator();
+                _size > _maxBytes && iter.hasNext(); ) {
+            Map.Entry<String, Long> entry = iter.next();
+            iter.remove();
+            _size -= entry.getValue();
+            new File(_dir, entry.getKey()).delete();
+        }
+    }
+
+    /**
+     * Action frames read from the cache. If they cannot be read (because the file has been
+     * pruned or damaged since we were created), they are composited instead.
+     */
+    protected class CachedActionFrames
+        implements ActionFrames
+    {
+        public CachedActionFrames (
+            CharacterDescriptor descrip, String action, ActionSequence actseq, File file)
+        {
+            _descrip = descrip;
+            _action = action;
+            _actseq = actseq;
+            _file = file;
+        }
+
+        // documentation inherited from interface
+        public int getOrientationCount ()
+        {
+            return _actseq.orients.length;
+        }
+
+        // documentation inherited from interface
+        public TrimmedMultiFrameImage getFrames (int orient)
+        {
+            CompositedAtlas atlas = getAtlas();
+            return (atlas == null) ? _composited.getFrames(orient) : atlas.getFrames(orient);
+        }
+
+        // documentation inherited from interface
+        public int getXOrigin (int orient, int frameIdx)
+        {
+            CompositedAtlas atlas = getAtlas();
+            return (atlas == null) ? _composited.getXOrigin(orient, frameIdx) :
+                atlas.getFrames(orient).getXOrigin(frameIdx);
+        }
+
+        // documentation inherited from interface
+        public int getYOrigin (int orient, int frameIdx)
+        {
+            CompositedAtlas atlas = getAtlas();
+            return (atlas == null) ? _composited.getYOrigin(orient, frameIdx) :
+                atlas.getFrames(orient).getYOrigin(frameIdx);
+        }
+
+        // documentation inherited from interface
+        public ActionFrames cloneColorized (Colorization[] zations)
+        {
+            throw new RuntimeException("What you talkin' about Willis?");
+        }
+
+        // documentation inherited from interface
+        public ActionFrames cloneTranslated (int dx, int dy)
+        {
+            return composite().cloneTranslated(dx, dy);
+        }
+
+        /**
+         * Returns our atlas, reading it if need be, or null if it could not be read, in which
+         * case our frames will have been composited instead.
+         */
+        protected synchronized CompositedAtlas getAtlas ()
+        {
+            if (_composited != null) {
+                return null;
+            }
+            CompositedAtlas atlas = (_atlas == null) ? null : _atlas.get();
+            if (atlas == null) {
+                atlas = readAtlas(_file);
+                if (atlas == null) {
+                    composite();
+                    return null;
+                }
+                _atlas = new SoftReference<CompositedAtlas>(atlas);
+            }
+            return atlas;
+        }
+
+        /**
+         * Composites our frames from their components.
+         */
+        protected synchronized ActionFrames composite ()
+        {
+            if (_composited == null) {
+                try {
+                    _composited = _cmgr.createCompositeFrames(_descrip, _action);
+                } catch (NoSuchComponentException nsce) {
+                    throw new RuntimeException(
+                        "Failed to composite uncached action frames [descrip=" + _descrip +
+                        ", action=" + _action + ", error=" + nsce + "]");
+                }
+            }
+            return _composited;
+        }
+
+        protected CharacterDescriptor _descrip;
+        protected String _action;
+        protected ActionSequence _actseq;
+        protected File _file;
+
+        /** Our atlas, once read. */
+        protected SoftReference<CompositedAtlas> _atlas;
+
+        /** Our frames composited from their components if we fail to read our atlas. */
+        protected ActionFrames _composited;
+    }
+
+    /** The character manager whose frames we cache. */
+    protected CharacterManager _cmgr;
+
+    /** The directory in which we store our files. */
+    protected File _dir;
+
+    /** Identifies the version of the component media. */
+    protected String _mediaVersion;
+
+    /** The total size of our files beyond which we trim the cache. */
+    protected long _maxBytes;
+
+    /** The sizes of our files, from least to most recently used. */
+    protected LinkedHashMap<String, Long> _files = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    /** The names of the files being written. */
+    protected Set<String> _writing = new HashSet<String>();
+
+    /** The total size of our files. */
+    protected long _size;
+
+    /** The name of the default cache directory. */
+    protected static final String CACHE_DIR = "narcache_actions";
+
+    /** The suffix of our cache files and of those being written. */
+    protected static final String FILE_SUFFIX = ".atlas", TEMP_SUFFIX = ".tmp";
+
+    /** The age beyond which temporary files are assumed to have been abandoned. */
+    protected static final long TEMP_EXPIRY = 24 * 60 * 60 * 1000L;
+
+    /** Identifies the format of our cache files. */
+    protected static final int FILE_MAGIC = 0x4E414331;
+}
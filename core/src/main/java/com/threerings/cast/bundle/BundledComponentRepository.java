@@ -20,6 +20,7 @@
 package com.threerings.cast.bundle;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -408,8 +409,9 @@ public class BundledComponentRepository
         /** The resource bundle from which we obtain image data. */
         protected ResourceBundle _bundle;
 
-        /** Cache of tilesets loaded from our bundle. */
-        protected Map<String, TileSet> _setcache = Maps.newHashMap();
+        /** Cache of tilesets loaded from our bundle (which may be accessed by prefetch threads). */
+        protected Map<String, TileSet> _setcache =
+            Collections.synchronizedMap(Maps.<String, TileSet>newHashMap());
     }
 
     /**
@@ -87,6 +87,7 @@ public abstract class AbstractMedia
     {
         if (_mgr != null) {
             _mgr.getRegionManager().invalidateRegion(_bounds);
+            _mgr.boundsDidChange(this);
         }
     }
 
@@ -97,6 +98,9 @@ public abstract class AbstractMedia
     {
         _bounds.x = x;
         _bounds.y = y;
+        if (_mgr != null) {
+            _mgr.boundsDidChange(this);
+        }
     }
 
     /**
@@ -295,6 +299,7 @@ public abstract class AbstractMedia
 
         // finally invalidate the original/merged bounds
         _mgr.getRegionManager().addDirtyRegion(obounds);
+        _mgr.boundsDidChange(this);
     }
 
     /**
@@ -24,6 +24,7 @@ import java.util.List;
 
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.Shape;
 
 import com.google.common.collect.Lists;
@@ -76,6 +77,8 @@ public abstract class AbstractMediaManager
         _tickStamp = tickStamp;
         tickAllMedia(tickStamp);
         dispatchNotifications();
+        // catch up our index with any media that moved without telling us
+        _index.updateAll();
         // we clear our tick stamp when we're about to be painted, this lets us handle situations
         // when yet more media is slipped in between our being ticked and our being painted
     }
@@ -90,6 +93,8 @@ public abstract class AbstractMediaManager
     {
         // now that we're done ticking, we can safely clear this
         _tickStamp = 0;
+        // make sure anything that moved since our tick is indexed where it will be painted
+        _index.updateAll();
     }
 
     /**
@@ -102,8 +107,10 @@ public abstract class AbstractMediaManager
      */
     public void paint (Graphics2D gfx, int layer, Shape clip)
     {
-        for (int ii = 0, nn = _media.size(); ii < nn; ii++) {
-            AbstractMedia media = _media.get(ii);
+        // only consider the media in the vicinity of the clipping region
+        getIntersectingMedia(clip.getBounds(), _paintMedia);
+        for (int ii = 0, nn = _paintMedia.size(); ii < nn; ii++) {
+            AbstractMedia media = _paintMedia.get(ii);
             int order = media.getRenderOrder();
             try {
                 if (((layer == ALL) || (layer == FRONT && order >= 0) ||
@@ -115,6 +122,7 @@ public abstract class AbstractMediaManager
                 log.warning("Failed to render media", "media", media, e);
             }
         }
+        _paintMedia.clear();
     }
 
     /**
@@ -156,6 +164,14 @@ public abstract class AbstractMediaManager
         }
     }
 
+    /**
+     * Called by a {@link AbstractMedia} when its bounds may have changed.
+     */
+    public void boundsDidChange (AbstractMedia media)
+    {
+        _index.update(media);
+    }
+
     /**
      * Called by a {@link AbstractMedia} when its render order has changed.
      */
@@ -169,6 +185,16 @@ public abstract class AbstractMediaManager
         _media.insertSorted(media, RENDER_ORDER);
     }
 
+    /**
+     * Fills the supplied list with the media whose bounds may intersect the specified region,
+     * in render order. Callers must check the bounds of the media themselves.
+     */
+    protected void getIntersectingMedia (Rectangle region, SortableArrayList<AbstractMedia> into)
+    {
+        _index.getIntersecting(region, into);
+        into.sort(RENDER_ORDER);
+    }
+
     /**
      * Calls {@link AbstractMedia#tick} on all media to give them a chance to move about, change
      * their look, generate dirty regions, and so forth.
@@ -196,6 +222,7 @@ public abstract class AbstractMediaManager
 
         media.init(this);
         int ipos = _media.insertSorted(media, RENDER_ORDER);
+        _index.add(media);
 
         // if we've started our tick but have not yet painted our media, we need to take care that
         // this newly added media will be ticked before our upcoming render
@@ -233,6 +260,7 @@ public abstract class AbstractMediaManager
         int mpos = _media.indexOf(media);
         if (mpos != -1) {
             _media.remove(mpos);
+            _index.remove(media);
             media.invalidate();
             media.shutdown();
             // if we're in the middle of ticking, we need to adjust the _tickpos if necessary
@@ -258,6 +286,7 @@ public abstract class AbstractMediaManager
         for (int ii = _media.size() - 1; ii >= 0; ii--) {
             _media.remove(ii).shutdown();
         }
+        _index.clear();
     }
 
     /**
@@ -304,6 +333,12 @@ public abstract class AbstractMediaManager
     @SuppressWarnings("unchecked") protected SortableArrayList<AbstractMedia> _media =
         (SortableArrayList<AbstractMedia>)createMediaList();
 
+    /** A spatial index of our media, used to find those in a region of interest. */
+    protected MediaIndex _index = new MediaIndex();
+
+    /** Used to collect the media to be painted in a region. */
+    protected SortableArrayList<AbstractMedia> _paintMedia = new SortableArrayList<AbstractMedia>();
+
     /** The position in our media list that we're ticking (while in the middle of a call to {@link
      * #tick}) otherwise -1. */
     protected int _tickpos = -1;
@@ -0,0 +1,265 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import java.awt.Rectangle;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A uniform grid over the bounds of a set of {@link AbstractMedia}, used by the media managers to
+ * find the media that intersect a dirty region or contain a point without examining every media
+ * they manage.
+ *
+ * <p> Media are indexed according to their bounds at the time they were last added or updated;
+ * queries return every media that <em>may</em> intersect the queried region and callers must
+ * check the media's actual bounds. Media much larger than a cell are kept in a separate list
+ * that is checked by every query rather than being entered into a great many cells.
+ */
+public class MediaIndex
+{
+    /**
+     * Creates an index with cells of the default size.
+     */
+    public MediaIndex ()
+    {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * Creates an index with cells of the specified size (in pixels).
+     */
+    public MediaIndex (int cellSize)
+    {
+        _cellSize = cellSize;
+    }
+
+    /**
+     * Adds the specified media to the index.
+     */
+    public void add (AbstractMedia media)
+    {
+        Entry entry = new Entry(media);
+        if (_entries.put(media, entry) != null) {
+            throw new IllegalArgumentException("Media already indexed: " + media);
+        }
+        insert(entry);
+    }
+
+    /**
+     * Removes the specified media from the index.
+     */
+    public void remove (AbstractMedia media)
+    {
+        Entry entry = _entries.remove(media);
+        if (entry != null) {
+            extract(entry);
+        }
+    }
+
+    /**
+     * Brings the index up to date with the specified media's current bounds, if it is indexed.
+     */
+    public void update (AbstractMedia media)
+    {
+        Entry entry = _entries.get(media);
+        if (entry != null) {
+            update(entry);
+        }
+    }
+
+    /**
+     * Brings the index up to date with the current bounds of all of its media.
+     */
+    public void updateAll ()
+    {
+        for (Entry entry : _entries.values()) {
+            update(entry);
+        }
+    }
+
+    /**
+     * Removes all media from the index.
+     */
+    public void clear ()
+    {
+        _entries.clear();
+        _cells.clear();
+        _oversized.clear();
+    }
+
+    /**
+     * Appends to the supplied list every media that may intersect the specified region. Each
+     * media is appended once, in no particular order. A region with no width or height is
+     * treated as covering the pixel at its location, just as media with empty bounds are indexed.
+     */
+    public void getIntersecting (Rectangle region, List<? super AbstractMedia> into)
+    {
+        int stamp = ++_queryStamp;
+        for (int ii = 0, ll = _oversized.size(); ii < ll; ii++) {
+            into.add(_oversized.get(ii).media);
+        }
+        int cx1 = cell(region.x), cx2 = cell(region.x + Math.max(region.width, 1) - 1);
+        int cy1 = cell(region.y), cy2 = cell(region.y + Math.max(region.height, 1) - 1);
+        for (int cy = cy1; cy <= cy2; cy++) {
+            for (int cx = cx1; cx <= cx2; cx++) {
+                ArrayList<Entry> cell = _cells.get(key(cx, cy));
+                if (cell == null) {
+                    continue;
+                }
+                for (int ii = 0, ll = cell.size(); ii < ll; ii++) {
+                    Entry entry = cell.get(ii);
+                    if (entry.stamp != stamp) {
+                        entry.stamp = stamp;
+                        into.add(entry.media);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reindexes the supplied entry if its media's bounds have moved into different cells.
+     */
+    protected void update (Entry entry)
+    {
+        Rectangle bounds = entry.media.getBounds();
+        int cx1 = cell(bounds.x), cx2 = cell(bounds.x + Math.max(bounds.width, 1) - 1);
+        int cy1 = cell(bounds.y), cy2 = cell(bounds.y + Math.max(bounds.height, 1) - 1);
+        if (cx1 != entry.cx1 || cx2 != entry.cx2 || cy1 != entry.cy1 || cy2 != entry.cy2) {
+            extract(entry);
+            insert(entry);
+        }
+    }
+
+    /**
+     * Enters the supplied entry into the cells covered by its media's current bounds.
+     */
+    protected void insert (Entry entry)
+    {
+        Rectangle bounds = entry.media.getBounds();
+        entry.cx1 = cell(bounds.x);
+        entry.cx2 = cell(bounds.x + Math.max(bounds.width, 1) - 1);
+        entry.cy1 = cell(bounds.y);
+        entry.cy2 = cell(bounds.y + Math.max(bounds.height, 1) - 1);
+        if (isOversized(entry)) {
+            _oversized.add(entry);
+            return;
+        }
+        for (int cy = entry.cy1; cy <= entry.cy2; cy++) {
+            for (int cx = entry.cx1; cx <= entry.cx2; cx++) {
+                Long key = key(cx, cy);
+                ArrayList<Entry> cell = _cells.get(key);
+                if (cell == null) {
+                    _cells.put(key, cell = Lists.newArrayListWithCapacity(4));
+                }
+                cell.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Removes the supplied entry from the cells in which it was last entered.
+     */
+    protected void extract (Entry entry)
+    {
+        if (isOversized(entry)) {
+            _oversized.remove(entry);
+            return;
+        }
+        for (int cy = entry.cy1; cy <= entry.cy2; cy++) {
+            for (int cx = entry.cx1; cx <= entry.cx2; cx++) {
+                Long key = key(cx, cy);
+                ArrayList<Entry> cell = _cells.get(key);
+                if (cell != null && cell.remove(entry) && cell.isEmpty()) {
+                    _cells.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the supplied entry covers too many cells to be entered into each.
+     */
+    protected boolean isOversized (Entry entry)
+    {
+        return (long)(entry.cx2 - entry.cx1 + 1) * (entry.cy2 - entry.cy1 + 1) > MAX_CELLS;
+    }
+
+    /**
+     * Returns the row or column of the cell containing the specified coordinate.
+     */
+    protected final int cell (int coord)
+    {
+        // round toward negative infinity so that cells are uniform across the origin
+        return (coord >= 0) ? coord / _cellSize : ((coord + 1) / _cellSize) - 1;
+    }
+
+    /**
+     * Returns the key of the cell at the specified column and row.
+     */
+    protected static Long key (int cx, int cy)
+    {
+        return Long.valueOf(((long)cx << 32) | (cy & 0xFFFFFFFFL));
+    }
+
+    /** Records a media's place in the index. */
+    protected static class Entry
+    {
+        /** The indexed media. */
+        public final AbstractMedia media;
+
+        /** The range of cells in which the media was last entered. */
+        public int cx1, cy1, cx2, cy2;
+
+        /** The stamp of the last query to return this media. */
+        public int stamp;
+
+        public Entry (AbstractMedia media) {
+            this.media = media;
+        }
+    }
+
+    /** The size (in pixels) of our square cells. */
+    protected int _cellSize;
+
+    /** The entries for our media, by media. */
+    protected Map<AbstractMedia, Entry> _entries = Maps.newIdentityHashMap();
+
+    /** The entries in each occupied cell, by cell key. */
+    protected Map<Long, ArrayList<Entry>> _cells = Maps.newHashMap();
+
+    /** The entries for media that cover too many cells to be entered into each. */
+    protected ArrayList<Entry> _oversized = Lists.newArrayList();
+
+    /** Incremented for each query so that media spanning several cells are returned but once. */
+    protected int _queryStamp;
+
+    /** The default size (in pixels) of our cells. */
+    protected static final int DEFAULT_CELL_SIZE = 128;
+
+    /** The number of cells beyond which a media is considered oversized. */
+    protected static final int MAX_CELLS = 64;
+}
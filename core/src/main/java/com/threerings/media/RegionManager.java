@@ -19,6 +19,7 @@
 
 package com.threerings.media;
 
+import java.util.Arrays;
 import java.util.List;
 
 import java.awt.EventQueue;
@@ -126,34 +127,381 @@ public class RegionManager
      * Merges all outstanding dirty regions into a single list of rectangles and returns that to
      * the caller. Internally, the list of accumulated dirty regions is cleared out and prepared
      * for the next frame.
+     *
+     * <p> The dirty regions are first rasterized onto a grid aligned to {@link #setAlignment} and
+     * carved back up into non-overlapping rectangles (unless they are spread too widely for the
+     * grid to be of a reasonable size, in which case they are used as is). Rectangles are then
+     * merged wherever
+     * painting their union costs no more than painting them separately (the cost of a separate
+     * paint being set by {@link #setRegionCost}), and finally the cheapest merges are made until
+     * no more than {@link #setMaxRegions} rectangles remain. The rectangles carved from the grid
+     * are trimmed to the bounds of the parts of the original dirty regions that they contain, so
+     * pixels are only painted outside of the dirty regions where regions are merged.
      */
     public Rectangle[] getDirtyRegions ()
     {
-        List<Rectangle> merged = Lists.newArrayList();
-
-        for (int ii = _dirty.size() - 1; ii >= 0; ii--) {
-            // pop the next rectangle from the dirty list
-            Rectangle mr = _dirty.remove(ii);
-
-            // merge in any overlapping rectangles
-            for (int jj = ii - 1; jj >= 0; jj--) {
-                Rectangle r = _dirty.get(jj);
-                if (mr.intersects(r)) {
-                    // remove the overlapping rectangle from the list
-                    _dirty.remove(jj);
-                    ii--;
-                    // grow the merged dirty rectangle
-                    mr.add(r);
-                }
+        int inputs = _dirty.size();
+        List<Rectangle> merged = Lists.newArrayListWithCapacity(inputs);
+        if (inputs > 0) {
+            if (rasterize()) {
+                extractRegions(merged);
+            } else {
+                merged.addAll(_dirty);
             }
+            mergeRegions(merged);
+            _dirty.clear();
+        }
 
-            // add the merged rectangle to the list
-            merged.add(mr);
+        // note our stats for this frame
+        long pixels = 0;
+        for (int ii = 0, ll = merged.size(); ii < ll; ii++) {
+            Rectangle r = merged.get(ii);
+            pixels += (long)r.width * r.height;
         }
+        _lastInputRegions = inputs;
+        _lastOutputRegions = merged.size();
+        _lastPaintedPixels = pixels;
 
         return merged.toArray(new Rectangle[merged.size()]);
     }
 
+    /**
+     * Configures the size (in pixels) of the grid to which dirty regions are aligned when they
+     * are merged. Views with regular tiles may wish to use their tile size (or a divisor thereof).
+     */
+    public void setAlignment (int alignment)
+    {
+        _alignment = Math.max(alignment, 1);
+    }
+
+    /**
+     * Configures the cost (in pixels) that we assume is incurred by painting a dirty region in
+     * addition to the cost of painting its pixels. Two regions are merged if the area of their
+     * union is no more than their combined area plus this cost.
+     */
+    public void setRegionCost (int pixels)
+    {
+        _regionCost = pixels;
+    }
+
+    /**
+     * Configures the maximum number of dirty regions returned by {@link #getDirtyRegions}.
+     */
+    public void setMaxRegions (int maxRegions)
+    {
+        _maxRegions = Math.max(maxRegions, 1);
+    }
+
+    /**
+     * Returns the number of (unmerged) dirty regions that were processed by the most recent call
+     * to {@link #getDirtyRegions}.
+     */
+    public int getLastInputRegions ()
+    {
+        return _lastInputRegions;
+    }
+
+    /**
+     * Returns the number of dirty regions returned by the most recent call to {@link
+     * #getDirtyRegions}.
+     */
+    public int getLastOutputRegions ()
+    {
+        return _lastOutputRegions;
+    }
+
+    /**
+     * Returns the total area (in pixels) of the dirty regions returned by the most recent call to
+     * {@link #getDirtyRegions}, which is the number of pixels that will be painted.
+     */
+    public long getLastPaintedPixels ()
+    {
+        return _lastPaintedPixels;
+    }
+
+    /**
+     * Marks the cells of our alignment grid that are covered by our dirty regions.
+     *
+     * @return false if the dirty regions are spread too widely to be rasterized, in which case
+     * the grid is not marked.
+     */
+    protected boolean rasterize ()
+    {
+        // determine the bounds of all of our dirty regions
+        Rectangle first = _dirty.get(0);
+        int x1 = first.x, y1 = first.y;
+        int x2 = first.x + first.width, y2 = first.y + first.height;
+        for (int ii = 1, ll = _dirty.size(); ii < ll; ii++) {
+            Rectangle r = _dirty.get(ii);
+            x1 = Math.min(x1, r.x);
+            y1 = Math.min(y1, r.y);
+            x2 = Math.max(x2, r.x + r.width);
+            y2 = Math.max(y2, r.y + r.height);
+        }
+
+        // don't let the grid get unreasonably large; coarsening it instead would cause regions
+        // that share cells but are far apart to be painted as one
+        int cell = _alignment;
+        if (gridCells(x1, x2, cell) * gridCells(y1, y2, cell) > MAX_GRID_CELLS) {
+            return false;
+        }
+        _cell = cell;
+        _gridX = floorDiv(x1, cell);
+        _gridY = floorDiv(y1, cell);
+        _cols = (int)gridCells(x1, x2, cell);
+        _rows = (int)gridCells(y1, y2, cell);
+
+        int cells = _cols * _rows;
+        if (_grid.length < cells) {
+            _grid = new boolean[Math.max(cells, _grid.length * 2)];
+        } else {
+            Arrays.fill(_grid, 0, cells, false);
+        }
+        for (int ii = 0, ll = _dirty.size(); ii < ll; ii++) {
+            Rectangle r = _dirty.get(ii);
+            int cx1 = floorDiv(r.x, cell) - _gridX;
+            int cx2 = floorDiv(r.x + r.width - 1, cell) - _gridX;
+            int cy1 = floorDiv(r.y, cell) - _gridY;
+            int cy2 = floorDiv(r.y + r.height - 1, cell) - _gridY;
+            for (int cy = cy1; cy <= cy2; cy++) {
+                Arrays.fill(_grid, cy * _cols + cx1, cy * _cols + cx2 + 1, true);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Carves the marked cells of our grid into non-overlapping rectangles and adds them to the
+     * supplied list. Each rectangle starts at the first remaining marked cell, extends across its
+     * row as far as the run of marked cells goes and then down as many rows as are marked
+     * across the whole of its width. The cells of each rectangle are unmarked as we go.
+     */
+    protected void extractRegions (List<Rectangle> regions)
+    {
+        for (int cy = 0; cy < _rows; cy++) {
+            int row = cy * _cols;
+            for (int cx = 0; cx < _cols; cx++) {
+                if (!_grid[row + cx]) {
+                    continue;
+                }
+                int ex = cx + 1;
+                while (ex < _cols && _grid[row + ex]) {
+                    ex++;
+                }
+                int ey = cy + 1;
+              ROWS:
+                for (; ey < _rows; ey++) {
+                    for (int ii = ey * _cols + cx, ll = ey * _cols + ex; ii < ll; ii++) {
+                        if (!_grid[ii]) {
+                            break ROWS;
+                        }
+                    }
+                }
+                for (int yy = cy; yy < ey; yy++) {
+                    Arrays.fill(_grid, yy * _cols + cx, yy * _cols + ex, false);
+                }
+
+                Rectangle reg = new Rectangle((_gridX + cx) * _cell, (_gridY + cy) * _cell,
+                                              (ex - cx) * _cell, (ey - cy) * _cell);
+                trimRegion(reg);
+                regions.add(reg);
+                cx = ex - 1;
+            }
+        }
+    }
+
+    /**
+     * Trims the supplied region (carved from our grid) to the bounds of the parts of the dirty
+     * regions that it contains. Every region carved from the grid contains part of at least one
+     * dirty region.
+     */
+    protected void trimRegion (Rectangle reg)
+    {
+        int rx1 = reg.x, ry1 = reg.y, rx2 = reg.x + reg.width, ry2 = reg.y + reg.height;
+        int x1 = rx2, y1 = ry2, x2 = rx1, y2 = ry1;
+        for (int ii = 0, ll = _dirty.size(); ii < ll; ii++) {
+            Rectangle r = _dirty.get(ii);
+            int ix1 = Math.max(rx1, r.x), ix2 = Math.min(rx2, r.x + r.width);
+            int iy1 = Math.max(ry1, r.y), iy2 = Math.min(ry2, r.y + r.height);
+            if (ix1 < ix2 && iy1 < iy2) {
+                x1 = Math.min(x1, ix1);
+                y1 = Math.min(y1, iy1);
+                x2 = Math.max(x2, ix2);
+                y2 = Math.max(y2, iy2);
+            }
+        }
+        reg.setBounds(x1, y1, x2 - x1, y2 - y1);
+    }
+
+    /**
+     * Merges the supplied regions wherever doing so is no more expensive than painting them
+     * separately and then merges the cheapest pairs until we are within our region limit.
+     */
+    protected void mergeRegions (List<Rectangle> regions)
+    {
+        // merging one pair can make another merge worthwhile, but only merges involving the
+        // newly grown region, so we keep growing each region until nothing else merges into it
+        for (int ii = 0; ii < regions.size(); ii++) {
+            Rectangle r = regions.get(ii);
+            for (boolean merged = true; merged; ) {
+                merged = false;
+                for (int jj = regions.size() - 1; jj >= 0; jj--) {
+                    if (jj == ii) {
+                        continue;
+                    }
+                    Rectangle o = regions.get(jj);
+                    if (mergeCost(r, o) <= _regionCost) {
+                        r.add(o);
+                        regions.remove(jj);
+                        if (jj < ii) {
+                            ii--;
+                        }
+                        merged = true;
+                    }
+                }
+            }
+        }
+
+        // if we've still got too many regions, merge those that waste the fewest pixels; we track
+        // each region's cheapest partner so that a merge only rescans the regions it affected
+        int size = regions.size();
+        if (size <= _maxRegions) {
+            return;
+        }
+        if (_partner.length < size) {
+            _partner = new int[size];
+            _pcost = new long[size];
+        }
+        for (int ii = 0; ii < size; ii++) {
+            findPartner(regions, ii);
+        }
+        while (size > _maxRegions) {
+            int bi = 0;
+            for (int ii = 1; ii < size; ii++) {
+                if (_pcost[ii] < _pcost[bi]) {
+                    bi = ii;
+                }
+            }
+            int bj = _partner[bi], last = --size;
+            regions.get(bi).add(regions.get(bj));
+
+            // fill the hole left by the absorbed region with the last region
+            regions.set(bj, regions.get(last));
+            regions.remove(last);
+            _partner[bj] = _partner[last];
+            _pcost[bj] = _pcost[last];
+            int merged = (bi == last) ? bj : bi;
+
+            Rectangle r = regions.get(merged);
+            for (int ii = 0; ii < size; ii++) {
+                if (ii == merged) {
+                    continue;
+                }
+                int partner = _partner[ii];
+                if (partner == bi || partner == bj) {
+                    findPartner(regions, ii);
+                    continue;
+                }
+                if (partner == last) {
+                    _partner[ii] = bj;
+                }
+                long cost = mergeCost(regions.get(ii), r);
+                if (cost < _pcost[ii]) {
+                    _partner[ii] = merged;
+                    _pcost[ii] = cost;
+                }
+            }
+            findPartner(regions, merged);
+        }
+    }
+
+    /**
+     * Records the region with which the specified region can be most cheaply merged.
+     */
+    protected void findPartner (List<Rectangle> regions, int idx)
+    {
+        Rectangle r = regions.get(idx);
+        long best = Long.MAX_VALUE;
+        int partner = -1;
+        for (int ii = 0, ll = regions.size(); ii < ll; ii++) {
+            if (ii != idx) {
+                long cost = mergeCost(r, regions.get(ii));
+                if (cost < best) {
+                    best = cost;
+                    partner = ii;
+                }
+            }
+        }
+        _partner[idx] = partner;
+        _pcost[idx] = best;
+    }
+
+    /**
+     * Returns the number of pixels that would be painted in addition to those already painted
+     * if the two supplied regions were replaced by their union. This is negative if the regions
+     * overlap by more than the union wastes.
+     */
+    protected static long mergeCost (Rectangle r1, Rectangle r2)
+    {
+        long uw = Math.max(r1.x + r1.width, r2.x + r2.width) - Math.min(r1.x, r2.x);
+        long uh = Math.max(r1.y + r1.height, r2.y + r2.height) - Math.min(r1.y, r2.y);
+        return uw * uh - (long)r1.width * r1.height - (long)r2.width * r2.height;
+    }
+
+    /**
+     * Returns the number of cells of the specified size needed to span from <code>c1</code>
+     * (inclusive) to <code>c2</code> (exclusive).
+     */
+    protected static long gridCells (int c1, int c2, int cell)
+    {
+        return floorDiv(c2 - 1, cell) - floorDiv(c1, cell) + 1L;
+    }
+
+    /**
+     * Divides, rounding toward negative infinity.
+     */
+    protected static int floorDiv (int value, int divisor)
+    {
+        return (value >= 0) ? value / divisor : -((-value + divisor - 1) / divisor);
+    }
+
     /** A list of dirty rectangles. */
     protected List<Rectangle> _dirty = Lists.newArrayList();
+
+    /** The size of the grid to which we align dirty regions. */
+    protected int _alignment = DEFAULT_ALIGNMENT;
+
+    /** The cost in pixels that we attribute to painting each dirty region. */
+    protected int _regionCost = DEFAULT_REGION_COST;
+
+    /** The maximum number of dirty regions we return each frame. */
+    protected int _maxRegions = DEFAULT_MAX_REGIONS;
+
+    /** The statistics for the most recent call to {@link #getDirtyRegions}. */
+    protected int _lastInputRegions, _lastOutputRegions;
+
+    /** The area of the regions returned by the most recent call to {@link #getDirtyRegions}. */
+    protected long _lastPaintedPixels;
+
+    /** Our dirty region grid: the cell size, location of the first cell (in cells) and size. */
+    protected int _cell, _gridX, _gridY, _cols, _rows;
+
+    /** Whether each cell of our grid is dirty. */
+    protected boolean[] _grid = new boolean[0];
+
+    /** The cheapest merge partner of each region, and the cost of that merge. */
+    protected int[] _partner = new int[0];
+    protected long[] _pcost = new long[0];
+
+    /** The default size of the grid to which dirty regions are aligned. */
+    protected static final int DEFAULT_ALIGNMENT = 16;
+
+    /** The default cost in pixels attributed to painting each dirty region. */
+    protected static final int DEFAULT_REGION_COST = 64*64;
+
+    /** The default maximum number of dirty regions returned each frame. */
+    protected static final int DEFAULT_MAX_REGIONS = 32;
+
+    /** The maximum number of cells in our dirty region grid. */
+    protected static final int MAX_GRID_CELLS = 128*128;
 }
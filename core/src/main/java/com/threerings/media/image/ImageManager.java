@@ -19,11 +19,17 @@
 
 package com.threerings.media.image;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -34,9 +40,15 @@ import java.awt.Rectangle;
 import java.awt.Transparency;
 import java.awt.image.BufferedImage;
 
+import com.google.common.base.Function;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import com.samskivert.util.LRUHashMap;
 import com.samskivert.util.StringUtil;
@@ -44,6 +56,7 @@ import com.samskivert.util.Throttle;
 import com.samskivert.util.Tuple;
 
 import com.threerings.resource.ResourceManager;
+import com.threerings.util.StripedLRUCache;
 
 import static com.threerings.media.Log.log;
 
@@ -120,8 +133,8 @@ public class ImageManager
         // create our image cache
         int icsize = getCacheSize();
         log.debug("Creating image cache", "size", (icsize + "k"));
-        _ccache = new LRUHashMap<ImageKey, CacheRecord>(
-                icsize * 1024, new LRUHashMap.ItemSizer<CacheRecord>() {
+        _ccache = new StripedLRUCache<ImageKey, CacheRecord>(
+                icsize * 1024, getCacheSegments(), new LRUHashMap.ItemSizer<CacheRecord>() {
             public int computeSize (CacheRecord value) {
                 return (int)value.getEstimatedMemoryUsage();
             }
@@ -146,6 +159,16 @@ public class ImageManager
         return DEFAULT_CACHE_SIZE;
     }
 
+    /**
+     * Returns the number of independently locked segments into which our image cache is split.
+     * Each segment gets an equal share of the {@link #getCacheSize} budget, so more segments means
+     * less contention between loader threads but coarser eviction.
+     */
+    public int getCacheSegments ()
+    {
+        return DEFAULT_CACHE_SEGMENTS;
+    }
+
     /**
      * Clears all images out of the cache.
      */
@@ -153,9 +176,7 @@ public class ImageManager
     {
         log.info("Clearing image manager cache.");
 
-        synchronized (_ccache) {
-            _ccache.clear();
-        }
+        _ccache.clear();
     }
 
     /**
@@ -279,16 +300,126 @@ public class ImageManager
      */
     public BufferedImage getImage (ImageKey key, Colorization[] zations)
     {
-        CacheRecord crec = null;
-        synchronized (_ccache) {
-            crec = _ccache.get(key);
-        }
+        CacheRecord crec = _ccache.get(key);
         if (crec != null) {
 //             log.info("Cache hit", "key", key, "crec", crec);
             return crec.getImage(zations, _ccache);
         }
 //         log.info("Cache miss", "key", key, "crec", crec);
 
+        // if this image is being prefetched, join that load rather than loading it again
+        ListenableFutureTask<CacheRecord> pending = _pending.get(key);
+        crec = (pending == null) ? null : awaitLoad(pending, key);
+        if (crec == null) {
+            crec = loadRecord(key);
+        }
+        return crec.getImage(zations, _ccache);
+    }
+
+    /**
+     * Loads the specified images into the cache on our pool of loader threads (see {@link
+     * #getLoaderExecutor}). Images that are already cached are not reloaded, and requests for
+     * images that are already being loaded are merged with the load in progress, as are any
+     * synchronous requests for an image that arrive while it is being prefetched.
+     *
+     * @return a future that will be completed with the (uncolorized) images, in the same order
+     * as the supplied keys, once they have all been loaded.
+     */
+    public ListenableFuture<List<BufferedImage>> prefetch (Collection<ImageKey> keys)
+    {
+        List<ListenableFuture<BufferedImage>> images = Lists.newArrayListWithCapacity(keys.size());
+        for (ImageKey key : keys) {
+            images.add(prefetch(key));
+        }
+        return Futures.allAsList(images);
+    }
+
+    /**
+     * Loads the specified image into the cache on our pool of loader threads. See {@link
+     * #prefetch(Collection)}.
+     */
+    public ListenableFuture<BufferedImage> prefetch (final ImageKey key)
+    {
+        CacheRecord crec = _ccache.get(key);
+        if (crec != null) {
+            return Futures.immediateFuture(crec._source);
+        }
+
+        ListenableFutureTask<CacheRecord> pending = _pending.get(key);
+        if (pending == null) {
+            ListenableFutureTask<CacheRecord> task = ListenableFutureTask.create(
+                new Callable<CacheRecord>() {
+                    public CacheRecord call () {
+                        try {
+                            return loadRecord(key);
+                        } finally {
+                            _pending.remove(key);
+                        }
+                    }
+                });
+            pending = _pending.putIfAbsent(key, task);
+            if (pending == null) {
+                pending = task;
+                getLoaderExecutor().execute(task);
+            }
+        }
+        return Futures.transform(pending, SOURCE_IMAGE);
+    }
+
+    /**
+     * Returns the executor used to load images in the background. Other services that prefetch
+     * image-related data (like the tile manager) use this executor as well, so that all
+     * background loading shares a single bounded pool of threads.
+     */
+    public synchronized ListeningExecutorService getLoaderExecutor ()
+    {
+        if (_loader == null) {
+            _loader = MoreExecutors.listeningDecorator(
+                Executors.newFixedThreadPool(getLoaderThreads(), new ThreadFactory() {
+                    public Thread newThread (Runnable task) {
+                        Thread thread = new Thread(
+                            task, "ImageManager Loader-" + _threadId.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                    protected AtomicInteger _threadId = new AtomicInteger();
+                }));
+        }
+        return _loader;
+    }
+
+    /**
+     * Returns the number of threads used to load images in the background.
+     */
+    public int getLoaderThreads ()
+    {
+        return Math.max(1, Math.min(MAX_LOADER_THREADS,
+                                    Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * Waits for a pending image load to complete. If the load has not yet been started by a
+     * loader thread, we run it ourselves, which ensures that a loader thread that requests an
+     * image queued behind it will not deadlock.
+     *
+     * @return the loaded record or null if the load failed.
+     */
+    protected CacheRecord awaitLoad (ListenableFutureTask<CacheRecord> pending, ImageKey key)
+    {
+        pending.run();
+        try {
+            return Uninterruptibles.getUninterruptibly(pending);
+        } catch (ExecutionException ee) {
+            log.warning("Prefetch of image failed", "key", key, ee.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Loads the specified image and adds it to the cache.
+     */
+    protected CacheRecord loadRecord (ImageKey key)
+    {
         // load up the raw image
         BufferedImage image = loadImage(key);
         if (image == null) {
@@ -300,17 +431,19 @@ public class ImageManager
 //         log.info("Loaded Image", "path", key.path, "image", image,
 //                  "size", ImageUtil.getEstimatedMemoryUsage(image));
 
-        // create a cache record
+        // create a cache record, deferring to any record created by another thread that loaded
+        // the same image while we were doing so
         crec = new CacheRecord(key, image);
-        synchronized (_ccache) {
-            _ccache.put(key, crec);
+        CacheRecord orec = _ccache.putIfAbsent(key, crec);
+        if (orec != null) {
+            crec = orec;
         }
         _keySet.add(key);
 
         // periodically report our image cache performance
         reportCachePerformance();
 
-        return crec.getImage(zations, _ccache);
+        return crec;
     }
 
     /**
@@ -448,15 +581,10 @@ public class ImageManager
 
         // compute our estimated memory usage
         long size = 0;
-
-        int[] eff = null;
-        synchronized (_ccache) {
-            Iterator<CacheRecord> iter = _ccache.values().iterator();
-            while (iter.hasNext()) {
-                size += iter.next().getEstimatedMemoryUsage();
-            }
-            eff = _ccache.getTrackedEffectiveness();
+        for (CacheRecord crec : _ccache.values()) {
+            size += crec.getEstimatedMemoryUsage();
         }
+        int[] eff = _ccache.getTrackedEffectiveness();
         log.info("ImageManager LRU", "mem", ((size / 1024) + "k"), "size", _ccache.size(),
             "hits", eff[0], "misses", eff[1], "totalKeys", _keySet.size());
     }
@@ -470,33 +598,38 @@ public class ImageManager
             _source = source;
         }
 
-        public BufferedImage getImage (Colorization[] zations, LRUHashMap<ImageKey, CacheRecord> cache)
+        public BufferedImage getImage (
+            Colorization[] zations, StripedLRUCache<ImageKey, CacheRecord> cache)
         {
             if (zations == null) {
                 return _source;
             }
 
-            if (_colorized == null) {
-                _colorized = Lists.newArrayList();
-            }
-
-            // we search linearly through our list of colorized copies because it is not likely to
-            // be very long
-            int csize = _colorized.size();
-            for (int ii = 0; ii < csize; ii++) {
-                Tuple<Colorization[], BufferedImage> tup = _colorized.get(ii);
-                Colorization[] tzations = tup.left;
-                if (Arrays.equals(zations, tzations)) {
-                    return tup.right;
-                }
+            BufferedImage cimage = getColorized(_colorized, zations);
+            if (cimage != null) {
+                return cimage;
             }
 
             try {
-                BufferedImage cimage = ImageUtil.recolorImage(_source, zations);
-                _colorized.add(new Tuple<Colorization[], BufferedImage>(zations, cimage));
-                synchronized (cache) {
-                    cache.adjustSize((int)ImageUtil.getEstimatedMemoryUsage(cimage));
+                // we recolor outside of our lock and then double check whether another thread
+                // beat us to it; recoloring the same image twice is preferable to serializing all
+                // colorizations of a popular image
+                cimage = ImageUtil.recolorImage(_source, zations);
+                synchronized (this) {
+                    BufferedImage oimage = getColorized(_colorized, zations);
+                    if (oimage != null) {
+                        return oimage;
+                    }
+                    int ccount = (_colorized == null) ? 0 : _colorized.length;
+                    @SuppressWarnings("unchecked") Tuple<Colorization[], BufferedImage>[] ncolor =
+                        new Tuple[ccount+1];
+                    if (ccount > 0) {
+                        System.arraycopy(_colorized, 0, ncolor, 0, ccount);
+                    }
+                    ncolor[ccount] = new Tuple<Colorization[], BufferedImage>(zations, cimage);
+                    _colorized = ncolor;
                 }
+                cache.adjustSize(_key, (int)ImageUtil.getEstimatedMemoryUsage(cimage));
                 return cimage;
 
             } catch (Exception re) {
@@ -510,8 +643,9 @@ public class ImageManager
         public long getEstimatedMemoryUsage ()
         {
             long usage = ImageUtil.getEstimatedMemoryUsage(_source);
-            if (_colorized != null) {
-                for (Tuple<Colorization[], BufferedImage> tup : _colorized) {
+            Tuple<Colorization[], BufferedImage>[] colorized = _colorized;
+            if (colorized != null) {
+                for (Tuple<Colorization[], BufferedImage> tup : colorized) {
                     usage += ImageUtil.getEstimatedMemoryUsage(tup.right);
                 }
             }
@@ -521,13 +655,35 @@ public class ImageManager
         @Override
         public String toString ()
         {
+            Tuple<Colorization[], BufferedImage>[] colorized = _colorized;
             return "[key=" + _key + ", wid=" + _source.getWidth() + ", hei=" + _source.getHeight() +
-                ", ccount=" + ((_colorized == null) ? 0 : _colorized.size()) + "]";
+                ", ccount=" + ((colorized == null) ? 0 : colorized.length) + "]";
+        }
+
+        /**
+         * Searches the supplied colorized copies for one matching the specified colorizations. We
+         * search linearly because the list is not likely to be very long.
+         */
+        protected static BufferedImage getColorized (
+            Tuple<Colorization[], BufferedImage>[] colorized, Colorization[] zations)
+        {
+            if (colorized != null) {
+                for (Tuple<Colorization[], BufferedImage> tup : colorized) {
+                    if (Arrays.equals(zations, tup.left)) {
+                        return tup.right;
+                    }
+                }
+            }
+            return null;
         }
 
         protected ImageKey _key;
         protected BufferedImage _source;
-        protected ArrayList<Tuple<Colorization[], BufferedImage>> _colorized;
+
+        /** Our colorized copies. This array is never modified once published; new copies are
+         * added by replacing it (while synchronized on this record) so that lookups need not
+         * lock. */
+        protected volatile Tuple<Colorization[], BufferedImage>[] _colorized;
     }
 
     /** A reference to the resource manager via which we load image data by default. */
@@ -537,10 +693,11 @@ public class ImageManager
     protected OptimalImageCreator _icreator;
 
     /** A cache of loaded images. */
-    protected LRUHashMap<ImageKey, CacheRecord> _ccache;
+    protected StripedLRUCache<ImageKey, CacheRecord> _ccache;
 
     /** The set of all keys we've ever seen. */
-    protected HashSet<ImageKey> _keySet = Sets.newHashSet();
+    protected Set<ImageKey> _keySet =
+        Sets.newSetFromMap(new ConcurrentHashMap<ImageKey, Boolean>());
 
     /** Throttle our cache status logging to once every 300 seconds. */
     protected Throttle _cacheStatThrottle = new Throttle(1, 300000L);
@@ -556,8 +713,30 @@ public class ImageManager
     };
 
     /** Data providers for different resource sets. */
-    protected Map<String, ImageDataProvider> _providers = Maps.newHashMap();
+    protected Map<String, ImageDataProvider> _providers =
+        new ConcurrentHashMap<String, ImageDataProvider>();
+
+    /** Images currently being loaded by our loader threads. */
+    protected ConcurrentHashMap<ImageKey, ListenableFutureTask<CacheRecord>> _pending =
+        new ConcurrentHashMap<ImageKey, ListenableFutureTask<CacheRecord>>();
+
+    /** Our background image loaders, created on demand. */
+    protected ListeningExecutorService _loader;
+
+    /** Extracts the source image from a cache record. */
+    protected static final Function<CacheRecord, BufferedImage> SOURCE_IMAGE =
+        new Function<CacheRecord, BufferedImage>() {
+        public BufferedImage apply (CacheRecord crec) {
+            return crec._source;
+        }
+    };
 
     /** Default amount of data we'll store in our image cache. */
     protected static int DEFAULT_CACHE_SIZE = 32768;
+
+    /** Default number of segments into which our image cache is split. */
+    protected static final int DEFAULT_CACHE_SEGMENTS = 4;
+
+    /** The maximum number of background image loading threads. */
+    protected static final int MAX_LOADER_THREADS = 4;
 }
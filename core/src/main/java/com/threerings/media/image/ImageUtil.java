@@ -44,6 +44,8 @@ import com.samskivert.util.Logger;
 
 import com.samskivert.swing.Label;
 
+import com.threerings.resource.MappedDataBuffer;
+
 /**
  * Image related utility functions.
  */
@@ -555,6 +557,10 @@ public class ImageUtil
         // maybe the buffer is smarter about things than this, but we're better to err on the safe
         // side
         DataBuffer db = raster.getDataBuffer();
+        if (db instanceof MappedDataBuffer) {
+            // mapped pixel data lives outside the heap
+            return 0;
+        }
         int bpe = (int)Math.ceil(DataBuffer.getDataTypeSize(db.getDataType()) / 8f);
         return bpe * db.getSize();
     }
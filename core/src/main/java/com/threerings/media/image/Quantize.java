@@ -19,6 +19,15 @@
 
 package com.threerings.media.image;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import com.google.common.collect.Lists;
+
 /*
  * @(#)Quantize.java    0.90 9/19/00 Adam Doppelt
  */
@@ -288,16 +297,15 @@ public class Quantize {
     final static int MAX_NODES = 266817;
     final static int MAX_TREE_DEPTH = 8;
 
+    // the fewest pixels we'll hand to a single parallel task, and the
+    // most tasks into which we'll split an image
+    final static int MIN_TASK_PIXELS = 1 << 16;
+    final static int MAX_TASKS = 8;
+
     // these are precomputed in advance
-    static int SQUARES[];
     static int SHIFT[];
 
     static {
-        SQUARES = new int[MAX_RGB + MAX_RGB + 1];
-        for (int ii = -MAX_RGB; ii <= MAX_RGB; ii++) {
-            SQUARES[ii + MAX_RGB] = ii * ii;
-        }
-
         SHIFT = new int[MAX_TREE_DEPTH + 1];
         for (int ii = 0; ii < MAX_TREE_DEPTH + 1; ++ii) {
             SHIFT[ii] = 1 << (15 - ii);
@@ -313,22 +321,236 @@ public class Quantize {
      * @return The new color palette.
      */
     public static int[] quantizeImage(int pixels[][], int max_colors) {
-        Cube cube = new Cube(pixels, max_colors);
-        cube.classification();
+        // copy the columns into a single raster, quantize that and copy
+        // the indices back out
+        int width = pixels.length;
+        int height = pixels[0].length;
+        int raster[] = new int[width * height];
+        for (int x = 0; x < width; x++) {
+            System.arraycopy(pixels[x], 0, raster, x * height, height);
+        }
+        int colormap[] = quantizeImage(raster, max_colors, null);
+        for (int x = 0; x < width; x++) {
+            System.arraycopy(raster, x * height, pixels[x], 0, height);
+        }
+        return colormap;
+    }
+
+    /**
+     * Reduce raster data to the given number of colors. The order of the
+     * pixels is immaterial, so this can operate directly on the data of
+     * an <code>TYPE_INT_ARGB</code> image.
+     *
+     * @param pixels an in/out parameter that should initially contain
+     * [A]RGB values but that will contain color palette indicies upon return.
+     *
+     * @return The new color palette.
+     */
+    public static int[] quantizeImage(int pixels[], int max_colors) {
+        return quantizeImage(pixels, max_colors, null);
+    }
+
+    /**
+     * Reduce raster data to the given number of colors, splitting the
+     * classification and assignment passes of large images into tasks run
+     * on the supplied executor. The palette and indices are identical to
+     * those computed serially. Tasks that the executor has not started by
+     * the time we need their results are run on the calling thread, so it
+     * is safe to call this from a task running on the same executor.
+     *
+     * @param exec the executor on which to run tasks, or null to quantize
+     * on the calling thread.
+     *
+     * @return The new color palette.
+     */
+    public static int[] quantizeImage(
+        final int pixels[], int max_colors, Executor exec) {
+        final Cube cube = new Cube(max_colors);
+        int tasks = (exec == null) ? 1 :
+            Math.min(MAX_TASKS, pixels.length / MIN_TASK_PIXELS);
+
+        if (!cube.usesHistogram()) {
+            cube.classification(pixels, 0, pixels.length);
+
+        } else if (tasks > 1) {
+            List<FutureTask<Histogram>> parts = Lists.newArrayList();
+            for (int ii = 0; ii < tasks; ii++) {
+                final int start = getTaskStart(pixels, ii, tasks);
+                final int end = getTaskStart(pixels, ii + 1, tasks);
+                parts.add(new FutureTask<Histogram>(new Callable<Histogram>() {
+                    public Histogram call() {
+                        Histogram hist = new Histogram(cube.depth);
+                        hist.add(pixels, start, end);
+                        return hist;
+                    }
+                }));
+            }
+            List<Histogram> hists = runTasks(parts, exec);
+            Histogram hist = hists.get(0);
+            for (int ii = 1; ii < hists.size(); ii++) {
+                hist.add(hists.get(ii));
+            }
+            cube.classification(hist);
+
+        } else {
+            Histogram hist = new Histogram(cube.depth);
+            hist.add(pixels, 0, pixels.length);
+            cube.classification(hist);
+        }
+        cube.classified();
         cube.reduction();
-        cube.assignment();
-        return cube.colormap;
+        cube.colormap();
+
+        if (tasks > 1) {
+            List<FutureTask<Void>> parts = Lists.newArrayList();
+            for (int ii = 0; ii < tasks; ii++) {
+                final int start = getTaskStart(pixels, ii, tasks);
+                final int end = getTaskStart(pixels, ii + 1, tasks);
+                parts.add(new FutureTask<Void>(new Runnable() {
+                    public void run() {
+                        cube.assignment(pixels, start, end);
+                    }
+                }, null));
+            }
+            runTasks(parts, exec);
+        } else {
+            cube.assignment(pixels, 0, pixels.length);
+        }
+        return cube.getColormap();
+    }
+
+    /**
+     * Returns a value whose bits, from the most significant down,
+     * indicate whether a color component is greater than the midpoint
+     * of the node at each level of its path down the tree. A component
+     * exceeds the midpoint of 128 if it is at least 129, and so on down,
+     * so this is the component less one.
+     */
+    static int getPath(int component) {
+        return (component == 0) ? 0 : component - 1;
+    }
+
+    /**
+     * Returns the index of the first pixel handled by the specified task.
+     */
+    static int getTaskStart(int pixels[], int task, int tasks) {
+        return (int)((long)pixels.length * task / tasks);
+    }
+
+    /**
+     * Runs the supplied tasks on the executor, running any that it has
+     * not yet started on the calling thread, and returns their results.
+     */
+    static <T> List<T> runTasks(List<FutureTask<T>> tasks, Executor exec) {
+        for (FutureTask<T> task : tasks) {
+            exec.execute(task);
+        }
+        List<T> results = Lists.newArrayList();
+        for (FutureTask<T> task : tasks) {
+            // this does nothing if the executor has already started the task
+            task.run();
+            try {
+                results.add(task.get());
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ie);
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                } else if (cause instanceof Error) {
+                    throw (Error)cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+        return results;
     }
 
+    /**
+     * Counts pixels by the leaf of the color description tree to which
+     * they would be classified. The path from the root to a leaf depends
+     * only on the color, so when the tree is shallow enough that it will
+     * never be pruned during classification, tallying the statistics of
+     * each leaf in a flat table is equivalent to walking the tree for
+     * every pixel, and the tallies of separate parts of an image can
+     * simply be summed.
+     */
+    static class Histogram {
+        int depth;
+
+        // do we have transparent pixels?
+        boolean hasTrans = false;
+
+        // the statistics of each leaf, indexed by key
+        int unique[];
+        long total_red[];
+        long total_green[];
+        long total_blue[];
+
+        Histogram(int depth) {
+            this.depth = depth;
+            int size = 1 << (3 * depth);
+            unique = new int[size];
+            total_red = new long[size];
+            total_green = new long[size];
+            total_blue = new long[size];
+        }
+
+        void add(int pixels[], int start, int end) {
+            int shift = MAX_TREE_DEPTH - depth;
+            for (int ii = start; ii < end; ii++) {
+                int pixel = pixels[ii];
+                int alpha = (pixel >> 24) & 0xFF;
+                if (alpha != 255) {
+                    hasTrans = true;
+                    continue; // don't add transparent pixels to the cube
+                }
+                int red   = (pixel >> 16) & 0xFF;
+                int green = (pixel >>  8) & 0xFF;
+                int blue  = (pixel >>  0) & 0xFF;
+
+                int key = (getPath(red) >> shift) |
+                    ((getPath(green) >> shift) << depth) |
+                    ((getPath(blue) >> shift) << (2 * depth));
+                ++unique[key];
+                total_red[key]   += red;
+                total_green[key] += green;
+                total_blue[key]  += blue;
+            }
+        }
+
+        void add(Histogram other) {
+            hasTrans |= other.hasTrans;
+            for (int key = 0; key < unique.length; key++) {
+                unique[key]      += other.unique[key];
+                total_red[key]   += other.total_red[key];
+                total_green[key] += other.total_green[key];
+                total_blue[key]  += other.total_blue[key];
+            }
+        }
+    }
+
+    /**
+     * The color description tree. Rather than allocating an object per
+     * node, the nodes are slots in a set of parallel primitive arrays.
+     * Slot zero is the root, which is never anyone's child, so a child
+     * index of zero denotes the absence of a child.
+     */
     static class Cube {
-        int pixels[][];
         int max_colors;
         int colormap[];
+        // the components of the colormap entries
+        int map_red[];
+        int map_green[];
+        int map_blue[];
+        // the colors of each node's subtree ordered by their red
+        // component, each packed into a long with its color number
+        long by_red[];
 
         // do we have transparent pixels?
         boolean hasTrans = false;
 
-        Node root;
         int depth;
 
         // counter for the number of colors in the cube. this gets
@@ -338,8 +560,36 @@ public class Quantize {
         // counter for the number of nodes in the tree
         int nodes;
 
-        Cube(int pixels[][], int max_colors) {
-            this.pixels = pixels;
+        // the number of slots in use or on the free list, and the head
+        // of the free list, which is linked through the parent array
+        int size;
+        int free;
+
+        // the node arrays; children are stored eight to a node
+        int child[];
+        int parent[];
+        byte nchild[];
+        // our index within our parent, and our level within the tree
+        byte id[];
+        byte level[];
+        // the pixel count for this node and all children
+        long number_pixels[];
+        // the pixel count for this node
+        int unique[];
+        // the sum of all pixels contained in this node
+        long total_red[];
+        long total_green[];
+        long total_blue[];
+        // used to build the colormap
+        int color_number[];
+        // the range of color numbers assigned to this node and all
+        // children, which are numbered contiguously
+        int first_color[];
+        int end_color[];
+        // the offset of this node's colors in by_red
+        int by_red_start[];
+
+        Cube(int max_colors) {
             this.max_colors = max_colors;
 
             int ii = max_colors;
@@ -357,7 +607,23 @@ public class Quantize {
                 depth = 2;
             }
 
-            root = new Node(this);
+            allocate(1024);
+            size = 1;
+            number_pixels[0] = Long.MAX_VALUE;
+        }
+
+        /**
+         * Returns true if the tree can never grow large enough to require
+         * pruning during classification, in which case the pixels may be
+         * classified via a {@link Histogram}.
+         */
+        boolean usesHistogram() {
+            int most = 0;
+            for (int level = 1, count = 1; level <= depth; level++) {
+                count *= 8;
+                most += count;
+            }
+            return most <= MAX_NODES;
         }
 
         /*
@@ -398,52 +664,103 @@ public class Quantize {
          *   ultimately characterize the mean color of a set of pixels
          *   represented by this node.
          */
-        void classification() {
-            int pixels[][] = this.pixels;
+        void classification(int pixels[], int start, int end) {
+            int last = 0;
+            int leaf = 0;
 
-            int width = pixels.length;
-            int height = pixels[0].length;
+            // we visit the pixels from last to first, which is the order
+            // in which the original column-major implementation visited
+            // them; it matters only if the tree must be pruned
+            for (int ii = end; ii-- > start; ) {
+                int pixel = pixels[ii];
+                int alpha = (pixel >> 24) & 0xFF;
+                if (alpha != 255) {
+                    hasTrans = true;
+                    continue; // don't add transparent pixels to the cube
+                }
+                int red   = (pixel >> 16) & 0xFF;
+                int green = (pixel >>  8) & 0xFF;
+                int blue  = (pixel >>  0) & 0xFF;
 
-            // convert to indexed color
-            for (int x = width; x-- > 0; ) {
-                for (int y = height; y-- > 0; ) {
-                    int pixel = pixels[x][y];
-                    int alpha = (pixel >> 24) & 0xFF;
-                    if (alpha != 255) {
-                        hasTrans = true;
-                        continue; // don't add transparent pixels to the cube
-                    }
-                    int red   = (pixel >> 16) & 0xFF;
-                    int green = (pixel >>  8) & 0xFF;
-                    int blue  = (pixel >>  0) & 0xFF;
-
-                    // a hard limit on the number of nodes in the tree
-                    if (nodes > MAX_NODES) {
-                        System.out.println("pruning");
-                        root.pruneLevel();
-                        --depth;
-                    }
+                // a hard limit on the number of nodes in the tree
+                if (nodes > MAX_NODES) {
+                    pruneLevel(0);
+                    --depth;
+                    leaf = 0;
+                }
 
-                    // walk the tree to depth, increasing the
-                    // number_pixels count for each node
-                    Node node = root;
+                // walk the tree to depth, unless this pixel is the same
+                // as the last. rather than increasing the number_pixels
+                // count for each node on the way, we total the counts
+                // once classification is complete
+                if (leaf == 0 || pixel != last) {
+                    int node = 0;
+                    int red_path = getPath(red);
+                    int green_path = getPath(green);
+                    int blue_path = getPath(blue);
                     for (int level = 1; level <= depth; ++level) {
-                        int id = (((red   > node.mid_red   ? 1 : 0) << 0) |
-                                  ((green > node.mid_green ? 1 : 0) << 1) |
-                                  ((blue  > node.mid_blue  ? 1 : 0) << 2));
-                        if (node.child[id] == null) {
-                            new Node(node, id, level);
+                        int bit = MAX_TREE_DEPTH - level;
+                        int id = (((red_path   >> bit) & 1) << 0) |
+                                 (((green_path >> bit) & 1) << 1) |
+                                 (((blue_path  >> bit) & 1) << 2);
+                        int next = child[(node << 3) + id];
+                        if (next == 0) {
+                            next = addNode(node, id, level);
                         }
-                        node = node.child[id];
-                        node.number_pixels += SHIFT[level];
+                        node = next;
                     }
+                    leaf = node;
+                    last = pixel;
+                }
+
+                ++unique[leaf];
+                total_red[leaf]   += red;
+                total_green[leaf] += green;
+                total_blue[leaf]  += blue;
+            }
+        }
 
-                    ++node.unique;
-                    node.total_red   += red;
-                    node.total_green += green;
-                    node.total_blue  += blue;
+        /**
+         * Builds the tree from the leaf statistics of a histogram.
+         */
+        void classification(Histogram hist) {
+            hasTrans = hist.hasTrans;
+            int mask = (1 << depth) - 1;
+            for (int key = 0; key < hist.unique.length; key++) {
+                if (hist.unique[key] == 0) {
+                    continue;
+                }
+                int red_path = key & mask;
+                int green_path = (key >> depth) & mask;
+                int blue_path = (key >> (2 * depth)) & mask;
+
+                // walk the tree to depth, following the path of the key
+                int node = 0;
+                for (int level = 1; level <= depth; ++level) {
+                    int bit = depth - level;
+                    int id = (((red_path   >> bit) & 1) << 0) |
+                             (((green_path >> bit) & 1) << 1) |
+                             (((blue_path  >> bit) & 1) << 2);
+                    int next = child[(node << 3) + id];
+                    if (next == 0) {
+                        next = addNode(node, id, level);
+                    }
+                    node = next;
                 }
+
+                unique[node]      += hist.unique[key];
+                total_red[node]   += hist.total_red[key];
+                total_green[node] += hist.total_green[key];
+                total_blue[node]  += hist.total_blue[key];
             }
+        }
+
+        /**
+         * Totals the pixel counts of the tree and accounts for the
+         * transparent pixels found during classification.
+         */
+        void classified() {
+            count(0);
 
             // if we have transparent pixels, that cuts into the number
             // of other colors we can use.
@@ -452,6 +769,30 @@ public class Quantize {
             }
         }
 
+        /**
+         * Sets the number_pixels count of this node and its children.
+         * Every pixel that passed through a node during classification
+         * is counted by the unique count of a node in its subtree,
+         * because pruned nodes pass their counts up to their parents.
+         *
+         * @return the number of pixels that passed through this node.
+         */
+        long count(int node) {
+            long pixels = unique[node];
+            if (nchild[node] != 0) {
+                for (int id = 0; id < 8; id++) {
+                    int next = child[(node << 3) + id];
+                    if (next != 0) {
+                        pixels += count(next);
+                    }
+                }
+            }
+            if (node != 0) {
+                number_pixels[node] = pixels * SHIFT[level[node]];
+            }
+            return pixels;
+        }
+
         /*
          * reduction repeatedly prunes the tree until the number of
          * nodes with unique > 0 is less than or equal to the maximum
@@ -468,16 +809,88 @@ public class Quantize {
             long threshold = 1;
             while (colors > max_colors) {
                 colors = 0;
-                threshold = root.reduce(threshold, Long.MAX_VALUE);
+                threshold = reduce(0, threshold, Long.MAX_VALUE);
             }
         }
 
+        /*
+         * colormap traverses the color cube tree and notes each
+         * colormap entry. A colormap entry is any node in the
+         * color cube tree where the number of unique colors is
+         * not zero.
+         */
+        void colormap() {
+            colormap = new int[colors];
+            colors = 0;
+            colormap(0);
+
+            // split the colors into components for the closest color search
+            map_red = new int[colors];
+            map_green = new int[colors];
+            map_blue = new int[colors];
+            for (int ii = 0; ii < colors; ii++) {
+                map_red[ii]   = (colormap[ii] >> 16) & 0xFF;
+                map_green[ii] = (colormap[ii] >>  8) & 0xFF;
+                map_blue[ii]  = (colormap[ii] >>  0) & 0xFF;
+            }
+
+            // order the colors of each node that might be searched
+            int total = 0;
+            for (int node = 0; node < size; node++) {
+                total += end_color[node] - first_color[node];
+            }
+            by_red = new long[total];
+            sortColors(0, 0);
+        }
+
         /**
-         * The result of a closest color search.
+         * Orders the colors of this node and all children by their red
+         * component.
+         *
+         * @return the offset in by_red following this node's children.
          */
-        static class Search {
-            int distance;
-            int color_number;
+        int sortColors(int node, int start) {
+            int end = start + end_color[node] - first_color[node];
+            for (int ii = first_color[node]; ii < end_color[node]; ii++) {
+                by_red[start + ii - first_color[node]] = ((long)map_red[ii] << 32) | ii;
+            }
+            Arrays.sort(by_red, start, end);
+            by_red_start[node] = start;
+
+            // only nodes with children are searched
+            if (nchild[node] != 0) {
+                for (int id = 0; id < 8; id++) {
+                    int next = child[(node << 3) + id];
+                    if (next != 0 && nchild[next] != 0) {
+                        end = sortColors(next, end);
+                    }
+                }
+            }
+            return end;
+        }
+
+        void colormap(int node) {
+            first_color[node] = colors;
+            if (nchild[node] != 0) {
+                for (int id = 0; id < 8; id++) {
+                    int next = child[(node << 3) + id];
+                    if (next != 0) {
+                        colormap(next);
+                    }
+                }
+            }
+            int count = unique[node];
+            if (count != 0) {
+                int r = (int)((total_red[node]   + (count >> 1)) / count);
+                int g = (int)((total_green[node] + (count >> 1)) / count);
+                int b = (int)((total_blue[node]  + (count >> 1)) / count);
+                colormap[colors] = (((    0xFF) << 24) |
+                                    ((r & 0xFF) << 16) |
+                                    ((g & 0xFF) <<  8) |
+                                    ((b & 0xFF) <<  0));
+                color_number[node] = colors++;
+            }
+            end_color[node] = colors;
         }
 
         /*
@@ -499,278 +912,306 @@ public class Quantize {
          * the pruned tree to identify the deepest node containing the
          * pixel's color. The pixel's value in the pixel array becomes
          * the index of this node's mean color in the color map.
+         *
+         * The tree is not modified by this phase, so separate parts of
+         * the image may be assigned concurrently.
          */
-        void assignment() {
-            colormap = new int[colors];
-            colors = 0;
-            root.colormap();
-
-            int pixels[][] = this.pixels;
+        void assignment(int pixels[], int start, int end) {
+            int transPad = hasTrans ? 1 : 0;
 
-            int width = pixels.length;
-            int height = pixels[0].length;
+            // the assignments of recently seen colors, which spare us
+            // the closest color search for the many repeated colors of a
+            // typical image
+            int keys[] = new int[CACHE_SIZE];
+            int values[] = new int[CACHE_SIZE];
+            Arrays.fill(keys, -1);
 
-            Search search = new Search();
+            // convert to indexed color
+            for (int ii = start; ii < end; ii++) {
+                int pixel = pixels[ii];
+                int alpha = (pixel >> 24) & 0xFF;
+                if (alpha != 255) {
+                    pixels[ii] = 0; // transparent
+                    continue;
+                }
+                int rgb = pixel & 0xFFFFFF;
+                int slot = (rgb * 0x9E3779B1) >>> (32 - CACHE_BITS);
+                if (keys[slot] == rgb) {
+                    pixels[ii] = values[slot];
+                    continue;
+                }
 
-            int transPad = hasTrans ? 1 : 0;
+                int red   = (pixel >> 16) & 0xFF;
+                int green = (pixel >>  8) & 0xFF;
+                int blue  = (pixel >>  0) & 0xFF;
 
-            // convert to indexed color
-            for (int x = width; x-- > 0; ) {
-                for (int y = height; y-- > 0; ) {
-                    int pixel = pixels[x][y];
-                    int alpha = (pixel >> 24) & 0xFF;
-                    if (alpha != 255) {
-                        pixels[x][y] = 0; // transparent
-                        continue;
-                    }
-                    int red   = (pixel >> 16) & 0xFF;
-                    int green = (pixel >>  8) & 0xFF;
-                    int blue  = (pixel >>  0) & 0xFF;
-
-                    // walk the tree to find the cube containing that color
-                    Node node = root;
-                    for ( ; ; ) {
-                        int id = (((red   > node.mid_red   ? 1 : 0) << 0) |
-                                  ((green > node.mid_green ? 1 : 0) << 1) |
-                                  ((blue  > node.mid_blue  ? 1 : 0) << 2)  );
-                        if (node.child[id] == null) {
-                            break;
-                        }
-                        node = node.child[id];
+                // walk the tree to find the cube containing that color
+                int node = 0;
+                int red_path = getPath(red);
+                int green_path = getPath(green);
+                int blue_path = getPath(blue);
+                for (int level = 1; ; ++level) {
+                    int bit = MAX_TREE_DEPTH - level;
+                    int id = (((red_path   >> bit) & 1) << 0) |
+                             (((green_path >> bit) & 1) << 1) |
+                             (((blue_path  >> bit) & 1) << 2);
+                    int next = child[(node << 3) + id];
+                    if (next == 0) {
+                        break;
                     }
+                    node = next;
+                }
 
-                    if (QUICK) {
-                        // if QUICK is set, just use that
-                        // node. Strictly speaking, this isn't
-                        // necessarily best match.
-                        pixels[x][y] = node.color_number + transPad;
-                    } else {
-                        // Find the closest color.
-                        search.distance = Integer.MAX_VALUE;
-                        node.parent.closestColor(red, green, blue, search);
-                        pixels[x][y] = search.color_number + transPad;
-                    }
+                int index;
+                if (QUICK) {
+                    // if QUICK is set, just use that
+                    // node. Strictly speaking, this isn't
+                    // necessarily best match.
+                    index = color_number[node] + transPad;
+                } else {
+                    // Find the closest color.
+                    index = closestColor(parent[node], red, green, blue) + transPad;
                 }
+                keys[slot] = rgb;
+                values[slot] = index;
+                pixels[ii] = index;
             }
+        }
 
-            // expand the colormap by one to account for the transparent
+        /**
+         * Returns the colormap, expanded by one to account for the
+         * transparent color if we have transparent pixels.
+         */
+        int[] getColormap() {
             if (hasTrans) {
                 int[] newcmap = new int[colormap.length + 1];
                 System.arraycopy(colormap, 0, newcmap, 1, colormap.length);
-                colormap = newcmap;
+                return newcmap;
             }
+            return colormap;
         }
 
         /**
-         * A single Node in the tree.
+         * Adds a node to the tree, returning its index.
          */
-        static class Node {
-            Cube cube;
-
-            // parent node
-            Node parent;
-
-            // child nodes
-            Node child[];
-            int nchild;
-
-            // our index within our parent
-            int id;
-            // our level within the tree
-            int level;
-            // our color midpoint
-            int mid_red;
-            int mid_green;
-            int mid_blue;
-
-            // the pixel count for this node and all children
-            long number_pixels;
-
-            // the pixel count for this node
-            int unique;
-            // the sum of all pixels contained in this node
-            int total_red;
-            int total_green;
-            int total_blue;
-
-            // used to build the colormap
-            int color_number;
-
-            Node(Cube cube) {
-                this.cube = cube;
-                this.parent = this;
-                this.child = new Node[8];
-                this.id = 0;
-                this.level = 0;
-
-                this.number_pixels = Long.MAX_VALUE;
-
-                this.mid_red   = (MAX_RGB + 1) >> 1;
-                this.mid_green = (MAX_RGB + 1) >> 1;
-                this.mid_blue  = (MAX_RGB + 1) >> 1;
-            }
-
-            Node(Node parent, int id, int level) {
-                this.cube = parent.cube;
-                this.parent = parent;
-                this.child = new Node[8];
-                this.id = id;
-                this.level = level;
-
-                // add to the cube
-                ++cube.nodes;
-                if (level == cube.depth) {
-                    ++cube.colors;
+        int addNode(int parent, int id, int level) {
+            int node;
+            if (free != 0) {
+                node = free;
+                free = this.parent[node];
+                clear(node);
+            } else {
+                if (size == this.parent.length) {
+                    allocate(size * 2);
                 }
+                node = size++;
+            }
+            this.parent[node] = parent;
+            this.id[node] = (byte)id;
+            this.level[node] = (byte)level;
 
-                // add to the parent
-                ++parent.nchild;
-                parent.child[id] = this;
-
-                // figure out our midpoint
-                int bi = (1 << (MAX_TREE_DEPTH - level)) >> 1;
-                mid_red   = parent.mid_red   + ((id & 1) > 0 ? bi : -bi);
-                mid_green = parent.mid_green + ((id & 2) > 0 ? bi : -bi);
-                mid_blue  = parent.mid_blue  + ((id & 4) > 0 ? bi : -bi);
-            }
-
-            /**
-             * Remove this child node, and make sure our parent
-             * absorbs our pixel statistics.
-             */
-            void pruneChild() {
-                --parent.nchild;
-                parent.unique += unique;
-                parent.total_red     += total_red;
-                parent.total_green   += total_green;
-                parent.total_blue    += total_blue;
-                parent.child[id] = null;
-                --cube.nodes;
-                cube = null;
-                parent = null;
-            }
-
-            /**
-             * Prune the lowest layer of the tree.
-             */
-            void pruneLevel() {
-                if (nchild != 0) {
-                    for (int id = 0; id < 8; id++) {
-                        if (child[id] != null) {
-                            child[id].pruneLevel();
-                        }
+            // add to the cube
+            ++nodes;
+            if (level == depth) {
+                ++colors;
+            }
+
+            // add to the parent
+            ++nchild[parent];
+            child[(parent << 3) + id] = node;
+            return node;
+        }
+
+        /**
+         * Remove this child node, and make sure our parent
+         * absorbs our pixel statistics.
+         */
+        void pruneChild(int node) {
+            int parent = this.parent[node];
+            --nchild[parent];
+            unique[parent]      += unique[node];
+            total_red[parent]   += total_red[node];
+            total_green[parent] += total_green[node];
+            total_blue[parent]  += total_blue[node];
+            child[(parent << 3) + id[node]] = 0;
+            --nodes;
+
+            // put the node's slot on the free list
+            this.parent[node] = free;
+            free = node;
+        }
+
+        /**
+         * Prune the lowest layer of the tree.
+         */
+        void pruneLevel(int node) {
+            if (nchild[node] != 0) {
+                for (int id = 0; id < 8; id++) {
+                    int next = child[(node << 3) + id];
+                    if (next != 0) {
+                        pruneLevel(next);
                     }
                 }
-                if (level == cube.depth) {
-                    pruneChild();
-                }
             }
+            if (level[node] == depth) {
+                pruneChild(node);
+            }
+        }
 
-            /**
-             * Remove any nodes that have fewer than threshold
-             * pixels. Also, as long as we're walking the tree:
-             *
-             *  - figure out the color with the fewest pixels
-             *  - recalculate the total number of colors in the tree
-             */
-            long reduce(long threshold, long next_threshold) {
-                if (nchild != 0) {
-                    for (int id = 0; id < 8; id++) {
-                        if (child[id] != null) {
-                            next_threshold = child[id].reduce(threshold, next_threshold);
-                        }
+        /**
+         * Remove any nodes that have fewer than threshold
+         * pixels. Also, as long as we're walking the tree:
+         *
+         *  - figure out the color with the fewest pixels
+         *  - recalculate the total number of colors in the tree
+         */
+        long reduce(int node, long threshold, long next_threshold) {
+            if (nchild[node] != 0) {
+                for (int id = 0; id < 8; id++) {
+                    int next = child[(node << 3) + id];
+                    if (next != 0) {
+                        next_threshold = reduce(next, threshold, next_threshold);
                     }
                 }
-                if (number_pixels <= threshold) {
-                    pruneChild();
-                } else {
-                    if (unique != 0) {
-                        cube.colors++;
-                    }
-                    if (number_pixels < next_threshold) {
-                        next_threshold = number_pixels;
-                    }
+            }
+            long count = number_pixels[node];
+            if (count <= threshold) {
+                pruneChild(node);
+            } else {
+                if (unique[node] != 0) {
+                    colors++;
                 }
-                return next_threshold;
-            }
-
-            /*
-             * colormap traverses the color cube tree and notes each
-             * colormap entry. A colormap entry is any node in the
-             * color cube tree where the number of unique colors is
-             * not zero.
-             */
-            void colormap() {
-                if (nchild != 0) {
-                    for (int id = 0; id < 8; id++) {
-                        if (child[id] != null) {
-                            child[id].colormap();
-                        }
-                    }
+                if (count < next_threshold) {
+                    next_threshold = count;
                 }
-                if (unique != 0) {
-                    int r = ((total_red   + (unique >> 1)) / unique);
-                    int g = ((total_green + (unique >> 1)) / unique);
-                    int b = ((total_blue  + (unique >> 1)) / unique);
-                    cube.colormap[cube.colors] = (((    0xFF) << 24) |
-                                                  ((r & 0xFF) << 16) |
-                                                  ((g & 0xFF) <<  8) |
-                                                  ((b & 0xFF) <<  0));
-                    color_number = cube.colors++;
+            }
+            return next_threshold;
+        }
+
+        /* ClosestColor traverses the color cube tree at a
+         * particular node and determines which colormap entry
+         * best represents the input color. Rather than traversing the
+         * tree, we search outward from the input color's red component
+         * in the node's colors ordered by red, stopping in each direction
+         * once the red component alone is farther than the best match.
+         * Like the traversal, which numbers the colors in the order it
+         * visits them, we keep the lowest numbered of equidistant colors.
+         */
+        int closestColor(int node, int red, int green, int blue) {
+            int start = by_red_start[node];
+            int end = start + end_color[node] - first_color[node];
+
+            // find the first color whose red component is at least ours
+            long key = (long)red << 32;
+            int low = start, high = end;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (by_red[mid] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
                 }
             }
 
-            /* ClosestColor traverses the color cube tree at a
-             * particular node and determines which colormap entry
-             * best represents the input color.
-             */
-            void closestColor(int red, int green, int blue, Search search) {
-                if (nchild != 0) {
-                    for (int id = 0; id < 8; id++) {
-                        if (child[id] != null) {
-                            child[id].closestColor(red, green, blue, search);
+            int best = 0;
+            int best_distance = Integer.MAX_VALUE;
+            for (int up = low, down = low - 1; up < end || down >= start; ) {
+                if (up < end) {
+                    int color = (int)by_red[up++];
+                    int dr = map_red[color] - red;
+                    if (dr * dr > best_distance) {
+                        up = end;
+                    } else {
+                        int dg = map_green[color] - green;
+                        int db = map_blue[color] - blue;
+                        int distance = dr * dr + dg * dg + db * db;
+                        if (distance < best_distance ||
+                            (distance == best_distance && color < best)) {
+                            best_distance = distance;
+                            best = color;
                         }
                     }
                 }
-
-                if (unique != 0) {
-                    int color = cube.colormap[color_number];
-                    int distance = distance(color, red, green, blue);
-                    if (distance < search.distance) {
-                        search.distance = distance;
-                        search.color_number = color_number;
+                if (down >= start) {
+                    int color = (int)by_red[down--];
+                    int dr = map_red[color] - red;
+                    if (dr * dr > best_distance) {
+                        down = -1;
+                    } else {
+                        int dg = map_green[color] - green;
+                        int db = map_blue[color] - blue;
+                        int distance = dr * dr + dg * dg + db * db;
+                        if (distance < best_distance ||
+                            (distance == best_distance && color < best)) {
+                            best_distance = distance;
+                            best = color;
+                        }
                     }
                 }
             }
+            return best;
+        }
 
-            /**
-             * Figure out the distance between this node and som color.
-             */
-            final static int distance(int color, int r, int g, int b) {
-                return (SQUARES[((color >> 16) & 0xFF) - r + MAX_RGB] +
-                        SQUARES[((color >>  8) & 0xFF) - g + MAX_RGB] +
-                        SQUARES[((color >>  0) & 0xFF) - b + MAX_RGB]);
+        /**
+         * Resets the statistics of a node taken from the free list.
+         */
+        void clear(int node) {
+            for (int id = 0; id < 8; id++) {
+                child[(node << 3) + id] = 0;
             }
+            nchild[node] = 0;
+            number_pixels[node] = 0;
+            unique[node] = 0;
+            total_red[node] = total_green[node] = total_blue[node] = 0;
+        }
 
-            @Override
-            public String toString() {
-                StringBuilder buf = new StringBuilder();
-                if (parent == this) {
-                    buf.append("root");
-                } else {
-                    buf.append("node");
-                }
-                buf.append(' ');
-                buf.append(level);
-                buf.append(" [");
-                buf.append(mid_red);
-                buf.append(',');
-                buf.append(mid_green);
-                buf.append(',');
-                buf.append(mid_blue);
-                buf.append(']');
-                return new String(buf);
+        /**
+         * (Re)allocates the node arrays with room for the specified
+         * number of nodes, preserving the nodes allocated so far.
+         */
+        void allocate(int capacity) {
+            child = grow(child, capacity * 8);
+            parent = grow(parent, capacity);
+            nchild = grow(nchild, capacity);
+            id = grow(id, capacity);
+            level = grow(level, capacity);
+            number_pixels = grow(number_pixels, capacity);
+            unique = grow(unique, capacity);
+            total_red = grow(total_red, capacity);
+            total_green = grow(total_green, capacity);
+            total_blue = grow(total_blue, capacity);
+            color_number = grow(color_number, capacity);
+            first_color = grow(first_color, capacity);
+            end_color = grow(end_color, capacity);
+            by_red_start = grow(by_red_start, capacity);
+        }
+
+        static int[] grow(int values[], int capacity) {
+            int nvalues[] = new int[capacity];
+            if (values != null) {
+                System.arraycopy(values, 0, nvalues, 0, values.length);
+            }
+            return nvalues;
+        }
+
+        static long[] grow(long values[], int capacity) {
+            long nvalues[] = new long[capacity];
+            if (values != null) {
+                System.arraycopy(values, 0, nvalues, 0, values.length);
+            }
+            return nvalues;
+        }
+
+        static byte[] grow(byte values[], int capacity) {
+            byte nvalues[] = new byte[capacity];
+            if (values != null) {
+                System.arraycopy(values, 0, nvalues, 0, values.length);
             }
+            return nvalues;
         }
+
+        // the size of the color assignment cache
+        final static int CACHE_BITS = 14;
+        final static int CACHE_SIZE = 1 << CACHE_BITS;
     }
 }
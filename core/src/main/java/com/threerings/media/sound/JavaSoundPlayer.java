@@ -58,7 +58,7 @@ import static com.threerings.media.Log.log;
  */
 public class JavaSoundPlayer extends SoundPlayer
 {
-    /** The default clip cache holds 4 megs. */
+    /** The default clip cache holds 4 megs of decoded clips. */
     public static final int DEFAULT_CACHE_SIZE = 4 * 1024 * 1024;
 
     /**
@@ -97,12 +97,12 @@ public class JavaSoundPlayer extends SoundPlayer
     {
         // save things off
         _loader = loader;
-        _clipCache = new LRUHashMap<SoundKey, byte[][]>(cacheSize,
-            new LRUHashMap.ItemSizer<byte[][]>() {
-                public int computeSize (byte[][] value) {
+        _clipCache = new LRUHashMap<SoundKey, SoundMixer.Sample[]>(cacheSize,
+            new LRUHashMap.ItemSizer<SoundMixer.Sample[]>() {
+                public int computeSize (SoundMixer.Sample[] value) {
                     int total = 0;
-                    for (byte[] bs : value) {
-                        total += bs.length;
+                    for (SoundMixer.Sample sample : value) {
+                        total += sample.getSize();
                     }
                     return total;
                 }
@@ -123,6 +123,12 @@ public class JavaSoundPlayer extends SoundPlayer
             _lockedClips.clear();
             _loader.shutdown();
         }
+        synchronized (this) {
+            if (_mixer != null) {
+                _mixer.shutdown();
+                _mixer = null;
+            }
+        }
     }
 
     /**
@@ -273,21 +279,26 @@ public class JavaSoundPlayer extends SoundPlayer
         switch (key.cmd) {
         case PLAY:
         case LOOP:
-            playSound(key);
+            SoundMixer mixer = getMixer();
+            if (mixer != null) {
+                mixSound(key, mixer);
+            } else {
+                playSound(key);
+            }
             break;
 
         case LOCK:
             if (!isTesting()) {
-                synchronized (_clipCache) {
-                    try {
-                        getClipData(key); // preload
-                        // copy cached to lock map
-                        _lockedClips.put(key, _clipCache.get(key));
-                    } catch (Exception e) {
-                        // don't whine about LOCK failures unless we are verbosely logging
-                        if (_verbose.getValue()) {
-                            throw e;
-                        }
+                try {
+                    // preload and decode the clips and copy them to the lock map
+                    SoundMixer.Sample[] clips = getClips(key);
+                    synchronized (_clipCache) {
+                        _lockedClips.put(key, clips);
+                    }
+                } catch (Exception e) {
+                    // don't whine about LOCK failures unless we are verbosely logging
+                    if (_verbose.getValue()) {
+                        throw e;
                     }
                 }
             }
@@ -334,6 +345,78 @@ public class JavaSoundPlayer extends SoundPlayer
         return stream;
     }
 
+    /**
+     * Returns our software mixer, creating and starting it if necessary, or null if we are
+     * configured not to mix or the mixer's output line could not be opened, in which case each
+     * sound is played on its own line.
+     */
+    protected synchronized SoundMixer getMixer ()
+    {
+        if (_mixer == null && !_mixerFailed && _useMixer.getValue()) {
+            SoundMixer mixer = new SoundMixer(
+                new AudioFormat(_mixerRate.getValue(), 16, 2, true, false), MAX_VOICES);
+            if (mixer.start()) {
+                _mixer = mixer;
+            } else {
+                _mixerFailed = true;
+            }
+        }
+        return _mixer;
+    }
+
+    /**
+     * On a spooling thread, decodes the sound for the specified key and hands it off to our
+     * mixer, returning immediately.
+     */
+    protected void mixSound (SoundKey key, SoundMixer mixer)
+    {
+        if (!key.running) {
+            return;
+        }
+        try {
+            SoundMixer.Sample sample = getClipData(key);
+            if (sample == null) {
+                return; // borked!
+
+            } else if (key.isExpired()) {
+                if (_verbose.getValue()) {
+                    log.info("Sound expired [key=" + key.key + "].");
+                }
+                return;
+            }
+
+            SoundMixer.Voice voice = mixer.play(sample, key, key.isLoop(), getPriority(key));
+            if (voice == null) {
+                if (_verbose.getValue()) {
+                    log.info("No voice available for sound [key=" + key.key + "].");
+                }
+                return;
+            }
+            _soundSeemsToWork = true;
+
+            // if we were stopped while the voice was starting, stop it now
+            key.voice = voice;
+            if (!key.running) {
+                voice.stop();
+            }
+
+        } catch (IOException ioe) {
+            log.warning("Error loading sound file [key=" + key + ", e=" + ioe + "].");
+
+        } catch (UnsupportedAudioFileException uafe) {
+            log.warning("Unsupported sound format [key=" + key + ", e=" + uafe + "].");
+        }
+    }
+
+    /**
+     * Returns the priority with which the specified sound competes for mixer voices. Loops
+     * outrank one-shot sounds by default.
+     */
+    protected int getPriority (SoundKey key)
+    {
+        return key.isLoop() ? LOOP_PRIORITY : PLAY_PRIORITY;
+    }
+
     /**
      * On a spooling thread,
      */
@@ -346,8 +429,8 @@ public class JavaSoundPlayer extends SoundPlayer
         SourceDataLine line = null;
         try {
             // get the sound data from our LRU cache
-            byte[] data = getClipData(key);
-            if (data == null) {
+            SoundMixer.Sample sample = getClipData(key);
+            if (sample == null) {
                 return; // borked!
 
             } else if (key.isExpired()) {
@@ -358,10 +441,10 @@ public class JavaSoundPlayer extends SoundPlayer
 
             }
 
-            AudioInputStream stream = setupAudioStream(data);
+            AudioInputStream stream = sample.getStream();
 
             if (key.isLoop() && stream.markSupported()) {
-                stream.mark(data.length);
+                stream.mark(sample.getSize());
             }
 
             // open the sound line
@@ -414,7 +497,7 @@ public class JavaSoundPlayer extends SoundPlayer
                     if (stream.markSupported()) {
                         stream.reset();
                     } else {
-                        stream = setupAudioStream(data);
+                        stream = sample.getStream();
                     }
                 }
             } while (key.isLoop() && key.running);
@@ -479,43 +562,66 @@ public class JavaSoundPlayer extends SoundPlayer
     }
 
     /**
-     * Called by spooling threads, loads clip data from the resource manager or the cache.
+     * Called by spooling threads, returns a randomly selected variant of the decoded clip for
+     * the specified key.
      */
-    protected byte[] getClipData (SoundKey key)
+    protected SoundMixer.Sample getClipData (SoundKey key)
         throws IOException, UnsupportedAudioFileException
     {
-        byte[][] data;
+        SoundMixer.Sample[] clips = getClips(key);
+        return (clips.length > 0) ? clips[RandomUtil.getInt(clips.length)] : null;
+    }
+
+    /**
+     * Called by spooling threads, returns all variants of the clip for the specified key from
+     * the cache, or loads and decodes them from the resource manager. Clips are cached as
+     * decoded PCM so that playing a cached clip requires no parsing or decoding.
+     */
+    protected SoundMixer.Sample[] getClips (SoundKey key)
+        throws IOException, UnsupportedAudioFileException
+    {
+        SoundMixer.Sample[] clips;
         synchronized (_clipCache) {
             // if we're testing, clear all non-locked sounds every time
             if (isTesting()) {
                 _clipCache.clear();
             }
 
-            data = _clipCache.get(key);
+            clips = _clipCache.get(key);
 
             // see if it's in the locked cache (we first look in the regular
             // clip cache so that locked clips that are still cached continue
             // to be moved to the head of the LRU queue)
-            if (data == null) {
-                data = _lockedClips.get(key);
+            if (clips == null) {
+                clips = _lockedClips.get(key);
             }
+            if (clips != null) {
+                return clips;
+            }
+        }
 
-            if (data == null) {
-                // if there is a test sound, JUST use the test sound.
-                InputStream stream = getTestClip(key);
-                if (stream != null) {
-                    data = new byte[1][];
-                    data[0] = StreamUtil.toByteArray(stream);
-
-                } else {
-                    data = _loader.load(key.pkgPath, key.key);
-                }
-
-                _clipCache.put(key, data);
+        // load and decode outside the lock so that other spoolers can play cached clips
+        byte[][] data;
+        // if there is a test sound, JUST use the test sound.
+        InputStream stream = getTestClip(key);
+        if (stream != null) {
+            try {
+                data = new byte[][] { StreamUtil.toByteArray(stream) };
+            } finally {
+                StreamUtil.close(stream);
             }
+        } else {
+            data = _loader.load(key.pkgPath, key.key);
         }
 
-        return (data.length > 0) ? data[RandomUtil.getInt(data.length)] : null;
+        clips = new SoundMixer.Sample[data.length];
+        for (int ii = 0; ii < data.length; ii++) {
+            clips[ii] = SoundMixer.decode(setupAudioStream(data[ii]));
+        }
+        synchronized (_clipCache) {
+            _clipCache.put(key, clips);
+        }
+        return clips;
     }
 
     protected InputStream getTestClip (SoundKey key)
@@ -630,6 +736,9 @@ public class JavaSoundPlayer extends SoundPlayer
         /** The player thread, if it's playing us. */
         public Thread thread;
 
+        /** The mixer voice, if we're being mixed. */
+        public volatile SoundMixer.Voice voice;
+
         /**
          * Create a SoundKey that just contains the specified command.
          */
@@ -665,6 +774,10 @@ public class JavaSoundPlayer extends SoundPlayer
         public void stop ()
         {
             running = false;
+            SoundMixer.Voice v = voice;
+            if (v != null) {
+                v.stop();
+            }
             Thread t = thread;
             if (t != null) {
                 // doesn't actually ever seem to do much
@@ -749,14 +862,20 @@ public class JavaSoundPlayer extends SoundPlayer
     /** If we every play a sound successfully, this is set to true. */
     protected boolean _soundSeemsToWork = false;
 
+    /** Our software mixer, if we're mixing. */
+    protected SoundMixer _mixer;
+
+    /** Set if we failed to start our mixer, so that we stop trying. */
+    protected boolean _mixerFailed;
+
     /** The cache of recent audio clips . */
-    protected LRUHashMap<SoundKey, byte[][]> _clipCache;
+    protected LRUHashMap<SoundKey, SoundMixer.Sample[]> _clipCache;
 
     /**
      * The set of locked audio clips; this is separate from the LRU so that locking clips doesn't
      * booch up an otherwise normal caching agenda.
      */
-    protected HashMap<SoundKey,byte[][]> _lockedClips = Maps.newHashMap();
+    protected HashMap<SoundKey, SoundMixer.Sample[]> _lockedClips = Maps.newHashMap();
 
     /** Soundkey command constants. */
     protected static final byte PLAY = 0;
@@ -770,6 +889,19 @@ public class JavaSoundPlayer extends SoundPlayer
         new RuntimeAdjust.FileAdjust(
             "Test sound directory", "narya.media.sound.test_dir", MediaPrefs.config, true, "");
 
+    /** A pref that specifies whether sounds are mixed in software onto a single line. */
+    protected static RuntimeAdjust.BooleanAdjust _useMixer =
+        new RuntimeAdjust.BooleanAdjust(
+            "Mix sounds in software", "narya.media.sound.mixer", MediaPrefs.config, true);
+
+    /** A pref that specifies the sample rate at which sounds are mixed. Sounds recorded at a
+     * higher rate than this are degraded by the mixer, so it should be at least the highest rate
+     * of the sounds being played. */
+    protected static RuntimeAdjust.IntAdjust _mixerRate =
+        new RuntimeAdjust.IntAdjust(
+            "Sample rate (in Hz) at which sounds are mixed [requires restart]",
+            "narya.media.sound.mixer_rate", MediaPrefs.config, 44100);
+
     protected static RuntimeAdjust.BooleanAdjust _verbose =
         new RuntimeAdjust.BooleanAdjust(
             "Verbose sound event logging", "narya.media.sound.verbose", MediaPrefs.config, false);
@@ -788,4 +920,11 @@ public class JavaSoundPlayer extends SoundPlayer
 
     /** The maximum number of spoolers we'll allow. This is a lot. */
     protected static final int MAX_SPOOLERS = 12;
+
+    /** The maximum number of sounds our mixer will play at once. */
+    protected static final int MAX_VOICES = 24;
+
+    /** The mixer voice priorities of one-shot and looping sounds. */
+    protected static final int PLAY_PRIORITY = 0;
+    protected static final int LOOP_PRIORITY = 1;
 }
@@ -0,0 +1,463 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.sound;
+
+import java.util.Arrays;
+import java.util.List;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.io.StreamUtil;
+
+import com.threerings.media.sound.SoundPlayer.Frob;
+
+import static com.threerings.media.Log.log;
+
+/**
+ * Mixes any number of PCM voices in software into a single output line, driven by a single
+ * mixer thread. Volume and pan are applied per voice and the number of simultaneous voices is
+ * limited, with new voices stealing the slots of lower priority voices. A mixer that is never
+ * {@link #start}ed can be driven manually via {@link #render}, which is useful for testing.
+ */
+public class SoundMixer
+{
+    /**
+     * Decoded PCM sample data ready to be mixed.
+     */
+    public static class Sample
+    {
+        /** The interleaved 16-bit samples. */
+        public final short[] data;
+
+        /** The number of channels in the sample data, 1 or 2. */
+        public final int channels;
+
+        /** The sample rate of the data. */
+        public final float sampleRate;
+
+        public Sample (short[] data, int channels, float sampleRate)
+        {
+            this.data = data;
+            this.channels = channels;
+            this.sampleRate = sampleRate;
+        }
+
+        /**
+         * Returns the number of frames (samples per channel) in this sample.
+         */
+        public int getFrames ()
+        {
+            return data.length / channels;
+        }
+
+        /**
+         * Returns the number of bytes occupied by our sample data.
+         */
+        public int getSize ()
+        {
+            return data.length * 2;
+        }
+
+        /**
+         * Returns a stream of our sample data as little-endian 16-bit PCM, for playing on a line
+         * of its own.
+         */
+        public AudioInputStream getStream ()
+        {
+            byte[] bytes = new byte[getSize()];
+            for (int ii = 0; ii < data.length; ii++) {
+                bytes[2*ii] = (byte)data[ii];
+                bytes[2*ii+1] = (byte)(data[ii] >> 8);
+            }
+            AudioFormat format = new AudioFormat(sampleRate, 16, channels, true, false);
+            return new AudioInputStream(new ByteArrayInputStream(bytes), format, getFrames());
+        }
+    }
+
+    /**
+     * A sample being played by the mixer.
+     */
+    public class Voice
+    {
+        /**
+         * Stops this voice; it will be silent from the next buffer the mixer renders.
+         */
+        public void stop ()
+        {
+            _stopped = true;
+        }
+
+        /**
+         * Returns true if this voice has neither finished nor been stopped or stolen.
+         */
+        public boolean isPlaying ()
+        {
+            return !_stopped;
+        }
+
+        protected Voice (Sample sample, Frob controls, boolean loop, int priority)
+        {
+            _sample = sample;
+            _controls = controls;
+            _loop = loop;
+            _priority = priority;
+            _serial = _voiceCount++;
+            // the 16.16 fixed point number of source frames to advance per output frame
+            _step = (long)((sample.sampleRate / _format.getSampleRate()) * (1 << 16));
+        }
+
+        /**
+         * Mixes the next <code>frames</code> output frames of this voice into the supplied
+         * buffer, returning false once the voice has played out.
+         */
+        protected boolean mix (int[] mix, int frames)
+        {
+            short[] data = _sample.data;
+            int schans = _sample.channels, sframes = _sample.getFrames();
+            if (sframes == 0) {
+                return false;
+            }
+
+            // compute our per-channel gains in 4.12 fixed point
+            float vol = _controls.getVolume(), pan = _controls.getPan();
+            int lgain, rgain;
+            if (_channels == 1) {
+                lgain = rgain = (int)(vol * GAIN_ONE);
+            } else {
+                lgain = (int)(vol * Math.min(1f, 1f - pan) * GAIN_ONE);
+                rgain = (int)(vol * Math.min(1f, 1f + pan) * GAIN_ONE);
+            }
+
+            long end = (long)sframes << 16;
+            for (int ff = 0, mm = 0; ff < frames; ff++) {
+                if (_pos >= end) {
+                    if (!_loop) {
+                        return false;
+                    }
+                    _pos %= end;
+                }
+
+                // linearly interpolate between this frame and the next
+                int idx = (int)(_pos >> 16), next = idx + 1;
+                if (next == sframes) {
+                    next = _loop ? 0 : idx;
+                }
+                int frac = (int)(_pos & 0xFFFF);
+                int left = lerp(data[idx*schans], data[next*schans], frac), right = left;
+                if (schans == 2) {
+                    right = lerp(data[idx*2+1], data[next*2+1], frac);
+                }
+
+                if (_channels == 1) {
+                    mix[mm++] += (((left + right) >> 1) * lgain) >> GAIN_SHIFT;
+                } else {
+                    mix[mm++] += (left * lgain) >> GAIN_SHIFT;
+                    mix[mm++] += (right * rgain) >> GAIN_SHIFT;
+                }
+                _pos += _step;
+            }
+            return _loop || _pos < end;
+        }
+
+        protected Sample _sample;
+        protected Frob _controls;
+        protected boolean _loop;
+        protected int _priority;
+        protected long _serial, _pos, _step;
+        protected volatile boolean _stopped;
+    }
+
+    /**
+     * Decodes the supplied audio stream into 16-bit PCM sample data. The data retains the
+     * stream's sample rate and channel count; the mixer resamples it as it plays.
+     */
+    public static Sample decode (AudioInputStream stream)
+        throws IOException
+    {
+        AudioFormat format = stream.getFormat();
+        int channels = format.getChannels();
+        if (channels != 1 && channels != 2) {
+            throw new IOException("Unsupported channel count " + format);
+        }
+        if (format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED ||
+                format.getSampleSizeInBits() != 16 || format.isBigEndian()) {
+            stream = AudioSystem.getAudioInputStream(
+                new AudioFormat(format.getSampleRate(), 16, channels, true, false), stream);
+        }
+
+        byte[] bytes = StreamUtil.toByteArray(stream);
+        short[] data = new short[bytes.length / (2 * channels) * channels];
+        for (int ii = 0; ii < data.length; ii++) {
+            data[ii] = (short)((bytes[2*ii] & 0xFF) | (bytes[2*ii+1] << 8));
+        }
+        return new Sample(data, channels, format.getSampleRate());
+    }
+
+    /**
+     * Creates a mixer that renders to the specified format, which must be 16-bit signed PCM
+     * with one or two channels.
+     *
+     * @param maxVoices the maximum number of voices that may play simultaneously.
+     */
+    public SoundMixer (AudioFormat format, int maxVoices)
+    {
+        if (format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED ||
+                format.getSampleSizeInBits() != 16 ||
+                (format.getChannels() != 1 && format.getChannels() != 2)) {
+            throw new IllegalArgumentException("Mixer requires 16-bit signed PCM " + format);
+        }
+        _format = format;
+        _channels = format.getChannels();
+        _maxVoices = maxVoices;
+    }
+
+    /**
+     * Returns the format to which this mixer renders.
+     */
+    public AudioFormat getFormat ()
+    {
+        return _format;
+    }
+
+    /**
+     * Returns the number of voices currently playing.
+     */
+    public int getActiveVoices ()
+    {
+        synchronized (_voices) {
+            return _voices.size();
+        }
+    }
+
+    /**
+     * Starts playing the supplied sample.
+     *
+     * @param controls supplies the volume and pan of the voice, which are read each time the
+     * mixer renders a buffer.
+     * @param priority if all voices are in use, the lowest priority voice (the oldest, among
+     * equals) is stolen, provided its priority is no higher than this.
+     * @return the new voice or null if all voices are in use by higher priority voices.
+     */
+    public Voice play (Sample sample, Frob controls, boolean loop, int priority)
+    {
+        synchronized (_voices) {
+            pruneVoices();
+            if (_voices.size() >= _maxVoices) {
+                Voice victim = null;
+                for (Voice voice : _voices) {
+                    if (victim == null || voice._priority < victim._priority ||
+                            (voice._priority == victim._priority &&
+                             voice._serial < victim._serial)) {
+                        victim = voice;
+                    }
+                }
+                if (victim == null || victim._priority > priority) {
+                    return null;
+                }
+                victim.stop();
+                _voices.remove(victim);
+            }
+
+            Voice voice = new Voice(sample, controls, loop, priority);
+            _voices.add(voice);
+            _voices.notifyAll();
+            return voice;
+        }
+    }
+
+    /**
+     * Mixes the next <code>len</code> bytes of output from all playing voices into the supplied
+     * buffer. This is called by our mixer thread once we are {@link #start}ed and may be called
+     * directly to render the mix headlessly.
+     */
+    public void render (byte[] buf, int off, int len)
+    {
+        int frames = len / _format.getFrameSize(), samples = frames * _channels;
+        if (_mix.length < samples) {
+            _mix = new int[samples];
+        }
+        int[] mix = _mix;
+        Arrays.fill(mix, 0, samples, 0);
+
+        synchronized (_voices) {
+            for (int ii = _voices.size() - 1; ii >= 0; ii--) {
+                Voice voice = _voices.get(ii);
+                if (voice._stopped || !voice.mix(mix, frames)) {
+                    voice.stop();
+                    _voices.remove(ii);
+                }
+            }
+        }
+
+        boolean bigEndian = _format.isBigEndian();
+        for (int ii = 0, bb = off; ii < samples; ii++, bb += 2) {
+            int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mix[ii]));
+            buf[bb + (bigEndian ? 1 : 0)] = (byte)sample;
+            buf[bb + (bigEndian ? 0 : 1)] = (byte)(sample >> 8);
+        }
+        Arrays.fill(buf, off + samples * 2, off + len, (byte)0);
+    }
+
+    /**
+     * Opens our output line and starts the mixer thread.
+     *
+     * @return false if no line could be opened in our format.
+     */
+    public synchronized boolean start ()
+    {
+        if (_thread != null) {
+            return true;
+        }
+        try {
+            _line = (SourceDataLine)AudioSystem.getLine(
+                new DataLine.Info(SourceDataLine.class, _format));
+            _line.open(_format, LINE_BUFFER_FRAMES * _format.getFrameSize());
+            _line.start();
+        } catch (LineUnavailableException lue) {
+            log.warning("Unable to open mixer line", "format", _format, "error", lue);
+            return false;
+        } catch (IllegalArgumentException iae) {
+            log.warning("Unable to open mixer line", "format", _format, "error", iae);
+            return false;
+        }
+
+        _running = true;
+        _thread = new Thread("narya SoundMixer") {
+            @Override
+            public void run () {
+                mixerRun();
+            }
+        };
+        _thread.setDaemon(true);
+        _thread.start();
+        return true;
+    }
+
+    /**
+     * Stops all voices, stops the mixer thread and closes our output line.
+     */
+    public synchronized void shutdown ()
+    {
+        synchronized (_voices) {
+            for (Voice voice : _voices) {
+                voice.stop();
+            }
+            _voices.clear();
+            _running = false;
+            _voices.notifyAll();
+        }
+        _thread = null;
+    }
+
+    /**
+     * The main loop of the mixer thread.
+     */
+    protected void mixerRun ()
+    {
+        byte[] buf = new byte[MIX_BUFFER_FRAMES * _format.getFrameSize()];
+        try {
+            while (true) {
+                synchronized (_voices) {
+                    while (_running && _voices.isEmpty()) {
+                        _voices.wait();
+                    }
+                    if (!_running) {
+                        break;
+                    }
+                }
+                render(buf, 0, buf.length);
+                _line.write(buf, 0, buf.length);
+            }
+        } catch (InterruptedException ie) {
+            // time to go
+        } catch (Exception e) {
+            log.warning("Sound mixer choked", e);
+        } finally {
+            _line.close();
+        }
+    }
+
+    /**
+     * Removes voices that have been stopped from our active list.
+     */
+    protected void pruneVoices ()
+    {
+        for (int ii = _voices.size() - 1; ii >= 0; ii--) {
+            if (_voices.get(ii)._stopped) {
+                _voices.remove(ii);
+            }
+        }
+    }
+
+    /**
+     * Interpolates between two samples given a 16-bit fraction.
+     */
+    protected static int lerp (int s1, int s2, int frac)
+    {
+        return s1 + (((s2 - s1) * frac) >> 16);
+    }
+
+    /** The format to which we render. */
+    protected AudioFormat _format;
+
+    /** The number of channels to which we render. */
+    protected int _channels;
+
+    /** The maximum number of simultaneous voices. */
+    protected int _maxVoices;
+
+    /** The voices currently playing. */
+    protected List<Voice> _voices = Lists.newArrayList();
+
+    /** The number of voices ever started, used to order voices by age. */
+    protected long _voiceCount;
+
+    /** The buffer into which we sum our voices. */
+    protected int[] _mix = new int[0];
+
+    /** Our output line, when we've been started. */
+    protected SourceDataLine _line;
+
+    /** Our mixer thread, when we've been started. */
+    protected Thread _thread;
+
+    /** Whether our mixer thread should keep running. */
+    protected volatile boolean _running;
+
+    /** Voice gains are applied in 4.12 fixed point. */
+    protected static final int GAIN_SHIFT = 12;
+    protected static final int GAIN_ONE = 1 << GAIN_SHIFT;
+
+    /** The number of frames we mix at a time. */
+    protected static final int MIX_BUFFER_FRAMES = 512;
+
+    /** The number of frames buffered by our output line. */
+    protected static final int LINE_BUFFER_FRAMES = 4 * MIX_BUFFER_FRAMES;
+}
@@ -24,6 +24,7 @@ import java.util.Iterator;
 import java.util.List;
 
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.Shape;
 
 import com.google.common.base.Predicate;
@@ -49,13 +50,14 @@ public class SpriteManager extends AbstractMediaManager
      */
     public void getIntersectingSprites (List<Sprite> list, Shape shape)
     {
-        int size = _sprites.size();
-        for (int ii = 0; ii < size; ii++) {
-            Sprite sprite = _sprites.get(ii);
+        getIntersectingMedia(shape.getBounds(), _queryMedia);
+        for (int ii = 0, ll = _queryMedia.size(); ii < ll; ii++) {
+            Sprite sprite = (Sprite)_queryMedia.get(ii);
             if (sprite.intersects(shape)) {
                 list.add(sprite);
             }
         }
+        _queryMedia.clear();
     }
 
     /**
@@ -71,12 +73,14 @@ public class SpriteManager extends AbstractMediaManager
      */
     public void getHitSprites (List<Sprite> list, int x, int y)
     {
-        for (int ii = _sprites.size() - 1; ii >= 0; ii--) {
-            Sprite sprite = _sprites.get(ii);
+        getIntersectingMedia(new Rectangle(x, y, 1, 1), _queryMedia);
+        for (int ii = _queryMedia.size() - 1; ii >= 0; ii--) {
+            Sprite sprite = (Sprite)_queryMedia.get(ii);
             if (sprite.hitTest(x, y)) {
                 list.add(sprite);
             }
         }
+        _queryMedia.clear();
     }
 
     /**
@@ -88,14 +92,18 @@ public class SpriteManager extends AbstractMediaManager
      */
     public Sprite getHighestHitSprite (int x, int y)
     {
-        // since they're stored in lowest -> highest order..
-        for (int ii = _sprites.size() - 1; ii >= 0; ii--) {
-            Sprite sprite = _sprites.get(ii);
+        // since they're sorted in lowest -> highest order..
+        getIntersectingMedia(new Rectangle(x, y, 1, 1), _queryMedia);
+        Sprite hit = null;
+        for (int ii = _queryMedia.size() - 1; ii >= 0; ii--) {
+            Sprite sprite = (Sprite)_queryMedia.get(ii);
             if (sprite.hitTest(x, y)) {
-                return sprite;
+                hit = sprite;
+                break;
             }
         }
-        return null;
+        _queryMedia.clear();
+        return hit;
     }
 
     /**
@@ -149,6 +157,7 @@ public class SpriteManager extends AbstractMediaManager
             Sprite sprite = _sprites.get(ii-idxoff);
             if (pred.apply(sprite)) {
                 _sprites.remove(sprite);
+                _index.remove(sprite);
                 sprite.invalidate();
                 sprite.shutdown();
                 // we need to preserve the original "index" relative to the current tick position,
@@ -251,4 +260,7 @@ public class SpriteManager extends AbstractMediaManager
     }
 
     protected SortableArrayList<Sprite> _sprites;
+
+    /** Used to collect the sprites that are candidates for a query. */
+    protected SortableArrayList<AbstractMedia> _queryMedia = new SortableArrayList<AbstractMedia>();
 }
@@ -21,9 +21,17 @@ package com.threerings.media.tile;
 
 import java.lang.ref.SoftReference;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
 
 import com.samskivert.io.PersistenceException;
 
@@ -185,6 +193,54 @@ public class TileManager
         }
     }
 
+    /**
+     * Loads the specified tilesets and their source images on the image manager's loader threads
+     * (see {@link ImageManager#getLoaderExecutor}) so that they are ready to go by the time they
+     * are needed. Tilesets that are already being prefetched are not requested again.
+     *
+     * @return a future that will be completed with the tilesets, in the same order as the
+     * supplied ids, once they have all been loaded. Tilesets that failed to load will be null.
+     */
+    public ListenableFuture<List<TileSet>> prefetchTileSets (Collection<Integer> tileSetIds)
+    {
+        List<ListenableFuture<TileSet>> sets = Lists.newArrayListWithCapacity(tileSetIds.size());
+        for (Integer tileSetId : tileSetIds) {
+            sets.add(prefetchTileSet(tileSetId));
+        }
+        return Futures.successfulAsList(sets);
+    }
+
+    /**
+     * Helper for {@link #prefetchTileSets}.
+     */
+    protected ListenableFuture<TileSet> prefetchTileSet (final Integer tileSetId)
+    {
+        ListenableFuture<TileSet> pending = _prefetches.get(tileSetId);
+        if (pending != null) {
+            return pending;
+        }
+        ListenableFutureTask<TileSet> task = ListenableFutureTask.create(new Callable<TileSet>() {
+            public TileSet call () {
+                try {
+                    TileSet set = getTileSet(tileSetId);
+                    set.getRawTileSetImage();
+                    return set;
+                } catch (Exception e) {
+                    log.warning("Failed to prefetch tileset", "id", tileSetId, e);
+                    return null;
+                } finally {
+                    _prefetches.remove(tileSetId);
+                }
+            }
+        });
+        pending = _prefetches.putIfAbsent(tileSetId, task);
+        if (pending != null) {
+            return pending;
+        }
+        _imgr.getLoaderExecutor().execute(task);
+        return task;
+    }
+
     /**
      * Returns the {@link Tile} object with the specified fully qualified tile id.
      *
@@ -234,4 +290,8 @@ public class TileManager
 
     /** Used to load tileset images from the default resource source. */
     protected ImageProvider _defaultProvider;
+
+    /** Tilesets that are currently being prefetched. */
+    protected ConcurrentHashMap<Integer, ListenableFuture<TileSet>> _prefetches =
+        new ConcurrentHashMap<Integer, ListenableFuture<TileSet>>();
 }
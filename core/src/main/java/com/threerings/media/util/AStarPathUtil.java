@@ -20,16 +20,13 @@
 package com.threerings.media.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 import java.awt.Point;
 
 import com.google.common.collect.Lists;
 
-import com.samskivert.util.HashIntMap;
-
 /**
  * The <code>AStarPathUtil</code> class provides a facility for finding a reasonable path
  * between two points in a scene using the A* search algorithm.
@@ -37,6 +34,11 @@ import com.samskivert.util.HashIntMap;
  * <p> See the path-finding article on <a
  * href="http://www.gamasutra.com/features/19990212/sm_01.htm">Gamasutra</a> for more detailed
  * information.
+ *
+ * <p> Searches are performed using a per-thread {@link Info} context which stores all node state
+ * in primitive arrays that are reused from search to search, so once those arrays have grown to
+ * accommodate the largest search a thread performs, computing a path into a caller-supplied
+ * {@link PathBuffer} allocates nothing.
  */
 public class AStarPathUtil
 {
@@ -79,9 +81,18 @@ public class AStarPathUtil
             _considerDiagonals = considerDiagonals;
         }
 
-        public void init (Info info, Node n) {
+        public void init (Info info, int node) {
             _info = info;
-            _node = n;
+            _node = node;
+        }
+
+        /**
+         * @deprecated nodes are now identified by their index in the search context; use {@link
+         * #init(Info,int)}. The supplied node's {@link Node#id} is taken to be that index.
+         */
+        @Deprecated
+        public void init (Info info, Node n) {
+            init(info, n.id);
         }
 
         /**
@@ -108,7 +119,78 @@ public class AStarPathUtil
 
         protected boolean _considerDiagonals;
         protected Info _info;
-        protected Node _node;
+        protected int _node;
+    }
+
+    /**
+     * A reusable, growable buffer of path coordinates into which paths may be computed without
+     * allocating a list of points for every query.
+     */
+    public static class PathBuffer
+    {
+        /**
+         * Returns the number of points in the path.
+         */
+        public int size () {
+            return _size;
+        }
+
+        /**
+         * Returns the x coordinate of the specified point in the path.
+         */
+        public int getX (int idx) {
+            return _coords[2*idx];
+        }
+
+        /**
+         * Returns the y coordinate of the specified point in the path.
+         */
+        public int getY (int idx) {
+            return _coords[2*idx+1];
+        }
+
+        /**
+         * Clears the buffer.
+         */
+        public void clear () {
+            _size = 0;
+        }
+
+        /**
+         * Returns the points in the path as a newly created list.
+         */
+        public List<Point> toPoints () {
+            ArrayList<Point> points = Lists.newArrayListWithCapacity(_size);
+            for (int ii = 0; ii < _size; ii++) {
+                points.add(new Point(getX(ii), getY(ii)));
+            }
+            return points;
+        }
+
+        /**
+         * Sizes the buffer to contain the specified number of points, growing our storage if
+         * necessary.
+         */
+        protected void resize (int size) {
+            if (_coords.length < size*2) {
+                _coords = new int[Math.max(size*2, _coords.length*2)];
+            }
+            _size = size;
+        }
+
+        /**
+         * Sets the coordinates of the specified point in the path.
+         */
+        protected void set (int idx, int x, int y) {
+            _coords[2*idx] = x;
+            _coords[2*idx+1] = y;
+        }
+
+        /** The coordinates of our points, interleaved. */
+        protected int[] _coords = new int[32];
+
+        /** The number of points in our path. */
+        protected int _size;
     }
 
     /** The standard cost to move between nodes. */
@@ -142,36 +224,103 @@ public class AStarPathUtil
         TraversalPred tpred, Stepper stepper, Object trav, int longest,
         int ax, int ay, int bx, int by, boolean partial)
     {
-        Info info = new Info(tpred, trav, longest, bx, by);
+        PathBuffer path = new PathBuffer();
+        return getPath(tpred, stepper, trav, longest, ax, ay, bx, by, partial, path) ?
+            path.toPoints() : null;
+    }
 
-        // set up the starting node
-        Node s = info.getNode(ax, ay);
-        s.g = 0;
-        s.h = getDistanceEstimate(ax, ay, bx, by);
-        s.f = s.g + s.h;
+    /**
+     * Gets a path with the default stepper which assumes the piece can move one in any of the
+     * eight cardinal directions.
+     */
+    public static List<Point> getPath (
+        TraversalPred tpred, Object trav, int longest,
+        int ax, int ay, int bx, int by, boolean partial)
+    {
+        return getPath(tpred, null, trav, longest, ax, ay, bx, by, partial);
+    }
+
+    /**
+     * Computes a path as described in {@link
+     * #getPath(TraversalPred,Stepper,Object,int,int,int,int,int,boolean)}, storing it in the
+     * supplied buffer rather than creating a list of points.
+     *
+     * @param stepper enumerates the possible steps, or null to use the default stepper which
+     * assumes the piece can move one in any of the eight cardinal directions.
+     * @param path the buffer into which the path will be written. Its previous contents are
+     * discarded.
+     *
+     * @return true if a path was found, false if not (in which case the buffer will be empty).
+     */
+    public static boolean getPath (
+        TraversalPred tpred, Stepper stepper, Object trav, int longest,
+        int ax, int ay, int bx, int by, boolean partial, PathBuffer path)
+    {
+        // use our thread's search context unless a traversal predicate is computing a path of
+        // its own in the middle of one of our searches
+        Info info = _info.get();
+        if (info.searching) {
+            info = new Info();
+        }
+        path.clear();
+        info.start(tpred, trav, longest, bx, by);
+        try {
+            if (stepper == null) {
+                stepper = info.stepper;
+            }
+            int n = search(info, stepper, ax, ay, bx, by, partial);
+            if (n < 0) {
+                return false;
+            }
+            getNodePath(info, n, path);
+            return true;
+        } finally {
+            info.finish();
+        }
+    }
 
-        // push starting node on the open list
-        info.open.add(s);
-        _considered = 1;
+    /**
+     * Returns the number of nodes considered in computing the most recent path on the calling
+     * thread.
+     */
+    public static int getConsidered ()
+    {
+        return _info.get().considered;
+    }
+
+    /**
+     * Performs the A* search.
+     *
+     * @return the goal node, the node closest to the goal if a partial path was requested, or -1
+     * if no path was found.
+     */
+    protected static int search (
+        Info info, Stepper stepper, int ax, int ay, int bx, int by, boolean partial)
+    {
+        // set up the starting node and push it on the open list
+        int s = info.getNode(ax, ay);
+        info.g[s] = 0;
+        info.f[s] = getDistanceEstimate(ax, ay, bx, by);
+        info.push(s);
+        info.considered = 1;
 
         // track the best path
         float bestdist = Float.MAX_VALUE;
-        Node bestpath = null;
+        int bestpath = -1;
 
         // while there are more nodes on the open list
-        while (info.open.size() > 0) {
+        while (info.opencount > 0) {
 
             // pop the best node so far from open
-            Node n = info.open.first();
-            info.open.remove(n);
+            int n = info.pop();
+            int nx = info.x[n], ny = info.y[n];
 
             // if node is a goal node
-            if (n.x == bx && n.y == by) {
-                // construct and return the acceptable path
-                return getNodePath(n);
+            if (nx == bx && ny == by) {
+                return n;
 
             } else if (partial) {
-                float pathdist = MathUtil.distance(n.x, n.y, bx, by);
+                float pathdist = MathUtil.distance(nx, ny, bx, by);
                 if (pathdist < bestdist) {
                     bestdist = pathdist;
                     bestpath = n;
@@ -180,38 +329,14 @@ public class AStarPathUtil
 
             // consider each successor of the node
             stepper.init(info, n);
-            stepper.considerSteps(n.x, n.y);
+            stepper.considerSteps(nx, ny);
 
             // push the node on the closed list
-            n.closed = true;
+            info.closed[n] = true;
         }
 
-        // return the best path we could find if we were asked to do so
-        if (bestpath != null) {
-            return getNodePath(bestpath);
-        }
-
-        // no path found
-        return null;
-    }
-
-    /**
-     * Gets a path with the default stepper which assumes the piece can move one in any of the
-     * eight cardinal directions.
-     */
-    public static List<Point> getPath (
-        TraversalPred tpred, Object trav, int longest,
-        int ax, int ay, int bx, int by, boolean partial)
-    {
-        return getPath(tpred, new Stepper(), trav, longest, ax, ay, bx, by, partial);
-    }
-
-    /**
-     * Returns the number of nodes considered in computing the most recent path.
-     */
-    public static int getConsidered ()
-    {
-        return _considered;
+        // return the best path we could find if we were asked to do so (or -1)
+        return bestpath;
     }
 
     /**
@@ -223,15 +348,15 @@ public class AStarPathUtil
      * @param x the x-coordinate for the destination step.
      * @param y the y-coordinate for the destination step.
      */
-    protected static void considerStep (Info info, Node n, int x, int y, int cost)
+    protected static void considerStep (Info info, int n, int x, int y, int cost)
     {
         // skip node if it's outside the map bounds or otherwise impassable
-        if (!info.isStepValid(n.x, n.y, x, y)) {
+        if (!info.isStepValid(info.x[n], info.y[n], x, y)) {
             return;
         }
 
         // calculate the new cost for this node
-        int newg = n.g + cost;
+        int newg = info.g[n] + cost;
 
         // make sure the cost is reasonable
         if (newg > info.maxcost) {
@@ -240,55 +365,47 @@ public class AStarPathUtil
         }
 
         // retrieve the node corresponding to this location
-        Node np = info.getNode(x, y);
+        int np = info.getNode(x, y);
 
         // skip if it's already in the open or closed list or if its
         // actual cost is less than the just-calculated cost
-        if ((np.closed || info.open.contains(np)) && np.g <= newg) {
+        boolean open = (info.heappos[np] >= 0);
+        if ((info.closed[np] || open) && info.g[np] <= newg) {
             return;
         }
 
-        // remove the node from the open list since we're about to
-        // modify its score which determines its placement in the list
-        info.open.remove(np);
-
         // update the node's information
-        np.parent = n;
-        np.g = newg;
-        np.h = getDistanceEstimate(np.x, np.y, info.destx, info.desty);
-        np.f = np.g + np.h;
+        info.parent[np] = n;
+        info.g[np] = newg;
+        info.f[np] = newg + getDistanceEstimate(x, y, info.destx, info.desty);
 
         // remove it from the closed list if it's present
-        np.closed = false;
-
-        // add it to the open list for further consideration
-        info.open.add(np);
-        _considered++;
+        info.closed[np] = false;
+
+        // add it to the open list for further consideration (or, if it's already there, move it
+        // up to reflect its reduced score)
+        if (open) {
+            info.siftUp(info.heappos[np]);
+        } else {
+            info.push(np);
+        }
+        info.considered++;
     }
 
     /**
-     * Return a list of <code>Point</code> objects detailing the path from the first node (the
-     * given node's ultimate parent) to the ending node (the given node itself.)
-     *
-     * @param n the ending node in the path.
-     *
-     * @return the list detailing the path.
+     * Writes the path from the first node (the given node's ultimate parent) to the ending node
+     * (the given node itself) into the supplied buffer.
      */
-    protected static List<Point> getNodePath (Node n)
+    protected static void getNodePath (Info info, int n, PathBuffer path)
     {
-        Node cur = n;
-        ArrayList<Point> path = Lists.newArrayList();
-
-        while (cur != null) {
-            // add to the head of the list since we're traversing from
-            // the end to the beginning
-            path.add(0, new Point(cur.x, cur.y));
-
-            // advance to the next node in the path
-            cur = cur.parent;
+        int length = 0;
+        for (int cur = n; cur >= 0; cur = info.parent[cur]) {
+            length++;
+        }
+        path.resize(length);
+        for (int cur = n, idx = length-1; cur >= 0; cur = info.parent[cur], idx--) {
+            path.set(idx, info.x[cur], info.y[cur]);
         }
-
-        return path;
     }
 
     /**
@@ -304,31 +421,67 @@ public class AStarPathUtil
     }
 
     /**
-     * A holding class to contain the wealth of information referenced
-     * while performing an A* search for a path through a tile array.
+     * A holding class to contain the wealth of information referenced while performing an A*
+     * search for a path through a tile array. Nodes are identified by their index into a set of
+     * parallel arrays, assigned in the order in which the nodes are created; a hash table maps
+     * packed tile coordinates to node indices, and the open list is a binary heap of node
+     * indices ordered by score (and then by index, so that equally scored nodes are expanded in
+     * the order they were created). All of these arrays are retained between searches.
      */
     protected static class Info
     {
         /** Knows whether or not tiles are traversable. */
         public TraversalPred tpred;
 
-        /** The tile array dimensions. */
-        public int tilewid, tilehei;
-
         /** The traverser moving along the path. */
         public Object trav;
 
-        /** The set of open nodes being searched. */
-        public SortedSet<Node> open;
-
         /** The destination coordinates in the tile array. */
         public int destx, desty;
 
         /** The maximum cost of any path that we'll consider. */
         public int maxcost;
 
-        public Info (TraversalPred tpred, Object trav, int longest, int destx, int desty) {
-            // save off references
+        /** The default stepper, reused by searches that don't supply their own. */
+        public Stepper stepper = new Stepper();
+
+        /** Whether this context is in use by a search. */
+        public boolean searching;
+
+        /** The number of nodes considered by the current (or most recent) search. */
+        public int considered;
+
+        /** The number of nodes created by the current search. */
+        public int nodecount;
+
+        /** The coordinates of each node. */
+        public int[] x = new int[INITIAL_NODES], y = new int[INITIAL_NODES];
+
+        /** The cheapest known cost of arriving at each node from the start. */
+        public int[] g = new int[INITIAL_NODES];
+
+        /** The score of each node (its cost plus the estimated cost to the goal). */
+        public int[] f = new int[INITIAL_NODES];
+
+        /** The node from which we reached each node, or -1. */
+        public int[] parent = new int[INITIAL_NODES];
+
+        /** The position of each node in the open heap, or -1 if it is not open. */
+        public int[] heappos = new int[INITIAL_NODES];
+
+        /** Whether or not each node is on the closed list. */
+        public boolean[] closed = new boolean[INITIAL_NODES];
+
+        /** The open list: a binary heap of node indices. */
+        public int[] open = new int[INITIAL_NODES];
+
+        /** The number of nodes in the open heap. */
+        public int opencount;
+
+        /**
+         * Prepares this context for a new search.
+         */
+        public void start (TraversalPred tpred, Object trav, int longest, int destx, int desty) {
             this.tpred = tpred;
             this.trav = trav;
             this.destx = destx;
@@ -337,8 +490,26 @@ public class AStarPathUtil
             // compute our maximum path cost
             this.maxcost = longest * ADJACENT_COST;
 
-            // construct the open and closed lists
-            open = new TreeSet<Node>();
+            searching = true;
+            considered = 0;
+            nodecount = 0;
+            opencount = 0;
+
+            // invalidate the contents of our coordinate table
+            if (++_stamp == 0) {
+                Arrays.fill(_stamps, 0);
+                _stamp = 1;
+            }
+        }
+
+        /**
+         * Clears out references retained from the most recent search.
+         */
+        public void finish () {
+            tpred = null;
+            trav = null;
+            stepper.init(null, -1);
+            searching = false;
         }
 
         /**
@@ -374,26 +545,176 @@ public class AStarPathUtil
         /**
          * Get or create the node for the specified point.
          */
-        public Node getNode (int x, int y) {
-            // note: this _could_ break for unusual values of x and y.
-            // perhaps use a IntTuple as a key? Bleah.
-            int key = (x << 16) | (y & 0xffff);
-            Node node = _nodes.get(key);
-            if (node == null) {
-                node = new Node(x, y);
-                _nodes.put(key, node);
+        public int getNode (int nx, int ny) {
+            long key = ((long)nx << 32) | (ny & 0xFFFFFFFFL);
+            int mask = _keys.length-1;
+            int slot = hash(key) & mask;
+            for (; _stamps[slot] == _stamp; slot = (slot+1) & mask) {
+                if (_keys[slot] == key) {
+                    return _nodes[slot];
+                }
+            }
+
+            // create a new node, growing our arrays (and table) as necessary
+            if (nodecount == x.length) {
+                growNodes();
+            }
+            int node = nodecount++;
+            x[node] = nx;
+            y[node] = ny;
+            g[node] = 0;
+            parent[node] = -1;
+            heappos[node] = -1;
+            closed[node] = false;
+            if (nodecount*2 > _keys.length) {
+                growTable();
+            } else {
+                _stamps[slot] = _stamp;
+                _keys[slot] = key;
+                _nodes[slot] = node;
             }
             return node;
         }
 
-        /** The nodes being considered in the path. */
-        protected HashIntMap<Node> _nodes = new HashIntMap<Node>();
+        /**
+         * Adds the specified node to the open heap.
+         */
+        public void push (int node) {
+            open[opencount] = node;
+            heappos[node] = opencount;
+            siftUp(opencount++);
+        }
+
+        /**
+         * Removes and returns the best node from the open heap.
+         */
+        public int pop () {
+            int best = open[0];
+            heappos[best] = -1;
+            if (--opencount > 0) {
+                open[0] = open[opencount];
+                heappos[open[0]] = 0;
+                siftDown(0);
+            }
+            return best;
+        }
+
+        /**
+         * Moves the node at the specified heap position up until the heap is in order.
+         */
+        public void siftUp (int pos) {
+            int node = open[pos];
+            while (pos > 0) {
+                int ppos = (pos-1) >> 1, pnode = open[ppos];
+                if (!isBetter(node, pnode)) {
+                    break;
+                }
+                open[pos] = pnode;
+                heappos[pnode] = pos;
+                pos = ppos;
+            }
+            open[pos] = node;
+            heappos[node] = pos;
+        }
+
+        /**
+         * Moves the node at the specified heap position down until the heap is in order.
+         */
+        protected void siftDown (int pos) {
+            int node = open[pos];
+            for (int cpos = 2*pos+1; cpos < opencount; cpos = 2*pos+1) {
+                if (cpos+1 < opencount && isBetter(open[cpos+1], open[cpos])) {
+                    cpos++;
+                }
+                int cnode = open[cpos];
+                if (!isBetter(cnode, node)) {
+                    break;
+                }
+                open[pos] = cnode;
+                heappos[cnode] = pos;
+                pos = cpos;
+            }
+            open[pos] = node;
+            heappos[node] = pos;
+        }
+
+        /**
+         * Returns true if node <code>a</code> should be expanded before node <code>b</code>.
+         */
+        protected final boolean isBetter (int a, int b) {
+            return (f[a] == f[b]) ? (a < b) : (f[a] < f[b]);
+        }
+
+        /**
+         * Doubles the size of our per-node arrays.
+         */
+        protected void growNodes () {
+            int size = x.length*2;
+            x = grow(x, size);
+            y = grow(y, size);
+            g = grow(g, size);
+            f = grow(f, size);
+            parent = grow(parent, size);
+            heappos = grow(heappos, size);
+            open = grow(open, size);
+            boolean[] nclosed = new boolean[size];
+            System.arraycopy(closed, 0, nclosed, 0, closed.length);
+            closed = nclosed;
+        }
+
+        /**
+         * Doubles the size of our coordinate table and rehashes the current search's nodes.
+         */
+        protected void growTable () {
+            int size = _keys.length*2, mask = size-1;
+            _keys = new long[size];
+            _nodes = new int[size];
+            _stamps = new int[size];
+            _stamp = 1;
+            for (int node = 0; node < nodecount; node++) {
+                long key = ((long)x[node] << 32) | (y[node] & 0xFFFFFFFFL);
+                int slot = hash(key) & mask;
+                while (_stamps[slot] == _stamp) {
+                    slot = (slot+1) & mask;
+                }
+                _stamps[slot] = _stamp;
+                _keys[slot] = key;
+                _nodes[slot] = node;
+            }
+        }
+
+        protected static int[] grow (int[] values, int size) {
+            int[] nvalues = new int[size];
+            System.arraycopy(values, 0, nvalues, 0, values.length);
+            return nvalues;
+        }
+
+        protected static int hash (long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int)(h ^ (h >>> 32));
+        }
+
+        /** The packed coordinates of the nodes in each slot of our coordinate table. */
+        protected long[] _keys = new long[INITIAL_NODES*2];
+
+        /** The node in each slot of our coordinate table. */
+        protected int[] _nodes = new int[INITIAL_NODES*2];
+
+        /** The search stamp for each slot; slots not stamped with the current stamp are empty. */
+        protected int[] _stamps = new int[INITIAL_NODES*2];
+
+        /** The stamp of the current search. */
+        protected int _stamp;
     }
 
     /**
      * A class that represents a single traversable node in the tile array
      * along with its current A*-specific search information.
+     *
+     * @deprecated searches no longer create nodes; their information is stored in the arrays of
+     * the search context and nodes are identified by their index therein.
      */
+    @Deprecated
     public static class Node implements Comparable<Node>
     {
         /** The node coordinates. */
@@ -441,6 +762,13 @@ public class AStarPathUtil
         protected static int _nextid = 0;
     }
 
-    /** The number of nodes considered in computing our path. */
-    protected static int _considered = 0;
+    /** The number of nodes for which search contexts are initially sized. */
+    protected static final int INITIAL_NODES = 256;
+
+    /** The search context for each thread. */
+    protected static final ThreadLocal<Info> _info = new ThreadLocal<Info>() {
+        @Override protected Info initialValue () {
+            return new Info();
+        }
+    };
 }
@@ -0,0 +1,325 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.util;
+
+import java.util.List;
+
+import java.awt.Point;
+
+import com.threerings.media.util.AStarPathUtil.ExtendedTraversalPred;
+import com.threerings.media.util.AStarPathUtil.Info;
+import com.threerings.media.util.AStarPathUtil.PathBuffer;
+import com.threerings.media.util.AStarPathUtil.TraversalPred;
+
+import static com.threerings.media.util.AStarPathUtil.ADJACENT_COST;
+import static com.threerings.media.util.AStarPathUtil.DIAGONAL_COST;
+
+/**
+ * Finds paths using jump point search, a variant of A* for uniform cost grids that expands only
+ * the "jump points" at which a path may need to change direction, skipping over the long runs of
+ * open tiles between them. On large, mostly open scenes this expands a small fraction of the
+ * nodes expanded by {@link AStarPathUtil}, while still finding optimal paths.
+ *
+ * <p> Jump point search assumes that a traverser may move one tile in any of the eight directions
+ * (without cutting corners) and that whether a tile may be entered does not depend on the
+ * direction from which it is entered. Searches using an {@link ExtendedTraversalPred} are thus
+ * delegated to {@link AStarPathUtil}. Jump point searches share {@link AStarPathUtil}'s per-thread
+ * search context, so they too allocate nothing when computed into a {@link PathBuffer}.
+ */
+public class JumpPointPathUtil
+{
+    /**
+     * Returns a list of points representing a path from <code>(ax, ay)</code> to <code>(bx,
+     * by)</code>, inclusive. The arguments are as described for the corresponding {@link
+     * AStarPathUtil} method, with the exception that a partial path will lead to the expanded jump
+     * point closest to the goal, which may be less close than the best partial path found by a
+     * full A* search. Jump point search only guarantees the shortest path to the goal itself, so
+     * the path to that jump point is computed by a second, A* search.
+     *
+     * @return the list of points in the path, or null if no path could be found.
+     */
+    public static List<Point> getPath (
+        TraversalPred tpred, Object trav, int longest, int ax, int ay, int bx, int by,
+        boolean partial)
+    {
+        PathBuffer path = new PathBuffer();
+        return getPath(tpred, trav, longest, ax, ay, bx, by, partial, path) ?
+            path.toPoints() : null;
+    }
+
+    /**
+     * Computes a path as described in {@link
+     * #getPath(TraversalPred,Object,int,int,int,int,int,boolean)}, storing it in the supplied
+     * buffer rather than creating a list of points. Every tile along the path is included, not
+     * just the jump points.
+     *
+     * @return true if a path was found, false if not (in which case the buffer will be empty).
+     */
+    public static boolean getPath (
+        TraversalPred tpred, Object trav, int longest, int ax, int ay, int bx, int by,
+        boolean partial, PathBuffer path)
+    {
+        if (tpred instanceof ExtendedTraversalPred) {
+            return AStarPathUtil.getPath(
+                tpred, null, trav, longest, ax, ay, bx, by, partial, path);
+        }
+
+        Info info = AStarPathUtil._info.get();
+        if (info.searching) {
+            info = new Info();
+        }
+        path.clear();
+        info.start(tpred, trav, longest, bx, by);
+        int ex, ey;
+        try {
+            int n = search(info, ax, ay, bx, by, partial);
+            if (n < 0) {
+                return false;
+            }
+            ex = info.x[n];
+            ey = info.y[n];
+            if (ex == bx && ey == by) {
+                getExpandedPath(info, n, path);
+                return true;
+            }
+        } finally {
+            info.finish();
+        }
+
+        // we may have reached the jump point closest to the goal by a roundabout route
+        return AStarPathUtil.getPath(tpred, null, trav, longest, ax, ay, ex, ey, false, path);
+    }
+
+    /**
+     * Performs the jump point search.
+     *
+     * @return the goal node, the jump point closest to the goal if a partial path was requested,
+     * or -1 if no path was found.
+     */
+    protected static int search (Info info, int ax, int ay, int bx, int by, boolean partial)
+    {
+        int s = info.getNode(ax, ay);
+        info.g[s] = 0;
+        info.f[s] = getDistanceEstimate(ax, ay, bx, by);
+        info.push(s);
+        info.considered = 1;
+
+        float bestdist = Float.MAX_VALUE;
+        int bestpath = -1;
+
+        while (info.opencount > 0) {
+            int n = info.pop();
+            int nx = info.x[n], ny = info.y[n];
+            if (nx == bx && ny == by) {
+                return n;
+
+            } else if (partial) {
+                float pathdist = MathUtil.distance(nx, ny, bx, by);
+                if (pathdist < bestdist) {
+                    bestdist = pathdist;
+                    bestpath = n;
+                }
+            }
+
+            identifySuccessors(info, n);
+            info.closed[n] = true;
+        }
+
+        return bestpath;
+    }
+
+    /**
+     * Jumps from the specified node in each of the directions that may lead to an optimal path
+     * (given the direction from which we arrived at the node) and considers each resulting jump
+     * point for inclusion in the path.
+     */
+    protected static void identifySuccessors (Info info, int n)
+    {
+        int x = info.x[n], y = info.y[n], p = info.parent[n];
+        if (p < 0) {
+            // the starting node: consider every direction
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    if (dx != 0 || dy != 0) {
+                        considerJump(info, n, x, y, dx, dy);
+                    }
+                }
+            }
+            return;
+        }
+
+        int dx = Integer.signum(x - info.x[p]), dy = Integer.signum(y - info.y[p]);
+        if (dx != 0 && dy != 0) {
+            considerJump(info, n, x, y, dx, 0);
+            considerJump(info, n, x, y, 0, dy);
+            considerJump(info, n, x, y, dx, dy);
+
+        } else if (dx != 0) {
+            // since we can't cut corners, tiles beside us may only be reachable through us
+            considerJump(info, n, x, y, dx, 0);
+            considerJump(info, n, x, y, 0, 1);
+            considerJump(info, n, x, y, 0, -1);
+            considerJump(info, n, x, y, dx, 1);
+            considerJump(info, n, x, y, dx, -1);
+
+        } else {
+            considerJump(info, n, x, y, 0, dy);
+            considerJump(info, n, x, y, 1, 0);
+            considerJump(info, n, x, y, -1, 0);
+            considerJump(info, n, x, y, 1, dy);
+            considerJump(info, n, x, y, -1, dy);
+        }
+    }
+
+    /**
+     * Jumps from the specified node in the specified direction and, if a jump point is found,
+     * adds or updates it in the open list.
+     */
+    protected static void considerJump (Info info, int n, int x, int y, int dx, int dy)
+    {
+        int limit = (info.maxcost - info.g[n]) / ADJACENT_COST;
+        long jump = jump(info, x, y, dx, dy, limit);
+        if (jump == NONE) {
+            return;
+        }
+        int jx = (int)(jump >> 32), jy = (int)jump;
+
+        // every jump is either straight or diagonal
+        int steps = Math.max(Math.abs(jx - x), Math.abs(jy - y));
+        int newg = info.g[n] + steps * ((dx != 0 && dy != 0) ? DIAGONAL_COST : ADJACENT_COST);
+        if (newg > info.maxcost) {
+            return;
+        }
+
+        int np = info.getNode(jx, jy);
+        boolean open = (info.heappos[np] >= 0);
+        if ((info.closed[np] || open) && info.g[np] <= newg) {
+            return;
+        }
+        info.parent[np] = n;
+        info.g[np] = newg;
+        info.f[np] = newg + getDistanceEstimate(jx, jy, info.destx, info.desty);
+        info.closed[np] = false;
+        if (open) {
+            info.siftUp(info.heappos[np]);
+        } else {
+            info.push(np);
+        }
+        info.considered++;
+    }
+
+    /**
+     * Moves from <code>(x, y)</code> in the specified direction until we reach the goal, a tile
+     * with a forced neighbor (one which can only be optimally reached via that tile), or an
+     * obstacle.
+     *
+     * @param limit the maximum number of steps to take.
+     *
+     * @return the packed coordinates of the jump point or {@link #NONE}.
+     */
+    protected static long jump (Info info, int x, int y, int dx, int dy, int limit)
+    {
+        boolean diagonal = (dx != 0 && dy != 0);
+        for (int steps = 1; steps <= limit; steps++) {
+            // we can't cut corners when moving diagonally
+            if (diagonal && !(info.isTraversable(x + dx, y) && info.isTraversable(x, y + dy))) {
+                return NONE;
+            }
+            x += dx;
+            y += dy;
+            if (!info.isTraversable(x, y)) {
+                return NONE;
+            }
+            if (x == info.destx && y == info.desty) {
+                return pack(x, y);
+            }
+
+            if (diagonal) {
+                // a diagonal move stops wherever a straight jump would find something
+                int remain = limit - steps;
+                if (jump(info, x, y, dx, 0, remain) != NONE ||
+                    jump(info, x, y, 0, dy, remain) != NONE) {
+                    return pack(x, y);
+                }
+            } else if (dx != 0) {
+                if ((info.isTraversable(x, y - 1) && !info.isTraversable(x - dx, y - 1)) ||
+                    (info.isTraversable(x, y + 1) && !info.isTraversable(x - dx, y + 1))) {
+                    return pack(x, y);
+                }
+            } else {
+                if ((info.isTraversable(x - 1, y) && !info.isTraversable(x - 1, y - dy)) ||
+                    (info.isTraversable(x + 1, y) && !info.isTraversable(x + 1, y - dy))) {
+                    return pack(x, y);
+                }
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Writes the path from the starting node to the supplied node into the supplied buffer,
+     * filling in the tiles between successive jump points.
+     */
+    protected static void getExpandedPath (Info info, int n, PathBuffer path)
+    {
+        int length = 1;
+        for (int cur = n, p; (p = info.parent[cur]) >= 0; cur = p) {
+            length += Math.max(Math.abs(info.x[cur] - info.x[p]),
+                               Math.abs(info.y[cur] - info.y[p]));
+        }
+        path.resize(length);
+
+        int idx = length-1;
+        for (int cur = n; ; ) {
+            int p = info.parent[cur];
+            if (p < 0) {
+                path.set(idx, info.x[cur], info.y[cur]);
+                break;
+            }
+            int px = info.x[p], py = info.y[p];
+            int sx = Integer.signum(px - info.x[cur]), sy = Integer.signum(py - info.y[cur]);
+            for (int x = info.x[cur], y = info.y[cur]; x != px || y != py; x += sx, y += sy) {
+                path.set(idx--, x, y);
+            }
+            cur = p;
+        }
+    }
+
+    /**
+     * Returns the cost of the shortest unobstructed path between the specified coordinates, which
+     * is an admissible (and consistent) estimate of the actual cost.
+     */
+    protected static int getDistanceEstimate (int ax, int ay, int bx, int by)
+    {
+        int dx = Math.abs(bx - ax), dy = Math.abs(by - ay);
+        return DIAGONAL_COST * Math.min(dx, dy) + ADJACENT_COST * Math.abs(dx - dy);
+    }
+
+    /**
+     * Packs the supplied coordinates into a long.
+     */
+    protected static long pack (int x, int y)
+    {
+        return ((long)x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /** Returned by {@link #jump} when no jump point is found. */
+    protected static final long NONE = Long.MIN_VALUE;
+}
@@ -21,9 +21,11 @@ package com.threerings.miso.client;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 
 import com.google.common.collect.Lists;
 
@@ -36,6 +38,15 @@ import static com.threerings.media.Log.log;
 
 /**
  * The dirty item list keeps track of dirty sprites and object tiles in a scene.
+ *
+ * <p> Only items whose rendered bounds intersect are compared with the {@link RenderComparator},
+ * and each such pair is compared once, in the same order as the insertion sort that this list
+ * once used: the item further forward in rear-depth order is passed first. Whenever those
+ * comparisons are consistent with one another, every overlapping pair of items is rendered in
+ * the order the comparator requires. The comparator is not transitive, however, and where its
+ * results form a cycle, we break the cycle at the rear-most item in it. As a result, items in or
+ * in front of such a cycle, and items that do not overlap at all (whose relative order has no
+ * effect on what is drawn), may be ordered differently than they were by the insertion sort.
  */
 public class DirtyItemList
 {
@@ -81,8 +92,12 @@ public class DirtyItemList
     }
 
     /**
-     * Returns an array of the {@link DirtyItem} objects in the list sorted in proper rendering
-     * order.
+     * Sorts the {@link DirtyItem} objects in the list into proper rendering order.
+     *
+     * <p> Only items whose rendered bounds intersect need be drawn in a particular order relative
+     * to one another, so we bucket the items into a coarse screen space grid, use the render
+     * comparator to order just those pairs of items that overlap, and then topologically sort
+     * the items, falling back to rear-depth order wherever we are unconstrained.
      */
     public void sort ()
     {
@@ -115,23 +130,13 @@ public class DirtyItemList
                 log.info("Sorted by rear-depth", "items", toString(_ditems));
             }
 
-            // now insertion sort the items from back to front into the render-sorted array
+            // determine which items must render in front of which others
+            bucketItems(size);
+            orderOverlappingItems(size);
+
+            // and lay the items out back to front accordingly
             _items.clear();
-          POS_LOOP:
-            for (int ii = 0; ii < size; ii++) {
-                DirtyItem item = _ditems.get(ii);
-                for (int rr = _items.size()-1; rr >= 0; rr--) {
-                    DirtyItem pitem = _items.get(rr);
-                    // if we render in front of this item, insert
-                    // ourselves immediately following it
-                    if (_rcomp.compare(item, pitem) > 0) {
-                        _items.add(rr+1, item);
-                        continue POS_LOOP;
-                    }
-                }
-                // we don't render in front of anyone, so we go at the front of the list
-                _items.add(0, item);
-            }
+            renderSortItems(size);
 
             // clear out our temporary arrays
             _xitems.clear();
@@ -144,7 +149,7 @@ public class DirtyItemList
             for (int ii = 0, ll = _items.size()-1; ii < ll; ii++) {
                 DirtyItem a = _items.get(ii);
                 DirtyItem b = _items.get(ii+1);
-                if (_rcomp.compare(a, b) > 0) {
+                if (a.getBounds().intersects(b.getBounds()) && _rcomp.compare(a, b) > 0) {
                     log.warning("Invalid ordering", "a", a, "b", b);
                 }
             }
@@ -187,6 +192,258 @@ public class DirtyItemList
         return _items.size();
     }
 
+    /**
+     * Buckets the (rear-depth sorted) items into the cells of a screen space grid covering their
+     * rendered bounds. The items in cell <code>cc</code> are thereafter found in {@link
+     * #_cellItems} from <code>_cellStarts[cc]</code> to <code>_cellStarts[cc+1]</code>.
+     */
+    protected void bucketItems (int size)
+    {
+        // determine the extent of the items' bounds
+        int minx = Integer.MAX_VALUE, miny = Integer.MAX_VALUE;
+        int maxx = Integer.MIN_VALUE, maxy = Integer.MIN_VALUE;
+        for (int ii = 0; ii < size; ii++) {
+            Rectangle bounds = _ditems.get(ii).getBounds();
+            minx = Math.min(minx, bounds.x);
+            miny = Math.min(miny, bounds.y);
+            maxx = Math.max(maxx, bounds.x + bounds.width);
+            maxy = Math.max(maxy, bounds.y + bounds.height);
+        }
+
+        // use cells about the size of a sprite, but no more than a few per item
+        long width = (long)maxx - minx, height = (long)maxy - miny;
+        int cellSize = GRID_CELL_SIZE;
+        while (((width / cellSize) + 1) * ((height / cellSize) + 1) > size * 4L) {
+            cellSize <<= 1;
+        }
+        _gridX = minx;
+        _gridY = miny;
+        _cellSize = cellSize;
+        _gridCols = (int)(width / cellSize) + 1;
+        int cells = _gridCols * ((int)(height / cellSize) + 1);
+
+        // count the items in each cell and turn the counts into the end of each cell's run
+        _cellStarts = ensureCapacity(_cellStarts, cells + 1);
+        Arrays.fill(_cellStarts, 0, cells + 1, 0);
+        int entries = 0;
+        for (int ii = 0; ii < size; ii++) {
+            Rectangle bounds = _ditems.get(ii).getBounds();
+            for (int cy = cellY(bounds.y), ey = cellY(bounds.y + bounds.height); cy <= ey; cy++) {
+                for (int cx = cellX(bounds.x), ex = cellX(bounds.x + bounds.width); cx <= ex;
+                     cx++) {
+                    _cellStarts[cy * _gridCols + cx]++;
+                    entries++;
+                }
+            }
+        }
+        for (int cc = 1; cc <= cells; cc++) {
+            _cellStarts[cc] += _cellStarts[cc-1];
+        }
+
+        // then fill in the runs back to front, which leaves each cell's items in ascending order
+        // and each cell's entry in _cellStarts at the start of its run
+        _cellItems = ensureCapacity(_cellItems, entries);
+        for (int ii = size-1; ii >= 0; ii--) {
+            Rectangle bounds = _ditems.get(ii).getBounds();
+            for (int cy = cellY(bounds.y), ey = cellY(bounds.y + bounds.height); cy <= ey; cy++) {
+                for (int cx = cellX(bounds.x), ex = cellX(bounds.x + bounds.width); cx <= ex;
+                     cx++) {
+                    _cellItems[--_cellStarts[cy * _gridCols + cx]] = ii;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares every pair of items whose rendered bounds intersect, noting for each pair which
+     * item must render in front of the other.
+     */
+    protected void orderOverlappingItems (int size)
+    {
+        _stamps = ensureCapacity(_stamps, size);
+        Arrays.fill(_stamps, 0, size, -1);
+        _constraints = 0;
+
+        for (int ii = 0; ii < size; ii++) {
+            DirtyItem item = _ditems.get(ii);
+            Rectangle bounds = item.getBounds();
+            for (int cy = cellY(bounds.y), ey = cellY(bounds.y + bounds.height); cy <= ey; cy++) {
+                for (int cx = cellX(bounds.x), ex = cellX(bounds.x + bounds.width); cx <= ex;
+                     cx++) {
+                    int cell = cy * _gridCols + cx;
+                    // the items in each cell are in ascending order, so we need only look at
+                    // those that precede us
+                    for (int pp = _cellStarts[cell], pe = _cellStarts[cell+1]; pp < pe; pp++) {
+                        int oo = _cellItems[pp];
+                        if (oo >= ii) {
+                            break;
+                        }
+                        // make sure we don't compare a pair more than once
+                        if (_stamps[oo] == ii) {
+                            continue;
+                        }
+                        _stamps[oo] = ii;
+
+                        DirtyItem other = _ditems.get(oo);
+                        if (!bounds.intersects(other.getBounds())) {
+                            continue;
+                        }
+                        int result = _rcomp.compare(item, other);
+                        if (result > 0) {
+                            addConstraint(oo, ii);
+                        } else if (result < 0) {
+                            addConstraint(ii, oo);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Notes that the item at the specified rear-depth index must be rendered before (behind)
+     * the item at the other specified index.
+     */
+    protected void addConstraint (int behind, int front)
+    {
+        int idx = _constraints++ * 2;
+        if (idx >= _cpairs.length) {
+            int[] cpairs = new int[_cpairs.length * 2];
+            System.arraycopy(_cpairs, 0, cpairs, 0, _cpairs.length);
+            _cpairs = cpairs;
+        }
+        _cpairs[idx] = behind;
+        _cpairs[idx+1] = front;
+    }
+
+    /**
+     * Appends the (rear-depth sorted) items to {@link #_items} in an order that respects the
+     * constraints computed by {@link #orderOverlappingItems}: of those items whose constraints
+     * are satisfied, the rear-most is always rendered first. The render comparator is not
+     * strictly transitive, so should the constraints form a cycle, we break it by rendering the
+     * rear-most remaining item.
+     */
+    protected void renderSortItems (int size)
+    {
+        // arrange the constraints by the item behind and count the constraints on each item
+        _fronts = ensureCapacity(_fronts, _constraints);
+        _frontStarts = ensureCapacity(_frontStarts, size + 1);
+        _behinds = ensureCapacity(_behinds, size);
+        Arrays.fill(_frontStarts, 0, size + 1, 0);
+        Arrays.fill(_behinds, 0, size, 0);
+        for (int cc = 0, ll = _constraints * 2; cc < ll; cc += 2) {
+            _frontStarts[_cpairs[cc]]++;
+            _behinds[_cpairs[cc+1]]++;
+        }
+        for (int ii = 1; ii <= size; ii++) {
+            _frontStarts[ii] += _frontStarts[ii-1];
+        }
+        for (int cc = _constraints * 2 - 2; cc >= 0; cc -= 2) {
+            _fronts[--_frontStarts[_cpairs[cc]]] = _cpairs[cc+1];
+        }
+
+        // start with every item that needn't render in front of anything
+        _ready = ensureCapacity(_ready, size);
+        _readyCount = 0;
+        for (int ii = 0; ii < size; ii++) {
+            if (_behinds[ii] == 0) {
+                pushReady(ii);
+            }
+        }
+
+        for (int placed = 0, rear = 0; placed < size; placed++) {
+            int idx;
+            if (_readyCount > 0) {
+                idx = popReady();
+            } else {
+                while (_behinds[rear] < 0) {
+                    rear++;
+                }
+                idx = rear;
+                if (DEBUG_SORT) {
+                    log.info("Breaking render order cycle", "item", toString(_ditems.get(idx)));
+                }
+            }
+            _behinds[idx] = -1;
+            _items.add(_ditems.get(idx));
+
+            // release any items that were waiting on this one
+            for (int ff = _frontStarts[idx], fe = _frontStarts[idx+1]; ff < fe; ff++) {
+                int front = _fronts[ff];
+                if (_behinds[front] > 0 && --_behinds[front] == 0) {
+                    pushReady(front);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the specified item index to our heap of items ready to be rendered.
+     */
+    protected void pushReady (int idx)
+    {
+        int pos = _readyCount++;
+        while (pos > 0) {
+            int parent = (pos - 1) >> 1;
+            if (_ready[parent] <= idx) {
+                break;
+            }
+            _ready[pos] = _ready[parent];
+            pos = parent;
+        }
+        _ready[pos] = idx;
+    }
+
+    /**
+     * Removes and returns the lowest item index from our heap of items ready to be rendered.
+     */
+    protected int popReady ()
+    {
+        int top = _ready[0], last = _ready[--_readyCount];
+        int pos = 0;
+        while (true) {
+            int child = pos * 2 + 1;
+            if (child >= _readyCount) {
+                break;
+            }
+            if (child + 1 < _readyCount && _ready[child+1] < _ready[child]) {
+                child++;
+            }
+            if (last <= _ready[child]) {
+                break;
+            }
+            _ready[pos] = _ready[child];
+            pos = child;
+        }
+        _ready[pos] = last;
+        return top;
+    }
+
+    /**
+     * Returns the column of the grid cell containing the specified screen x coordinate.
+     */
+    protected final int cellX (int x)
+    {
+        return (int)(((long)x - _gridX) / _cellSize);
+    }
+
+    /**
+     * Returns the row of the grid cell containing the specified screen y coordinate.
+     */
+    protected final int cellY (int y)
+    {
+        return (int)(((long)y - _gridY) / _cellSize);
+    }
+
+    /**
+     * Returns the supplied array if it has at least the specified capacity, a new array
+     * otherwise.
+     */
+    protected static int[] ensureCapacity (int[] array, int capacity)
+    {
+        return (array.length >= capacity) ? array : new int[Math.max(capacity, array.length * 2)];
+    }
+
     /**
      * Obtains a new dirty item instance, reusing an old one if possible or creating a new one
      * otherwise.
@@ -302,6 +559,17 @@ public class DirtyItemList
             }
         }
 
+        /**
+         * Returns the screen bounds within which this item renders.
+         */
+        public Rectangle getBounds () {
+            if (obj instanceof Sprite) {
+                return ((Sprite)obj).getBounds();
+            } else {
+                return ((SceneObject)obj).bounds;
+            }
+        }
+
         /**
          * Returns the "depth" of our rear-most tile.
          */
@@ -631,6 +899,36 @@ public class DirtyItemList
     /** The render comparator we'll use for our final, magical sort. */
     protected Comparator<DirtyItem> _rcomp = new RenderComparator();
 
+    /** The origin and cell size of the screen space grid into which we bucket items. */
+    protected int _gridX, _gridY, _cellSize, _gridCols;
+
+    /** The start of each grid cell's run in {@link #_cellItems}. */
+    protected int[] _cellStarts = new int[0];
+
+    /** The rear-depth indices of the items in each grid cell. */
+    protected int[] _cellItems = new int[0];
+
+    /** Used to avoid comparing a pair of items that share more than one cell more than once. */
+    protected int[] _stamps = new int[0];
+
+    /** The render constraints between overlapping items, as (behind, front) index pairs. */
+    protected int[] _cpairs = new int[64];
+
+    /** The number of render constraints in {@link #_cpairs}. */
+    protected int _constraints;
+
+    /** The items that must render in front of each item, by item index. */
+    protected int[] _fronts = new int[0], _frontStarts = new int[0];
+
+    /** The number of items that have yet to be rendered behind each item. */
+    protected int[] _behinds = new int[0];
+
+    /** A heap of the indices of items that are ready to be rendered. */
+    protected int[] _ready = new int[0];
+
+    /** The number of items in {@link #_ready}. */
+    protected int _readyCount;
+
     /** Unused dirty items. */
     protected ArrayList<DirtyItem> _freelist = Lists.newArrayList();
 
@@ -640,6 +938,9 @@ public class DirtyItemList
     /** Whether to log debug info for the main dirty item sorting algorithm. */
     protected static final boolean DEBUG_SORT = false;
 
+    /** The smallest (and preferred) size of the cells used to find overlapping items. */
+    protected static final int GRID_CELL_SIZE = 64;
+
     /** Constants used to denote axis sorting constraints. */
     protected static final int X_AXIS = 0;
     protected static final int Y_AXIS = 1;
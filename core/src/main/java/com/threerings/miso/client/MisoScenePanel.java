@@ -29,17 +29,19 @@ import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.Point;
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.Stroke;
+import java.awt.Transparency;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.image.BufferedImage;
-import java.lang.ref.WeakReference;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -54,6 +56,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
+import com.samskivert.util.LRUHashMap;
 import com.samskivert.util.StringUtil;
 
 import com.samskivert.swing.Controller;
@@ -62,12 +65,14 @@ import com.samskivert.swing.RuntimeAdjust;
 import com.samskivert.swing.event.CommandEvent;
 
 import com.threerings.media.VirtualMediaPanel;
+import com.threerings.media.image.ImageUtil;
 import com.threerings.media.sprite.Sprite;
 import com.threerings.media.tile.ObjectTile;
 import com.threerings.media.tile.Tile;
 import com.threerings.media.tile.TileManager;
 import com.threerings.media.tile.TileSet;
 import com.threerings.media.util.AStarPathUtil;
+import com.threerings.media.util.JumpPointPathUtil;
 import com.threerings.media.util.MathUtil;
 import com.threerings.media.util.Path;
 
@@ -76,7 +81,7 @@ import com.threerings.miso.client.DirtyItemList.DirtyItem;
 import com.threerings.miso.data.MisoSceneModel;
 import com.threerings.miso.data.ObjectInfo;
 import com.threerings.miso.tile.BaseTile;
-import com.threerings.miso.tile.AutoFringer.FringeTile;
+import com.threerings.miso.tile.FringeMap;
 import com.threerings.miso.util.MisoContext;
 import com.threerings.miso.util.MisoSceneMetrics;
 import com.threerings.miso.util.MisoUtil;
@@ -113,8 +118,6 @@ public class MisoScenePanel extends VirtualMediaPanel
         _resolver = _resolvers.get(_ctx);
         if (_resolver == null) {
             _resolver = new SceneBlockResolver();
-            _resolver.setDaemon(true);
-            _resolver.setPriority(Thread.MIN_PRIORITY);
             _resolver.start();
             _resolvers.put(_ctx, _resolver);
         }
@@ -143,9 +146,17 @@ public class MisoScenePanel extends VirtualMediaPanel
      */
     protected void clearScene ()
     {
+        for (SceneBlock block : _blocks.values()) {
+            _resolver.abandonBlock(block);
+        }
         _blocks.clear();
+        synchronized (_bakedTiles) {
+            _bakedTiles.clear();
+        }
+        _staleBlocks.clear();
         _vizobjs.clear();
-        _fringes.clear();
+        _fringeMap = (_model == null) ? null :
+            new FringeMap(_ctx.getTileManager().getAutoFringer(), _model);
         _masks.clear();
         if (_dpanel != null) {
             _dpanel.newScene();
@@ -195,6 +206,37 @@ public class MisoScenePanel extends VirtualMediaPanel
         return _metrics;
     }
 
+    /**
+     * Configures whether paths are computed using jump point search (see {@link
+     * JumpPointPathUtil}) rather than plain A*. Jump point search finds equally short paths while
+     * expanding far fewer nodes in large, open scenes, which makes long paths (see {@link
+     * #getLongestPath}) affordable.
+     */
+    public void setJumpPointPaths (boolean jumpPointPaths)
+    {
+        _jumpPointPaths = jumpPointPaths;
+    }
+
+    /**
+     * Configures whether each scene block renders its base and fringe tiles into a single image
+     * when it is resolved, so that repainting the tiles requires only a few image blits rather
+     * than painting every tile. The images are discarded when their block's tiles are changed and
+     * rebaked when next painted, and are flushed under a memory budget, after which their blocks'
+     * tiles are painted individually. This affects only blocks resolved subsequently.
+     */
+    public void setBakeTiles (boolean bakeTiles)
+    {
+        _bakeTiles = bakeTiles;
+    }
+
+    /**
+     * Returns true if scene blocks render their tiles into a single image.
+     */
+    public boolean isBakingTiles ()
+    {
+        return _bakeTiles;
+    }
+
     /**
      * Set whether or not to highlight object tooltips (and potentially other scene entities).
      */
@@ -290,13 +332,14 @@ public class MisoScenePanel extends VirtualMediaPanel
             _metrics, sprite.getX(), sprite.getY(), new Point());
         Point dest = MisoUtil.screenToTile(_metrics, x, y, new Point());
 
-        // compute our longest path from the screen size
-        int longestPath = 3 * (getWidth() / _metrics.tilewid);
-
         // get a reasonable tile path through the scene
+        int longestPath = getLongestPath();
         long start = System.currentTimeMillis();
-        List<Point> points = AStarPathUtil.getPath(
-            this, sprite, longestPath, src.x, src.y, dest.x, dest.y, loose);
+        List<Point> points = _jumpPointPaths ?
+            JumpPointPathUtil.getPath(
+                this, sprite, longestPath, src.x, src.y, dest.x, dest.y, loose) :
+            AStarPathUtil.getPath(
+                this, sprite, longestPath, src.x, src.y, dest.x, dest.y, loose);
         long duration = System.currentTimeMillis() - start;
 
         // sanity check the number of nodes searched so that we can keep an eye out for bogosity
@@ -313,6 +356,15 @@ public class MisoScenePanel extends VirtualMediaPanel
             new TilePath(_metrics, sprite, points, x, y);
     }
 
+    /**
+     * Returns the longest path (in tile traversals) that {@link #getPath} will consider. By
+     * default this is computed from the width of the panel.
+     */
+    protected int getLongestPath ()
+    {
+        return 3 * (getWidth() / _metrics.tilewid);
+    }
+
     /**
      * Converts the supplied full coordinates to screen coordinates.
      */
@@ -370,6 +422,7 @@ public class MisoScenePanel extends VirtualMediaPanel
     public void addNotify ()
     {
         super.addNotify();
+        _blockConfig = getGraphicsConfiguration();
 
         if (_resolveDebug.getValue()) {
             _dpanel = new ResolutionView(this);
@@ -784,6 +837,10 @@ public class MisoScenePanel extends VirtualMediaPanel
         // recompute our "area of influence"
         computeInfluentialBounds();
 
+        // let the resolver know where we're looking so that it resolves the nearest blocks first
+        _resolver.setViewCenter(
+            this, _vbounds.x + _vbounds.width/2, _vbounds.y + _vbounds.height/2);
+
 //         Log.info("Rethinking vb:" + StringUtil.toString(_vbounds) +
 //                  " ul:" + StringUtil.toString(_ulpos) +
 //                  " ibounds: " + StringUtil.toString(_ibounds));
@@ -810,9 +867,19 @@ public class MisoScenePanel extends VirtualMediaPanel
                     _dpanel.blockCleared(block);
                 }
                 iter.remove();
+                _resolver.abandonBlock(block);
+                synchronized (_bakedTiles) {
+                    _bakedTiles.remove(block);
+                }
+                _staleBlocks.remove(block);
             }
         }
 
+        // the resolver threads may not query our graphics configuration themselves, so we note
+        // the one with which they should bake the tiles of the blocks we're about to queue
+        if (!_rethinkOp.blocks.isEmpty()) {
+            _blockConfig = getGraphicsConfiguration();
+        }
         for (Point origin : _rethinkOp.blocks) {
             int bx = MathUtil.floorDiv(origin.x, _metrics.blockwid);
             int by = MathUtil.floorDiv(origin.y, _metrics.blockhei);
@@ -824,7 +891,7 @@ public class MisoScenePanel extends VirtualMediaPanel
                 block.setVisiBlock(visible);
                 _blocks.put(bkey, block);
 
-                // queue the block up to be resolved
+                // queue the block up to be prefetched and resolved
                 _pendingBlocks++;
                 if (visible) {
                     _visiBlocks.add(block);
@@ -931,6 +998,43 @@ public class MisoScenePanel extends VirtualMediaPanel
         blockFinished(block);
     }
 
+    /**
+     * Called by a scene block (on a resolver thread, or on the AWT thread if it is rebaked) when it
+     * has rendered its tiles into a single image.
+     */
+    protected void blockBaked (SceneBlock block, BufferedImage image)
+    {
+        synchronized (_bakedTiles) {
+            _bakedTiles.put(block, image);
+        }
+    }
+
+    /**
+     * Called by a resolved scene block when its base or fringe tiles have changed.
+     */
+    protected void blockTilesChanged (SceneBlock block)
+    {
+        boolean baked;
+        synchronized (_bakedTiles) {
+            baked = (_bakedTiles.remove(block) != null);
+        }
+        if (baked) {
+            _staleBlocks.add(block);
+        }
+    }
+
+    /**
+     * Creates an image into which a scene block can render its tiles, compatible with the
+     * graphics configuration last noted on the AWT thread. This is called by the resolver
+     * threads as well as the AWT thread.
+     */
+    protected BufferedImage createBlockImage (int width, int height)
+    {
+        GraphicsConfiguration gc = _blockConfig;
+        return (gc == null) ? new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB) :
+            gc.createCompatibleImage(width, height, Transparency.BITMASK);
+    }
+
     /**
      * Called whenever a block is done resolving, whether it was successfully resolved or if it
      * was abandoned.
@@ -1360,10 +1464,52 @@ public class MisoScenePanel extends VirtualMediaPanel
      */
     protected void paintTiles (Graphics2D gfx, Rectangle clip)
     {
-        // go through rendering our tiles
-        _paintOp.setGraphics(gfx);
-        _applicator.applyToTiles(clip, _paintOp);
-        _paintOp.setGraphics(null);
+        // blit the tiles of any baked blocks, unless we're rendering tile debug info
+        boolean unbaked = true;
+        if (_bakeTiles && !_traverseDebug.getValue() && !_coordsDebug.getValue()) {
+            unbaked = paintBakedTiles(gfx, clip);
+        }
+
+        // go through rendering the rest of our tiles
+        if (unbaked) {
+            _paintOp.setGraphics(gfx);
+            _applicator.applyToTiles(clip, _paintOp);
+            _paintOp.setGraphics(null);
+        }
+        _paintOp.bakedBlocks.clear();
+    }
+
+    /**
+     * Paints the baked tile images of the blocks that intersect the specified clipping
+     * rectangle, noting the blocks painted in our paint op so that it can skip their tiles.
+     *
+     * @return true if any intersecting tiles remain to be painted individually.
+     */
+    protected boolean paintBakedTiles (Graphics2D gfx, Rectangle clip)
+    {
+        boolean unbaked = false;
+        for (SceneBlock block : _blocks.values()) {
+            if (!block.getFootprint().intersects(clip)) {
+                continue;
+            }
+            BufferedImage image;
+            synchronized (_bakedTiles) {
+                image = _bakedTiles.get(block);
+            }
+            if (image == null && block.isResolved() && _staleBlocks.remove(block)) {
+                // rebake blocks whose tiles have changed
+                image = block.bakeTiles();
+                blockBaked(block, image);
+            }
+            if (image == null) {
+                unbaked = true;
+                continue;
+            }
+            Rectangle tbounds = block.getTileBounds();
+            gfx.drawImage(image, tbounds.x, tbounds.y, null);
+            _paintOp.bakedBlocks.add(block);
+        }
+        return unbaked;
     }
 
     /**
@@ -1398,8 +1544,16 @@ public class MisoScenePanel extends VirtualMediaPanel
     /** Computes the fringe tile for the specified coordinate. */
     protected BaseTile computeFringeTile (int tx, int ty)
     {
-        return _ctx.getTileManager().getAutoFringer().getFringeTile(_model, tx, ty, _fringes,
-            _masks);
+        return _fringeMap.getFringeTile(tx, ty, _masks);
+    }
+
+    /**
+     * Called by a resolved scene block when the specified base tile has changed, before it
+     * recomputes the fringes influenced by that tile.
+     */
+    protected void baseTileChanged (int tx, int ty)
+    {
+        _fringeMap.baseTileChanged(tx, ty);
     }
 
     /**
@@ -1414,6 +1568,9 @@ public class MisoScenePanel extends VirtualMediaPanel
     /** Used by {@link MisoScenePanel#paintTiles}. */
     protected class PaintTileOp implements TileOp
     {
+        /** Blocks whose tiles have already been painted from their baked images. */
+        public Set<SceneBlock> bakedBlocks = Sets.newHashSet();
+
         public void setGraphics (Graphics2D gfx) {
             _gfx = gfx;
             _thw = 0;
@@ -1432,6 +1589,11 @@ public class MisoScenePanel extends VirtualMediaPanel
         }
 
         public void apply (int tx, int ty, Rectangle tbounds) {
+            // skip tiles whose blocks were painted from their baked images
+            if (!bakedBlocks.isEmpty() && bakedBlocks.contains(getBlock(tx, ty))) {
+                return;
+            }
+
             // draw the base and fringe tile images
             try {
                 Tile tile;
@@ -1543,23 +1705,40 @@ public class MisoScenePanel extends VirtualMediaPanel
      * blocks needed to render the visible view. */
     protected boolean _delayRepaint = false;
 
+    /** Whether we compute paths using jump point search. */
+    protected boolean _jumpPointPaths;
+
+    /** Whether our scene blocks render their tiles into single images. */
+    protected boolean _bakeTiles = _bakeTilesPref.getValue();
+
+    /** The graphics configuration with which our scene blocks' tile images are to be compatible.
+     * Noted on the AWT thread and read by the resolver threads. */
+    protected volatile GraphicsConfiguration _blockConfig;
+
+    /** The images into which our scene blocks have rendered their tiles. */
+    protected LRUHashMap<SceneBlock, BufferedImage> _bakedTiles =
+        new LRUHashMap<SceneBlock, BufferedImage>(
+            _bakedTilesSize.getValue() * 1024, new LRUHashMap.ItemSizer<BufferedImage>() {
+        public int computeSize (BufferedImage image) {
+            return (int)ImageUtil.getEstimatedMemoryUsage(image);
+        }
+    });
+
+    /** Resolved blocks whose baked images were discarded when their tiles changed. */
+    protected Set<SceneBlock> _staleBlocks = Sets.newHashSet();
+
     /** A list of the potentially visible objects in the scene. */
     protected List<SceneObject> _vizobjs = Lists.newArrayList();
 
     /**
      * Map of the masks used to calculate fringes in this scene.
      */
-    protected Map<Long, BufferedImage> _masks = Maps.newHashMap();
+    protected Map<Long, BufferedImage> _masks =
+        Collections.synchronizedMap(Maps.<Long, BufferedImage>newHashMap());
 
-    /**
-     * Map of active fringe tiles. Scene blocks have hard references to fringe tiles in this map
-     * for the tiles they're using, so the blocks coming in and out of the influential bounds
-     * determines which tiles remain in the map. The map is from FringeTile to FringeTile so a
-     * fully created FringeTile can be extracted from the map using a tile that contains only
-     * what's needed for hashCode and equals: id and passability.
-     */
-    protected Map<FringeTile, WeakReference<FringeTile>> _fringes =
-        new WeakHashMap<FringeTile, WeakReference<FringeTile>>();
+    /** The fringes of our scene's tiles. Replaced on the AWT thread when our scene changes and
+     * read by the resolver threads. */
+    protected volatile FringeMap _fringeMap;
 
     /** The dirty sprites and objects that need to be re-painted. */
     protected DirtyItemList _dirtyItems = new DirtyItemList();
@@ -1635,6 +1814,19 @@ public class MisoScenePanel extends VirtualMediaPanel
             "Toggles debug rendering of sprite paths in the iso scene view.",
             "narya.miso.iso_paths_debug_render", MisoPrefs.config, false);
 
+    /** Whether scene blocks render their tiles into single images by default. */
+    protected static RuntimeAdjust.BooleanAdjust _bakeTilesPref =
+        new RuntimeAdjust.BooleanAdjust(
+            "Renders the base and fringe tiles of each scene block into a single " +
+            "image [requires restart].", "narya.miso.bake_tiles", MisoPrefs.config, false);
+
+    /** The memory budget (in kilobytes) for baked block tile images. */
+    protected static RuntimeAdjust.IntAdjust _bakedTilesSize =
+        new RuntimeAdjust.IntAdjust(
+            "Size (in kb of memory used) of each scene panel's baked block tile " +
+            "images [requires restart].", "narya.miso.baked_tiles_size",
+            MisoPrefs.config, 16384);
+
     /** A debug hook that toggles the block resolution display. */
     protected static RuntimeAdjust.BooleanAdjust _resolveDebug =
         new RuntimeAdjust.BooleanAdjust(
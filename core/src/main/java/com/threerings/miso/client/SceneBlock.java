@@ -22,13 +22,20 @@ package com.threerings.miso.client;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
 import java.awt.Polygon;
 import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import com.samskivert.util.ArrayUtil;
 import com.samskivert.util.StringUtil;
@@ -93,6 +100,39 @@ public class SceneBlock
         _visi = visi;
     }
 
+    /**
+     * Called by the {@link SceneBlockResolver} on its prefetch thread while this block awaits
+     * resolution. Lets the scene model load the data for this block (and the tiles around it,
+     * which influence its fringes), then starts loading the tilesets (and tileset images) used by
+     * its base tiles and objects in the background so that they are likely to be ready by the
+     * time the block is resolved.
+     */
+    public ListenableFuture<List<TileSet>> prefetch ()
+    {
+        _model.prefetch(new Rectangle(
+            _bounds.x - 1, _bounds.y - 1, _bounds.width + 2, _bounds.height + 2));
+
+        Set<Integer> tsids = Sets.newLinkedHashSet();
+        for (int yy = 0; yy < _bounds.height; yy++) {
+            for (int xx = 0; xx < _bounds.width; xx++) {
+                int fqTileId = _model.getBaseTileId(_bounds.x + xx, _bounds.y + yy);
+                if (fqTileId > 0) {
+                    tsids.add(TileUtil.getTileSetId(fqTileId));
+                }
+            }
+        }
+        ObjectSet set = new ObjectSet();
+        _model.getObjects(_bounds, set);
+        for (int ii = 0, ll = set.size(); ii < ll; ii++) {
+            tsids.add(TileUtil.getTileSetId(set.get(ii).tileId));
+        }
+        int bsetid = _model.getDefaultBaseTileSet();
+        if (bsetid > 0) {
+            tsids.add(bsetid);
+        }
+        return _tileMgr.prefetchTileSets(tsids);
+    }
+
     /**
      * This method is called by the {@link SceneBlockResolver} on the
      * block resolution thread to allow us to load up our image data
@@ -100,13 +140,7 @@ public class SceneBlock
      */
     public boolean resolve ()
     {
-        // if we got canned before we were resolved, go ahead and bail now
         if (_panel != null) {
-            if (_panel.getBlock(_bounds.x, _bounds.y) != this) {
-                // Log.info("Not resolving abandoned block " + this + ".");
-                _wasAbandoned = true;
-                return false;
-            }
             _panel.blockResolving(this);
         }
         // We're doing our work, we're needed!
@@ -191,6 +225,11 @@ public class SceneBlock
                         ", error=" + e + "].");
         }
 
+        // render our tiles into a single image if our panel so desires
+        if (_panel != null && _panel.isBakingTiles()) {
+            _panel.blockBaked(this, bakeTiles());
+        }
+
         // this both marks us as resolved and makes all our other updated
         // fields visible
         synchronized (this) {
@@ -201,6 +240,17 @@ public class SceneBlock
         return true;
     }
 
+    /**
+     * This method is called by the {@link SceneBlockResolver} on the block resolution thread in
+     * lieu of {@link #resolve} if we were flushed by our panel (because we scrolled out of its
+     * influential bounds) before we came up for resolution.
+     */
+    protected void abandon ()
+    {
+        // Log.info("Not resolving abandoned block " + this + ".");
+        _wasAbandoned = true;
+    }
+
     protected SceneObject makeSceneObject (ObjectInfo info)
     {
         return new SceneObject(_metrics, _tileMgr,
@@ -236,6 +286,68 @@ public class SceneBlock
         return _sbounds != null;
     }
 
+    /**
+     * Renders this block's base and fringe tiles (and black where it has no base tile) into a
+     * single image created by its panel, which the panel can paint in place of the individual
+     * tiles. The image is to be painted at the upper left of {@link #getTileBounds}. Returns null
+     * if this block has no panel.
+     */
+    public BufferedImage bakeTiles ()
+    {
+        if (_panel == null) {
+            return null;
+        }
+
+        // determine the bounds of all of our tile images, which may extend beyond our footprint
+        Rectangle tbounds = new Rectangle(_footprint.getBounds());
+        Point spos = new Point();
+        for (int yy = 0; yy < _bounds.height; yy++) {
+            for (int xx = 0; xx < _bounds.width; xx++) {
+                int x = _bounds.x + xx, y = _bounds.y + yy;
+                MisoUtil.tileToScreen(_metrics, x, y, spos);
+                addTileBounds(tbounds, getBaseTile(x, y), spos);
+                addTileBounds(tbounds, getFringeTile(x, y), spos);
+            }
+        }
+
+        BufferedImage image = _panel.createBlockImage(tbounds.width, tbounds.height);
+        Graphics2D gfx = image.createGraphics();
+        try {
+            gfx.translate(-tbounds.x, -tbounds.y);
+            gfx.setColor(Color.black);
+            for (int yy = 0; yy < _bounds.height; yy++) {
+                for (int xx = 0; xx < _bounds.width; xx++) {
+                    int x = _bounds.x + xx, y = _bounds.y + yy;
+                    MisoUtil.tileToScreen(_metrics, x, y, spos);
+                    Tile tile = getBaseTile(x, y);
+                    if (tile != null) {
+                        tile.paint(gfx, spos.x, spos.y);
+                    } else {
+                        gfx.fill(MisoUtil.getTilePolygon(_metrics, x, y));
+                    }
+                    if ((tile = getFringeTile(x, y)) != null) {
+                        tile.paint(gfx, spos.x, spos.y);
+                    }
+                }
+            }
+        } finally {
+            gfx.dispose();
+        }
+
+        _tbounds = tbounds;
+        return image;
+    }
+
+    /**
+     * Returns the bounds of the screen coordinate rectangle that contains all pixels drawn by our
+     * base and fringe tiles when they were last baked by {@link #bakeTiles}, or null if they
+     * have not been.
+     */
+    public Rectangle getTileBounds ()
+    {
+        return _tbounds;
+    }
+
     /**
      * Returns the bounds of this block, in tile coordinates.
      */
@@ -337,6 +449,12 @@ public class SceneBlock
             log.warning(errmsg + " [fqtid=" + fqTileId +
                         ", x=" + tx + ", y=" + ty + "].");
         }
+
+        // let our panel know that the fringes around this tile must be recomputed
+        if (_panel != null && isResolved()) {
+            _panel.baseTileChanged(tx, ty);
+        }
+        tilesChanged();
     }
 
     /**
@@ -349,6 +467,29 @@ public class SceneBlock
         if (_base[tidx] != null) {
             _fringe[tidx] = computeFringeTile(tx, ty);
         }
+        tilesChanged();
+    }
+
+    /**
+     * Informs our panel when our tiles are changed after we have been resolved, so that it can
+     * discard any image into which they were baked.
+     */
+    protected void tilesChanged ()
+    {
+        if (_panel != null && isResolved()) {
+            _panel.blockTilesChanged(this);
+        }
+    }
+
+    /**
+     * Extends the supplied bounds to include those of a tile painted at the specified position.
+     */
+    protected static void addTileBounds (Rectangle bounds, Tile tile, Point spos)
+    {
+        if (tile != null) {
+            bounds.add(spos);
+            bounds.add(spos.x + tile.getWidth(), spos.y + tile.getHeight());
+        }
     }
 
     /**
@@ -597,6 +738,9 @@ public class SceneBlock
     /** The bounds (in screen coords) of all objects rendered by this block. */
     protected Rectangle _obounds;
 
+    /** The bounds (in screen coords) of our baked tile image, if we've been baked. */
+    protected Rectangle _tbounds;
+
     /** A polygon bounding the footprint of this block. */
     protected Polygon _footprint;
 
@@ -19,39 +19,131 @@
 
 package com.threerings.miso.client;
 
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import java.awt.EventQueue;
+import java.awt.Point;
+import java.awt.Rectangle;
+
+import com.google.common.collect.Lists;
 
 import com.samskivert.util.Histogram;
 import com.samskivert.util.LoopingThread;
-import com.samskivert.util.Queue;
 
 import static com.threerings.miso.Log.log;
 
 /**
- * A separate thread for resolving miso scene blocks.
+ * Resolves miso scene blocks on a pool of background threads. Queued blocks are resolved in order
+ * of their distance from the center of their panel's view (as last reported via {@link
+ * #setViewCenter}), so that the blocks the player is looking at are resolved first even when the
+ * view is scrolling quickly. Blocks that have been flushed by their panel because they are no
+ * longer influential (as reported via {@link #abandonBlock}) are cancelled: they are dispatched
+ * ahead of everything else without being resolved.
+ *
+ * <p> A separate thread prefetches the queued blocks in the same order (see {@link
+ * SceneBlock#prefetch}), so that their scene data and tilesets are loaded while the workers are
+ * busy resolving the blocks ahead of them.
  */
-public class SceneBlockResolver extends LoopingThread
+public class SceneBlockResolver
 {
+    /**
+     * Creates a resolver with the default number of threads, which is one fewer than the number of
+     * available processors (but at least one and at most {@link #MAX_THREADS}).
+     */
     public SceneBlockResolver ()
     {
-        super("SceneBlockResolver");
+        this(Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors() - 1)));
+    }
+
+    /**
+     * Creates a resolver that will resolve blocks on the specified number of threads.
+     */
+    public SceneBlockResolver (int threads)
+    {
+        _workers = new Worker[Math.max(1, threads)];
+        for (int ii = 0; ii < _workers.length; ii++) {
+            _workers[ii] = new Worker(ii);
+        }
+        _prefetcher = new Prefetcher();
+    }
+
+    /**
+     * Starts our resolution and prefetch threads. They are low priority daemon threads.
+     */
+    public void start ()
+    {
+        for (Worker worker : _workers) {
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY);
+            worker.start();
+        }
+        _prefetcher.setDaemon(true);
+        _prefetcher.setPriority(Thread.MIN_PRIORITY);
+        _prefetcher.start();
+    }
+
+    /**
+     * Shuts down our resolution and prefetch threads. Blocks still in the queue will not be
+     * resolved.
+     */
+    public synchronized void shutdown ()
+    {
+        _shutdown = true;
+        for (Worker worker : _workers) {
+            worker.shutdown();
+        }
+        _prefetcher.shutdown();
+        notifyAll();
     }
 
     /**
      * Queues up a scene block for resolution.
+     *
+     * @param hipri used to order blocks that do not belong to a panel (and thus have no view
+     * distance): high priority blocks are resolved before other such blocks. Blocks with a panel
+     * are ordered solely by their distance from the center of the view.
      */
-    public void resolveBlock (SceneBlock block, boolean hipri)
+    public synchronized void resolveBlock (SceneBlock block, boolean hipri)
     {
         log.debug("Queueing block for resolution", "block", block, "hipri", hipri);
-        if (hipri) {
-            _queue.prepend(block);
+        _queue.add(new QueuedBlock(block, hipri, _queued++));
+        notifyAll();
+    }
+
+    /**
+     * Notes that the specified block has been flushed by its panel, so that if it has yet to be
+     * resolved, it will be dispatched without being resolved. Must be called on the AWT thread.
+     */
+    public synchronized void abandonBlock (SceneBlock block)
+    {
+        for (int ii = 0, ll = _queue.size(); ii < ll; ii++) {
+            QueuedBlock qblock = _queue.get(ii);
+            if (qblock.block == block) {
+                qblock.abandoned = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Notes the screen coordinates of the center of the specified panel's view, from which the
+     * distance of its queued blocks is measured. Must be called on the AWT thread.
+     */
+    public synchronized void setViewCenter (MisoScenePanel panel, int x, int y)
+    {
+        Point center = _centers.get(panel);
+        if (center == null) {
+            _centers.put(panel, new Point(x, y));
         } else {
-            _queue.append(block);
+            center.setLocation(x, y);
         }
     }
 
     /**
-     * Temporarily suspends the scene block resolution thread.
+     * Temporarily suspends the scene block resolution threads. Blocks that are currently being
+     * resolved will be finished, but no new blocks will be started.
      */
     public synchronized void suspendResolution ()
     {
@@ -59,37 +151,132 @@ public class SceneBlockResolver extends LoopingThread
     }
 
     /**
-     * Restores the operation of the scene block resolution thread after a
+     * Restores the operation of the scene block resolution threads after a
      * previous call to {@link #suspendResolution}.
      */
     public synchronized void restoreResolution ()
     {
         _resolving = true;
-        notify();
+        notifyAll();
     }
 
     /**
      * Returns the number of scene blocks on the resolution queue.
      */
-    public int queueSize ()
+    public synchronized int queueSize ()
     {
         return _queue.size();
     }
 
-    @Override
-    public void iterate ()
+    /**
+     * Returns the number of threads on which we resolve blocks.
+     */
+    public int getThreadCount ()
     {
-        final SceneBlock block = _queue.get();
+        return _workers.length;
+    }
 
-        while (!_resolving) {
-            synchronized (this) {
-                try {
-                    wait();
-                } catch (InterruptedException ie) {
-                    log.info("Resolver interrupted.");
+    /**
+     * Waits until resolution is not suspended and a block is available, then removes and returns
+     * the block that should be resolved (or dispatched, if it has been abandoned) next.
+     *
+     * @return the next block or null if we have been shut down.
+     */
+    protected synchronized QueuedBlock nextBlock ()
+    {
+        while (!_shutdown && (!_resolving || _queue.isEmpty())) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                log.info("Resolver interrupted.");
+            }
+        }
+        if (_shutdown) {
+            return null;
+        }
+        return _queue.remove(selectBlock(false));
+    }
+
+    /**
+     * Waits until resolution is not suspended and a block that has not been prefetched is
+     * available, then marks and returns the block that should be prefetched next.
+     *
+     * @return the next block or null if we have been shut down.
+     */
+    protected synchronized SceneBlock nextPrefetch ()
+    {
+        int bidx = -1;
+        while (!_shutdown && (!_resolving || (bidx = selectBlock(true)) < 0)) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                log.info("Prefetcher interrupted.");
+            }
+        }
+        if (_shutdown) {
+            return null;
+        }
+        QueuedBlock qblock = _queue.get(bidx);
+        qblock.prefetched = true;
+        return qblock.block;
+    }
+
+    /**
+     * Returns the index in the queue of the abandoned block or the block closest to the center of
+     * its view, or -1 if there is no eligible block. Must be called with the lock held, and
+     * consults only our own record of the blocks' state, as their panels are owned by the AWT
+     * thread.
+     *
+     * @param prefetch if true, only blocks that have not been prefetched are eligible and
+     * abandoned blocks are not.
+     */
+    protected int selectBlock (boolean prefetch)
+    {
+        int bidx = -1;
+        long bdist = Long.MAX_VALUE;
+        for (int ii = 0, ll = _queue.size(); ii < ll; ii++) {
+            QueuedBlock qblock = _queue.get(ii);
+            if (qblock.abandoned) {
+                if (prefetch) {
+                    continue;
                 }
+                return ii;
+            }
+            if (prefetch && qblock.prefetched) {
+                continue;
+            }
+            long dist = qblock.getPriority(_centers);
+            if (bidx < 0 || dist < bdist || (dist == bdist && qblock.seq < _queue.get(bidx).seq)) {
+                bidx = ii;
+                bdist = dist;
             }
         }
+        return bidx;
+    }
+
+    /**
+     * Prefetches the supplied block on the calling (prefetch) thread.
+     */
+    protected void prefetch (SceneBlock block)
+    {
+        try {
+            block.prefetch();
+        } catch (Exception e) {
+            log.warning("Block failed during prefetch " + block + ".", e);
+        }
+    }
+
+    /**
+     * Resolves the supplied block on the calling (resolver) thread, or simply dispatches it if it
+     * has been abandoned by its panel.
+     */
+    protected void resolve (final SceneBlock block, boolean abandoned)
+    {
+        if (abandoned) {
+            block.abandon();
+            dispatch(block);
+            return;
+        }
 
         try {
             long start = System.currentTimeMillis();
@@ -98,7 +285,9 @@ public class SceneBlockResolver extends LoopingThread
                 log.debug("Resolved block " + block + ".");
             }
             long elapsed = System.currentTimeMillis() - start;
-            _histo.addValue((int)elapsed);
+            synchronized (_histo) {
+                _histo.addValue((int)elapsed);
+            }
 
             // warn if a block takes a long time to resolve
             if (elapsed > LONG_RESOLVE_TIME) {
@@ -106,33 +295,143 @@ public class SceneBlockResolver extends LoopingThread
                             ", elapsed=" + elapsed + "ms].");
             }
 
-            // queue it up on the AWT thread to complete its resolution
-//             final boolean report = (_queue.size() == 0);
-            EventQueue.invokeLater(new Runnable() {
-                public void run () {
-                    // let the block's panel know that it is resolved
-                    block.wasResolved();
-                    // report statistics
-//                    if (report) {
-//                        log.info("Resolution histogram " + _histo.summarize() + ".");
-//                    }
-                }
-            });
+            dispatch(block);
 
         } catch (Exception e) {
             log.warning("Block failed during resolution " + block + ".", e);
         }
     }
 
-    /** The invoker's queue of units to be executed. */
-    protected Queue<SceneBlock> _queue = new Queue<SceneBlock>();
+    /**
+     * Queues up the supplied block on the AWT thread to complete its resolution.
+     */
+    protected void dispatch (final SceneBlock block)
+    {
+        EventQueue.invokeLater(new Runnable() {
+            public void run () {
+                // let the block's panel know that it is resolved
+                block.wasResolved();
+            }
+        });
+    }
+
+    /** A block awaiting resolution. */
+    protected static class QueuedBlock
+    {
+        /** The block to be resolved. */
+        public final SceneBlock block;
+
+        /** Whether the block was queued as high priority. */
+        public final boolean hipri;
+
+        /** The order in which the block was queued, used to break ties. */
+        public final long seq;
+
+        /** The panel that owns the block, if any. */
+        public final MisoScenePanel panel;
+
+        /** The screen coordinates of the center of the block's footprint. */
+        public final int cx, cy;
+
+        /** Whether the block has been handed to the prefetch thread. */
+        public boolean prefetched;
+
+        /** Whether the block has been flushed by its panel. */
+        public boolean abandoned;
+
+        public QueuedBlock (SceneBlock block, boolean hipri, long seq)
+        {
+            this.block = block;
+            this.hipri = hipri;
+            this.seq = seq;
+            panel = block._panel;
+            Rectangle fbounds = block.getFootprint().getBounds();
+            cx = fbounds.x + fbounds.width/2;
+            cy = fbounds.y + fbounds.height/2;
+        }
+
+        /**
+         * Returns this block's current priority given the supplied view centers; lower values are
+         * resolved first.
+         */
+        public long getPriority (Map<MisoScenePanel, Point> centers)
+        {
+            // panel-less blocks have no distance; resolve the high priority ones first
+            if (panel == null) {
+                return hipri ? 0L : 1L;
+            }
+            Point center = centers.get(panel);
+            if (center == null) {
+                return 0L;
+            }
+            long dx = cx - center.x, dy = cy - center.y;
+            return dx*dx + dy*dy;
+        }
+    }
+
+    /** A thread that resolves blocks until the resolver is shut down. */
+    protected class Worker extends LoopingThread
+    {
+        public Worker (int index)
+        {
+            super("SceneBlockResolver-" + index);
+        }
+
+        @Override
+        public void iterate ()
+        {
+            QueuedBlock qblock = nextBlock();
+            if (qblock != null) {
+                resolve(qblock.block, qblock.abandoned);
+            }
+        }
+    }
+
+    /** A thread that prefetches blocks until the resolver is shut down. */
+    protected class Prefetcher extends LoopingThread
+    {
+        public Prefetcher ()
+        {
+            super("SceneBlockResolver-prefetch");
+        }
+
+        @Override
+        public void iterate ()
+        {
+            SceneBlock block = nextPrefetch();
+            if (block != null) {
+                prefetch(block);
+            }
+        }
+    }
+
+    /** The blocks awaiting resolution. */
+    protected ArrayList<QueuedBlock> _queue = Lists.newArrayList();
+
+    /** The center of each panel's view, as last reported by the panel. */
+    protected Map<MisoScenePanel, Point> _centers = new WeakHashMap<MisoScenePanel, Point>();
+
+    /** The number of blocks queued so far, used to order blocks of equal priority. */
+    protected long _queued;
+
+    /** Our resolution threads. */
+    protected Worker[] _workers;
+
+    /** Our prefetch thread. */
+    protected Prefetcher _prefetcher;
 
     /** Indicates whether or not we are resolving or suspended. */
     protected boolean _resolving = true;
 
+    /** Set when we have been shut down. */
+    protected boolean _shutdown;
+
     /** Used to time block loading. */
     protected Histogram _histo = new Histogram(0, 25, 100);
 
+    /** The maximum number of threads used by default. */
+    protected static final int MAX_THREADS = 4;
+
     /** Blocks shouldn't take too long to resolve. */
     protected static final long LONG_RESOLVE_TIME = 500L;
 }
@@ -88,6 +88,17 @@ public abstract class MisoSceneModel extends SimpleStreamableObject
      */
     public abstract void getObjects (Rectangle region, ObjectSet set);
 
+    /**
+     * Informs this model that the base tiles and objects in the
+     * specified region will soon be requested, so that a model that
+     * loads its data on demand can load the data for the region now. This
+     * is called on a background thread.
+     */
+    public void prefetch (Rectangle region)
+    {
+        // nothing doing
+    }
+
     /**
      * Adds an object to this scene.
      *
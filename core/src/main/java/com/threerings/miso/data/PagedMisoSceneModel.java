@@ -0,0 +1,419 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.miso.data;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.awt.Rectangle;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.samskivert.util.LRUHashMap;
+
+import com.threerings.util.StripedLRUCache;
+
+import com.threerings.media.util.MathUtil;
+
+import com.threerings.miso.data.SparseMisoSceneModel.Section;
+import com.threerings.miso.util.ObjectSet;
+
+import static com.threerings.miso.Log.log;
+
+/**
+ * A read-only scene model that loads the sections of a sparse scene on demand from a section
+ * file (written by {@link #writeSections}), so that scenes much larger than the heap can be
+ * displayed. The file starts with a table of the offsets of its sections, which is read when the
+ * model is created. The sections are mapped into memory along with the table (in as few
+ * mappings as possible) and each is decoded from its mapping when it is first needed. Decoded
+ * sections are cached up to a memory budget, beyond which the least
+ * recently used are discarded (to be loaded again if they are needed again).
+ *
+ * <p> The scene panel's block resolver calls {@link #prefetch} with the region needed by each
+ * block it is about to resolve, so sections are generally loaded on the resolver's threads
+ * rather than when they are painted. This model may be safely accessed by many threads at once.
+ * It reads its file directly and is not meant to be streamed.
+ */
+public class PagedMisoSceneModel extends VirtualMisoSceneModel
+{
+    /**
+     * Writes the non-blank sections of the supplied scene to a section file that can be read by
+     * a paged scene model.
+     */
+    public static void writeSections (SparseMisoSceneModel model, File file)
+        throws IOException
+    {
+        // encode the sections in key order (the order of our offset table)
+        Map<Integer, byte[]> sections = Maps.newTreeMap();
+        for (Iterator<Section> iter = model.getSections(); iter.hasNext(); ) {
+            Section sect = iter.next();
+            if (!sect.isBlank()) {
+                sections.put(getKey(sect.x, sect.y, model.swidth, model.sheight),
+                             encodeSection(sect));
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeShort(model.swidth);
+            out.writeShort(model.sheight);
+            out.writeInt(model.getDefaultBaseTileSet());
+            out.writeInt(sections.size());
+            long offset = HEADER_SIZE + (long)sections.size() * TABLE_ENTRY_SIZE;
+            for (Map.Entry<Integer, byte[]> entry : sections.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeLong(offset);
+                out.writeInt(entry.getValue().length);
+                offset += entry.getValue().length;
+            }
+            for (byte[] data : sections.values()) {
+                out.write(data);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Opens the specified section file.
+     *
+     * @param maxSize the approximate maximum number of bytes of memory to be occupied by the
+     * loaded sections.
+     */
+    public PagedMisoSceneModel (File file, int maxSize)
+        throws IOException
+    {
+        _file = file;
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != FILE_MAGIC) {
+                throw new IOException("Not a scene section file: " + file);
+            }
+            _swidth = header.getShort();
+            _sheight = header.getShort();
+            _defTileSet = header.getInt();
+            int count = header.getInt();
+
+            ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+                                           (long)count * TABLE_ENTRY_SIZE);
+            _keys = new int[count];
+            _chunkIdxs = new int[count];
+            _offsets = new int[count];
+            _lengths = new int[count];
+
+            // map the sections in chunks small enough to be mapped, none spanning two chunks
+            List<ByteBuffer> chunks = Lists.newArrayList();
+            long cstart = HEADER_SIZE + (long)count * TABLE_ENTRY_SIZE, cend = cstart;
+            for (int ii = 0; ii < count; ii++) {
+                _keys[ii] = table.getInt();
+                long offset = table.getLong();
+                _lengths[ii] = table.getInt();
+                if (offset + _lengths[ii] - cstart > MAX_CHUNK_SIZE) {
+                    chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, cstart, cend - cstart));
+                    cstart = offset;
+                }
+                _chunkIdxs[ii] = chunks.size();
+                _offsets[ii] = (int)(offset - cstart);
+                cend = Math.max(cend, offset + _lengths[ii]);
+            }
+            chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, cstart, cend - cstart));
+            _chunks = chunks.toArray(new ByteBuffer[chunks.size()]);
+
+        } finally {
+            // our mappings remain valid once the file is closed
+            channel.close();
+        }
+
+        _sections = new StripedLRUCache<Integer, Section>(
+            maxSize, CACHE_SEGMENTS, new LRUHashMap.ItemSizer<Section>() {
+            public int computeSize (Section sect) {
+                return getEstimatedMemoryUsage(sect);
+            }
+        });
+    }
+
+    /**
+     * Releases our mappings of our section file (when they are next garbage collected). Sections
+     * that are not already loaded will no longer be available.
+     */
+    public void close ()
+    {
+        _chunks = null;
+    }
+
+    @Override
+    public int getBaseTileId (int col, int row)
+    {
+        Section sect = getSection(col, row);
+        return (sect == null) ? -1 : sect.getBaseTileId(col, row);
+    }
+
+    @Override
+    public int getDefaultBaseTileSet ()
+    {
+        return _defTileSet;
+    }
+
+    @Override
+    public void getObjects (Rectangle region, ObjectSet set)
+    {
+        int minx = MathUtil.floorDiv(region.x, _swidth)*_swidth;
+        int maxx = MathUtil.floorDiv(region.x+region.width-1, _swidth)*_swidth;
+        int miny = MathUtil.floorDiv(region.y, _sheight)*_sheight;
+        int maxy = MathUtil.floorDiv(region.y+region.height-1, _sheight)*_sheight;
+        for (int yy = miny; yy <= maxy; yy += _sheight) {
+            for (int xx = minx; xx <= maxx; xx += _swidth) {
+                Section sect = getSection(xx, yy);
+                if (sect != null) {
+                    sect.getObjects(region, set);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void prefetch (Rectangle region)
+    {
+        int minx = MathUtil.floorDiv(region.x, _swidth)*_swidth;
+        int maxx = MathUtil.floorDiv(region.x+region.width-1, _swidth)*_swidth;
+        int miny = MathUtil.floorDiv(region.y, _sheight)*_sheight;
+        int maxy = MathUtil.floorDiv(region.y+region.height-1, _sheight)*_sheight;
+        for (int yy = miny; yy <= maxy; yy += _sheight) {
+            for (int xx = minx; xx <= maxx; xx += _swidth) {
+                getSection(xx, yy);
+            }
+        }
+    }
+
+    /**
+     * Returns the section that contains the specified tile coordinate, loading it if necessary,
+     * or null if there is no such section.
+     */
+    protected Section getSection (int x, int y)
+    {
+        // most lookups are for the same section as the last
+        Section last = _last;
+        if (last != null && x >= last.x && x < last.x + _swidth &&
+                y >= last.y && y < last.y + _sheight) {
+            return last;
+        }
+
+        int key = getKey(x, y, _swidth, _sheight);
+        Section sect = _sections.get(key);
+        if (sect == null) {
+            int sidx = Arrays.binarySearch(_keys, key);
+            if (sidx < 0) {
+                return null;
+            }
+            try {
+                sect = readSection(sidx);
+            } catch (IOException ioe) {
+                log.warning("Failed to read scene section", "file", _file, "x", x, "y", y, ioe);
+                return null;
+            }
+            // if another thread loaded the section while we were, use theirs
+            Section osect = _sections.putIfAbsent(key, sect);
+            if (osect != null) {
+                sect = osect;
+            }
+        }
+        return (_last = sect);
+    }
+
+    /**
+     * Reads the section at the specified index in our offset table.
+     */
+    protected Section readSection (int sidx)
+        throws IOException
+    {
+        ByteBuffer[] chunks = _chunks;
+        if (chunks == null) {
+            throw new IOException("Section file closed");
+        }
+        // each reader uses its own view of the chunk, so that positions are not shared
+        ByteBuffer buf = chunks[_chunkIdxs[sidx]].duplicate();
+        buf.position(_offsets[sidx]);
+        buf.limit(_offsets[sidx] + _lengths[sidx]);
+        Section sect = new Section(buf.getShort(), buf.getShort(), buf.getShort(), buf.getShort());
+        buf.asIntBuffer().get(sect.baseTileIds);
+        buf.position(buf.position() + sect.baseTileIds.length*4);
+
+        int ucount = buf.getInt();
+        sect.objectTileIds = new int[ucount];
+        sect.objectXs = new short[ucount];
+        sect.objectYs = new short[ucount];
+        for (int ii = 0; ii < ucount; ii++) {
+            sect.objectTileIds[ii] = buf.getInt();
+            sect.objectXs[ii] = buf.getShort();
+            sect.objectYs[ii] = buf.getShort();
+        }
+
+        int icount = buf.getInt();
+        sect.objectInfo = new ObjectInfo[icount];
+        for (int ii = 0; ii < icount; ii++) {
+            ObjectInfo info = new ObjectInfo(buf.getInt(), buf.getInt(), buf.getInt());
+            info.priority = buf.get();
+            info.sx = buf.get();
+            info.sy = buf.get();
+            info.sorient = buf.get();
+            info.zations = buf.getInt();
+            int alength = buf.getInt();
+            if (alength >= 0) {
+                byte[] action = new byte[alength];
+                buf.get(action);
+                info.action = new String(action, "UTF-8");
+            }
+            sect.objectInfo[ii] = info;
+        }
+        return sect;
+    }
+
+    /**
+     * Encodes the supplied section for storage in a section file.
+     */
+    protected static byte[] encodeSection (Section sect)
+        throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeShort(sect.x);
+        out.writeShort(sect.y);
+        out.writeShort(sect.width);
+        out.writeShort(sect.baseTileIds.length / sect.width);
+        for (int tileId : sect.baseTileIds) {
+            out.writeInt(tileId);
+        }
+
+        out.writeInt(sect.objectTileIds.length);
+        for (int ii = 0; ii < sect.objectTileIds.length; ii++) {
+            out.writeInt(sect.objectTileIds[ii]);
+            out.writeShort(sect.objectXs[ii]);
+            out.writeShort(sect.objectYs[ii]);
+        }
+
+        out.writeInt(sect.objectInfo.length);
+        for (ObjectInfo info : sect.objectInfo) {
+            out.writeInt(info.tileId);
+            out.writeInt(info.x);
+            out.writeInt(info.y);
+            out.writeByte(info.priority);
+            out.writeByte(info.sx);
+            out.writeByte(info.sy);
+            out.writeByte(info.sorient);
+            out.writeInt(info.zations);
+            if (info.action == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] action = info.action.getBytes("UTF-8");
+                out.writeInt(action.length);
+                out.write(action);
+            }
+        }
+        out.flush();
+        return bout.toByteArray();
+    }
+
+    /**
+     * Returns the key for the section containing the specified tile coordinate.
+     */
+    protected static int getKey (int x, int y, int swidth, int sheight)
+    {
+        int sx = MathUtil.floorDiv(x, swidth);
+        int sy = MathUtil.floorDiv(y, sheight);
+        return (sx << 16) | (sy & 0xFFFF);
+    }
+
+    /**
+     * Returns a rough estimate of the memory occupied by the supplied loaded section.
+     */
+    protected static int getEstimatedMemoryUsage (Section sect)
+    {
+        return SECTION_OVERHEAD + sect.baseTileIds.length*4 + sect.objectTileIds.length*8 +
+            sect.objectInfo.length*OBJECT_INFO_SIZE;
+    }
+
+    /** The section file from which we read. */
+    protected transient File _file;
+
+    /** The mappings of our section file, or null once we are closed. */
+    protected transient volatile ByteBuffer[] _chunks;
+
+    /** The dimensions of our sections. */
+    protected transient short _swidth, _sheight;
+
+    /** The default base tileset of our scene. */
+    protected transient int _defTileSet;
+
+    /** The keys of the sections in our file, in ascending order. */
+    protected transient int[] _keys;
+
+    /** The index in {@link #_chunks} of the mapping that contains each section. */
+    protected transient int[] _chunkIdxs;
+
+    /** The offset of each section in its mapping. */
+    protected transient int[] _offsets;
+
+    /** The length in our file of each section. */
+    protected transient int[] _lengths;
+
+    /** Our loaded sections. */
+    protected transient StripedLRUCache<Integer, Section> _sections;
+
+    /** The last section requested. */
+    protected transient volatile Section _last;
+
+    /** Identifies a scene section file. */
+    protected static final int FILE_MAGIC = 0x4D53454E;
+
+    /** The size of our file header: magic, section width and height, default base tileset and
+     * section count. */
+    protected static final int HEADER_SIZE = 16;
+
+    /** The size of each entry in our offset table: key, offset and length. */
+    protected static final int TABLE_ENTRY_SIZE = 16;
+
+    /** The maximum size of each mapping of our section file. */
+    protected static final long MAX_CHUNK_SIZE = 1 << 30;
+
+    /** The number of independently locked segments of our section cache. */
+    protected static final int CACHE_SEGMENTS = 4;
+
+    /** A rough estimate of the memory occupied by a section beyond its object and tile data. */
+    protected static final int SECTION_OVERHEAD = 128;
+
+    /** A rough estimate of the memory occupied by each interesting object. */
+    protected static final int OBJECT_INFO_SIZE = 64;
+}
@@ -23,12 +23,13 @@ package com.threerings.miso.data;
 import java.util.ArrayList;
 import java.util.Iterator;
 
+import java.io.IOException;
+
 import java.awt.Rectangle;
 
-import com.samskivert.util.ArrayUtil;
-import com.samskivert.util.ListUtil;
 import com.samskivert.util.StringUtil;
 
+import com.threerings.io.ObjectOutputStream;
 import com.threerings.io.SimpleStreamableObject;
 
 import com.threerings.util.StreamableHashMap;
@@ -117,11 +118,13 @@ public class SparseMisoSceneModel extends MisoSceneModel
             baseTileIds[(row-y)*width+(col-x)] = fqBaseTileId;
         }
 
-        public boolean addObject (ObjectInfo info) {
+        public synchronized boolean addObject (ObjectInfo info) {
+            index();
+
             // sanity check: see if there is already an object of this
             // type at these coordinates
             int dupidx;
-            if ((dupidx = ListUtil.indexOf(objectInfo, info)) != -1) {
+            if ((dupidx = indexOfInfo(info)) != -1) {
                 log.warning("Refusing to add duplicate object [ninfo=" + info +
                         ", oinfo=" + objectInfo[dupidx] + "].");
                 return false;
@@ -132,86 +135,146 @@ public class SparseMisoSceneModel extends MisoSceneModel
                 return false;
             }
 
+            // append the object to the appropriate arrays, growing them
+            // as necessary
             if (info.isInteresting()) {
-                objectInfo = ArrayUtil.append(objectInfo, info);
+                int oidx = _infos.size();
+                if (oidx == objectInfo.length) {
+                    ObjectInfo[] ninfo = new ObjectInfo[growCapacity(oidx)];
+                    System.arraycopy(objectInfo, 0, ninfo, 0, oidx);
+                    objectInfo = ninfo;
+                }
+                objectInfo[oidx] = info;
+                _infos.add(info.x, info.y);
             } else {
-                objectTileIds = ArrayUtil.append(objectTileIds, info.tileId);
-                objectXs = ArrayUtil.append(objectXs, (short)info.x);
-                objectYs = ArrayUtil.append(objectYs, (short)info.y);
+                int oidx = _uns.size();
+                if (oidx == objectTileIds.length) {
+                    resizeUns(growCapacity(oidx));
+                }
+                objectTileIds[oidx] = info.tileId;
+                objectXs[oidx] = (short)info.x;
+                objectYs[oidx] = (short)info.y;
+                _uns.add(info.x, info.y);
             }
             return true;
         }
 
-        public boolean removeObject (ObjectInfo info) {
-            // look for it in the interesting info array
-            int oidx = ListUtil.indexOf(objectInfo, info);
+        public synchronized boolean removeObject (ObjectInfo info) {
+            index();
+
+            // look for it in the interesting info array, moving the last
+            // object into its place
+            int oidx = indexOfInfo(info);
             if (oidx != -1) {
-                objectInfo = ArrayUtil.splice(objectInfo, oidx, 1);
+                int last = _infos.size() - 1;
+                _infos.remove(oidx);
+                objectInfo[oidx] = objectInfo[last];
+                objectInfo[last] = null;
                 return true;
             }
 
             // look for it in the uninteresting arrays
             oidx = indexOfUn(info);
             if (oidx != -1) {
-                objectTileIds = ArrayUtil.splice(objectTileIds, oidx, 1);
-                objectXs = ArrayUtil.splice(objectXs, oidx, 1);
-                objectYs = ArrayUtil.splice(objectYs, oidx, 1);
+                int last = _uns.size() - 1;
+                _uns.remove(oidx);
+                objectTileIds[oidx] = objectTileIds[last];
+                objectXs[oidx] = objectXs[last];
+                objectYs[oidx] = objectYs[last];
                 return true;
             }
 
             return false;
         }
 
-        /**
-         * Returns the index of the specified object in the uninteresting
-         * arrays or -1 if it is not in this section as an uninteresting
-         * object.
-         */
-        protected int indexOfUn (ObjectInfo info)
-        {
-            for (int ii = 0; ii < objectTileIds.length; ii++) {
-                if (objectTileIds[ii] == info.tileId &&
-                    objectXs[ii] == info.x && objectYs[ii] == info.y) {
-                    return ii;
-                }
-            }
-            return -1;
-        }
-
-        public void getAllObjects (ArrayList<ObjectInfo> list) {
-            for (ObjectInfo info : objectInfo) {
-                list.add(info);
+        public synchronized void getAllObjects (ArrayList<ObjectInfo> list) {
+            for (int ii = 0, nn = getInfoCount(); ii < nn; ii++) {
+                list.add(objectInfo[ii]);
             }
-            for (int ii = 0; ii < objectTileIds.length; ii++) {
+            for (int ii = 0, nn = getUnCount(); ii < nn; ii++) {
                 int x = objectXs[ii], y = objectYs[ii];
                 list.add(new ObjectInfo(objectTileIds[ii], x, y));
             }
         }
 
-        public void getObjects (Rectangle region, ObjectSet set) {
+        public synchronized void getObjects (Rectangle region, ObjectSet set) {
+            index();
+
             // first look for intersecting interesting objects
-            for (ObjectInfo info : objectInfo) {
-                if (region.contains(info.x, info.y)) {
-                    set.insert(info);
+            if (_infos.isSparserThan(region)) {
+                for (int ii = 0, nn = _infos.size(); ii < nn; ii++) {
+                    if (region.contains(_infos.getX(ii), _infos.getY(ii))) {
+                        set.insert(objectInfo[ii]);
+                    }
+                }
+            } else {
+                Rectangle bounds = _infos.getBounds().intersection(region);
+                for (int y = bounds.y, ymax = y + bounds.height; y < ymax; y++) {
+                    for (int x = bounds.x, xmax = x + bounds.width; x < xmax; x++) {
+                        for (int oidx = _infos.first(x, y); oidx != -1;
+                                oidx = _infos.next(oidx)) {
+                            set.insert(objectInfo[oidx]);
+                        }
+                    }
                 }
             }
 
             // now look for intersecting non-interesting objects
-            for (int ii = 0; ii < objectTileIds.length; ii++) {
-                int x = objectXs[ii], y = objectYs[ii];
-                if (region.contains(x, y)) {
-                    set.insert(new ObjectInfo(objectTileIds[ii], x, y));
+            if (_uns.isSparserThan(region)) {
+                for (int ii = 0, nn = _uns.size(); ii < nn; ii++) {
+                    int x = objectXs[ii], y = objectYs[ii];
+                    if (region.contains(x, y)) {
+                        set.insert(new ObjectInfo(objectTileIds[ii], x, y));
+                    }
                 }
+            } else {
+                Rectangle bounds = _uns.getBounds().intersection(region);
+                for (int y = bounds.y, ymax = y + bounds.height; y < ymax; y++) {
+                    for (int x = bounds.x, xmax = x + bounds.width; x < xmax; x++) {
+                        for (int oidx = _uns.first(x, y); oidx != -1; oidx = _uns.next(oidx)) {
+                            set.insert(new ObjectInfo(objectTileIds[oidx], x, y));
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Trims the object arrays of this section to the objects they
+         * contain. They are otherwise grown with room to spare as objects
+         * are added.
+         */
+        public synchronized void compact ()
+        {
+            int icount = getInfoCount();
+            if (objectInfo.length != icount) {
+                ObjectInfo[] ninfo = new ObjectInfo[icount];
+                System.arraycopy(objectInfo, 0, ninfo, 0, icount);
+                objectInfo = ninfo;
             }
+            int ucount = getUnCount();
+            if (objectTileIds.length != ucount) {
+                resizeUns(ucount);
+            }
+        }
+
+        /**
+         * Writes this section's fields with its object arrays trimmed.
+         */
+        public void writeObject (ObjectOutputStream out)
+            throws IOException
+        {
+            compact();
+            out.defaultWriteObject();
         }
 
         /**
          * Returns true if this section contains no data beyond the default.
          * Used when saving a sparse scene: we omit blank sections.
          */
-        public boolean isBlank ()
+        public synchronized boolean isBlank ()
         {
-            if ((objectTileIds.length != 0) || (objectInfo.length != 0)) {
+            if ((getUnCount() != 0) || (getInfoCount() != 0)) {
                 return false;
             }
             for (int baseTileId : baseTileIds) {
@@ -224,9 +287,11 @@ public class SparseMisoSceneModel extends MisoSceneModel
         }
 
         @Override
-        public Section clone () {
+        public synchronized Section clone () {
+            compact();
             try {
                 Section section = (Section)super.clone();
+                section._infos = section._uns = null;
                 section.baseTileIds = baseTileIds.clone();
                 section.objectTileIds = objectTileIds.clone();
                 section.objectXs = objectXs.clone();
@@ -247,9 +312,278 @@ public class SparseMisoSceneModel extends MisoSceneModel
                 return "<no bounds>";
             } else {
                 return String.format("%sx%s+%s:%s:%s", width, baseTileIds.length / width, x, y,
-                    objectInfo.length, objectTileIds.length);
+                    getInfoCount(), getUnCount());
             }
         }
+
+        /**
+         * Indexes our objects by location, if we have not already done
+         * so since we were created or unserialized.
+         */
+        protected void index ()
+        {
+            if (_infos != null) {
+                return;
+            }
+            _infos = new ObjectIndex(objectInfo.length);
+            for (ObjectInfo info : objectInfo) {
+                _infos.add(info.x, info.y);
+            }
+            _uns = new ObjectIndex(objectTileIds.length);
+            for (int ii = 0; ii < objectTileIds.length; ii++) {
+                _uns.add(objectXs[ii], objectYs[ii]);
+            }
+        }
+
+        /**
+         * Returns the index of the specified object in the interesting
+         * array or -1 if it is not in this section as an interesting
+         * object.
+         */
+        protected int indexOfInfo (ObjectInfo info)
+        {
+            for (int oidx = _infos.first(info.x, info.y); oidx != -1; oidx = _infos.next(oidx)) {
+                if (objectInfo[oidx].equals(info)) {
+                    return oidx;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the index of the specified object in the uninteresting
+         * arrays or -1 if it is not in this section as an uninteresting
+         * object.
+         */
+        protected int indexOfUn (ObjectInfo info)
+        {
+            for (int oidx = _uns.first(info.x, info.y); oidx != -1; oidx = _uns.next(oidx)) {
+                if (objectTileIds[oidx] == info.tileId) {
+                    return oidx;
+                }
+            }
+            return -1;
+        }
+
+        /** Returns the number of interesting objects in this section. */
+        protected int getInfoCount ()
+        {
+            return (_infos == null) ? objectInfo.length : _infos.size();
+        }
+
+        /** Returns the number of uninteresting objects in this section. */
+        protected int getUnCount ()
+        {
+            return (_uns == null) ? objectTileIds.length : _uns.size();
+        }
+
+        /**
+         * Resizes the uninteresting object arrays to the specified
+         * capacity, which must hold all of the uninteresting objects.
+         */
+        protected void resizeUns (int capacity)
+        {
+            int count = getUnCount();
+            int[] ntileIds = new int[capacity];
+            short[] nxs = new short[capacity], nys = new short[capacity];
+            System.arraycopy(objectTileIds, 0, ntileIds, 0, count);
+            System.arraycopy(objectXs, 0, nxs, 0, count);
+            System.arraycopy(objectYs, 0, nys, 0, count);
+            objectTileIds = ntileIds;
+            objectXs = nxs;
+            objectYs = nys;
+        }
+
+        /** Indexes our interesting and uninteresting objects by location
+         * (built on demand). While they exist, our object arrays may
+         * have room to spare beyond the objects they contain. */
+        protected transient ObjectIndex _infos, _uns;
+    }
+
+    /**
+     * Indexes the objects in an array by the tile they occupy, so that the
+     * objects in a region can be found without examining every object.
+     * The indexed objects are chained together in hash buckets by tile.
+     * Objects are added to the end of the array and removed by moving the
+     * last object into their place, which the array's owner must do
+     * likewise.
+     */
+    protected static class ObjectIndex
+    {
+        /**
+         * Creates an index with room for the specified number of objects.
+         */
+        public ObjectIndex (int capacity)
+        {
+            capacity = growCapacity(capacity);
+            _xs = new int[capacity];
+            _ys = new int[capacity];
+            _next = new int[capacity];
+            _buckets = new int[Integer.highestOneBit(capacity * 2 - 1)];
+        }
+
+        /** Returns the number of indexed objects. */
+        public int size ()
+        {
+            return _size;
+        }
+
+        /** Returns the x coordinate of the specified object. */
+        public int getX (int oidx)
+        {
+            return _xs[oidx];
+        }
+
+        /** Returns the y coordinate of the specified object. */
+        public int getY (int oidx)
+        {
+            return _ys[oidx];
+        }
+
+        /**
+         * Returns a rectangle that contains every indexed object (and
+         * possibly some that have since been removed).
+         */
+        public Rectangle getBounds ()
+        {
+            return (_size == 0) ? new Rectangle() :
+                new Rectangle(_minx, _miny, _maxx - _minx + 1, _maxy - _miny + 1);
+        }
+
+        /**
+         * Returns true if there are fewer indexed objects than tiles in
+         * the intersection of our bounds and the supplied region, in which
+         * case it is cheaper to examine every object than every tile.
+         */
+        public boolean isSparserThan (Rectangle region)
+        {
+            Rectangle bounds = getBounds().intersection(region);
+            return bounds.isEmpty() || (long)bounds.width * bounds.height > _size;
+        }
+
+        /**
+         * Returns the index of an object at the specified tile, or -1 if
+         * there are none.
+         */
+        public int first (int x, int y)
+        {
+            int oidx = _buckets[bucket(x, y)] - 1;
+            while (oidx != -1 && (_xs[oidx] != x || _ys[oidx] != y)) {
+                oidx = _next[oidx] - 1;
+            }
+            return oidx;
+        }
+
+        /**
+         * Returns the index of the next object at the same tile as the
+         * specified object, or -1 if there are no more.
+         */
+        public int next (int oidx)
+        {
+            int x = _xs[oidx], y = _ys[oidx];
+            do {
+                oidx = _next[oidx] - 1;
+            } while (oidx != -1 && (_xs[oidx] != x || _ys[oidx] != y));
+            return oidx;
+        }
+
+        /**
+         * Indexes an object at the specified tile, at the end of the
+         * array.
+         */
+        public void add (int x, int y)
+        {
+            if (_size == _xs.length) {
+                int capacity = growCapacity(_size);
+                int[] nxs = new int[capacity], nys = new int[capacity];
+                System.arraycopy(_xs, 0, nxs, 0, _size);
+                System.arraycopy(_ys, 0, nys, 0, _size);
+                _xs = nxs;
+                _ys = nys;
+                _next = new int[capacity];
+                _buckets = new int[_buckets.length * 2];
+                for (int ii = 0; ii < _size; ii++) {
+                    link(ii);
+                }
+            }
+            if (_size == 0) {
+                _minx = _maxx = x;
+                _miny = _maxy = y;
+            } else {
+                _minx = Math.min(_minx, x);
+                _maxx = Math.max(_maxx, x);
+                _miny = Math.min(_miny, y);
+                _maxy = Math.max(_maxy, y);
+            }
+            int oidx = _size++;
+            _xs[oidx] = x;
+            _ys[oidx] = y;
+            link(oidx);
+        }
+
+        /**
+         * Removes the specified object from the index, moving the last
+         * object into its place.
+         */
+        public void remove (int oidx)
+        {
+            unlink(oidx);
+            int last = --_size;
+            if (oidx != last) {
+                unlink(last);
+                _xs[oidx] = _xs[last];
+                _ys[oidx] = _ys[last];
+                link(oidx);
+            }
+        }
+
+        /** Adds the specified object to the head of its bucket's chain. */
+        protected void link (int oidx)
+        {
+            int bidx = bucket(_xs[oidx], _ys[oidx]);
+            _next[oidx] = _buckets[bidx];
+            _buckets[bidx] = oidx + 1;
+        }
+
+        /** Removes the specified object from its bucket's chain. */
+        protected void unlink (int oidx)
+        {
+            int bidx = bucket(_xs[oidx], _ys[oidx]);
+            if (_buckets[bidx] == oidx + 1) {
+                _buckets[bidx] = _next[oidx];
+                return;
+            }
+            for (int pidx = _buckets[bidx] - 1; pidx != -1; pidx = _next[pidx] - 1) {
+                if (_next[pidx] == oidx + 1) {
+                    _next[pidx] = _next[oidx];
+                    return;
+                }
+            }
+        }
+
+        /** Returns the bucket for objects at the specified tile. */
+        protected int bucket (int x, int y)
+        {
+            int hash = x * 31 + y;
+            return (hash ^ (hash >>> 16)) & (_buckets.length - 1);
+        }
+
+        /** The coordinates of each indexed object. */
+        protected int[] _xs, _ys;
+
+        /** The index (plus one) of the next object in each object's
+         * bucket chain, or zero at the end of the chain. */
+        protected int[] _next;
+
+        /** The index (plus one) of the first object in each bucket chain,
+         * or zero for an empty bucket. */
+        protected int[] _buckets;
+
+        /** The number of indexed objects. */
+        protected int _size;
+
+        /** The bounds of the indexed objects. */
+        protected int _minx, _miny, _maxx, _maxy;
     }
 
     /** The dimensions of a section of our scene. */
@@ -418,6 +752,10 @@ public class SparseMisoSceneModel extends MisoSceneModel
      */
     public Iterator<Section> getSections ()
     {
+        // trim the sections' object arrays, as the caller will read them directly
+        for (Section sect : _sections.values()) {
+            sect.compact();
+        }
         return _sections.values().iterator();
     }
 
@@ -465,6 +803,18 @@ public class SparseMisoSceneModel extends MisoSceneModel
         return model;
     }
 
+    /**
+     * Returns the capacity to which an object array with the specified
+     * capacity should be grown.
+     */
+    protected static int growCapacity (int capacity)
+    {
+        return Math.max(MIN_CAPACITY, capacity * 2);
+    }
+
     /** Contains our sections in row major order. */
     protected StreamableHashMap<Integer, Section> _sections = StreamableHashMap.newMap();
+
+    /** The smallest capacity to which we grow object arrays. */
+    protected static final int MIN_CAPACITY = 4;
 }
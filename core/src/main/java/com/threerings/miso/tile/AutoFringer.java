@@ -21,19 +21,15 @@ package com.threerings.miso.tile;
 
 import java.lang.ref.WeakReference;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Map;
 
 import java.awt.Graphics2D;
 import java.awt.Transparency;
 import java.awt.image.BufferedImage;
 
-import com.google.common.collect.Lists;
-
-import com.samskivert.util.CheapIntMap;
-import com.samskivert.util.QuickSort;
+import com.samskivert.util.LRUHashMap;
+import com.samskivert.util.RuntimeAdjust;
 
 import com.threerings.media.image.BufferedMirage;
 import com.threerings.media.image.ImageManager;
@@ -44,6 +40,7 @@ import com.threerings.media.tile.TileManager;
 import com.threerings.media.tile.TileSet;
 import com.threerings.media.tile.TileUtil;
 
+import com.threerings.miso.MisoPrefs;
 import com.threerings.miso.data.MisoSceneModel;
 
 import static com.threerings.miso.Log.log;
@@ -60,6 +57,14 @@ public class AutoFringer
             _fringeId = fringeId;
         }
 
+        /**
+         * Returns the fringe keys of the tiles that went into this tile in the order they were
+         * drawn.
+         */
+        public long[] getFringeId () {
+            return _fringeId;
+        }
+
         @Override
         public boolean equals (Object obj) {
             if (!(obj instanceof FringeTile)) {
@@ -78,6 +83,82 @@ public class AutoFringer
         protected long[] _fringeId;
     }
 
+    /**
+     * Reusable storage into which the identifier of a fringe tile is computed, so that fringes
+     * can be identified and looked up without allocation. Instances are not thread safe.
+     */
+    public static class FringeKey
+    {
+        /**
+         * Returns whether the fringed tile is passable.
+         */
+        public boolean isPassable ()
+        {
+            return _passable;
+        }
+
+        /**
+         * Computes a 64-bit hash of this key.
+         */
+        public long hash ()
+        {
+            long hash = _passable ? 1L : 0L;
+            for (int ii = 0; ii < _length; ii++) {
+                hash = (hash ^ _components[ii]) * 0x9E3779B97F4A7C15L;
+            }
+            return hash ^ (hash >>> 31);
+        }
+
+        /**
+         * Returns true if this key identifies the supplied fringe tile.
+         */
+        public boolean matches (FringeTile tile)
+        {
+            long[] fringeId = tile._fringeId;
+            if (tile._passable != _passable || fringeId.length != _length) {
+                return false;
+            }
+            for (int ii = 0; ii < _length; ii++) {
+                if (fringeId[ii] != _components[ii]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Creates a fringe tile (without an image) identified by this key.
+         */
+        public FringeTile toTile ()
+        {
+            long[] fringeId = new long[_length];
+            System.arraycopy(_components, 0, fringeId, 0, _length);
+            return new FringeTile(fringeId, _passable);
+        }
+
+        /** Adds a component to this key. */
+        protected void add (long component)
+        {
+            _components[_length++] = component;
+        }
+
+        /** The keys of the fringe's components in the order they'll be drawn. */
+        protected long[] _components = new long[MAX_COMPONENTS];
+
+        /** The number of components in the fringe. */
+        protected int _length;
+
+        /** Whether the fringed tile is passable. */
+        protected boolean _passable;
+
+        /** The base tilesets, priorities and fringe bits of the fringers of the keyed tile. */
+        protected int[] _basesets = new int[NUM_FRINGEBITS], _priorities = new int[NUM_FRINGEBITS],
+            _bits = new int[NUM_FRINGEBITS];
+
+        /** The number of fringers of the keyed tile. */
+        protected int _fringers;
+    }
+
     /**
      * Constructs an instance that will fringe according to the rules in the supplied fringe
      * configuration.
@@ -102,13 +183,53 @@ public class AutoFringer
      */
     public BaseTile getFringeTile (MisoSceneModel scene, int col, int row,
         Map<FringeTile, WeakReference<FringeTile>> fringes, Map<Long, BufferedImage> masks)
+    {
+        FringeTile key = getFringeKey(scene, col, row);
+        if (key == null) {
+            return null;
+        }
+
+        // If the fringes map contains something with the same fringe identifier, this will pull
+        // it out and we can use it instead.
+        WeakReference<FringeTile> result = fringes.get(key);
+        if (result != null) {
+            FringeTile fringe = result.get();
+            if (fringe != null) {
+                return fringe;
+            }
+        }
+        FringeTile fringe = getFringeTile(key, masks);
+        fringes.put(fringe, new WeakReference<FringeTile>(fringe));
+        return fringe;
+    }
+
+    /**
+     * Computes the identifier of the fringe tile to be inserted at the specified location: a
+     * fringe tile without an image, which can be passed to {@link #getFringeTile(FringeTile,Map)}
+     * to obtain the composed tile. Returns null if the location is not fringed.
+     */
+    public FringeTile getFringeKey (MisoSceneModel scene, int col, int row)
+    {
+        FringeKey key = _keys.get();
+        return getFringeKey(scene, col, row, key) ? key.toTile() : null;
+    }
+
+    /**
+     * Computes the identifier of the fringe tile to be inserted at the specified location into
+     * the supplied key, without allocation.
+     *
+     * @return true if the location is fringed, false if not (in which case the contents of the
+     * key are undefined).
+     */
+    public boolean getFringeKey (MisoSceneModel scene, int col, int row, FringeKey key)
     {
         // get the tileset id of the base tile we are considering
         int underset = adjustTileSetId(scene.getBaseTileId(col, row) >> 16);
 
-        // start with a clean temporary fringer map
-        _fringers.clear();
-        boolean passable = true;
+        // start with a clean key
+        key._fringers = 0;
+        key._length = 0;
+        key._passable = true;
 
         // walk through our influence tiles
         for (int y = row - 1, maxy = row + 2; y < maxy; y++) {
@@ -129,22 +250,27 @@ public class AutoFringer
                     continue;
                 }
 
-                FringerRec fringer = (FringerRec)_fringers.get(baseset);
-                if (fringer == null) {
-                    fringer = new FringerRec(baseset, pri);
-                    _fringers.put(baseset, fringer);
+                int fidx = 0;
+                while (fidx < key._fringers && key._basesets[fidx] != baseset) {
+                    fidx++;
+                }
+                if (fidx == key._fringers) {
+                    key._basesets[fidx] = baseset;
+                    key._priorities[fidx] = pri;
+                    key._bits[fidx] = 0;
+                    key._fringers++;
                 }
 
                 // now turn on the appropriate fringebits
-                fringer.bits |= FLAGMATRIX[y - row + 1][x - col + 1];
+                key._bits[fidx] |= FLAGMATRIX[y - row + 1][x - col + 1];
 
                 // See if a tile that fringes on us kills our passability,
                 // but don't count the default base tile against us, as
                 // we allow users to splash in the water.
-                if (passable && (btid > 0)) {
+                if (key._passable && (btid > 0)) {
                     try {
                         BaseTile bt = (BaseTile)_tmgr.getTile(btid);
-                        passable = bt.isPassable();
+                        key._passable = bt.isPassable();
                     } catch (NoSuchTileSetException nstse) {
                         log.warning("Autofringer couldn't find a base set while attempting to " +
                             "figure passability", nstse);
@@ -154,103 +280,139 @@ public class AutoFringer
         }
 
         // if nothing fringed, we're done
-        int numfringers = _fringers.size();
+        int numfringers = key._fringers;
         if (numfringers == 0) {
-            return null;
+            return false;
         }
 
-        // otherwise compose a FringeTile from the specified fringes
-        FringerRec[] frecs = new FringerRec[numfringers];
-        for (int ii = 0, pp = 0; ii < 16; ii++) {
-            FringerRec rec = (FringerRec)_fringers.getValue(ii);
-            if (rec != null) {
-                frecs[pp++] = rec;
+        // sort the fringers by ascending priority (there are at most eight, so we just insert)
+        for (int ii = 1; ii < numfringers; ii++) {
+            for (int jj = ii; jj > 0 && key._priorities[jj-1] > key._priorities[jj]; jj--) {
+                swap(key._basesets, jj);
+                swap(key._priorities, jj);
+                swap(key._bits, jj);
             }
         }
 
-        return composeFringeTile(frecs, fringes, TileUtil.getTileHash(col, row), passable, masks);
+        // and add the components of each fringer in that order
+        int hashValue = TileUtil.getTileHash(col, row);
+        for (int ii = 0; ii < numfringers; ii++) {
+            int baseset = key._basesets[ii];
+            addFringeComponents(key, baseset, _fringeconf.getFringe(baseset, hashValue),
+                key._bits[ii]);
+        }
+        return true;
     }
 
     /**
-     * Compose a FringeTile out of the various fringe images needed.
+     * Returns the composed fringe tile identified by the supplied key (obtained from {@link
+     * #getFringeKey}). Recently used fringe tiles are retained (up to a memory budget shared by
+     * all scenes using this fringer) so that they need not be recomposed when scrolled back into
+     * view.
      */
-    protected FringeTile composeFringeTile (FringerRec[] fringers,
-        Map<FringeTile, WeakReference<FringeTile>> fringes, int hashValue, boolean passable,
-        Map<Long, BufferedImage> masks)
+    public FringeTile getFringeTile (FringeTile key, Map<Long, BufferedImage> masks)
     {
-        // sort the array so that higher priority fringers get drawn first
-        QuickSort.sort(fringers);
-
-        // Generate an identifier for the fringe tile being created as an array of the keys of its
-        // component tiles in the order they'll be drawn in the fringe tile.
-        List<Long> keys = Lists.newArrayList();
-        for (FringerRec fringer : fringers) {
-            int[] indexes = getFringeIndexes(fringer.bits);
-            FringeConfiguration.FringeTileSetRecord tsr = _fringeconf.getFringe(
-                fringer.baseset, hashValue);
-            int fringeset = tsr.fringe_tsid;
-            for (int index : indexes) {
-                // Add a key for this tile as a long containing its base tile, the fringe set it's
-                // working with and the index used in that set.
-                keys.add((((long)fringer.baseset) << 32) + (fringeset << 16) + index);
+        FringeTile fringe;
+        synchronized (_tiles) {
+            fringe = _tiles.get(key);
+        }
+        if (fringe == null) {
+            fringe = new FringeTile(key.getFringeId(), key.isPassable());
+            fringe.setImage(new BufferedMirage(composeFringeImage(key.getFringeId(), masks)));
+            synchronized (_tiles) {
+                _tiles.put(fringe, fringe);
             }
         }
-        long[] fringeId = new long[keys.size()];
-        for (int ii = 0; ii < fringeId.length; ii++) {
-            fringeId[ii] = keys.get(ii);
+        return fringe;
+    }
+
+    /**
+     * Adds to the supplied key the components of the fringe specified by the fringebits. If no
+     * tile is available for the bits, the bits are broken down into contiguous regions of bits
+     * and components are added for those.
+     */
+    protected void addFringeComponents (
+        FringeKey key, int baseset, FringeConfiguration.FringeTileSetRecord tsr, int bits)
+    {
+        int index = BITS_TO_INDEX[bits];
+        if (index != -1) {
+            key.add(getComponentKey(baseset, tsr, index));
+            return;
+        }
+
+        // otherwise, split the bits into contiguous components
+
+        // look for a zero and start our first split
+        int start = 0;
+        while ((((1 << start) & bits) != 0) && (start < NUM_FRINGEBITS)) {
+            start++;
         }
-        FringeTile frTile = new FringeTile(fringeId, passable);
 
-        // If the fringes map contains something with the same fringe identifier, this will pull
-        // it out and we can use it instead.
-        WeakReference<FringeTile> result = fringes.get(frTile);
-        if (result != null) {
-            FringeTile fringe = result.get();
-            if (fringe != null) {
-                return fringe;
+        if (start == NUM_FRINGEBITS) {
+            // we never found an empty fringebit, and since index (above)
+            // was already -1, we have no fringe tile for these bits.. sad.
+            return;
+        }
+
+        int weebits = 0;
+        for (int ii = (start + 1) % NUM_FRINGEBITS; ii != start; ii = (ii + 1) % NUM_FRINGEBITS) {
+
+            if (((1 << ii) & bits) != 0) {
+                weebits |= (1 << ii);
+            } else if (weebits != 0) {
+                index = BITS_TO_INDEX[weebits];
+                if (index != -1) {
+                    key.add(getComponentKey(baseset, tsr, index));
+                }
+                weebits = 0;
             }
         }
+        if (weebits != 0) {
+            index = BITS_TO_INDEX[weebits];
+            if (index != -1) {
+                key.add(getComponentKey(baseset, tsr, index));
+            }
+        }
+    }
 
-        // There's no fringe with he same identifier, so we need to create the tile.
+    /**
+     * Composes the image for the fringe tile with the specified identifier.
+     */
+    protected BufferedImage composeFringeImage (long[] fringeId, Map<Long, BufferedImage> masks)
+    {
         BufferedImage img = null;
-        for (FringerRec fringer : fringers) {
-            int[] indexes = getFringeIndexes(fringer.bits);
-            FringeConfiguration.FringeTileSetRecord tsr = _fringeconf.getFringe(
-                fringer.baseset, hashValue);
-            for (int index : indexes) {
-                try {
-                    img = getTileImage(img, tsr, fringer.baseset, index, hashValue, masks);
-                } catch (NoSuchTileSetException nstse) {
-                    log.warning("Autofringer couldn't find a needed tileset", nstse);
-                }
+        for (long key : fringeId) {
+            try {
+                img = getTileImage(img, key, masks);
+            } catch (NoSuchTileSetException nstse) {
+                log.warning("Autofringer couldn't find a needed tileset", nstse);
             }
         }
-        frTile.setImage(new BufferedMirage(img));
-        fringes.put(frTile, new WeakReference<FringeTile>(frTile));
-        return frTile;
+        return img;
     }
 
     /**
-     * Retrieve or compose an image for the specified fringe.
+     * Retrieve or compose an image for the fringe component with the specified key.
      */
-    protected BufferedImage getTileImage (BufferedImage img,
-        FringeConfiguration.FringeTileSetRecord tsr, int baseset, int index, int hashValue,
+    protected BufferedImage getTileImage (BufferedImage img, long key,
         Map<Long, BufferedImage> masks)
         throws NoSuchTileSetException
     {
-        int fringeset = tsr.fringe_tsid;
+        int baseset = (int)(key >>> 32);
+        int fringeset = (int)(key >> 16) & 0xFFFF;
+        int index = (int)(key & INDEX_MASK);
         TileSet fset = _tmgr.getTileSet(fringeset);
-        if (!tsr.mask) {
+        if ((key & MASK_FLAG) == 0) {
             // oh good, this is easy
             Tile stamp = fset.getTile(index);
             return stampTileImage(stamp, img, stamp.getWidth(), stamp.getHeight());
         }
 
         // otherwise, it's a mask..
-        Long maskkey = Long.valueOf((((long)baseset) << 32) + (fringeset << 16) + index);
+        Long maskkey = Long.valueOf(key & ~MASK_FLAG);
         BufferedImage mask = masks.get(maskkey);
         if (mask == null) {
-            BufferedImage fsrc = _tmgr.getTileSet(fringeset).getRawTileImage(index);
+            BufferedImage fsrc = fset.getRawTileImage(index);
             BufferedImage bsrc = _tmgr.getTileSet(baseset).getRawTileImage(0);
             mask = ImageUtil.composeMaskedImage(_imgr, fsrc, bsrc);
             masks.put(maskkey, mask);
@@ -281,58 +443,24 @@ public class AutoFringer
     }
 
     /**
-     * Get the fringe index specified by the fringebits. If no index is available, try breaking
-     * down the bits into contiguous regions of bits and look for indexes for those.
+     * Returns the key of a fringe tile component as a long containing its base tileset, the
+     * fringe set it's working with, whether that set is a mask, and the index used in that set.
      */
-    protected int[] getFringeIndexes (int bits)
+    protected static long getComponentKey (
+        int baseset, FringeConfiguration.FringeTileSetRecord tsr, int index)
     {
-        int index = BITS_TO_INDEX[bits];
-        if (index != -1) {
-            int[] ret = new int[1];
-            ret[0] = index;
-            return ret;
-        }
-
-        // otherwise, split the bits into contiguous components
-
-        // look for a zero and start our first split
-        int start = 0;
-        while ((((1 << start) & bits) != 0) && (start < NUM_FRINGEBITS)) {
-            start++;
-        }
-
-        if (start == NUM_FRINGEBITS) {
-            // we never found an empty fringebit, and since index (above)
-            // was already -1, we have no fringe tile for these bits.. sad.
-            return new int[0];
-        }
-
-        ArrayList<Integer> indexes = Lists.newArrayList();
-        int weebits = 0;
-        for (int ii = (start + 1) % NUM_FRINGEBITS; ii != start; ii = (ii + 1) % NUM_FRINGEBITS) {
-
-            if (((1 << ii) & bits) != 0) {
-                weebits |= (1 << ii);
-            } else if (weebits != 0) {
-                index = BITS_TO_INDEX[weebits];
-                if (index != -1) {
-                    indexes.add(index);
-                }
-                weebits = 0;
-            }
-        }
-        if (weebits != 0) {
-            index = BITS_TO_INDEX[weebits];
-            if (index != -1) {
-                indexes.add(index);
-            }
-        }
+        return (((long)baseset) << 32) | ((tsr.fringe_tsid & 0xFFFFL) << 16) |
+            (tsr.mask ? MASK_FLAG : 0L) | index;
+    }
 
-        int[] ret = new int[indexes.size()];
-        for (int ii = 0; ii < ret.length; ii++) {
-            ret[ii] = indexes.get(ii);
-        }
-        return ret;
+    /**
+     * Swaps the specified element of the supplied array with its predecessor.
+     */
+    protected static void swap (int[] values, int idx)
+    {
+        int tmp = values[idx];
+        values[idx] = values[idx-1];
+        values[idx-1] = tmp;
     }
 
     /**
@@ -345,36 +473,6 @@ public class AutoFringer
         return tileSetId;
     }
 
-    /**
-     * A record for holding information about a particular fringe as we're computing what it will
-     * look like.
-     */
-    static protected class FringerRec
-        implements Comparable<FringerRec>
-    {
-        int baseset;
-        int priority;
-        int bits;
-
-        public FringerRec (int base, int pri)
-        {
-            baseset = base;
-            priority = pri;
-        }
-
-        public int compareTo (FringerRec o)
-        {
-            return priority - o.priority;
-        }
-
-        @Override
-        public String toString ()
-        {
-            return "[base=" + baseset + ", pri=" + priority + ", bits="
-                + Integer.toString(bits, 16) + "]";
-        }
-    }
-
     // fringe bits
     // see docs/miso/fringebits.png
     //
@@ -389,6 +487,16 @@ public class AutoFringer
 
     protected static final int NUM_FRINGEBITS = 8;
 
+    /** The maximum number of components in a fringe tile: at most four contiguous regions of bits
+     * for each of at most eight fringers. */
+    protected static final int MAX_COMPONENTS = NUM_FRINGEBITS * 4;
+
+    /** The bit of a fringe component key that indicates its fringe set is a mask. */
+    protected static final long MASK_FLAG = 1L << 15;
+
+    /** The bits of a fringe component key that contain its index in its fringe set. */
+    protected static final long INDEX_MASK = MASK_FLAG - 1;
+
     // A matrix mapping adjacent tiles to which fringe bits they affect.
     // (x and y are offset by +1, since we can't have -1 as an array index)
     // again, see docs/miso/fringebits.png
@@ -450,5 +558,24 @@ public class AutoFringer
     protected ImageManager _imgr;
     protected TileManager _tmgr;
     protected FringeConfiguration _fringeconf;
-    protected CheapIntMap _fringers = new CheapIntMap(16);
+
+    /** Recently used composed fringe tiles, mapped from their keys. */
+    protected LRUHashMap<FringeTile, FringeTile> _tiles = new LRUHashMap<FringeTile, FringeTile>(
+        _cacheSize.getValue() * 1024, new LRUHashMap.ItemSizer<FringeTile>() {
+        public int computeSize (FringeTile tile) {
+            return (int)tile.getEstimatedMemoryUsage();
+        }
+    });
+
+    /** A key for each thread that fringes via {@link #getFringeKey(MisoSceneModel,int,int)}. */
+    protected ThreadLocal<FringeKey> _keys = new ThreadLocal<FringeKey>() {
+        @Override protected FringeKey initialValue () {
+            return new FringeKey();
+        }
+    };
+
+    /** The memory budget (in kilobytes) for recently used fringe tiles. */
+    protected static RuntimeAdjust.IntAdjust _cacheSize = new RuntimeAdjust.IntAdjust(
+        "Size (in kb of memory used) of the auto-fringer's fringe tile cache " +
+        "[requires restart].", "narya.miso.fringe_cache_size", MisoPrefs.config, 8192);
 }
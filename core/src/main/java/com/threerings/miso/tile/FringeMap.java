@@ -0,0 +1,235 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.miso.tile;
+
+import java.util.List;
+import java.util.Map;
+
+import java.awt.image.BufferedImage;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.util.LRUHashMap;
+
+import com.threerings.miso.data.MisoSceneModel;
+
+import com.threerings.miso.tile.AutoFringer.FringeKey;
+import com.threerings.miso.tile.AutoFringer.FringeTile;
+
+/**
+ * Records the fringe of every tile in a scene as a compact index into a table of the distinct
+ * fringes used by the scene, so that the fringes of a scene are computed only once, however
+ * often its blocks are resolved. The fringes are computed a region at a time, when a tile in the
+ * region is first requested, and only the {@link #MAX_REGIONS} most recently used regions are
+ * retained. The composed fringe tiles are obtained from the {@link AutoFringer}, which likewise
+ * retains those recently used.
+ *
+ * <p> This class is safe for use by multiple threads.
+ */
+public class FringeMap
+{
+    /**
+     * Creates a fringe map for the supplied scene.
+     */
+    public FringeMap (AutoFringer fringer, MisoSceneModel model)
+    {
+        _fringer = fringer;
+        _model = model;
+    }
+
+    /**
+     * Returns the fringe tile for the specified tile coordinate, or null if it is not fringed.
+     */
+    public BaseTile getFringeTile (int x, int y, Map<Long, BufferedImage> masks)
+    {
+        FringeTile key = getFringeKey(x, y);
+        return (key == null) ? null : _fringer.getFringeTile(key, masks);
+    }
+
+    /**
+     * Returns the key identifying the fringe at the specified tile coordinate (see {@link
+     * AutoFringer#getFringeKey}), or null if it is not fringed.
+     */
+    public FringeTile getFringeKey (int x, int y)
+    {
+        int rkey = getRegionKey(x >> REGION_SHIFT, y >> REGION_SHIFT);
+        int[] region;
+        int changes;
+        synchronized (this) {
+            region = _regions.get(rkey);
+            changes = _changes;
+        }
+        if (region == null) {
+            region = computeRegion(x & ~REGION_MASK, y & ~REGION_MASK);
+            synchronized (this) {
+                int[] oregion = _regions.get(rkey);
+                if (oregion != null) {
+                    region = oregion; // someone else beat us to it
+                } else if (changes == _changes) {
+                    // only keep the region if no base tiles changed while we computed it
+                    _regions.put(rkey, region);
+                }
+            }
+        }
+        int fidx = region[((y & REGION_MASK) << REGION_SHIFT) | (x & REGION_MASK)];
+        if (fidx == 0) {
+            return null;
+        }
+        synchronized (this) {
+            return _keys.get(fidx - 1);
+        }
+    }
+
+    /**
+     * Informs this map that the base tile at the specified coordinate has changed, so that the
+     * fringes it influences must be recomputed.
+     */
+    public synchronized void baseTileChanged (int x, int y)
+    {
+        // the tile influences the fringes of its immediate neighbors, which may span regions
+        for (int ry = (y - 1) >> REGION_SHIFT, rymax = (y + 1) >> REGION_SHIFT; ry <= rymax; ry++) {
+            for (int rx = (x - 1) >> REGION_SHIFT, rxmax = (x + 1) >> REGION_SHIFT; rx <= rxmax;
+                    rx++) {
+                _regions.remove(getRegionKey(rx, ry));
+            }
+        }
+        _changes++;
+    }
+
+    /**
+     * Computes the fringe indices of the region whose upper left tile is at the specified
+     * coordinates.
+     */
+    protected int[] computeRegion (int x0, int y0)
+    {
+        // the keys are computed outside of our lock, as other threads may be resolving too
+        FringeKey key = _key.get();
+        int[] region = new int[REGION_SIZE*REGION_SIZE];
+        for (int yy = 0, ii = 0; yy < REGION_SIZE; yy++) {
+            for (int xx = 0; xx < REGION_SIZE; xx++, ii++) {
+                if (_model.getBaseTileId(x0 + xx, y0 + yy) > 0 &&
+                        _fringer.getFringeKey(_model, x0 + xx, y0 + yy, key)) {
+                    region[ii] = getIndex(key);
+                }
+            }
+        }
+        return region;
+    }
+
+    /**
+     * Returns the index of the specified fringe in our table of distinct fringes (plus one),
+     * adding it to the table if it is not already there.
+     */
+    protected synchronized int getIndex (FringeKey key)
+    {
+        long hash = key.hash();
+        int mask = _slots.length - 1, slot = (int)(hash ^ (hash >>> 32)) & mask;
+        for (int fidx; (fidx = _slots[slot]) != 0; slot = (slot + 1) & mask) {
+            if (_hashes[fidx - 1] == hash && key.matches(_keys.get(fidx - 1))) {
+                return fidx;
+            }
+        }
+
+        // this is a new fringe; add it to the table, growing the table if necessary
+        _keys.add(key.toTile());
+        int fidx = _keys.size();
+        if (fidx > _hashes.length) {
+            long[] nhashes = new long[_hashes.length * 2];
+            System.arraycopy(_hashes, 0, nhashes, 0, _hashes.length);
+            _hashes = nhashes;
+        }
+        _hashes[fidx - 1] = hash;
+        _slots[slot] = fidx;
+        if (fidx * 2 > _slots.length) {
+            rehash(_slots.length * 2);
+        }
+        return fidx;
+    }
+
+    /**
+     * Rebuilds the hash slots of our table of distinct fringes with the specified capacity.
+     */
+    protected void rehash (int capacity)
+    {
+        _slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int ii = 0, nn = _keys.size(); ii < nn; ii++) {
+            long hash = _hashes[ii];
+            int slot = (int)(hash ^ (hash >>> 32)) & mask;
+            while (_slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            _slots[slot] = ii + 1;
+        }
+    }
+
+    /**
+     * Returns the key for the region at the specified region coordinates.
+     */
+    protected static int getRegionKey (int rx, int ry)
+    {
+        return (rx << 16) | (ry & 0xFFFF);
+    }
+
+    /** The fringer that computes and composes our fringes. */
+    protected AutoFringer _fringer;
+
+    /** The scene whose fringes we record. */
+    protected MisoSceneModel _model;
+
+    /** The fringe indices of recently used regions, one greater than the index of the fringe in
+     * {@link #_keys}, or zero for an unfringed tile. */
+    protected LRUHashMap<Integer, int[]> _regions = new LRUHashMap<Integer, int[]>(MAX_REGIONS);
+
+    /** Incremented whenever a base tile changes. */
+    protected int _changes;
+
+    /** The distinct fringes used by our scene. */
+    protected List<FringeTile> _keys = Lists.newArrayList();
+
+    /** The hashes of our distinct fringes. */
+    protected long[] _hashes = new long[INITIAL_CAPACITY];
+
+    /** An open addressed hash table of the indices (plus one) of our distinct fringes. */
+    protected int[] _slots = new int[INITIAL_CAPACITY * 2];
+
+    /** A key for each thread that computes a region. */
+    protected ThreadLocal<FringeKey> _key = new ThreadLocal<FringeKey>() {
+        @Override protected FringeKey initialValue () {
+            return new FringeKey();
+        }
+    };
+
+    /** The initial capacity of our table of distinct fringes. */
+    protected static final int INITIAL_CAPACITY = 64;
+
+    /** The log base two of the width and height of the regions in which we compute fringes. */
+    protected static final int REGION_SHIFT = 4;
+
+    /** The width and height of the regions in which we compute fringes. */
+    protected static final int REGION_SIZE = 1 << REGION_SHIFT;
+
+    /** Masks the offset of a tile coordinate within its region. */
+    protected static final int REGION_MASK = REGION_SIZE - 1;
+
+    /** The number of regions whose fringes we retain, enough to cover several screens' worth of
+     * scene blocks. */
+    protected static final int MAX_REGIONS = 256;
+}
@@ -0,0 +1,547 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.resource;
+
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.io.StreamUtil;
+
+/**
+ * A compact, memory mapped index of the entries in a resource bundle jar file. The index maps
+ * each entry's path to the location and compression of its data in the jar file, which allows
+ * a bundle to determine whether it contains a resource with a single hash probe (and no file
+ * system access) and to read entries directly from the jar file without going through the zip
+ * machinery.
+ *
+ * <p> The index is built by parsing the jar file's central directory, usually when the bundle is
+ * unpacked, and is stored in the following format (big endian):
+ *
+ * <pre>
+ * int magic, int version, long source last modified, long source length
+ * int entry count, int table size (a power of two)
+ * int[table size] hash table: entry number plus one, or zero for an empty slot
+ * entries: int path hash, int name offset, int name length, int method,
+ *          long data offset, int compressed size, int size
+ * char[] names
+ * </pre>
+ */
+public class BundleIndex
+{
+    /** The suffix used for index files. */
+    public static final String FILE_SUFFIX = ".idx";
+
+    /** The compression method used for entries that are stored uncompressed. */
+    public static final int STORED = 0;
+
+    /** The compression method used for entries that are deflated. */
+    public static final int DEFLATED = 8;
+
+    /**
+     * Loads the index previously written to the specified file for the supplied jar file.
+     *
+     * @return the loaded index or null if the index file does not exist or is out of date with
+     * respect to the jar file.
+     */
+    public static BundleIndex load (File index, File source)
+        throws IOException
+    {
+        if (!index.exists()) {
+            return null;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(index, "r");
+        FileChannel fchan = raf.getChannel();
+        MappedByteBuffer mbuf;
+        try {
+            mbuf = fchan.map(FileChannel.MapMode.READ_ONLY, 0, index.length());
+        } finally {
+            fchan.close();
+            raf.close();
+        }
+
+        if (mbuf.capacity() < HEADER_SIZE || mbuf.getInt(0) != MAGIC ||
+            mbuf.getInt(4) != VERSION || mbuf.getLong(8) != source.lastModified() ||
+            mbuf.getLong(16) != source.length()) {
+            return null;
+        }
+        return new BundleIndex(mbuf);
+    }
+
+    /**
+     * Builds an index for the supplied jar file and writes it to the specified index file.
+     *
+     * @return the newly built index, mapped from the index file.
+     *
+     * @exception IOException thrown if the jar file cannot be parsed (for example, if it is a
+     * Zip64 archive, which we do not support) or the index cannot be written.
+     */
+    public static BundleIndex build (File source, File index)
+        throws IOException
+    {
+        List<EntryInfo> entries = readCentralDirectory(source);
+
+        // size our hash table to be no more than half full
+        int tsize = 16;
+        while (tsize < entries.size() * 2) {
+            tsize <<= 1;
+        }
+        int[] table = new int[tsize];
+        int nameOffset = 0;
+        for (int ii = 0, ll = entries.size(); ii < ll; ii++) {
+            EntryInfo info = entries.get(ii);
+            info.nameOffset = nameOffset;
+            nameOffset += info.path.length();
+            int slot = info.path.hashCode() & (tsize-1);
+            while (table[slot] != 0) {
+                slot = (slot+1) & (tsize-1);
+            }
+            table[slot] = ii+1;
+        }
+
+        // write to a temporary file and move it into place so that a failure part way through
+        // does not leave a truncated index lying around
+        File tmp = new File(index.getPath() + ".tmp");
+        DataOutputStream dout = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            dout.writeInt(MAGIC);
+            dout.writeInt(VERSION);
+            dout.writeLong(source.lastModified());
+            dout.writeLong(source.length());
+            dout.writeInt(entries.size());
+            dout.writeInt(tsize);
+            for (int slot : table) {
+                dout.writeInt(slot);
+            }
+            for (EntryInfo info : entries) {
+                dout.writeInt(info.path.hashCode());
+                dout.writeInt(info.nameOffset);
+                dout.writeInt(info.path.length());
+                dout.writeInt(info.method);
+                dout.writeLong(info.dataOffset);
+                dout.writeInt(info.compressedSize);
+                dout.writeInt(info.size);
+            }
+            for (EntryInfo info : entries) {
+                dout.writeChars(info.path);
+            }
+        } finally {
+            StreamUtil.close(dout);
+        }
+        if (index.exists() && !index.delete()) {
+            throw new IOException("Unable to replace stale index " + index);
+        }
+        if (!tmp.renameTo(index)) {
+            throw new IOException("Unable to move index into place " + index);
+        }
+
+        BundleIndex bindex = load(index, source);
+        if (bindex == null) {
+            throw new IOException("Newly written index failed to validate " + index);
+        }
+        return bindex;
+    }
+
+    /**
+     * Returns the number of entries in this index.
+     */
+    public int size ()
+    {
+        return _count;
+    }
+
+    /**
+     * Returns the entry number of the entry with the specified path or -1 if no such entry is in
+     * the index.
+     */
+    public int find (String path)
+    {
+        int hash = path.hashCode(), mask = _tableSize-1;
+        for (int slot = hash & mask; ; slot = (slot+1) & mask) {
+            int entry = _buffer.getInt(TABLE_OFFSET + slot*4) - 1;
+            if (entry < 0) {
+                return -1;
+            }
+            if (getHash(entry) == hash && pathEquals(entry, path)) {
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * Returns the hash code of the path of the specified entry (which is the same as the path's
+     * {@link String#hashCode}).
+     */
+    public int getHash (int entry)
+    {
+        return _buffer.getInt(_entriesOffset + entry*ENTRY_SIZE);
+    }
+
+    /**
+     * Returns true if the path of the specified entry is equal to the supplied path.
+     */
+    public boolean pathEquals (int entry, String path)
+    {
+        int base = _entriesOffset + entry*ENTRY_SIZE;
+        int length = _buffer.getInt(base + 8);
+        if (length != path.length()) {
+            return false;
+        }
+        int offset = _buffer.getInt(base + 4);
+        for (int ii = 0; ii < length; ii++) {
+            if (_names.get(offset + ii) != path.charAt(ii)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the path of the specified entry.
+     */
+    public String getPath (int entry)
+    {
+        int base = _entriesOffset + entry*ENTRY_SIZE;
+        char[] path = new char[_buffer.getInt(base + 8)];
+        for (int ii = 0, offset = _buffer.getInt(base + 4); ii < path.length; ii++) {
+            path[ii] = _names.get(offset + ii);
+        }
+        return new String(path);
+    }
+
+    /**
+     * Returns the compression method of the specified entry, generally {@link #STORED} or
+     * {@link #DEFLATED}.
+     */
+    public int getMethod (int entry)
+    {
+        return _buffer.getInt(_entriesOffset + entry*ENTRY_SIZE + 12);
+    }
+
+    /**
+     * Returns the offset in the jar file of the specified entry's (possibly compressed) data.
+     */
+    public long getDataOffset (int entry)
+    {
+        return _buffer.getLong(_entriesOffset + entry*ENTRY_SIZE + 16);
+    }
+
+    /**
+     * Returns the compressed size of the specified entry.
+     */
+    public int getCompressedSize (int entry)
+    {
+        return _buffer.getInt(_entriesOffset + entry*ENTRY_SIZE + 24);
+    }
+
+    /**
+     * Returns the uncompressed size of the specified entry.
+     */
+    public int getSize (int entry)
+    {
+        return _buffer.getInt(_entriesOffset + entry*ENTRY_SIZE + 28);
+    }
+
+    /**
+     * Opens a stream that reads the specified entry's data directly from the supplied jar file.
+     * Stored entries are read as is, deflated entries are inflated on the fly.
+     *
+     * @exception IOException thrown if the jar file cannot be read or the entry uses an
+     * unsupported compression method.
+     */
+    public InputStream openStream (int entry, File source)
+        throws IOException
+    {
+        int method = getMethod(entry);
+        if (method != STORED && method != DEFLATED) {
+            throw new IOException("Unsupported compression method [source=" + source +
+                ", path=" + getPath(entry) + ", method=" + method + "]");
+        }
+        InputStream in = new RegionInputStream(
+            new RandomAccessFile(source, "r"), getDataOffset(entry), getCompressedSize(entry));
+        return (method == STORED) ? in : new EntryInflaterInputStream(in, getSize(entry));
+    }
+
+    protected BundleIndex (ByteBuffer buffer)
+    {
+        _buffer = buffer;
+        _count = buffer.getInt(24);
+        _tableSize = buffer.getInt(28);
+        _entriesOffset = TABLE_OFFSET + _tableSize*4;
+        buffer.position(_entriesOffset + _count*ENTRY_SIZE);
+        _names = buffer.slice().asCharBuffer();
+    }
+
+    /**
+     * Parses the central directory of the supplied zip file.
+     */
+    protected static List<EntryInfo> readCentralDirectory (File source)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(source, "r");
+        try {
+            // the end of central directory record is at least 22 bytes long and is followed by an
+            // (up to 64k) archive comment, so we search backward from the end for its signature
+            long length = raf.length();
+            int tail = (int)Math.min(length, 22 + 0xFFFF);
+            ByteBuffer buf = readBytes(raf, length - tail, tail);
+            int eocd = -1;
+            for (int pos = tail - 22; pos >= 0; pos--) {
+                if (buf.getInt(pos) == EOCD_SIG) {
+                    eocd = pos;
+                    break;
+                }
+            }
+            if (eocd < 0) {
+                throw new IOException("Unable to locate zip central directory in " + source);
+            }
+            int count = buf.getShort(eocd + 10) & 0xFFFF;
+            long cdsize = buf.getInt(eocd + 12) & 0xFFFFFFFFL;
+            long cdoffset = buf.getInt(eocd + 16) & 0xFFFFFFFFL;
+            if (count == 0xFFFF || cdoffset == 0xFFFFFFFFL) {
+                throw new IOException("Zip64 archives are not supported: " + source);
+            }
+
+            List<EntryInfo> entries = Lists.newArrayListWithCapacity(count);
+            ByteBuffer cd = readBytes(raf, cdoffset, (int)cdsize);
+            ByteBuffer local = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            for (int pos = 0, ii = 0; ii < count; ii++) {
+                if (cd.getInt(pos) != CEN_SIG) {
+                    throw new IOException("Corrupt zip central directory in " + source);
+                }
+                int flags = cd.getShort(pos + 8) & 0xFFFF;
+                int method = cd.getShort(pos + 10) & 0xFFFF;
+                long csize = cd.getInt(pos + 20) & 0xFFFFFFFFL;
+                long size = cd.getInt(pos + 24) & 0xFFFFFFFFL;
+                int nlen = cd.getShort(pos + 28) & 0xFFFF;
+                int elen = cd.getShort(pos + 30) & 0xFFFF;
+                int clen = cd.getShort(pos + 32) & 0xFFFF;
+                long loffset = cd.getInt(pos + 42) & 0xFFFFFFFFL;
+                byte[] name = new byte[nlen];
+                cd.position(pos + CEN_HEADER_SIZE);
+                cd.get(name);
+                pos += CEN_HEADER_SIZE + nlen + elen + clen;
+
+                String path = new String(name, "UTF-8");
+                if (path.endsWith("/") || (flags & 1) != 0) {
+                    continue; // skip directories and encrypted entries
+                }
+                if (csize > Integer.MAX_VALUE || size > Integer.MAX_VALUE) {
+                    throw new IOException("Zip64 archives are not supported: " + source);
+                }
+
+                // the local header's extra field may differ from the central directory's, so we
+                // have to read it to know where the entry's data begins
+                local.clear();
+                raf.seek(loffset);
+                raf.readFully(local.array());
+                if (local.getInt(0) != LOC_SIG) {
+                    throw new IOException("Corrupt zip local header in " + source + " for " + path);
+                }
+                EntryInfo info = new EntryInfo();
+                info.path = path;
+                info.method = method;
+                info.dataOffset = loffset + LOCAL_HEADER_SIZE +
+                    (local.getShort(26) & 0xFFFF) + (local.getShort(28) & 0xFFFF);
+                info.compressedSize = (int)csize;
+                info.size = (int)size;
+                entries.add(info);
+            }
+            return entries;
+
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the specified region of the supplied file into a little endian byte buffer.
+     */
+    protected static ByteBuffer readBytes (RandomAccessFile raf, long offset, int length)
+        throws IOException
+    {
+        byte[] data = new byte[length];
+        raf.seek(offset);
+        raf.readFully(data);
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Used when building an index. */
+    protected static class EntryInfo
+    {
+        public String path;
+        public int nameOffset;
+        public int method;
+        public long dataOffset;
+        public int compressedSize;
+        public int size;
+    }
+
+    /** Reads a region of a file, closing the file when closed. */
+    protected static class RegionInputStream extends InputStream
+    {
+        public RegionInputStream (RandomAccessFile raf, long offset, long length)
+            throws IOException
+        {
+            _raf = raf;
+            _remaining = length;
+            try {
+                raf.seek(offset);
+            } catch (IOException ioe) {
+                raf.close();
+                throw ioe;
+            }
+        }
+
+        @Override
+        public int read ()
+            throws IOException
+        {
+            if (_remaining <= 0) {
+                return -1;
+            }
+            int value = _raf.read();
+            if (value < 0) {
+                throw new EOFException("Unexpected end of jar file");
+            }
+            _remaining--;
+            return value;
+        }
+
+        @Override
+        public int read (byte[] buf, int off, int len)
+            throws IOException
+        {
+            if (_remaining <= 0) {
+                return -1;
+            }
+            int read = _raf.read(buf, off, (int)Math.min(len, _remaining));
+            if (read < 0) {
+                throw new EOFException("Unexpected end of jar file");
+            }
+            _remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available ()
+        {
+            return (int)Math.min(Integer.MAX_VALUE, _remaining);
+        }
+
+        @Override
+        public void close ()
+            throws IOException
+        {
+            _raf.close();
+        }
+
+        protected RandomAccessFile _raf;
+        protected long _remaining;
+    }
+
+    /** Inflates a raw deflated entry and releases its inflater when closed. */
+    protected static class EntryInflaterInputStream extends InflaterInputStream
+    {
+        public EntryInflaterInputStream (InputStream in, int size)
+        {
+            super(in, new Inflater(true), Math.max(64, Math.min(size, 8192)));
+        }
+
+        @Override
+        protected void fill ()
+            throws IOException
+        {
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                if (_eof) {
+                    throw new EOFException("Unexpected end of deflated entry");
+                }
+                // an inflater in nowrap mode may need an extra dummy byte to finish
+                _eof = true;
+                buf[0] = 0;
+                len = 1;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close ()
+            throws IOException
+        {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+
+        protected boolean _eof;
+    }
+
+    /** Our index data. */
+    protected ByteBuffer _buffer;
+
+    /** Our entry names. */
+    protected CharBuffer _names;
+
+    /** The number of entries and the size of our hash table. */
+    protected int _count, _tableSize;
+
+    /** The offset of our entry records. */
+    protected int _entriesOffset;
+
+    /** Identifies an index file. */
+    protected static final int MAGIC = 0x4E494458; // NIDX
+
+    /** The version of our index file format. */
+    protected static final int VERSION = 1;
+
+    /** The size of our header and thus the offset of our hash table. */
+    protected static final int HEADER_SIZE = 32, TABLE_OFFSET = HEADER_SIZE;
+
+    /** The size of an entry record. */
+    protected static final int ENTRY_SIZE = 32;
+
+    /** Zip file signatures. */
+    protected static final int EOCD_SIG = 0x06054b50, CEN_SIG = 0x02014b50, LOC_SIG = 0x04034b50;
+
+    /** Fixed zip header sizes. */
+    protected static final int CEN_HEADER_SIZE = 46, LOCAL_HEADER_SIZE = 30;
+}
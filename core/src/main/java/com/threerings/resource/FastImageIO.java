@@ -123,6 +123,31 @@ public class FastImageIO
         }
     }
 
+    /**
+     * Reads an image from the supplied file (which must contain an image previously written via a
+     * call to {@link #write}), leaving the image's pixels in the memory mapped file rather than
+     * copying them into the Java heap. The operating system will page the pixel data in when the
+     * image is first painted and may page it back out under memory pressure. The returned image's
+     * raster is read-only; see {@link MappedDataBuffer}.
+     *
+     * @exception IOException thrown if an error occurs reading from the file.
+     */
+    public static BufferedImage readMapped (File file)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel fchan = raf.getChannel();
+
+        try {
+            // the mapping remains valid after the channel is closed
+            MappedByteBuffer mbuf = fchan.map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            return read(mbuf, true);
+        } finally {
+            fchan.close();
+            raf.close();
+        }
+    }
+
     /**
      * Reads an image from the supplied input stream (which must return the image format previously
      * written via a call to {@link #write}).
@@ -143,6 +168,16 @@ public class FastImageIO
      */
     public static BufferedImage read (ByteBuffer byteBuffer)
         throws IOException
+    {
+        return read(byteBuffer, false);
+    }
+
+    /**
+     * Reads an image from the supplied byte buffer, either copying the pixel data into the heap
+     * or creating an image backed directly by the byte buffer.
+     */
+    protected static BufferedImage read (ByteBuffer byteBuffer, boolean mapped)
+        throws IOException
     {
         // read in our integer fields
         IntBuffer ibuf = byteBuffer.asIntBuffer();
@@ -170,12 +205,17 @@ public class FastImageIO
         // advance the byte buffer accordingly
         byteBuffer.position(ibuf.position() * 4);
 
-        // read in the image data itself
-        byte[] data = new byte[width*height];
-        byteBuffer.get(data);
+        // read in the image data itself (or just reference it)
+        DataBuffer dbuf;
+        if (mapped) {
+            dbuf = new MappedDataBuffer(byteBuffer, byteBuffer.position(), width*height);
+        } else {
+            byte[] data = new byte[width*height];
+            byteBuffer.get(data);
+            dbuf = new DataBufferByte(data, data.length, 0);
+        }
 
         // create the image from our component parts
-        DataBuffer dbuf = new DataBufferByte(data, data.length, 0);
         int[] offsets = new int[] { 0 };
         PixelInterleavedSampleModel smodel =
             new PixelInterleavedSampleModel(
@@ -19,6 +19,12 @@
 
 package com.threerings.resource;
 
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -31,6 +37,8 @@ import java.io.InputStream;
 
 import java.awt.image.BufferedImage;
 
+import com.google.common.collect.Lists;
+
 import com.samskivert.io.StreamUtil;
 import com.samskivert.util.FileUtil;
 import com.samskivert.util.StringUtil;
@@ -84,6 +92,13 @@ public class FileResourceBundle extends ResourceBundle
     public InputStream getResource (String path)
         throws IOException
     {
+        // if we're not unpacked but are indexed, we can read straight out of our jar file
+        BundleIndex index = _index;
+        if (_cache == null && index != null) {
+            int entry = index.find(path);
+            return (entry < 0) ? null : index.openStream(entry, _source);
+        }
+
         // unpack our resources into a temp directory so that we can load
         // them quickly and the file system can cache them sensibly
         File rfile = getResourceFile(path);
@@ -94,7 +109,30 @@ public class FileResourceBundle extends ResourceBundle
     public BufferedImage getImageResource (String path, boolean useFastIO)
         throws IOException
     {
-        return ResourceManager.loadImage(getResourceFile(path), useFastIO);
+        File file = getResourceFile(path);
+        if (file != null && useFastIO && _mapRawImages) {
+            return FastImageIO.readMapped(file);
+        }
+        return ResourceManager.loadImage(file, useFastIO);
+    }
+
+    /**
+     * Configures whether {@link FastImageIO} images loaded from this bundle are left in their
+     * memory mapped files rather than being copied into the heap. See
+     * {@link FastImageIO#readMapped}.
+     */
+    public void setMapRawImages (boolean mapRawImages)
+    {
+        _mapRawImages = mapRawImages;
+    }
+
+    /**
+     * Returns the index of the entries in this bundle, or null if the bundle has not yet been
+     * indexed (or could not be).
+     */
+    public BundleIndex getIndex ()
+    {
+        return _index;
     }
 
     /**
@@ -122,6 +160,16 @@ public class FileResourceBundle extends ResourceBundle
      * doing so.
      */
     public boolean sourceIsReady ()
+    {
+        return sourceIsReady(null);
+    }
+
+    /**
+     * Like {@link #sourceIsReady()} but large entries in our jar file are unpacked in parallel
+     * using the supplied executor. If the executor is null, everything is unpacked on the calling
+     * thread.
+     */
+    public boolean sourceIsReady (Executor exec)
     {
         // make a note of our source's last modification time
         _sourceLastMod = _source.lastModified();
@@ -149,7 +197,9 @@ public class FileResourceBundle extends ResourceBundle
             }
 
             // unpack the jar file (this will close the jar when it's done)
-            if (!FileUtil.unpackJar(_jarSource, _cache)) {
+            boolean unpacked = (exec == null) ?
+                FileUtil.unpackJar(_jarSource, _cache) : unpackJar(exec);
+            if (!unpacked) {
                 // if something went awry, delete everything in the hopes
                 // that next time things will work
                 wipeBundle(true);
@@ -168,6 +218,9 @@ public class FileResourceBundle extends ResourceBundle
             }
         }
 
+        // load or build the index of our entries
+        resolveIndex();
+
         return true;
     }
 
@@ -182,6 +235,13 @@ public class FileResourceBundle extends ResourceBundle
             FileUtil.recursiveClean(_cache);
         }
 
+        // delete our index
+        _index = null;
+        File ifile = getIndexFile();
+        if (ifile.exists() && !ifile.delete()) {
+            log.warning("Failed to delete index file", "file", ifile);
+        }
+
         // delete our unpack stamp file
         if (_unpacked != null) {
             _unpacked.delete();
@@ -219,8 +279,17 @@ public class FileResourceBundle extends ResourceBundle
             return null;
         }
 
+        // if we are indexed, we can avoid poking the file system for resources we don't have
+        BundleIndex index = _index;
+        if (index != null && index.find(path) < 0) {
+            return null;
+        }
+
         // if we have been unpacked, return our unpacked file
         if (_cache != null) {
+            if (index != null) {
+                return new File(_cache, path);
+            }
             File cfile = new File(_cache, path);
             if (cfile.exists()) {
                 return cfile;
@@ -263,6 +332,10 @@ public class FileResourceBundle extends ResourceBundle
             if (resolveJarFile()) {
                 return false;
             }
+            BundleIndex index = _index;
+            if (index != null) {
+                return index.find(path) >= 0;
+            }
             return (_jarSource.getJarEntry(path) != null);
         } catch (IOException ioe) {
             return false;
@@ -317,6 +390,127 @@ public class FileResourceBundle extends ResourceBundle
         }
     }
 
+    /**
+     * Unpacks our jar file into our cache directory, handing entries of at least
+     * {@link #PARALLEL_UNPACK_SIZE} bytes off to the supplied executor. Closes the jar file when
+     * it's done.
+     *
+     * @return true if everything was unpacked, false if we encountered errors in doing so.
+     */
+    protected boolean unpackJar (Executor exec)
+    {
+        List<FutureTask<Boolean>> tasks = Lists.newArrayList();
+        boolean failure = false;
+        Enumeration<JarEntry> entries = _jarSource.entries();
+        while (!failure && entries.hasMoreElements()) {
+            final JarEntry entry = entries.nextElement();
+            final File efile = new File(_cache, entry.getName());
+
+            // create our directories here, so that our unpack tasks need not worry about
+            // stepping on one another when doing so
+            if (entry.isDirectory()) {
+                if (!efile.exists() && !efile.mkdirs()) {
+                    log.warning("Failed to create jar entry path", "jar", _source, "entry", entry);
+                }
+                continue;
+            }
+            File parent = efile.getParentFile();
+            if (!parent.exists() && !parent.mkdirs()) {
+                log.warning("Failed to create jar entry parent", "jar", _source, "parent", parent);
+                failure = true;
+                break;
+            }
+
+            if (entry.getSize() < PARALLEL_UNPACK_SIZE) {
+                failure = !unpackEntry(entry, efile);
+                continue;
+            }
+            FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+                public Boolean call () {
+                    return unpackEntry(entry, efile);
+                }
+            });
+            tasks.add(task);
+            exec.execute(task);
+        }
+
+        // wait for our large entries to finish; we run any that have not yet been picked up by
+        // a worker ourselves, so that we never block on a task that is queued behind us
+        for (FutureTask<Boolean> task : tasks) {
+            task.run();
+            try {
+                if (!task.get()) {
+                    failure = true;
+                }
+            } catch (ExecutionException ee) {
+                log.warning("Failure unpacking jar entry", "jar", _source, ee.getCause());
+                failure = true;
+            } catch (InterruptedException ie) {
+                log.warning("Interrupted unpacking jar", "jar", _source);
+                failure = true;
+            }
+        }
+
+        closeJar();
+        return !failure;
+    }
+
+    /**
+     * Copies the specified entry from our jar file into the specified target file.
+     *
+     * @return true if the entry was copied, false if an error occurred.
+     */
+    protected boolean unpackEntry (JarEntry entry, File target)
+    {
+        BufferedOutputStream fout = null;
+        InputStream jin = null;
+        try {
+            fout = new BufferedOutputStream(new FileOutputStream(target));
+            jin = _jarSource.getInputStream(entry);
+            StreamUtil.copy(jin, fout);
+            // close explicitly so that we notice any failure to flush
+            fout.close();
+            fout = null;
+            return true;
+        } catch (Exception e) {
+            log.warning("Failure unpacking jar entry", "jar", _source, "entry", entry,
+                "target", target, e);
+            return false;
+        } finally {
+            StreamUtil.close(jin);
+            StreamUtil.close(fout);
+        }
+    }
+
+    /**
+     * Loads our index from its file, (re)building it if it is missing or out of date. If that
+     * fails, we log a warning and make do without an index.
+     */
+    protected void resolveIndex ()
+    {
+        File ifile = getIndexFile();
+        try {
+            BundleIndex index = BundleIndex.load(ifile, _source);
+            _index = (index != null) ? index : BundleIndex.build(_source, ifile);
+        } catch (IOException ioe) {
+            log.warning("Failed to index bundle", "source", _source, "index", ifile, ioe);
+            _index = null;
+        }
+    }
+
+    /**
+     * Returns the file in which our index is stored: next to our unpacked files if we unpack,
+     * or in the temporary cache directory if not.
+     */
+    protected File getIndexFile ()
+    {
+        if (_cache != null) {
+            return new File(_cache.getPath() + BundleIndex.FILE_SUFFIX);
+        }
+        return new File(getCacheDir(), StringUtil.md5hex(_source.getPath()) +
+                        BundleIndex.FILE_SUFFIX);
+    }
+
     /**
      * Closes our (possibly opened) jar file.
      */
@@ -398,6 +592,16 @@ public class FileResourceBundle extends ResourceBundle
     /** The jar file from which we load resources. */
     protected JarFile _jarSource;
 
+    /** Whether or not we leave raw images in their memory mapped files. */
+    protected boolean _mapRawImages;
+
+    /** The index of our entries, once we've been unpacked (or otherwise made ready). */
+    protected volatile BundleIndex _index;
+
     /** A directory in which we temporarily unpack our resource files. */
     protected static File _tmpdir;
+
+    /** Jar entries at least this large (uncompressed) are unpacked in parallel when unpacking
+     * with an executor. */
+    protected static final long PARALLEL_UNPACK_SIZE = 256 * 1024;
 }
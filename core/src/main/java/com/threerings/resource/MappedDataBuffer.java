@@ -0,0 +1,74 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.resource;
+
+import java.nio.ByteBuffer;
+
+import java.awt.image.DataBuffer;
+
+/**
+ * A single banked byte {@link DataBuffer} whose elements live in a (generally memory mapped)
+ * {@link ByteBuffer} rather than in a Java array. This allows {@link FastImageIO} images to be
+ * backed directly by their file in the bundle cache directory, keeping their pixels out of the
+ * Java heap and loading them from disk only when they are actually read.
+ *
+ * <p> Mapped buffers are read-only: calls to {@link #setElem} will fail. Code that needs to modify
+ * the pixels of such an image must first copy it.
+ */
+public class MappedDataBuffer extends DataBuffer
+{
+    /**
+     * Creates a data buffer over the specified region of the supplied byte buffer.
+     *
+     * @param buffer the buffer that contains our elements. It is accessed only via absolute
+     * reads, so its position and limit are irrelevant.
+     * @param offset the offset in the buffer of our first element.
+     * @param size the number of elements in the buffer.
+     */
+    public MappedDataBuffer (ByteBuffer buffer, int offset, int size)
+    {
+        super(TYPE_BYTE, size);
+        if (offset < 0 || offset + size > buffer.capacity()) {
+            throw new IllegalArgumentException(
+                "Region out of bounds [offset=" + offset + ", size=" + size +
+                ", capacity=" + buffer.capacity() + "]");
+        }
+        _buffer = buffer;
+        _base = offset;
+    }
+
+    @Override
+    public int getElem (int bank, int i)
+    {
+        return _buffer.get(_base + i) & 0xFF;
+    }
+
+    @Override
+    public void setElem (int bank, int i, int val)
+    {
+        throw new UnsupportedOperationException("Mapped image data is read-only.");
+    }
+
+    /** The buffer that contains our elements. */
+    protected ByteBuffer _buffer;
+
+    /** The offset of our first element in {@link #_buffer}. */
+    protected int _base;
+}
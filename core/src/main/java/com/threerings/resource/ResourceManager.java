@@ -32,6 +32,15 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -55,6 +64,7 @@ import com.samskivert.io.StreamUtil;
 import com.samskivert.net.PathUtil;
 import com.samskivert.util.ObserverList;
 import com.samskivert.util.ResultListener;
+import com.samskivert.util.Tuple;
 import com.samskivert.util.WeakObserverList;
 
 import static com.threerings.resource.Log.log;
@@ -224,6 +234,7 @@ public class ResourceManager
         // out if we fail to read it
         try {
             _unpack = !Boolean.getBoolean("no_unpack_resources");
+            _unpackThreads = Math.max(1, Integer.getInteger("unpack_threads", 1));
         } catch (SecurityException se) {
             // no problem, we're in a sandbox so we definitely won't be unpacking
         }
@@ -283,6 +294,29 @@ public class ResourceManager
         _unpack = unpackResources;
     }
 
+    /**
+     * Configures the number of threads used to unpack our resource bundles. When more than one
+     * thread is used, bundles are unpacked in parallel and large entries within each bundle are
+     * spread across the threads as well. This must be called before {@link #initBundles}. One can
+     * also pass the <code>-Dunpack_threads=N</code> system property.
+     */
+    public void setUnpackThreads (int unpackThreads)
+    {
+        _unpackThreads = Math.max(1, unpackThreads);
+    }
+
+    /**
+     * Configures whether {@link FastImageIO} images loaded from file bundles are left in their
+     * memory mapped files (outside of the Java heap) rather than being copied into the heap. This
+     * is most useful in combination with {@link #setUnpackResources} as the images are then
+     * mapped directly from the bundle cache directory. This must be called before {@link
+     * #initBundles}.
+     */
+    public void setMapRawImages (boolean mapRawImages)
+    {
+        _mapRawImages = mapRawImages;
+    }
+
     /**
      * Initializes the bundle sets to be made available by this resource manager.  Applications
      * that wish to make use of resource bundles should call this method after constructing the
@@ -349,7 +383,7 @@ public class ResourceManager
         }
 
         // start a thread to unpack our bundles
-        Unpacker unpack = new Unpacker(dlist, initObs);
+        Unpacker unpack = new Unpacker(dlist, initObs, _unpackThreads);
         unpack.start();
 
         if (shouldWait[0]) {
@@ -537,19 +571,28 @@ public class ResourceManager
         InputStream in;
 
         // first look for this resource in our default resource bundle
-        for (ResourceBundle bundle : _default) {
-            // Try a localized version first.
-            if (localePath != null) {
-                in = bundle.getResource(localePath);
+        ResourceSetIndex sindex = getSetIndex(DEFAULT_RESOURCE_SET, _default);
+        if (sindex != null) {
+            Tuple<FileResourceBundle, String> loc = sindex.locate(localePath, path);
+            in = (loc == null) ? null : loc.left.getResource(loc.right);
+            if (in != null) {
+                return in;
+            }
+        } else {
+            for (ResourceBundle bundle : _default) {
+                // Try a localized version first.
+                if (localePath != null) {
+                    in = bundle.getResource(localePath);
+                    if (in != null) {
+                        return in;
+                    }
+                }
+                // If that didn't work, try generic.
+                in = bundle.getResource(path);
                 if (in != null) {
                     return in;
                 }
             }
-            // If that didn't work, try generic.
-            in = bundle.getResource(path);
-            if (in != null) {
-                return in;
-            }
         }
 
         // fallback next to an unpacked resource file
@@ -589,20 +632,29 @@ public class ResourceManager
         String localePath = getLocalePath(path);
 
         // first look for this resource in our default resource bundle
-        for (ResourceBundle bundle : _default) {
-            // try a localized version first
-            BufferedImage image;
-            if (localePath != null) {
-                image = bundle.getImageResource(localePath, false);
+        ResourceSetIndex sindex = getSetIndex(DEFAULT_RESOURCE_SET, _default);
+        if (sindex != null) {
+            Tuple<FileResourceBundle, String> loc = sindex.locate(localePath, path);
+            BufferedImage image = (loc == null) ? null : loc.left.getImageResource(loc.right, false);
+            if (image != null) {
+                return image;
+            }
+        } else {
+            for (ResourceBundle bundle : _default) {
+                // try a localized version first
+                BufferedImage image;
+                if (localePath != null) {
+                    image = bundle.getImageResource(localePath, false);
+                    if (image != null) {
+                        return image;
+                    }
+                }
+                // if we didn't find that, try generic
+                image = bundle.getImageResource(path, false);
                 if (image != null) {
                     return image;
                 }
             }
-            // if we didn't find that, try generic
-            image = bundle.getImageResource(path, false);
-            if (image != null) {
-                return image;
-            }
         }
 
         // fallback next to an unpacked resource file
@@ -649,7 +701,20 @@ public class ResourceManager
         }
 
         String localePath = getLocalePath(path);
-        // look for the resource in any of the bundles
+
+        // if the set is indexed, we can go straight to the bundle that has the resource
+        ResourceSetIndex sindex = getSetIndex(rset, bundles);
+        if (sindex != null) {
+            Tuple<FileResourceBundle, String> loc = sindex.locate(localePath, path);
+            InputStream in = (loc == null) ? null : loc.left.getResource(loc.right);
+            if (in != null) {
+                return in;
+            }
+            throw new FileNotFoundException(
+                "Unable to locate resource [set=" + rset + ", path=" + path + "]");
+        }
+
+        // otherwise look for the resource in any of the bundles
         for (ResourceBundle bundle : bundles) {
             InputStream in;
             // Try a localized version first.
@@ -688,7 +753,20 @@ public class ResourceManager
         }
 
         String localePath = getLocalePath(path);
-        // look for the resource in any of the bundles
+
+        // if the set is indexed, we can go straight to the bundle that has the resource
+        ResourceSetIndex sindex = getSetIndex(rset, bundles);
+        if (sindex != null) {
+            Tuple<FileResourceBundle, String> loc = sindex.locate(localePath, path);
+            BufferedImage image = (loc == null) ? null : loc.left.getImageResource(loc.right, false);
+            if (image != null) {
+                return image;
+            }
+            throw new FileNotFoundException(
+                "Unable to locate image resource [set=" + rset + ", path=" + path + "]");
+        }
+
+        // otherwise look for the resource in any of the bundles
         for (ResourceBundle bundle : bundles) {
             BufferedImage image;
             // try a localized version first
@@ -719,6 +797,25 @@ public class ResourceManager
         return _sets.get(name);
     }
 
+    /**
+     * Returns the combined index for the specified resource set, creating it if necessary, or
+     * null if the set cannot be indexed (because it contains bundles that are not file bundles or
+     * that have not yet been unpacked and indexed).
+     */
+    protected ResourceSetIndex getSetIndex (String rset, ResourceBundle[] bundles)
+    {
+        ResourceSetIndex sindex = _setIndices.get(rset);
+        if (sindex == null || !sindex.isValid()) {
+            sindex = ResourceSetIndex.create(bundles);
+            if (sindex == null) {
+                _setIndices.remove(rset);
+                return null;
+            }
+            _setIndices.put(rset, sindex);
+        }
+        return sindex;
+    }
+
     /**
      * Adds a modification observer for the specified resource.  Note that only a weak reference to
      * the observer will be retained, and thus this will not prevent the observer from being
@@ -824,6 +921,7 @@ public class ResourceManager
         if (setType.equals(FILE_SET_TYPE)) {
             FileResourceBundle bundle =
                 createFileResourceBundle(getResourceFile(path), true, _unpack);
+            bundle.setMapRawImages(_mapRawImages);
             if (!bundle.isUnpacked() || !bundle.sourceIsReady()) {
                 dlist.add(bundle);
             }
@@ -964,8 +1062,13 @@ public class ResourceManager
     protected static class Unpacker extends Thread
     {
         public Unpacker (List<ResourceBundle> bundles, InitObserver obs) {
+            this(bundles, obs, 1);
+        }
+
+        public Unpacker (List<ResourceBundle> bundles, InitObserver obs, int threads) {
             _bundles = bundles;
             _obs = obs;
+            _threads = threads;
             _startTime = System.currentTimeMillis();
         }
 
@@ -977,31 +1080,21 @@ public class ResourceManager
                     _obs.progress(0, -1);
                 }
 
-                int count = 0;
+                // we weight each bundle by the size of its jar file, which is a far better
+                // predictor of how long it will take to unpack than is a simple count
                 for (ResourceBundle bundle : _bundles) {
-                    if (bundle instanceof FileResourceBundle &&
-                        !((FileResourceBundle)bundle).sourceIsReady()) {
-                        log.warning("Bundle failed to initialize " + bundle + ".");
-                    }
-                    if (_obs != null) {
-                        int pct = count*100/_bundles.size();
-
-                        long remaining = 0;
-                        if (pct > 0) {
-                            // We should potentially do something that better understands the fact
-                            // that the first couple percent are wacky, but this should is likely
-                            // good enough, and is certainly better than before when we always
-                            // claimed we only needed one second to finish.
-                            remaining = Math.round((100 - pct) *
-                                ((System.currentTimeMillis() - _startTime) / 1000.0) / pct);
-                        }
+                    _total += getWeight(bundle);
+                }
 
-                        if (pct < 100) {
-                            _obs.progress(pct, remaining);
-                        }
+                if (_threads > 1 && _bundles.size() > 1) {
+                    unpackParallel();
+                } else {
+                    for (ResourceBundle bundle : _bundles) {
+                        unpack(bundle, null);
+                        bundleUnpacked(bundle);
                     }
-                    count++;
                 }
+
                 if (_obs != null) {
                     _obs.progress(100, 0);
                 }
@@ -1013,9 +1106,96 @@ public class ResourceManager
             }
         }
 
+        /**
+         * Unpacks our bundles on a pool of worker threads, reporting progress as each completes.
+         */
+        protected void unpackParallel ()
+            throws Exception
+        {
+            final ExecutorService exec = Executors.newFixedThreadPool(_threads, new ThreadFactory() {
+                public Thread newThread (Runnable task) {
+                    Thread thread = new Thread(task, "Unpacker-" + _threadId.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+                protected AtomicInteger _threadId = new AtomicInteger();
+            });
+
+            try {
+                CompletionService<ResourceBundle> comp =
+                    new ExecutorCompletionService<ResourceBundle>(exec);
+                for (final ResourceBundle bundle : _bundles) {
+                    comp.submit(new Callable<ResourceBundle>() {
+                        public ResourceBundle call () {
+                            unpack(bundle, exec);
+                            return bundle;
+                        }
+                    });
+                }
+                for (int ii = 0, ll = _bundles.size(); ii < ll; ii++) {
+                    try {
+                        bundleUnpacked(comp.take().get());
+                    } catch (ExecutionException ee) {
+                        Throwable cause = ee.getCause();
+                        throw (cause instanceof Exception) ? (Exception)cause : ee;
+                    }
+                }
+
+            } finally {
+                exec.shutdownNow();
+            }
+        }
+
+        /**
+         * Unpacks the supplied bundle, using the supplied executor (if non-null) for large entries.
+         */
+        protected void unpack (ResourceBundle bundle, ExecutorService exec)
+        {
+            if (bundle instanceof FileResourceBundle &&
+                !((FileResourceBundle)bundle).sourceIsReady(exec)) {
+                log.warning("Bundle failed to initialize " + bundle + ".");
+            }
+        }
+
+        /**
+         * Notes that the supplied bundle is unpacked and reports our progress to our observer.
+         */
+        protected void bundleUnpacked (ResourceBundle bundle)
+        {
+            _completed += getWeight(bundle);
+            if (_obs == null || _total <= 0) {
+                return;
+            }
+
+            int pct = (int)(_completed*100/_total);
+            long remaining = 0;
+            if (_completed > 0) {
+                remaining = Math.round((_total - _completed) *
+                    ((System.currentTimeMillis() - _startTime) / 1000.0) / _completed);
+            }
+            if (pct < 100) {
+                _obs.progress(pct, remaining);
+            }
+        }
+
+        /**
+         * Returns the relative amount of work needed to unpack the supplied bundle.
+         */
+        protected long getWeight (ResourceBundle bundle)
+        {
+            if (bundle instanceof FileResourceBundle) {
+                return Math.max(1L, ((FileResourceBundle)bundle).getSource().length());
+            }
+            return 1L;
+        }
+
         protected List<ResourceBundle> _bundles;
         protected InitObserver _obs;
+        protected int _threads;
         protected long _startTime;
+
+        /** The total weight of our bundles and the weight of those unpacked thus far. */
+        protected long _total, _completed;
     }
 
     /** Contains the state of an observed file resource. */
@@ -1088,6 +1268,16 @@ public class ResourceManager
     /** Whether or not to unpack our resource bundles. */
     protected boolean _unpack;
 
+    /** Combined indices for our resource sets, created as the sets' bundles become indexed. */
+    protected Map<String, ResourceSetIndex> _setIndices =
+        new ConcurrentHashMap<String, ResourceSetIndex>();
+
+    /** The number of threads used to unpack our resource bundles. */
+    protected int _unpackThreads = 1;
+
+    /** Whether or not file bundles leave raw images in their memory mapped files. */
+    protected boolean _mapRawImages;
+
     /** Our default resource set. */
     protected ResourceBundle[] _default = new ResourceBundle[0];
 
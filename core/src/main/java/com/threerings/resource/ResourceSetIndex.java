@@ -0,0 +1,168 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.resource;
+
+import com.samskivert.util.Tuple;
+
+/**
+ * Combines the {@link BundleIndex}es of all of the bundles in a resource set into a single hash
+ * table, so that the bundle that provides a resource can be located with a single probe rather
+ * than by asking each bundle in turn. Where more than one bundle contains the same path, the
+ * first bundle in the set wins, just as with a linear search.
+ *
+ * <p> The table contains only integers; paths are verified against the (memory mapped) bundle
+ * indices themselves.
+ */
+public class ResourceSetIndex
+{
+    /**
+     * Creates an index for the supplied resource set.
+     *
+     * @return the index or null if one or more bundles in the set are not indexed file bundles.
+     */
+    public static ResourceSetIndex create (ResourceBundle[] bundles)
+    {
+        FileResourceBundle[] fbundles = new FileResourceBundle[bundles.length];
+        BundleIndex[] indices = new BundleIndex[bundles.length];
+        for (int ii = 0; ii < bundles.length; ii++) {
+            if (!(bundles[ii] instanceof FileResourceBundle)) {
+                return null;
+            }
+            fbundles[ii] = (FileResourceBundle)bundles[ii];
+            indices[ii] = fbundles[ii].getIndex();
+            if (indices[ii] == null) {
+                return null;
+            }
+        }
+        return new ResourceSetIndex(fbundles, indices);
+    }
+
+    /**
+     * Returns false if any of the bundles in our set have been re-indexed (or lost their index)
+     * since we were created.
+     */
+    public boolean isValid ()
+    {
+        for (int ii = 0; ii < _bundles.length; ii++) {
+            if (_bundles[ii].getIndex() != _indices[ii]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the position in the set of the bundle that provides the specified path or -1 if no
+     * bundle in the set contains the path.
+     */
+    public int find (String path)
+    {
+        int hash = path.hashCode(), mask = _table.length-1;
+        for (int slot = hash & mask; ; slot = (slot+1) & mask) {
+            int bpos = _table[slot] - 1;
+            if (bpos < 0) {
+                return -1;
+            }
+            if (_hashes[slot] == hash && _indices[bpos].pathEquals(_entries[slot], path)) {
+                return bpos;
+            }
+        }
+    }
+
+    /**
+     * Returns the bundle at the specified position in our set.
+     */
+    public FileResourceBundle getBundle (int bpos)
+    {
+        return _bundles[bpos];
+    }
+
+    /**
+     * Locates the bundle from which a resource should be loaded, preferring the localized path
+     * if it is provided by the same or an earlier bundle than the generic path, which matches the
+     * behavior of searching each bundle for the localized and then the generic path.
+     *
+     * @param localePath the localized path, or null.
+     * @param path the generic path.
+     *
+     * @return the bundle and the path to load from it, or null if neither path is in the set.
+     */
+    public Tuple<FileResourceBundle, String> locate (String localePath, String path)
+    {
+        int gpos = find(path);
+        int lpos = (localePath == null) ? -1 : find(localePath);
+        if (lpos >= 0 && (gpos < 0 || lpos <= gpos)) {
+            return new Tuple<FileResourceBundle, String>(_bundles[lpos], localePath);
+        } else if (gpos >= 0) {
+            return new Tuple<FileResourceBundle, String>(_bundles[gpos], path);
+        }
+        return null;
+    }
+
+    protected ResourceSetIndex (FileResourceBundle[] bundles, BundleIndex[] indices)
+    {
+        _bundles = bundles;
+        _indices = indices;
+
+        int count = 0;
+        for (BundleIndex index : indices) {
+            count += index.size();
+        }
+        int tsize = 16;
+        while (tsize < count * 2) {
+            tsize <<= 1;
+        }
+        _table = new int[tsize];
+        _hashes = new int[tsize];
+        _entries = new int[tsize];
+
+        int mask = tsize-1;
+        for (int bpos = 0; bpos < indices.length; bpos++) {
+            BundleIndex index = indices[bpos];
+          ENTRIES:
+            for (int entry = 0, ll = index.size(); entry < ll; entry++) {
+                int hash = index.getHash(entry);
+                int slot = hash & mask;
+                for (; _table[slot] != 0; slot = (slot+1) & mask) {
+                    // if an earlier bundle already provides this path, it shadows this one
+                    if (_hashes[slot] == hash && _indices[_table[slot]-1].pathEquals(
+                            _entries[slot], index.getPath(entry))) {
+                        continue ENTRIES;
+                    }
+                }
+                _table[slot] = bpos+1;
+                _hashes[slot] = hash;
+                _entries[slot] = entry;
+            }
+        }
+    }
+
+    /** The bundles in our set. */
+    protected FileResourceBundle[] _bundles;
+
+    /** The indices of the bundles in our set at the time we were created. */
+    protected BundleIndex[] _indices;
+
+    /** Our hash table: the position of the bundle plus one, or zero for an empty slot. */
+    protected int[] _table;
+
+    /** The path hash and bundle index entry number for each slot in our table. */
+    protected int[] _hashes, _entries;
+}
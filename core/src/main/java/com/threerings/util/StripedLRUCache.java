@@ -0,0 +1,319 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.util;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.util.LRUHashMap;
+
+/**
+ * A size bounded cache that may be safely accessed by many threads at once. The cache is split
+ * into a number of segments, each of which is responsible for an equal share of the total size
+ * budget and is separately locked when entries are added, resized or evicted. Lookups of entries
+ * that are already cached take no lock at all; they simply mark the entry as referenced and the
+ * owning segment gives referenced entries a second chance (a la the CLOCK algorithm) before
+ * evicting them. This approximates least recently used eviction without requiring readers to
+ * reorder a shared list.
+ */
+public class StripedLRUCache<K, V>
+{
+    /**
+     * Creates a cache with the specified maximum total size, split into the specified number of
+     * independently locked segments. The supplied sizer is used to compute the size of each
+     * entry as it is added, just as with {@link LRUHashMap}.
+     */
+    public StripedLRUCache (int maxSize, int segments, LRUHashMap.ItemSizer<V> sizer)
+    {
+        segments = Math.max(1, segments);
+        _sizer = sizer;
+        _segments = createSegments(segments);
+        long segmax = Math.max(1L, (long)maxSize / segments);
+        for (int ii = 0; ii < segments; ii++) {
+            _segments[ii] = new Segment<K, V>(segmax);
+        }
+    }
+
+    /**
+     * Turns hit and miss tracking on or off. See {@link #getTrackedEffectiveness}.
+     */
+    public void setTracking (boolean track)
+    {
+        _tracking = track;
+    }
+
+    /**
+     * Returns the number of hits and misses recorded since tracking was enabled, as a two
+     * element array: <code>{ hits, misses }</code>.
+     */
+    public int[] getTrackedEffectiveness ()
+    {
+        return new int[] { _hits.get(), _misses.get() };
+    }
+
+    /**
+     * Returns the value cached for the specified key or null if no value is cached. This method
+     * takes no locks.
+     */
+    public V get (K key)
+    {
+        Entry<V> entry = _map.get(key);
+        if (entry == null) {
+            if (_tracking) {
+                _misses.incrementAndGet();
+            }
+            return null;
+        }
+        entry.referenced = true;
+        if (_tracking) {
+            _hits.incrementAndGet();
+        }
+        return entry.value;
+    }
+
+    /**
+     * Adds the supplied value to the cache, replacing any existing value for the key.
+     *
+     * @return the previously cached value, or null.
+     */
+    public V put (K key, V value)
+    {
+        return put(key, value, true);
+    }
+
+    /**
+     * Adds the supplied value to the cache unless a value is already cached for the key, in which
+     * case the cache is not modified. This allows two threads that both missed on the same key to
+     * agree on a single value.
+     *
+     * @return the previously cached value (which should be used in place of the supplied value),
+     * or null if the supplied value was added.
+     */
+    public V putIfAbsent (K key, V value)
+    {
+        return put(key, value, false);
+    }
+
+    /**
+     * Removes the value cached for the specified key.
+     *
+     * @return the removed value, or null.
+     */
+    public V remove (K key)
+    {
+        Segment<K, V> seg = segmentFor(key);
+        synchronized (seg) {
+            Entry<V> entry = seg.order.remove(key);
+            if (entry == null) {
+                return null;
+            }
+            _map.remove(key);
+            seg.size -= entry.size;
+            return entry.value;
+        }
+    }
+
+    /**
+     * Adjusts the recorded size of the entry for the specified key (for example, when a cached
+     * value grows after it was added) and evicts entries from its segment as necessary. This is a
+     * noop if the key is no longer cached.
+     */
+    public void adjustSize (K key, int delta)
+    {
+        Segment<K, V> seg = segmentFor(key);
+        synchronized (seg) {
+            Entry<V> entry = seg.order.get(key);
+            if (entry != null) {
+                entry.size += delta;
+                seg.size += delta;
+                evict(seg, key);
+            }
+        }
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public void clear ()
+    {
+        for (Segment<K, V> seg : _segments) {
+            synchronized (seg) {
+                for (K key : seg.order.keySet()) {
+                    _map.remove(key);
+                }
+                seg.order.clear();
+                seg.size = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries in the cache.
+     */
+    public int size ()
+    {
+        return _map.size();
+    }
+
+    /**
+     * Returns the sum of the sizes of all cached entries.
+     */
+    public long getTotalSize ()
+    {
+        long total = 0;
+        for (Segment<K, V> seg : _segments) {
+            synchronized (seg) {
+                total += seg.size;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns a snapshot of the values currently in the cache.
+     */
+    public List<V> values ()
+    {
+        List<V> values = Lists.newArrayListWithCapacity(_map.size());
+        for (Entry<V> entry : _map.values()) {
+            values.add(entry.value);
+        }
+        return values;
+    }
+
+    /**
+     * Helper for {@link #put} and {@link #putIfAbsent}.
+     */
+    protected V put (K key, V value, boolean replace)
+    {
+        Segment<K, V> seg = segmentFor(key);
+        synchronized (seg) {
+            Entry<V> oentry = seg.order.get(key);
+            if (oentry != null && !replace) {
+                oentry.referenced = true;
+                return oentry.value;
+            }
+            Entry<V> entry = new Entry<V>(value, _sizer.computeSize(value));
+            if (oentry != null) {
+                seg.order.remove(key);
+                seg.size -= oentry.size;
+            }
+            seg.order.put(key, entry);
+            seg.size += entry.size;
+            _map.put(key, entry);
+            evict(seg, key);
+            return (oentry == null) ? null : oentry.value;
+        }
+    }
+
+    /**
+     * Evicts entries from the supplied segment until it is back under budget. The segment must
+     * be locked by the caller. The entry for <code>keep</code> is never evicted so that a single
+     * value larger than a segment's budget is still cached.
+     */
+    protected void evict (Segment<K, V> seg, K keep)
+    {
+        // each entry gets at most one second chance per eviction pass
+        int chances = seg.order.size();
+        while (seg.size > seg.maxSize && seg.order.size() > 1) {
+            K key = seg.order.keySet().iterator().next();
+            Entry<V> entry = seg.order.remove(key);
+            if ((entry.referenced && chances-- > 0) || key.equals(keep)) {
+                entry.referenced = false;
+                seg.order.put(key, entry);
+            } else {
+                _map.remove(key);
+                seg.size -= entry.size;
+            }
+        }
+    }
+
+    /**
+     * Returns the segment responsible for the specified key.
+     */
+    protected Segment<K, V> segmentFor (K key)
+    {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return _segments[(hash & Integer.MAX_VALUE) % _segments.length];
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static <K, V> Segment<K, V>[] createSegments (int count)
+    {
+        return new Segment[count];
+    }
+
+    /** Wraps a cached value along with its size and reference bit. */
+    protected static class Entry<V>
+    {
+        /** The cached value. */
+        public final V value;
+
+        /** The size of this entry, guarded by the owning segment's lock. */
+        public int size;
+
+        /** Set when the entry is read, cleared when the entry is given a second chance. */
+        public volatile boolean referenced;
+
+        public Entry (V value, int size)
+        {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /** Tracks eviction order and size for a subset of the cached keys. */
+    protected static class Segment<K, V>
+    {
+        /** Our entries, in the order they will be considered for eviction. */
+        public LinkedHashMap<K, Entry<V>> order = new LinkedHashMap<K, Entry<V>>();
+
+        /** The total size of our entries. */
+        public long size;
+
+        /** Our share of the cache's size budget. */
+        public final long maxSize;
+
+        public Segment (long maxSize)
+        {
+            this.maxSize = maxSize;
+        }
+    }
+
+    /** Maps keys to entries for lock free lookup. */
+    protected ConcurrentHashMap<K, Entry<V>> _map = new ConcurrentHashMap<K, Entry<V>>();
+
+    /** Our independently locked segments. */
+    protected Segment<K, V>[] _segments;
+
+    /** Used to compute the size of our entries. */
+    protected LRUHashMap.ItemSizer<V> _sizer;
+
+    /** Whether or not we're tracking hits and misses. */
+    protected volatile boolean _tracking;
+
+    /** Our tracked hit and miss counts. */
+    protected AtomicInteger _hits = new AtomicInteger(), _misses = new AtomicInteger();
+}
@@ -0,0 +1,286 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.cast;
+
+import java.util.Collections;
+import java.util.Iterator;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import com.samskivert.util.FileUtil;
+
+import com.threerings.media.image.Colorization;
+import com.threerings.media.image.ImageManager;
+
+import com.threerings.util.DirectionCodes;
+
+/**
+ * Tests that {@link DiskActionCache} stores and restores action frames intact, and trims itself.
+ */
+public class DiskActionCacheTest extends TestCase
+{
+    public DiskActionCacheTest ()
+    {
+        super(DiskActionCacheTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+        throws IOException
+    {
+        File dir = File.createTempFile("actions", "");
+        dir.delete();
+        try {
+            testCache(dir);
+        } finally {
+            FileUtil.recursiveDelete(dir);
+        }
+    }
+
+    protected void testCache (File dir)
+        throws IOException
+    {
+        ImageManager imgr = new ImageManager(null, new ImageManager.OptimalImageCreator() {
+            public BufferedImage createImage (int width, int height, int trans) {
+                return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            }
+        });
+        CharacterManager cmgr = new CharacterManager(imgr, new TestRepository());
+        CharacterDescriptor d1 = new CharacterDescriptor(new int[] { 1 }, null);
+        CharacterDescriptor d2 = new CharacterDescriptor(new int[] { 2 }, null);
+        TestFrames f1 = new TestFrames(Color.RED), f2 = new TestFrames(Color.BLUE);
+
+        // frames that are cached are restored exactly
+        DiskActionCache cache = new DiskActionCache(cmgr, dir, "1", Long.MAX_VALUE);
+        assertNull("uncached", cache.getActionFrames(d1, ACTION));
+        cache.cacheActionFrames(d1, ACTION, f1);
+        assertFrames(f1, cache.getActionFrames(d1, ACTION));
+        long size = cache._size;
+        assertTrue("size", size > 0);
+
+        // frames that cannot be indexed are not cached
+        cache.cacheActionFrames(d2, ACTION, new TestFrames(new Color(0, 0, 255, 128)));
+        assertNull("translucent", cache.getActionFrames(d2, ACTION));
+
+        // the frames are read again in a later session, and the cache sees frames cached by
+        // another session since it was created
+        DiskActionCache other = new DiskActionCache(cmgr, dir, "1", Long.MAX_VALUE);
+        cache.cacheActionFrames(d2, ACTION, f2);
+        assertFrames(f1, other.getActionFrames(d1, ACTION));
+        assertFrames(f2, other.getActionFrames(d2, ACTION));
+
+        // but not those of a different version of the media
+        assertNull("version", new DiskActionCache(cmgr, dir, "2", Long.MAX_VALUE).getActionFrames(
+                       d1, ACTION));
+
+        // only abandoned temporary files are cleared out
+        File fresh = new File(dir, "fresh" + DiskActionCache.TEMP_SUFFIX);
+        File stale = new File(dir, "stale" + DiskActionCache.TEMP_SUFFIX);
+        assertTrue("fresh", fresh.createNewFile());
+        assertTrue("stale", stale.createNewFile());
+        stale.setLastModified(System.currentTimeMillis() - 2 * DiskActionCache.TEMP_EXPIRY);
+        new DiskActionCache(cmgr, dir, "1", Long.MAX_VALUE);
+        assertTrue("fresh kept", fresh.exists());
+        assertFalse("stale deleted", stale.exists());
+        fresh.delete();
+
+        // a cache with room for only one action trims the least recently used when created
+        new File(dir, cache.getFileName(d1, ACTION)).setLastModified(0L);
+        cache = new DiskActionCache(cmgr, dir, "1", size + size/2);
+        assertEquals("pruned", 1, dir.listFiles().length);
+        assertNull("pruned first", cache.getActionFrames(d1, ACTION));
+        assertFrames(f2, cache.getActionFrames(d2, ACTION));
+
+        // and when it caches more
+        cache.cacheActionFrames(d1, ACTION, f1);
+        assertEquals("pruned again", 1, dir.listFiles().length);
+        assertNull("pruned second", cache.getActionFrames(d2, ACTION));
+        assertFrames(f1, cache.getActionFrames(d1, ACTION));
+    }
+
+    /**
+     * Checks that the supplied cached frames render exactly as do the originals.
+     */
+    protected void assertFrames (ActionFrames expect, ActionFrames frames)
+    {
+        assertNotNull("cached", frames);
+        assertEquals("orientations", expect.getOrientationCount(), frames.getOrientationCount());
+        for (int orient : ORIENTS) {
+            TrimmedMultiFrameImage eimages = expect.getFrames(orient);
+            TrimmedMultiFrameImage images = frames.getFrames(orient);
+            assertEquals("frames", eimages.getFrameCount(), images.getFrameCount());
+            for (int ii = 0; ii < eimages.getFrameCount(); ii++) {
+                int[] epixels = render(eimages, ii, expect.getXOrigin(orient, ii),
+                                       expect.getYOrigin(orient, ii));
+                int[] pixels = render(images, ii, frames.getXOrigin(orient, ii),
+                                      frames.getYOrigin(orient, ii));
+                for (int pp = 0; pp < epixels.length; pp++) {
+                    assertEquals("pixel", epixels[pp], pixels[pp]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Renders the specified frame with its origin at the center of an image, returning the
+     * image's pixels.
+     */
+    protected int[] render (TrimmedMultiFrameImage images, int index, int xorigin, int yorigin)
+    {
+        BufferedImage image = new BufferedImage(
+            FRAME_WIDTH * 2, FRAME_HEIGHT * 2, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            images.paintFrame(g, index, FRAME_WIDTH - xorigin, FRAME_HEIGHT - yorigin);
+        } finally {
+            g.dispose();
+        }
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0,
+                            image.getWidth());
+    }
+
+    /** Provides our one action. */
+    protected static class TestRepository
+        implements ComponentRepository
+    {
+        public CharacterComponent getComponent (int componentId) {
+            return null;
+        }
+
+        public CharacterComponent getComponent (String className, String compName) {
+            return null;
+        }
+
+        public ComponentClass getComponentClass (String className) {
+            return null;
+        }
+
+        public Iterator<ComponentClass> enumerateComponentClasses () {
+            return Collections.<ComponentClass>emptyList().iterator();
+        }
+
+        public Iterator<ActionSequence> enumerateActionSequences () {
+            ActionSequence actseq = new ActionSequence();
+            actseq.name = ACTION;
+            actseq.orients = ORIENTS;
+            return Collections.singletonList(actseq).iterator();
+        }
+
+        public Iterator<Integer> enumerateComponentIds (ComponentClass compClass) {
+            return Collections.<Integer>emptyList().iterator();
+        }
+    }
+
+    /** Frames in which a rectangle of the specified color moves about. */
+    protected static class TestFrames
+        implements ActionFrames, TrimmedMultiFrameImage
+    {
+        public TestFrames (Color color) {
+            _color = color;
+        }
+
+        public int getOrientationCount () {
+            return ORIENTS.length;
+        }
+
+        public TrimmedMultiFrameImage getFrames (int orient) {
+            return this;
+        }
+
+        public int getXOrigin (int orient, int frameIdx) {
+            return FRAME_WIDTH/2 + orient;
+        }
+
+        public int getYOrigin (int orient, int frameIdx) {
+            return FRAME_HEIGHT - frameIdx;
+        }
+
+        public ActionFrames cloneColorized (Colorization[] zations) {
+            throw new UnsupportedOperationException();
+        }
+
+        public ActionFrames cloneTranslated (int dx, int dy) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int getFrameCount () {
+            return FRAME_COUNT;
+        }
+
+        public int getWidth (int index) {
+            return FRAME_WIDTH;
+        }
+
+        public int getHeight (int index) {
+            return FRAME_HEIGHT;
+        }
+
+        public void paintFrame (Graphics2D g, int index, int x, int y) {
+            Rectangle bounds = new Rectangle();
+            getTrimmedBounds(index, bounds);
+            g.setColor(_color);
+            g.fillRect(x + bounds.x, y + bounds.y, bounds.width, bounds.height);
+            g.setColor(Color.BLACK);
+            g.drawRect(x + bounds.x, y + bounds.y, bounds.width - 1, bounds.height - 1);
+        }
+
+        public boolean hitTest (int index, int x, int y) {
+            Rectangle bounds = new Rectangle();
+            getTrimmedBounds(index, bounds);
+            return bounds.contains(x, y);
+        }
+
+        public void getTrimmedBounds (int index, Rectangle bounds) {
+            bounds.setBounds(index * 3, index * 2, FRAME_WIDTH/2 + index, FRAME_HEIGHT/2 - index);
+        }
+
+        protected Color _color;
+    }
+
+    public static Test suite ()
+    {
+        return new DiskActionCacheTest();
+    }
+
+    public static void main (String[] args)
+        throws IOException
+    {
+        DiskActionCacheTest test = new DiskActionCacheTest();
+        test.runTest();
+    }
+
+    /** The name of our action. */
+    protected static final String ACTION = "walk";
+
+    /** The orientations of our action. */
+    protected static final int[] ORIENTS = { DirectionCodes.NORTH, DirectionCodes.SOUTH };
+
+    /** The size and number of our frames. */
+    protected static final int FRAME_WIDTH = 40, FRAME_HEIGHT = 60, FRAME_COUNT = 4;
+}
@@ -0,0 +1,222 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Tests the {@link MediaIndex} class against a linear scan of its media.
+ */
+public class MediaIndexTest extends TestCase
+{
+    public MediaIndexTest ()
+    {
+        super(MediaIndexTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+    {
+        testDegenerate();
+
+        Random rando = new Random(11);
+        for (int ii = 0; ii < ROUNDS; ii++) {
+            testRandom(rando);
+        }
+    }
+
+    /**
+     * Checks that queries with no width or height find the media at their location.
+     */
+    protected void testDegenerate ()
+    {
+        MediaIndex index = new MediaIndex(CELL_SIZE);
+        TestMedia media = new TestMedia(new Rectangle(10, 10, 20, 20));
+        index.add(media);
+        index.add(new TestMedia(new Rectangle(-CELL_SIZE * 20, 0, CELL_SIZE * 40, 10)));
+        assertTrue("zero size", query(index, new Rectangle(15, 15, 0, 0)).contains(media));
+        assertTrue("zero width", query(index, new Rectangle(15, 5, 0, 20)).contains(media));
+        assertTrue("zero height", query(index, new Rectangle(5, 15, 20, 0)).contains(media));
+        assertTrue("negative", query(index, new Rectangle(15, 15, -5, -5)).contains(media));
+        assertFalse("elsewhere", query(index, new Rectangle(500, 500, 0, 0)).contains(media));
+    }
+
+    /**
+     * Adds, moves and removes random media, checking that every query returns at least the media
+     * found by a linear scan.
+     */
+    protected void testRandom (Random rando)
+    {
+        MediaIndex index = new MediaIndex(CELL_SIZE);
+        List<TestMedia> media = Lists.newArrayList();
+        for (int ii = 0; ii < OPERATIONS; ii++) {
+            int op = rando.nextInt(10);
+            if (op < 4 || media.isEmpty()) {
+                TestMedia added = new TestMedia(randomBounds(rando));
+                index.add(added);
+                media.add(added);
+
+            } else if (op < 6) {
+                // move a media and tell the index about it straight away
+                TestMedia moved = media.get(rando.nextInt(media.size()));
+                moved.getBounds().setBounds(randomBounds(rando));
+                index.update(moved);
+
+            } else if (op < 8) {
+                // move several media and then bring the whole index up to date
+                for (int mm = rando.nextInt(5); mm >= 0; mm--) {
+                    Rectangle bounds = media.get(rando.nextInt(media.size())).getBounds();
+                    bounds.translate(rando.nextInt(CELL_SIZE * 4) - CELL_SIZE * 2,
+                                     rando.nextInt(CELL_SIZE * 4) - CELL_SIZE * 2);
+                }
+                index.updateAll();
+
+            } else {
+                index.remove(media.remove(rando.nextInt(media.size())));
+            }
+
+            for (int qq = 0; qq < QUERIES; qq++) {
+                checkQuery(index, media, randomQuery(rando));
+            }
+        }
+
+        index.clear();
+        assertTrue("cleared", query(index, new Rectangle(-SPAN, -SPAN, SPAN*2, SPAN*2)).isEmpty());
+    }
+
+    /**
+     * Checks that the index returns every media that intersects the supplied region, and no
+     * media more than once.
+     */
+    protected void checkQuery (MediaIndex index, List<TestMedia> media, Rectangle region)
+    {
+        Map<AbstractMedia, Boolean> found = Maps.newIdentityHashMap();
+        for (AbstractMedia result : query(index, region)) {
+            assertNull("duplicate " + result, found.put(result, Boolean.TRUE));
+        }
+
+        // the old linear scan, with degenerate regions covering the pixel at their location
+        Rectangle covered = new Rectangle(
+            region.x, region.y, Math.max(region.width, 1), Math.max(region.height, 1));
+        for (TestMedia item : media) {
+            if (item.getBounds().intersects(covered)) {
+                assertTrue("missing " + item + " for " + region, found.containsKey(item));
+            }
+        }
+        for (AbstractMedia result : found.keySet()) {
+            assertTrue("removed " + result, media.contains(result));
+        }
+    }
+
+    protected static List<AbstractMedia> query (MediaIndex index, Rectangle region)
+    {
+        List<AbstractMedia> results = Lists.newArrayList();
+        index.getIntersecting(region, results);
+        return results;
+    }
+
+    /**
+     * Returns random media bounds, occasionally empty and occasionally large enough that the
+     * media is kept apart as oversized.
+     */
+    protected static Rectangle randomBounds (Random rando)
+    {
+        int x = rando.nextInt(SPAN * 2) - SPAN, y = rando.nextInt(SPAN * 2) - SPAN;
+        switch (rando.nextInt(10)) {
+        case 0:
+            return new Rectangle(x, y, 0, rando.nextInt(2));
+        case 1:
+            return new Rectangle(x, y, CELL_SIZE * (8 + rando.nextInt(12)),
+                                 CELL_SIZE * (8 + rando.nextInt(12)));
+        default:
+            return new Rectangle(x, y, 1 + rando.nextInt(CELL_SIZE * 3),
+                                 1 + rando.nextInt(CELL_SIZE * 3));
+        }
+    }
+
+    /**
+     * Returns a random query region, occasionally a single pixel or one with no width or height.
+     */
+    protected static Rectangle randomQuery (Random rando)
+    {
+        int x = rando.nextInt(SPAN * 2) - SPAN, y = rando.nextInt(SPAN * 2) - SPAN;
+        switch (rando.nextInt(4)) {
+        case 0:
+            return new Rectangle(x, y, 1, 1);
+        case 1:
+            return new Rectangle(x, y, rando.nextInt(2) * CELL_SIZE, 0);
+        default:
+            return new Rectangle(x, y, rando.nextInt(CELL_SIZE * 6), rando.nextInt(CELL_SIZE * 6));
+        }
+    }
+
+    /** Media that do nothing but occupy their bounds. */
+    protected static class TestMedia extends AbstractMedia
+    {
+        public TestMedia (Rectangle bounds) {
+            super(bounds);
+        }
+
+        @Override
+        public void tick (long tickStamp) {
+        }
+
+        @Override
+        public void paint (Graphics2D gfx) {
+        }
+    }
+
+    public static Test suite ()
+    {
+        return new MediaIndexTest();
+    }
+
+    public static void main (String[] args)
+    {
+        MediaIndexTest test = new MediaIndexTest();
+        test.runTest();
+    }
+
+    /** The size of the cells in our test indices. */
+    protected static final int CELL_SIZE = 32;
+
+    /** Our media and queries are located within this distance of the origin. */
+    protected static final int SPAN = CELL_SIZE * 30;
+
+    /** The number of random indices to test. */
+    protected static final int ROUNDS = 20;
+
+    /** The number of operations to perform on each index. */
+    protected static final int OPERATIONS = 500;
+
+    /** The number of random queries to check after each operation. */
+    protected static final int QUERIES = 5;
+}
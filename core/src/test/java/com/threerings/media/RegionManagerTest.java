@@ -0,0 +1,131 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media;
+
+import java.util.Random;
+
+import java.awt.EventQueue;
+import java.awt.Rectangle;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link RegionManager} class.
+ */
+public class RegionManagerTest extends TestCase
+{
+    public RegionManagerTest ()
+    {
+        super(RegionManagerTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+        throws Exception
+    {
+        // regions must be dirtied on the AWT thread
+        EventQueue.invokeAndWait(new Runnable() {
+            public void run () {
+                testRegions();
+            }
+        });
+    }
+
+    protected void testRegions ()
+    {
+        // widely separated regions coarsen the grid, but must not be painted at its resolution
+        RegionManager rmgr = new RegionManager();
+        rmgr.invalidateRegion(0, 0, 10, 10);
+        rmgr.invalidateRegion(10000, 10000, 10, 10);
+        Rectangle[] regions = rmgr.getDirtyRegions();
+        assertEquals("separated regions", 2, regions.length);
+        assertEquals("separated pixels", 200L, rmgr.getLastPaintedPixels());
+
+        // a region that is not aligned to the grid is not grown to fit it
+        rmgr.invalidateRegion(5, 7, 3, 2);
+        regions = rmgr.getDirtyRegions();
+        assertEquals("unaligned region", new Rectangle(5, 7, 3, 2), regions[0]);
+
+        // scattered regions are painted with no more than the allowed waste per region
+        Random rando = new Random(42);
+        for (int frame = 0; frame < 50; frame++) {
+            int count = 1 + rando.nextInt(20);
+            long area = 0;
+            for (int ii = 0; ii < count; ii++) {
+                int width = 1 + rando.nextInt(40), height = 1 + rando.nextInt(40);
+                rmgr.invalidateRegion(rando.nextInt(20000) - 10000, rando.nextInt(20000) - 10000,
+                                      width, height);
+                area += width * height;
+            }
+            rmgr.getDirtyRegions();
+            assertTrue("scattered pixels",
+                       rmgr.getLastPaintedPixels() <= area + count * REGION_COST);
+        }
+
+        // crowded regions are always covered, within our region limit
+        for (int frame = 0; frame < 200; frame++) {
+            int count = 1 + rando.nextInt(100);
+            boolean[] dirty = new boolean[SIZE*SIZE];
+            for (int ii = 0; ii < count; ii++) {
+                int x = rando.nextInt(SIZE - 1), y = rando.nextInt(SIZE - 1);
+                int width = 1 + rando.nextInt(Math.min(60, SIZE - x));
+                int height = 1 + rando.nextInt(Math.min(60, SIZE - y));
+                rmgr.invalidateRegion(x, y, width, height);
+                for (int yy = y; yy < y + height; yy++) {
+                    for (int xx = x; xx < x + width; xx++) {
+                        dirty[yy*SIZE + xx] = true;
+                    }
+                }
+            }
+            regions = rmgr.getDirtyRegions();
+            assertTrue("region limit", regions.length <= MAX_REGIONS);
+            for (Rectangle region : regions) {
+                assertTrue("within bounds", new Rectangle(0, 0, SIZE, SIZE).contains(region));
+                for (int yy = region.y; yy < region.y + region.height; yy++) {
+                    for (int xx = region.x; xx < region.x + region.width; xx++) {
+                        dirty[yy*SIZE + xx] = false;
+                    }
+                }
+            }
+            for (int ii = 0; ii < dirty.length; ii++) {
+                assertFalse("covered", dirty[ii]);
+            }
+        }
+    }
+
+    public static Test suite ()
+    {
+        return new RegionManagerTest();
+    }
+
+    public static void main (String[] args)
+        throws Exception
+    {
+        RegionManagerTest test = new RegionManagerTest();
+        test.runTest();
+    }
+
+    protected static final int SIZE = 400;
+
+    /** The region manager's default region cost and limit. */
+    protected static final int REGION_COST = 64*64;
+    protected static final int MAX_REGIONS = 32;
+}
@@ -0,0 +1,102 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.image;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link Quantize} class.
+ */
+public class QuantizeTest extends TestCase
+{
+    public QuantizeTest ()
+    {
+        super(QuantizeTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+    {
+        // an image with few enough colors is reproduced exactly, with transparent pixels at zero
+        int[] colors = { 0xFF000000, 0xFFFF0000, 0xFF00FF00, 0xFF0000FF, 0xFFFFFFFF };
+        int[] pixels = new int[SIZE*SIZE];
+        for (int ii = 0; ii < pixels.length; ii++) {
+            pixels[ii] = (ii % 7 == 0) ? 0 : colors[ii % colors.length];
+        }
+        int[] source = pixels.clone();
+        int[] cmap = Quantize.quantizeImage(pixels, 256);
+        assertEquals("colors", colors.length + 1, cmap.length);
+        for (int ii = 0; ii < pixels.length; ii++) {
+            if (source[ii] == 0) {
+                assertEquals("transparent", 0, pixels[ii]);
+            } else {
+                assertEquals("exact", source[ii], cmap[pixels[ii]]);
+            }
+        }
+
+        // many colors are reduced to the requested number
+        Random rando = new Random(42);
+        for (int ii = 0; ii < source.length; ii++) {
+            source[ii] = 0xFF000000 | ((ii % SIZE / 2) << 16) | ((ii / SIZE / 2) << 8) |
+                rando.nextInt(64);
+        }
+        pixels = source.clone();
+        cmap = Quantize.quantizeImage(pixels, 64);
+        assertTrue("reduced", cmap.length <= 64);
+
+        // the column-major form and parallel quantization produce the same results
+        int[][] columns = new int[SIZE][SIZE];
+        for (int ii = 0; ii < source.length; ii++) {
+            columns[ii / SIZE][ii % SIZE] = source[ii];
+        }
+        assertTrue("columns", Arrays.equals(cmap, Quantize.quantizeImage(columns, 64)));
+        for (int ii = 0; ii < pixels.length; ii++) {
+            assertEquals("column index", pixels[ii], columns[ii / SIZE][ii % SIZE]);
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(3);
+        try {
+            int[] ppixels = source.clone();
+            assertTrue("parallel", Arrays.equals(cmap, Quantize.quantizeImage(ppixels, 64, exec)));
+            assertTrue("parallel indices", Arrays.equals(pixels, ppixels));
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    public static Test suite ()
+    {
+        return new QuantizeTest();
+    }
+
+    public static void main (String[] args)
+    {
+        QuantizeTest test = new QuantizeTest();
+        test.runTest();
+    }
+
+    protected static final int SIZE = 512;
+}
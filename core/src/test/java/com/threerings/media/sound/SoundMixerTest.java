@@ -0,0 +1,147 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.sound;
+
+import java.util.Arrays;
+
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link SoundMixer} class, rendering headlessly.
+ */
+public class SoundMixerTest extends TestCase
+{
+    public SoundMixerTest ()
+    {
+        super(SoundMixerTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+    {
+        SoundMixer mixer = new SoundMixer(new AudioFormat(RATE, 16, 2, true, false), 2);
+        byte[] buf = new byte[FRAMES * 4];
+
+        // a constant mono sample panned hard left at half volume plays only on the left
+        short[] data = new short[FRAMES * 2];
+        Arrays.fill(data, (short)10000);
+        SoundMixer.Sample sample = new SoundMixer.Sample(data, 1, RATE);
+        Controls left = new Controls(0.5f, SoundPlayer.PAN_LEFT);
+        SoundMixer.Voice voice = mixer.play(sample, left, false, 0);
+        assertNotNull(voice);
+        mixer.render(buf, 0, buf.length);
+        assertEquals("left", 5000, getSample(buf, 0));
+        assertEquals("right", 0, getSample(buf, 1));
+
+        // a second voice sums with the first and volume changes apply to the next buffer
+        Controls center = new Controls(1f, SoundPlayer.PAN_CENTER);
+        assertNotNull(mixer.play(sample, center, true, 0));
+        left.setVolume(1f);
+        mixer.render(buf, 0, buf.length);
+        assertEquals("summed left", 20000, getSample(buf, 2));
+        assertEquals("summed right", 10000, getSample(buf, 3));
+
+        // the one-shot voice has now played out, leaving the looping voice
+        assertFalse("played out", voice.isPlaying());
+        assertEquals("active", 1, mixer.getActiveVoices());
+
+        // loud voices clip rather than wrapping
+        Controls loud = new Controls(1f, SoundPlayer.PAN_CENTER);
+        Arrays.fill(data, (short)30000);
+        mixer.play(sample, loud, false, 0);
+        mixer.render(buf, 0, buf.length);
+        assertEquals("clipped", Short.MAX_VALUE, getSample(buf, 0));
+
+        // with all voices in use, a lower priority voice can't steal a slot but a higher one can
+        assertNull("outranked", mixer.play(sample, center, false, -1));
+        SoundMixer.Voice urgent = mixer.play(sample, center, false, 1);
+        assertNotNull("stole", urgent);
+        assertEquals("active", 2, mixer.getActiveVoices());
+
+        // stopped voices fall silent
+        mixer.shutdown();
+        mixer.render(buf, 0, buf.length);
+        assertEquals("silent", 0, getSample(buf, 0));
+        assertFalse("stopped", urgent.isPlaying());
+
+        // samples survive a round trip through their stream form
+        try {
+            SoundMixer.Sample copy = SoundMixer.decode(sample.getStream());
+            assertEquals("channels", 1, copy.channels);
+            assertTrue("round trip", Arrays.equals(data, copy.data));
+        } catch (IOException ioe) {
+            fail("Exception: " + ioe);
+        }
+    }
+
+    protected static int getSample (byte[] buf, int idx)
+    {
+        return (short)((buf[2*idx] & 0xFF) | (buf[2*idx+1] << 8));
+    }
+
+    protected static class Controls implements SoundPlayer.Frob
+    {
+        public Controls (float volume, float pan)
+        {
+            _volume = volume;
+            _pan = pan;
+        }
+
+        public void stop () {
+        }
+
+        public void setVolume (float vol) {
+            _volume = vol;
+        }
+
+        public float getVolume () {
+            return _volume;
+        }
+
+        public void setPan (float pan) {
+            _pan = pan;
+        }
+
+        public float getPan () {
+            return _pan;
+        }
+
+        protected float _volume, _pan;
+    }
+
+    public static Test suite ()
+    {
+        return new SoundMixerTest();
+    }
+
+    public static void main (String[] args)
+    {
+        SoundMixerTest test = new SoundMixerTest();
+        test.runTest();
+    }
+
+    protected static final float RATE = 22050f;
+    protected static final int FRAMES = 256;
+}
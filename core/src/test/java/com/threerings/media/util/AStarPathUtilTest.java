@@ -0,0 +1,348 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import java.awt.Point;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import com.threerings.media.util.AStarPathUtil.ExtendedTraversalPred;
+import com.threerings.media.util.AStarPathUtil.PathBuffer;
+import com.threerings.media.util.AStarPathUtil.TraversalPred;
+
+import static com.threerings.media.util.AStarPathUtil.ADJACENT_COST;
+import static com.threerings.media.util.AStarPathUtil.DIAGONAL_COST;
+
+/**
+ * Tests the {@link AStarPathUtil} class.
+ */
+public class AStarPathUtilTest extends TestCase
+{
+    public AStarPathUtilTest ()
+    {
+        super(AStarPathUtilTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+    {
+        testCosts();
+        testPartial();
+        testLongest();
+        testExtended();
+        testReuse();
+    }
+
+    /**
+     * Checks the cost of paths through fixed grids.
+     */
+    protected void testCosts ()
+    {
+        Grid open = new Grid(OPEN);
+        assertEquals("straight", 9 * ADJACENT_COST, open.getCost(0, 0, 9, 0));
+        assertEquals("diagonal", 9 * DIAGONAL_COST, open.getCost(0, 0, 9, 9));
+        assertEquals("mixed", 3 * DIAGONAL_COST + 4 * ADJACENT_COST, open.getCost(2, 1, 9, 4));
+        assertEquals("same", 0, open.getCost(5, 5, 5, 5));
+
+        // the only way around the wall is through the gap at its end, and we may not cut the
+        // wall's corner on the way
+        Grid wall = new Grid(WALL);
+        assertEquals("around", 20 * ADJACENT_COST, wall.getCost(0, 0, 0, 2));
+
+        // the maze has more than one way through, only one of which is shortest
+        Grid maze = new Grid(MAZE);
+        assertEquals("maze", MAZE_COST, maze.getCost(0, 0, 9, 9));
+
+        // an enclosed goal cannot be reached
+        Grid pen = new Grid(PEN);
+        assertNull("enclosed", pen.getPath(0, 0, 7, 1, false));
+    }
+
+    /**
+     * Checks that partial paths get as close as possible to unreachable goals.
+     */
+    protected void testPartial ()
+    {
+        Grid pen = new Grid(PEN);
+        List<Point> path = pen.getPath(0, 0, 7, 1, true);
+        pen.checkPath(path, 0, 0);
+        assertEquals("closest", new Point(5, 1), path.get(path.size()-1));
+        assertEquals("cost", DIAGONAL_COST + 4 * ADJACENT_COST, pen.getCost(path));
+
+        // even if that is where we start
+        path = pen.getPath(5, 1, 7, 1, true);
+        assertEquals("closest start", 1, path.size());
+        assertEquals("closest start", new Point(5, 1), path.get(0));
+
+        // and a reachable goal is reached
+        path = pen.getPath(0, 0, 5, 2, true);
+        pen.checkPath(path, 0, 0);
+        assertEquals("reached", new Point(5, 2), path.get(path.size()-1));
+    }
+
+    /**
+     * Checks that paths longer than the longest allowable path are not found.
+     */
+    protected void testLongest ()
+    {
+        Grid open = new Grid(OPEN);
+        assertNotNull("long enough", open.getPath(0, 0, 9, 0, 9, false));
+        assertNull("too long", open.getPath(0, 0, 9, 0, 8, false));
+
+        // a partial path goes as far as it can
+        List<Point> path = open.getPath(0, 0, 9, 0, 8, true);
+        open.checkPath(path, 0, 0);
+        assertEquals("partial", new Point(8, 0), path.get(path.size()-1));
+
+        // diagonal steps use up more of the allowable path
+        assertNull("diagonal", open.getPath(0, 0, 6, 6, 8, false));
+        assertNotNull("diagonal", open.getPath(0, 0, 6, 6, 9, false));
+    }
+
+    /**
+     * Checks that extended traversal predicates are consulted with the source of each step.
+     */
+    protected void testExtended ()
+    {
+        // no one may move west along the top row
+        Grid oneway = new Grid(new String[] { ".....", "....." }) {
+            @Override
+            public boolean canTraverse (Object traverser, int sx, int sy, int dx, int dy) {
+                return canTraverse(traverser, dx, dy) && (dy != 0 || dx >= sx);
+            }
+        };
+        assertEquals("east", 4 * ADJACENT_COST, oneway.getCost(0, 0, 4, 0));
+        assertEquals("west", DIAGONAL_COST + 4 * ADJACENT_COST, oneway.getCost(4, 0, 0, 0));
+        List<Point> path = oneway.getPath(4, 0, 0, 0, false);
+        for (int ii = 1; ii < path.size(); ii++) {
+            Point from = path.get(ii-1), to = path.get(ii);
+            assertTrue("westward", to.y != 0 || to.x >= from.x);
+        }
+
+        // a grid of one row leaves us no way around
+        Grid narrow = new Grid(new String[] { "....." }) {
+            @Override
+            public boolean canTraverse (Object traverser, int sx, int sy, int dx, int dy) {
+                return canTraverse(traverser, dx, dy) && (dx >= sx);
+            }
+        };
+        assertNotNull("east", narrow.getPath(0, 0, 4, 0, false));
+        assertNull("west", narrow.getPath(4, 0, 0, 0, false));
+    }
+
+    /**
+     * Checks that a path buffer and the calling thread's search context may be reused, and that
+     * a traversal predicate may compute paths of its own in the middle of a search.
+     */
+    protected void testReuse ()
+    {
+        Grid maze = new Grid(MAZE);
+        PathBuffer buf = new PathBuffer();
+        assertTrue("found", maze.getPath(0, 0, 9, 9, buf));
+        List<Point> first = buf.toPoints();
+        int considered = AStarPathUtil.getConsidered();
+
+        // a failed search empties the buffer
+        Grid pen = new Grid(PEN);
+        assertFalse("failed", pen.getPath(0, 0, 7, 1, buf));
+        assertEquals("empty", 0, buf.size());
+
+        // a shorter path is not polluted by the longer one that preceded it
+        assertTrue("short", maze.getPath(0, 0, 1, 0, buf));
+        assertEquals("short size", 2, buf.size());
+        assertEquals("short end", new Point(1, 0), new Point(buf.getX(1), buf.getY(1)));
+
+        // a search large enough to grow the search context does not disturb those that follow
+        Grid big = new Grid(BIG_SIZE, BIG_SIZE);
+        assertEquals("big", (BIG_SIZE - 1) * DIAGONAL_COST,
+                     big.getCost(0, 0, BIG_SIZE - 1, BIG_SIZE - 1));
+        assertTrue("again", maze.getPath(0, 0, 9, 9, buf));
+        assertEquals("same path", first, buf.toPoints());
+        assertEquals("same considered", considered, AStarPathUtil.getConsidered());
+
+        // a predicate that computes its own paths gets a separate context
+        final Grid inner = new Grid(WALL);
+        Grid nested = new Grid(MAZE) {
+            @Override
+            public boolean canTraverse (Object traverser, int x, int y) {
+                assertEquals("inner", 20 * ADJACENT_COST, inner.getCost(0, 0, 0, 2));
+                return super.canTraverse(traverser, x, y);
+            }
+        };
+        assertEquals("nested", MAZE_COST, nested.getCost(0, 0, 9, 9));
+        assertTrue("after", maze.getPath(0, 0, 9, 9, buf));
+        assertEquals("after path", first, buf.toPoints());
+    }
+
+    /**
+     * A grid of tiles described by strings, in which '.' is traversable and anything else is not.
+     */
+    protected static class Grid
+        implements ExtendedTraversalPred
+    {
+        public Grid (String[] rows) {
+            _width = rows[0].length();
+            _height = rows.length;
+            _open = new boolean[_width][_height];
+            for (int yy = 0; yy < _height; yy++) {
+                for (int xx = 0; xx < _width; xx++) {
+                    _open[xx][yy] = (rows[yy].charAt(xx) == '.');
+                }
+            }
+        }
+
+        public Grid (int width, int height) {
+            _width = width;
+            _height = height;
+            _open = new boolean[width][height];
+            for (boolean[] column : _open) {
+                Arrays.fill(column, true);
+            }
+        }
+
+        public boolean canTraverse (Object traverser, int x, int y) {
+            return x >= 0 && y >= 0 && x < _width && y < _height && _open[x][y];
+        }
+
+        public boolean canTraverse (Object traverser, int sx, int sy, int dx, int dy) {
+            return canTraverse(traverser, dx, dy);
+        }
+
+        public List<Point> getPath (int ax, int ay, int bx, int by, boolean partial) {
+            return getPath(ax, ay, bx, by, LONGEST, partial);
+        }
+
+        public boolean getPath (int ax, int ay, int bx, int by, PathBuffer path) {
+            return AStarPathUtil.getPath(this, null, null, LONGEST, ax, ay, bx, by, false, path);
+        }
+
+        public List<Point> getPath (int ax, int ay, int bx, int by, int longest,
+                                    boolean partial) {
+            return AStarPathUtil.getPath(this, null, longest, ax, ay, bx, by, partial);
+        }
+
+        /**
+         * Returns the cost of the path found between the specified points, which must exist.
+         */
+        public int getCost (int ax, int ay, int bx, int by) {
+            List<Point> path = getPath(ax, ay, bx, by, false);
+            checkPath(path, ax, ay);
+            assertEquals("goal", new Point(bx, by), path.get(path.size()-1));
+            return getCost(path);
+        }
+
+        /**
+         * Checks that the supplied path starts at the specified point and takes only legal
+         * steps: to adjacent traversable tiles, without cutting corners.
+         */
+        public void checkPath (List<Point> path, int ax, int ay) {
+            assertNotNull("path", path);
+            assertEquals("start", new Point(ax, ay), path.get(0));
+            getCost(path);
+        }
+
+        /**
+         * Returns the cost of the supplied path, checking each step along the way.
+         */
+        public int getCost (List<Point> path) {
+            int cost = 0;
+            for (int ii = 1; ii < path.size(); ii++) {
+                Point from = path.get(ii-1), to = path.get(ii);
+                int dx = to.x - from.x, dy = to.y - from.y;
+                assertTrue("adjacent", Math.abs(dx) <= 1 && Math.abs(dy) <= 1 &&
+                           (dx != 0 || dy != 0));
+                assertTrue("traversable", canTraverse(null, to.x, to.y));
+                if (dx != 0 && dy != 0) {
+                    assertTrue("corner", canTraverse(null, from.x + dx, from.y) &&
+                               canTraverse(null, from.x, from.y + dy));
+                    cost += DIAGONAL_COST;
+                } else {
+                    cost += ADJACENT_COST;
+                }
+            }
+            return cost;
+        }
+
+        protected int _width, _height;
+        protected boolean[][] _open;
+    }
+
+    public static Test suite ()
+    {
+        return new AStarPathUtilTest();
+    }
+
+    public static void main (String[] args)
+    {
+        AStarPathUtilTest test = new AStarPathUtilTest();
+        test.runTest();
+    }
+
+    /** A longest path that won't get in our way. */
+    protected static final int LONGEST = 10000;
+
+    /** The size of a grid large enough to grow the search context. */
+    protected static final int BIG_SIZE = 200;
+
+    protected static final String[] OPEN = {
+        "..........",
+        "..........",
+        "..........",
+        "..........",
+        "..........",
+        "..........",
+        "..........",
+        "..........",
+        "..........",
+        "..........",
+    };
+
+    protected static final String[] WALL = {
+        "..........",
+        "#########.",
+        "..........",
+    };
+
+    /** The cost of the shortest path across the maze. */
+    protected static final int MAZE_COST = 9 * ADJACENT_COST + 6 * DIAGONAL_COST;
+
+    protected static final String[] MAZE = {
+        "..........",
+        "########..",
+        "..........",
+        "..######..",
+        "..#....#..",
+        "..#.##.#..",
+        "....##....",
+        "..######..",
+        "..........",
+        "..........",
+    };
+
+    protected static final String[] PEN = {
+        "......####",
+        "......#.##",
+        "......####",
+    };
+}
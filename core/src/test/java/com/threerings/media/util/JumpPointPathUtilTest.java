@@ -0,0 +1,219 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.util;
+
+import java.util.List;
+import java.util.Random;
+
+import java.awt.Point;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import com.threerings.media.util.AStarPathUtil.PathBuffer;
+import com.threerings.media.util.AStarPathUtil.TraversalPred;
+
+import static com.threerings.media.util.AStarPathUtil.ADJACENT_COST;
+import static com.threerings.media.util.AStarPathUtil.DIAGONAL_COST;
+
+/**
+ * Tests the {@link JumpPointPathUtil} class against {@link AStarPathUtil} on random grids.
+ */
+public class JumpPointPathUtilTest extends TestCase
+{
+    public JumpPointPathUtilTest ()
+    {
+        super(JumpPointPathUtilTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+    {
+        Random rando = new Random(SEED);
+        for (int ii = 0; ii < GRIDS; ii++) {
+            Tiles tiles = new Tiles(rando);
+            for (int jj = 0; jj < QUERIES; jj++) {
+                Point a = tiles.pickOpen(rando), b = tiles.pickOpen(rando);
+                testPath(tiles, a, b);
+                testPartial(tiles, a, b);
+                testLongest(tiles, a, b, rando);
+            }
+        }
+    }
+
+    /**
+     * Checks that jump point search finds a path if and only if A* does, and that it costs the
+     * same.
+     */
+    protected void testPath (Tiles tiles, Point a, Point b)
+    {
+        List<Point> astar = tiles.getAStarPath(a, b, false);
+        List<Point> jps = tiles.getJumpPointPath(a, b, false);
+        if (astar == null) {
+            assertNull("unreachable", jps);
+            return;
+        }
+        assertNotNull("reachable", jps);
+        assertEquals("goal", b, jps.get(jps.size()-1));
+        assertEquals("cost", tiles.getCost(astar, a), tiles.getCost(jps, a));
+    }
+
+    /**
+     * Checks that a partial path leads, along a shortest path, to a tile no farther from the goal
+     * than where we started and no closer than the best partial path found by A*.
+     */
+    protected void testPartial (Tiles tiles, Point a, Point b)
+    {
+        List<Point> astar = tiles.getAStarPath(a, b, true);
+        List<Point> jps = tiles.getJumpPointPath(a, b, true);
+        assertNotNull("partial", jps);
+        Point end = jps.get(jps.size()-1), best = astar.get(astar.size()-1);
+        if (best.equals(b)) {
+            assertEquals("reached", b, end);
+        }
+        assertTrue("closer", end.distance(b) <= a.distance(b));
+        assertTrue("closest", end.distance(b) >= best.distance(b));
+
+        // the path to the end must be as short as any other
+        List<Point> direct = tiles.getAStarPath(a, end, false);
+        assertEquals("partial cost", tiles.getCost(direct, a), tiles.getCost(jps, a));
+    }
+
+    /**
+     * Checks that jump point search respects the longest allowable path as A* does.
+     */
+    protected void testLongest (Tiles tiles, Point a, Point b, Random rando)
+    {
+        PathBuffer buf = new PathBuffer();
+        if (!AStarPathUtil.getPath(tiles, null, null, LONGEST, a.x, a.y, b.x, b.y, false, buf)) {
+            return;
+        }
+        int cost = tiles.getCost(buf.toPoints(), a);
+        int longest = Math.max(0, cost / ADJACENT_COST + rando.nextInt(3) - 1);
+        boolean found = JumpPointPathUtil.getPath(
+            tiles, null, longest, a.x, a.y, b.x, b.y, false, buf);
+        assertEquals("longest " + longest, cost <= longest * ADJACENT_COST, found);
+        if (found) {
+            assertEquals("longest cost", cost, tiles.getCost(buf.toPoints(), a));
+        } else {
+            assertEquals("empty", 0, buf.size());
+        }
+    }
+
+    /**
+     * A random grid of tiles, some of which are obstacles.
+     */
+    protected static class Tiles
+        implements TraversalPred
+    {
+        public Tiles (Random rando) {
+            _width = MIN_SIZE + rando.nextInt(MAX_SIZE - MIN_SIZE);
+            _height = MIN_SIZE + rando.nextInt(MAX_SIZE - MIN_SIZE);
+            _open = new boolean[_width][_height];
+            float density = rando.nextFloat() * MAX_DENSITY;
+            for (int xx = 0; xx < _width; xx++) {
+                for (int yy = 0; yy < _height; yy++) {
+                    _open[xx][yy] = (rando.nextFloat() >= density);
+                }
+            }
+        }
+
+        public boolean canTraverse (Object traverser, int x, int y) {
+            return x >= 0 && y >= 0 && x < _width && y < _height && _open[x][y];
+        }
+
+        /**
+         * Returns a random traversable tile.
+         */
+        public Point pickOpen (Random rando) {
+            while (true) {
+                int x = rando.nextInt(_width), y = rando.nextInt(_height);
+                if (_open[x][y]) {
+                    return new Point(x, y);
+                }
+            }
+        }
+
+        public List<Point> getAStarPath (Point a, Point b, boolean partial) {
+            return AStarPathUtil.getPath(this, null, LONGEST, a.x, a.y, b.x, b.y, partial);
+        }
+
+        public List<Point> getJumpPointPath (Point a, Point b, boolean partial) {
+            return JumpPointPathUtil.getPath(this, null, LONGEST, a.x, a.y, b.x, b.y, partial);
+        }
+
+        /**
+         * Returns the cost of the supplied path, checking that it starts at the specified point
+         * and takes only legal steps: to adjacent traversable tiles, without cutting corners.
+         */
+        public int getCost (List<Point> path, Point start) {
+            assertNotNull("path", path);
+            assertEquals("start", start, path.get(0));
+            int cost = 0;
+            for (int ii = 1; ii < path.size(); ii++) {
+                Point from = path.get(ii-1), to = path.get(ii);
+                int dx = to.x - from.x, dy = to.y - from.y;
+                assertTrue("adjacent", Math.abs(dx) <= 1 && Math.abs(dy) <= 1 &&
+                           (dx != 0 || dy != 0));
+                assertTrue("traversable", canTraverse(null, to.x, to.y));
+                if (dx != 0 && dy != 0) {
+                    assertTrue("corner", canTraverse(null, from.x + dx, from.y) &&
+                               canTraverse(null, from.x, from.y + dy));
+                    cost += DIAGONAL_COST;
+                } else {
+                    cost += ADJACENT_COST;
+                }
+            }
+            return cost;
+        }
+
+        protected int _width, _height;
+        protected boolean[][] _open;
+    }
+
+    public static Test suite ()
+    {
+        return new JumpPointPathUtilTest();
+    }
+
+    public static void main (String[] args)
+    {
+        JumpPointPathUtilTest test = new JumpPointPathUtilTest();
+        test.runTest();
+    }
+
+    /** The seed for our random grids, so that failures are reproducible. */
+    protected static final long SEED = 2012L;
+
+    /** The number of random grids to search. */
+    protected static final int GRIDS = 200;
+
+    /** The number of random searches to perform on each grid. */
+    protected static final int QUERIES = 10;
+
+    /** The bounds on the dimensions of our random grids. */
+    protected static final int MIN_SIZE = 4, MAX_SIZE = 40;
+
+    /** The largest fraction of a grid's tiles that may be obstacles. */
+    protected static final float MAX_DENSITY = 0.45f;
+
+    /** A longest path that won't get in our way. */
+    protected static final int LONGEST = 10000;
+}
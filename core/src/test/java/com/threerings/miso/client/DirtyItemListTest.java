@@ -0,0 +1,279 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.miso.client;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import com.threerings.media.sprite.Sprite;
+
+import com.threerings.miso.client.DirtyItemList.DirtyItem;
+
+/**
+ * Tests that {@link DirtyItemList#sort} renders overlapping items in the order required by its
+ * render comparator.
+ */
+public class DirtyItemListTest extends TestCase
+{
+    public DirtyItemListTest ()
+    {
+        super(DirtyItemListTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+    {
+        int checked = 0;
+        for (int scene = 0; scene < SCENES; scene++) {
+            checked += testScene(new Random(scene));
+        }
+        assertTrue("checked constraints", checked > 0);
+    }
+
+    /**
+     * Sorts a crowded scene of randomly placed sprites and checks the resulting order.
+     *
+     * @return the number of pairs of items whose order was checked.
+     */
+    protected int testScene (Random rando)
+    {
+        DirtyItemList list = new DirtyItemList();
+        int size = MIN_ITEMS + rando.nextInt(MAX_ITEMS - MIN_ITEMS + 1);
+        int[][] tiles = new int[SCENE_SIZE][SCENE_SIZE];
+        for (int ii = 0; ii < size; ii++) {
+            int tx, ty, bwid, bhei;
+            do {
+                tx = rando.nextInt(SCENE_SIZE);
+                ty = rando.nextInt(SCENE_SIZE);
+                bwid = bhei = 1;
+                if (rando.nextInt(4) == 0) {
+                    bwid += rando.nextInt(3);
+                    bhei += rando.nextInt(3);
+                }
+            } while (!place(tiles, tx, ty, bwid, bhei));
+            TestSprite sprite = new TestSprite(bwid, bhei);
+            if (rando.nextInt(8) == 0) {
+                sprite.setRenderOrder(rando.nextInt(3) - 1);
+            }
+
+            // lay the sprite out over its footprint isometrically, nudging each down by its index
+            // so that sprites sharing a tile are never level with one another
+            int sx = (tx - ty - bwid) * TILE_HWID;
+            int sy = (tx + ty + 2) * TILE_HHEI - sprite.getHeight() + ii;
+            sprite.setLocation(sx, sy);
+            list.appendDirtySprite(sprite, tx, ty);
+        }
+
+        // note the items in the rear-depth order in which the sort compares them
+        DirtyItem[] items = new DirtyItem[size];
+        for (int ii = 0; ii < size; ii++) {
+            items[ii] = list.get(ii);
+        }
+        Arrays.sort(items, DirtyItemList.REAR_DEPTH_COMP);
+        list.sort();
+        assertEquals("sorted size", size, list.size());
+
+        // note where each item ended up, making sure that none were lost or duplicated
+        int[] order = new int[size];
+        boolean[] seen = new boolean[size];
+        for (int ii = 0; ii < size; ii++) {
+            int idx = indexOf(items, list.get(ii));
+            assertFalse("duplicate item", seen[idx]);
+            seen[idx] = true;
+            order[idx] = ii;
+        }
+
+        // the comparator consults the origin sorted lists, which the sort clears when it's done
+        for (DirtyItem item : items) {
+            list._xitems.add(item);
+            list._yitems.add(item);
+        }
+        list._xitems.sort(DirtyItemList.ORIGIN_X_COMP);
+        list._yitems.sort(DirtyItemList.ORIGIN_Y_COMP);
+
+        // determine which overlapping items must be rendered behind which others; the comparator
+        // needn't agree with itself when its arguments are swapped, so we pass the front-most
+        // item first, as does the sort
+        boolean[][] behind = new boolean[size][size];
+        int[] fronts = new int[size];
+        for (int ii = 0; ii < size; ii++) {
+            for (int jj = 0; jj < ii; jj++) {
+                if (!items[ii].getBounds().intersects(items[jj].getBounds())) {
+                    continue;
+                }
+                int result = list._rcomp.compare(items[ii], items[jj]);
+                if (result > 0) {
+                    behind[jj][ii] = true;
+                    fronts[ii]++;
+                } else if (result < 0) {
+                    behind[ii][jj] = true;
+                    fronts[jj]++;
+                }
+            }
+        }
+        list._xitems.clear();
+        list._yitems.clear();
+
+        // should those constraints contradict one another, there's no one right order for the
+        // items in or in front of the cycle, but every other item must follow those behind it
+        boolean[] ordered = findOrdered(behind, fronts);
+        int checked = 0;
+        for (int ii = 0; ii < size; ii++) {
+            for (int jj = 0; jj < size; jj++) {
+                if (!behind[ii][jj] || !ordered[jj]) {
+                    continue;
+                }
+                if (order[ii] > order[jj]) {
+                    fail("Misordered items [behind=" + items[ii] + " (" + order[ii] +
+                         "), front=" + items[jj] + " (" + order[jj] + ")].");
+                }
+                checked++;
+            }
+        }
+        return checked;
+    }
+
+    /**
+     * Places a sprite with the specified footprint if it fits. Any number of sprites may crowd
+     * onto a single tile, but as with scene objects, the footprint of a multi-tile sprite may not
+     * overlap that of any other sprite.
+     *
+     * @return true if the sprite was placed, false if it did not fit.
+     */
+    protected static boolean place (int[][] tiles, int tx, int ty, int bwid, int bhei)
+    {
+        if (bwid == 1 && bhei == 1) {
+            if (tiles[tx][ty] == MULTI_TILE) {
+                return false;
+            }
+            tiles[tx][ty] = SINGLE_TILE;
+            return true;
+        }
+
+        if (tx < bwid - 1 || ty < bhei - 1) {
+            return false;
+        }
+        for (int xx = tx - bwid + 1; xx <= tx; xx++) {
+            for (int yy = ty - bhei + 1; yy <= ty; yy++) {
+                if (tiles[xx][yy] != EMPTY_TILE) {
+                    return false;
+                }
+            }
+        }
+        for (int xx = tx - bwid + 1; xx <= tx; xx++) {
+            for (int yy = ty - bhei + 1; yy <= ty; yy++) {
+                tiles[xx][yy] = MULTI_TILE;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Determines which items are neither in nor in front of a cycle of constraints. The supplied
+     * counts of constraints on each item are consumed in the process.
+     */
+    protected static boolean[] findOrdered (boolean[][] behind, int[] fronts)
+    {
+        int size = fronts.length;
+        boolean[] ordered = new boolean[size];
+        for (boolean progress = true; progress; ) {
+            progress = false;
+            for (int ii = 0; ii < size; ii++) {
+                if (ordered[ii] || fronts[ii] > 0) {
+                    continue;
+                }
+                ordered[ii] = true;
+                progress = true;
+                for (int jj = 0; jj < size; jj++) {
+                    if (behind[ii][jj]) {
+                        fronts[jj]--;
+                    }
+                }
+            }
+        }
+        return ordered;
+    }
+
+    protected static int indexOf (DirtyItem[] items, DirtyItem item)
+    {
+        for (int ii = 0; ii < items.length; ii++) {
+            if (items[ii] == item) {
+                return ii;
+            }
+        }
+        fail("Unknown item in sorted list [item=" + item + "].");
+        return -1;
+    }
+
+    public static Test suite ()
+    {
+        return new DirtyItemListTest();
+    }
+
+    public static void main (String[] args)
+    {
+        DirtyItemListTest test = new DirtyItemListTest();
+        test.runTest();
+    }
+
+    /** A sprite that occupies a footprint of the specified size. */
+    protected static class TestSprite extends Sprite
+        implements MultiTileSprite
+    {
+        public TestSprite (int bwid, int bhei) {
+            super((bwid + bhei) * TILE_HWID, (bwid + bhei) * TILE_HHEI + SPRITE_HEIGHT);
+            _bwid = bwid;
+            _bhei = bhei;
+        }
+
+        // documentation inherited from interface
+        public int getBaseWidth () {
+            return _bwid;
+        }
+
+        // documentation inherited from interface
+        public int getBaseHeight () {
+            return _bhei;
+        }
+
+        protected int _bwid, _bhei;
+    }
+
+    /** The number of fixed scenes to sort. */
+    protected static final int SCENES = 50;
+
+    /** The range of the number of sprites in each scene. */
+    protected static final int MIN_ITEMS = 20, MAX_ITEMS = 150;
+
+    /** The width and height in tiles of the area in which the sprites are placed. */
+    protected static final int SCENE_SIZE = 10;
+
+    /** The states of the tiles on which we place sprites. */
+    protected static final int EMPTY_TILE = 0, SINGLE_TILE = 1, MULTI_TILE = 2;
+
+    /** Half the dimensions of a tile on screen. */
+    protected static final int TILE_HWID = 32, TILE_HHEI = 16;
+
+    /** The height of each sprite above its footprint. */
+    protected static final int SPRITE_HEIGHT = 48;
+}
@@ -0,0 +1,146 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.miso.data;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import java.awt.Rectangle;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import com.threerings.miso.util.ObjectSet;
+
+/**
+ * Tests the object storage of the {@link SparseMisoSceneModel} class against a simple list of
+ * objects.
+ */
+public class SparseMisoSceneModelTest extends TestCase
+{
+    public SparseMisoSceneModelTest ()
+    {
+        super(SparseMisoSceneModelTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+    {
+        // objects are crowded onto few tiles (and tile ids) so that adds and removes collide
+        Random rando = new Random(3);
+        SparseMisoSceneModel model = new SparseMisoSceneModel(32, 32);
+        List<ObjectInfo> objects = Lists.newArrayList();
+        for (int ii = 0; ii < ITERATIONS; ii++) {
+            int op = rando.nextInt(10);
+            if (op < 6) {
+                ObjectInfo info = randomObject(rando);
+                if (rando.nextBoolean()) {
+                    info.priority = 1;
+                }
+                boolean added = model.addObject(info);
+                assertEquals("add " + info, !objects.contains(info), added);
+                if (added) {
+                    objects.add(info);
+                }
+
+            } else if (op < 9) {
+                ObjectInfo info = (objects.isEmpty() || rando.nextInt(4) == 0) ?
+                    randomObject(rando) : objects.get(rando.nextInt(objects.size()));
+                boolean removed = model.removeObject(new ObjectInfo(info.tileId, info.x, info.y));
+                assertEquals("remove " + info, objects.contains(info), removed);
+                objects.remove(info);
+
+            } else {
+                // both small regions (which use the tile index) and large regions (which scan)
+                Rectangle region = new Rectangle(
+                    rando.nextInt(120) - 40, rando.nextInt(120) - 40,
+                    rando.nextInt(rando.nextBoolean() ? 5 : 80), rando.nextInt(40));
+                ObjectSet set = new ObjectSet();
+                model.getObjects(region, set);
+                Set<ObjectInfo> expect = Sets.newHashSet();
+                for (ObjectInfo info : objects) {
+                    if (region.contains(info.x, info.y)) {
+                        expect.add(info);
+                    }
+                }
+                assertEquals("query " + region, expect.size(), set.size());
+                for (int jj = 0; jj < set.size(); jj++) {
+                    ObjectInfo info = set.get(jj);
+                    assertTrue("query " + region, expect.contains(info));
+                    assertEquals("interesting " + info,
+                                 objects.get(objects.indexOf(info)).isInteresting(),
+                                 info.isInteresting());
+                }
+            }
+
+            if (ii % 3000 == 0) {
+                checkAllObjects(model, objects);
+            }
+        }
+        checkAllObjects(model, objects);
+    }
+
+    /**
+     * Checks that a clone of the supplied model and its compacted sections contain exactly the
+     * supplied objects.
+     */
+    protected void checkAllObjects (SparseMisoSceneModel model, List<ObjectInfo> objects)
+    {
+        ArrayList<ObjectInfo> all = Lists.newArrayList();
+        model.clone().getAllObjects(all);
+        assertEquals("all objects", objects.size(), all.size());
+        assertEquals("all objects", new HashSet<ObjectInfo>(objects), new HashSet<ObjectInfo>(all));
+
+        int count = 0;
+        for (Iterator<SparseMisoSceneModel.Section> iter = model.getSections(); iter.hasNext(); ) {
+            SparseMisoSceneModel.Section sect = iter.next();
+            for (ObjectInfo info : sect.objectInfo) {
+                assertNotNull("compacted", info);
+            }
+            count += sect.objectInfo.length + sect.objectTileIds.length;
+        }
+        assertEquals("compacted", objects.size(), count);
+    }
+
+    protected static ObjectInfo randomObject (Random rando)
+    {
+        return new ObjectInfo(rando.nextInt(3), rando.nextInt(100) - 30, rando.nextInt(100) - 30);
+    }
+
+    public static Test suite ()
+    {
+        return new SparseMisoSceneModelTest();
+    }
+
+    public static void main (String[] args)
+    {
+        SparseMisoSceneModelTest test = new SparseMisoSceneModelTest();
+        test.runTest();
+    }
+
+    protected static final int ITERATIONS = 30000;
+}
@@ -0,0 +1,296 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.miso.tile;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.samskivert.util.LRUHashMap;
+
+import com.threerings.media.tile.Tile;
+import com.threerings.media.tile.TileManager;
+import com.threerings.media.tile.TileUtil;
+
+import com.threerings.miso.data.SparseMisoSceneModel;
+
+import com.threerings.miso.tile.AutoFringer.FringeTile;
+
+/**
+ * Tests that the fringe keys computed by {@link AutoFringer} (and recorded by {@link FringeMap})
+ * identify the same fringes as a straightforward computation of the fringe of each tile.
+ */
+public class AutoFringerTest extends TestCase
+{
+    public AutoFringerTest ()
+    {
+        super(AutoFringerTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+    {
+        // base tilesets 1 through 7 fringe, with increasing priority, via one to three fringe
+        // tilesets (some of them masks); base tileset 8 does not fringe
+        _conf = new FringeConfiguration();
+        for (int tsid = 1; tsid <= 7; tsid++) {
+            FringeConfiguration.FringeRecord frec = new FringeConfiguration.FringeRecord();
+            frec.base_tsid = tsid;
+            frec.priority = tsid * 3;
+            for (int ii = 0, ll = 1 + tsid % 3; ii < ll; ii++) {
+                FringeConfiguration.FringeTileSetRecord tsr =
+                    new FringeConfiguration.FringeTileSetRecord();
+                tsr.fringe_tsid = 100 + tsid * 10 + ii;
+                tsr.mask = (ii % 2 == 1);
+                frec.addTileset(tsr);
+            }
+            _conf.addFringeRecord(frec);
+        }
+
+        // tiles outside of the scene's sections use the default base tileset, which fringes
+        Random rando = new Random(7);
+        SparseMisoSceneModel scene = new SparseMisoSceneModel(16, 16);
+        scene.setDefaultBaseTileSet(2);
+        for (int yy = MIN; yy < MAX; yy++) {
+            for (int xx = MIN; xx < MAX; xx++) {
+                if (rando.nextInt(10) != 0) {
+                    scene.setBaseTile(randomTileId(rando), xx, yy);
+                }
+            }
+        }
+
+        AutoFringer fringer = new AutoFringer(_conf, null, new TestTileManager());
+        FringeMap map = new FringeMap(fringer, scene);
+        Map<FringeTile, FringeTile> interned = Maps.newHashMap();
+        for (int yy = MIN - 2; yy < MAX + 2; yy++) {
+            for (int xx = MIN - 2; xx < MAX + 2; xx++) {
+                checkFringe(fringer, map, interned, scene, xx, yy);
+            }
+        }
+
+        // a map that retains few regions recomputes those it discarded, to the same effect
+        FringeMap small = new FringeMap(fringer, scene);
+        small._regions = new LRUHashMap<Integer, int[]>(2);
+        Map<FringeTile, FringeTile> sinterned = Maps.newHashMap();
+        for (int yy = MIN - 2; yy < MAX + 2; yy++) {
+            for (int xx = MIN - 2; xx < MAX + 2; xx++) {
+                checkFringe(fringer, small, sinterned, scene, xx, yy);
+                assertTrue("retained", small._regions.size() <= 2);
+            }
+        }
+
+        // changing a base tile changes the fringes of its neighbors
+        for (int ii = 0; ii < 500; ii++) {
+            int x = MIN + rando.nextInt(MAX - MIN), y = MIN + rando.nextInt(MAX - MIN);
+            scene.setBaseTile(randomTileId(rando), x, y);
+            map.baseTileChanged(x, y);
+            for (int yy = y - 1; yy <= y + 1; yy++) {
+                for (int xx = x - 1; xx <= x + 1; xx++) {
+                    checkFringe(fringer, map, interned, scene, xx, yy);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the fringe computed for the specified tile by the fringer and recorded by the map
+     * against the expected fringe.
+     */
+    protected void checkFringe (AutoFringer fringer, FringeMap map,
+                                Map<FringeTile, FringeTile> interned,
+                                SparseMisoSceneModel scene, int x, int y)
+    {
+        String where = x + "," + y;
+        boolean[] passable = new boolean[1];
+        long[] expect = getExpectedFringe(scene, x, y, passable);
+        FringeTile key = fringer.getFringeKey(scene, x, y);
+        if (expect == null) {
+            assertNull("unfringed " + where, key);
+        } else {
+            assertNotNull("fringed " + where, key);
+            assertEquals("fringe " + where, Arrays.toString(expect),
+                         Arrays.toString(key.getFringeId()));
+            assertEquals("passable " + where, passable[0], key.isPassable());
+        }
+
+        // the map only records the fringes of tiles that have a base tile
+        FringeTile mkey = map.getFringeKey(x, y);
+        if (scene.getBaseTileId(x, y) <= 0 || key == null) {
+            assertNull("map unfringed " + where, mkey);
+            return;
+        }
+        assertEquals("map fringe " + where, key, mkey);
+        assertEquals("map passable " + where, key.isPassable(), mkey.isPassable());
+
+        // and records each distinct fringe only once
+        FringeTile ikey = interned.get(mkey);
+        if (ikey == null) {
+            interned.put(mkey, mkey);
+        } else {
+            assertSame("interned " + where, ikey, mkey);
+        }
+    }
+
+    /**
+     * Computes the components of the fringe of the specified tile (in the order in which they
+     * are drawn) and its passability, or returns null if the tile is not fringed.
+     */
+    protected long[] getExpectedFringe (
+        SparseMisoSceneModel scene, int col, int row, boolean[] passable)
+    {
+        // determine the fringe bits of each base tileset that fringes on our tile
+        final int underset = scene.getBaseTileId(col, row) >> 16;
+        Map<Integer, Integer> bits = Maps.newHashMap();
+        passable[0] = true;
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                if (dx == 0 && dy == 0) {
+                    continue;
+                }
+                int btid = scene.getBaseTileId(col + dx, row + dy);
+                int baseset = (btid <= 0) ? scene.getDefaultBaseTileSet() : (btid >> 16);
+                if (_conf.fringesOn(baseset, underset) == -1) {
+                    continue;
+                }
+                Integer obits = bits.get(baseset);
+                int nbits = AutoFringer.FLAGMATRIX[dy+1][dx+1];
+                bits.put(baseset, (obits == null) ? nbits : (obits | nbits));
+                // default base tiles never make us impassable
+                if (btid > 0 && (btid >> 16) == IMPASSABLE_SET) {
+                    passable[0] = false;
+                }
+            }
+        }
+        if (bits.isEmpty()) {
+            return null;
+        }
+
+        // the lowest priority fringes are drawn first
+        List<Integer> basesets = Lists.newArrayList(bits.keySet());
+        Collections.sort(basesets, new Comparator<Integer>() {
+            public int compare (Integer b1, Integer b2) {
+                return _conf.fringesOn(b1, underset) - _conf.fringesOn(b2, underset);
+            }
+        });
+        List<Long> components = Lists.newArrayList();
+        for (int baseset : basesets) {
+            FringeConfiguration.FringeTileSetRecord tsr =
+                _conf.getFringe(baseset, TileUtil.getTileHash(col, row));
+            for (int index : getFringeIndexes(bits.get(baseset))) {
+                components.add((((long)baseset) << 32) | (tsr.fringe_tsid << 16) |
+                               (tsr.mask ? (1 << 15) : 0) | index);
+            }
+        }
+        long[] fringe = new long[components.size()];
+        for (int ii = 0; ii < fringe.length; ii++) {
+            fringe[ii] = components.get(ii);
+        }
+        return fringe;
+    }
+
+    /**
+     * Returns the indices of the fringe tiles for the specified bits: the tile for all of them,
+     * if there is one, or otherwise those for each contiguous run of bits (where they exist),
+     * starting with the run after the first unset bit.
+     */
+    protected static List<Integer> getFringeIndexes (int bits)
+    {
+        List<Integer> indexes = Lists.newArrayList();
+        int index = AutoFringer.BITS_TO_INDEX[bits];
+        if (index != -1) {
+            indexes.add(index);
+            return indexes;
+        }
+        int start = 0;
+        while (start < BITS && (bits & (1 << start)) != 0) {
+            start++;
+        }
+        if (start == BITS) {
+            return indexes;
+        }
+        int run = 0;
+        for (int ii = 1; ii <= BITS; ii++) {
+            int bit = 1 << ((start + ii) % BITS);
+            if ((bits & bit) != 0) {
+                run |= bit;
+            } else if (run != 0) {
+                if (AutoFringer.BITS_TO_INDEX[run] != -1) {
+                    indexes.add(AutoFringer.BITS_TO_INDEX[run]);
+                }
+                run = 0;
+            }
+        }
+        return indexes;
+    }
+
+    protected static int randomTileId (Random rando)
+    {
+        return TileUtil.getFQTileId(1 + rando.nextInt(8), 0);
+    }
+
+    public static Test suite ()
+    {
+        return new AutoFringerTest();
+    }
+
+    public static void main (String[] args)
+    {
+        AutoFringerTest test = new AutoFringerTest();
+        test.runTest();
+    }
+
+    /** Supplies base tiles that are passable unless they are from {@link #IMPASSABLE_SET}. */
+    protected static class TestTileManager extends TileManager
+    {
+        public TestTileManager ()
+        {
+            super(null);
+        }
+
+        @Override
+        public Tile getTile (int fqTileId)
+        {
+            BaseTile tile = new BaseTile();
+            tile.setPassable(TileUtil.getTileSetId(fqTileId) != IMPASSABLE_SET);
+            return tile;
+        }
+    }
+
+    protected FringeConfiguration _conf;
+
+    /** The bounds of the base tiles placed in our scene. */
+    protected static final int MIN = -20, MAX = 44;
+
+    /** The base tileset whose tiles are impassable. */
+    protected static final int IMPASSABLE_SET = 5;
+
+    /** The number of fringe bits. */
+    protected static final int BITS = 8;
+}
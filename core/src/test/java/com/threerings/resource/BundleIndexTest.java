@@ -0,0 +1,133 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.resource;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import com.samskivert.io.StreamUtil;
+
+/**
+ * Tests the {@link BundleIndex} class.
+ */
+public class BundleIndexTest extends TestCase
+{
+    public BundleIndexTest ()
+    {
+        super(BundleIndexTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+    {
+        File jar = null, index = null;
+        try {
+            jar = File.createTempFile("bundleindex", ".jar");
+            index = new File(jar.getPath() + BundleIndex.FILE_SUFFIX);
+
+            // create a jar with a mix of stored and deflated entries
+            Random rando = new Random(42);
+            byte[][] data = new byte[ENTRIES][];
+            JarOutputStream jout = new JarOutputStream(new FileOutputStream(jar));
+            for (int ii = 0; ii < ENTRIES; ii++) {
+                data[ii] = new byte[rando.nextInt(4096)];
+                // make the data somewhat compressible
+                for (int bb = 0; bb < data[ii].length; bb++) {
+                    data[ii][bb] = (byte)rando.nextInt(8);
+                }
+                JarEntry entry = new JarEntry(getPath(ii));
+                if (ii % 2 == 0) {
+                    CRC32 crc = new CRC32();
+                    crc.update(data[ii]);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data[ii].length);
+                    entry.setCrc(crc.getValue());
+                }
+                jout.putNextEntry(entry);
+                jout.write(data[ii]);
+                jout.closeEntry();
+            }
+            jout.close();
+
+            BundleIndex bindex = BundleIndex.build(jar, index);
+            assertNotNull("index reloads", BundleIndex.load(index, jar));
+            for (int ii = 0; ii < ENTRIES; ii++) {
+                int entry = bindex.find(getPath(ii));
+                assertTrue("found " + getPath(ii), entry >= 0);
+                assertEquals("path", getPath(ii), bindex.getPath(entry));
+                assertEquals("method", (ii % 2 == 0) ? BundleIndex.STORED : BundleIndex.DEFLATED,
+                             bindex.getMethod(entry));
+                InputStream in = bindex.openStream(entry, jar);
+                try {
+                    assertTrue("contents " + getPath(ii),
+                               Arrays.equals(data[ii], StreamUtil.toByteArray(in)));
+                } finally {
+                    StreamUtil.close(in);
+                }
+            }
+            assertEquals("missing path", -1, bindex.find("no/such/path.png"));
+
+            // an index is stale once its jar file is modified
+            assertTrue(jar.setLastModified(jar.lastModified() - 10000L));
+            assertNull("stale index", BundleIndex.load(index, jar));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Exception: " + e);
+
+        } finally {
+            if (jar != null) {
+                jar.delete();
+            }
+            if (index != null) {
+                index.delete();
+            }
+        }
+    }
+
+    protected static String getPath (int idx)
+    {
+        return "dir" + (idx % 7) + "/entry" + idx + ".dat";
+    }
+
+    public static Test suite ()
+    {
+        return new BundleIndexTest();
+    }
+
+    public static void main (String[] args)
+    {
+        BundleIndexTest test = new BundleIndexTest();
+        test.runTest();
+    }
+
+    protected static final int ENTRIES = 200;
+}
@@ -0,0 +1,254 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.util;
+
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.util.LRUHashMap;
+
+/**
+ * Tests the {@link StripedLRUCache} class.
+ */
+public class StripedLRUCacheTest extends TestCase
+{
+    public StripedLRUCacheTest ()
+    {
+        super(StripedLRUCacheTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+    {
+        testEvictionOrder();
+        testStripes();
+        testPutIfAbsent();
+        testSizeLimit();
+    }
+
+    /**
+     * Checks that a segment evicts its least recently added entries first, giving those read
+     * since they were added a second chance.
+     */
+    protected void testEvictionOrder ()
+    {
+        StripedLRUCache<String, String> cache = createCache(3, 1);
+        cache.put("a", "a");
+        cache.put("b", "b");
+        cache.put("c", "c");
+        cache.put("d", "d");
+        assertCached(cache, "a", false);
+        assertContents(cache, "b", "c", "d");
+
+        // b has been read, so c is evicted in its place and b goes to the back of the line
+        assertEquals("b", cache.get("b"));
+        cache.put("e", "e");
+        assertContents(cache, "b", "d", "e");
+        cache.put("f", "f");
+        assertContents(cache, "b", "e", "f");
+        cache.put("g", "g");
+        assertContents(cache, "b", "f", "g");
+        cache.put("h", "h");
+        assertContents(cache, "f", "g", "h");
+
+        // if every entry has been read, each gets one second chance and the oldest goes
+        for (String key : new String[] { "f", "g", "h" }) {
+            cache.get(key);
+        }
+        cache.put("i", "i");
+        assertContents(cache, "g", "h", "i");
+
+        // replacing a value does not make room for it twice
+        assertEquals("h", cache.put("h", "H"));
+        assertEquals("H", cache.get("h"));
+        assertEquals(3, cache.size());
+        assertEquals(3L, cache.getTotalSize());
+    }
+
+    /**
+     * Checks that each segment evicts only its own entries, within its share of the budget.
+     */
+    protected void testStripes ()
+    {
+        StripedLRUCache<String, String> cache = createCache(8, 4);
+        List<String> first = keysInSegment(cache, 0, 6), second = keysInSegment(cache, 1, 2);
+        for (String key : second) {
+            cache.put(key, "v");
+        }
+        for (String key : first) {
+            cache.put(key, "v");
+        }
+
+        // the first segment keeps only its two newest entries; the second is untouched
+        for (int ii = 0; ii < first.size(); ii++) {
+            assertCached(cache, first.get(ii), ii >= first.size() - 2);
+        }
+        for (String key : second) {
+            assertCached(cache, key, true);
+        }
+        assertEquals(4, cache.size());
+        assertEquals(4L, cache.getTotalSize());
+    }
+
+    /**
+     * Checks that putIfAbsent only adds values for uncached keys and counts as a read of those
+     * already cached.
+     */
+    protected void testPutIfAbsent ()
+    {
+        StripedLRUCache<String, String> cache = createCache(2, 1);
+        assertNull(cache.putIfAbsent("a", "1"));
+        assertEquals("1", cache.putIfAbsent("a", "2"));
+        assertEquals("1", cache.get("a"));
+        assertEquals(1L, cache.getTotalSize());
+
+        // finding a cached a counts as a read of it, so b is evicted in its place
+        cache.put("a", "a");
+        cache.put("b", "b");
+        assertEquals("a", cache.putIfAbsent("a", "3"));
+        assertNull(cache.putIfAbsent("c", "c"));
+        assertContents(cache, "a", "c");
+
+        // a removed key may be added again
+        assertEquals("a", cache.remove("a"));
+        assertNull(cache.remove("a"));
+        assertNull(cache.putIfAbsent("a", "4"));
+        assertEquals("4", cache.get("a"));
+    }
+
+    /**
+     * Checks that the cache stays within its size limit however its entries are sized.
+     */
+    protected void testSizeLimit ()
+    {
+        StripedLRUCache<String, String> cache = createCache(100, 4);
+
+        // a value bigger than its segment's share is still cached, on its own
+        String big = keysInSegment(cache, 2, 1).get(0);
+        cache.put(big, repeat('x', 40));
+        assertCached(cache, big, true);
+        assertEquals(40L, cache.getTotalSize());
+        String other = keysInSegment(cache, 2, 2).get(1);
+        cache.put(other, "y");
+        assertCached(cache, big, false);
+        assertEquals(1L, cache.getTotalSize());
+
+        // growing an entry evicts others from its segment
+        List<String> keys = keysInSegment(cache, 3, 5);
+        for (String key : keys) {
+            cache.put(key, repeat('z', 5));
+        }
+        cache.adjustSize(keys.get(4), 15);
+        assertCached(cache, keys.get(4), true);
+        assertEquals(1L + 20 + 5, cache.getTotalSize());
+        cache.adjustSize("nonesuch", 100);
+
+        Random rando = new Random(3);
+        for (int ii = 0; ii < 5000; ii++) {
+            String key = "k" + rando.nextInt(200);
+            if (rando.nextInt(4) == 0) {
+                cache.get(key);
+            } else if (rando.nextInt(10) == 0) {
+                cache.remove(key);
+            } else {
+                cache.put(key, repeat('v', 1 + rando.nextInt(8)));
+            }
+            assertTrue("over budget", cache.getTotalSize() <= 100);
+        }
+
+        // the total size is that of the values actually cached
+        long total = 0;
+        for (String value : cache.values()) {
+            total += value.length();
+        }
+        assertEquals(total, cache.getTotalSize());
+        assertEquals(cache.values().size(), cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0L, cache.getTotalSize());
+    }
+
+    protected static StripedLRUCache<String, String> createCache (int maxSize, int segments)
+    {
+        return new StripedLRUCache<String, String>(maxSize, segments,
+            new LRUHashMap.ItemSizer<String>() {
+                public int computeSize (String value) {
+                    return value.length();
+                }
+            });
+    }
+
+    /**
+     * Returns the requested number of distinct keys that belong to the specified segment.
+     */
+    protected static List<String> keysInSegment (
+        StripedLRUCache<String, String> cache, int segment, int count)
+    {
+        List<String> keys = Lists.newArrayList();
+        for (int ii = 0; keys.size() < count; ii++) {
+            String key = "s" + ii;
+            if (cache.segmentFor(key) == cache._segments[segment]) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    protected static void assertCached (
+        StripedLRUCache<String, String> cache, String key, boolean cached)
+    {
+        // peek at the map directly so as not to mark the entry as referenced
+        assertEquals(key, cached, cache._map.containsKey(key));
+    }
+
+    protected static void assertContents (StripedLRUCache<String, String> cache, String... keys)
+    {
+        assertEquals(keys.length, cache.size());
+        for (String key : keys) {
+            assertCached(cache, key, true);
+        }
+    }
+
+    protected static String repeat (char c, int count)
+    {
+        StringBuilder buf = new StringBuilder();
+        for (int ii = 0; ii < count; ii++) {
+            buf.append(c);
+        }
+        return buf.toString();
+    }
+
+    public static Test suite ()
+    {
+        return new StripedLRUCacheTest();
+    }
+
+    public static void main (String[] args)
+    {
+        StripedLRUCacheTest test = new StripedLRUCacheTest();
+        test.runTest();
+    }
+}
@@ -22,13 +22,22 @@ package com.threerings.cast.bundle.tools;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 import java.util.zip.Deflater;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -55,7 +64,6 @@ import com.samskivert.util.FileUtil;
 import com.samskivert.util.HashIntMap;
 import com.samskivert.util.Tuple;
 
-import com.threerings.media.tile.ImageProvider;
 import com.threerings.media.tile.SimpleCachingImageProvider;
 import com.threerings.media.tile.TileSet;
 import com.threerings.media.tile.TrimmedTileSet;
@@ -142,6 +150,16 @@ public class ComponentBundlerTask extends Task
         _uncompressed = uncompressed;
     }
 
+    /**
+     * Sets the number of threads on which component images are decoded, trimmed and encoded.
+     * The bundle is written by a single thread regardless and its contents are the same for any
+     * number of threads.
+     */
+    public void setThreads (int threads)
+    {
+        _threads = Math.max(1, threads);
+    }
+
     /**
      * Performs the actual work of the task.
      */
@@ -182,16 +200,16 @@ public class ComponentBundlerTask extends Task
             return;
         }
 
-        // create an image provider for loading our component images
-        ImageProvider improv = new SimpleCachingImageProvider() {
-            @Override
-            protected BufferedImage loadImage (String path)
-                throws IOException {
-                return ImageIO.read(new File(path));
-            }
-        };
-
         System.out.println("Generating " + _target + "...");
+        _decodeNanos.set(0);
+        _processNanos.set(0);
+        _writeNanos = _waitNanos = 0;
+        _components = 0;
+        long start = System.nanoTime();
+
+        // components are processed on our executor, if we have one, and written in order
+        ExecutorService exec = (_threads > 1) ? Executors.newFixedThreadPool(_threads) : null;
+        LinkedList<Future<ProcessedComponent>> pending = Lists.newLinkedList();
 
         try {
             // make sure we can create our bundle file
@@ -219,15 +237,13 @@ public class ComponentBundlerTask extends Task
                             "' [class=" + info[0] + ", name=" + info[1] + "].");
                         continue;
                     }
-                    aset.setImageProvider(improv);
-
                     // obtain the component id from our id broker
                     int cid = broker.getComponentID(info[0], info[1]);
                     // add a mapping for this component
                     mapping.put(cid, new Tuple<String, String>(info[0], info[1]));
 
                     // process and store the main component image
-                    processComponent(info, aset, cfile, fout, newest);
+                    fout = queueComponent(exec, pending, info.clone(), aset, cfile, fout, newest);
 
                     // pick up any auxiliary images as well like the shadow or
                     // crop files
@@ -238,12 +254,18 @@ public class ComponentBundlerTask extends Task
                             FileUtil.resuffix(cfile, ext, element + ext));
                         if (afile.exists()) {
                             info[2] = action + element;
-                            processComponent(info, aset, afile, fout, newest);
+                            fout = queueComponent(
+                                exec, pending, info.clone(), aset, afile, fout, newest);
                         }
                     }
                 }
             }
 
+            // write any components still in the works
+            while (!pending.isEmpty()) {
+                fout = writeComponent(pending.removeFirst(), fout, newest);
+            }
+
             // write our mapping table to the jar file as well
             if (!skipEntry(BundleUtil.COMPONENTS_PATH, newest)) {
                 fout = nextEntry(fout, BundleUtil.COMPONENTS_PATH);
@@ -264,42 +286,144 @@ public class ComponentBundlerTask extends Task
         } catch (PersistenceException pe) {
             String errmsg = "Unable to obtain component ID mapping.";
             throw new BuildException(errmsg, pe);
+
+        } finally {
+            if (exec != null) {
+                exec.shutdownNow();
+            }
         }
 
+        // report where our time went; decode and processing times are summed over all threads
+        System.out.println(
+            "Bundled " + _components + " components in " + toMillis(System.nanoTime() - start) +
+            "ms [threads=" + _threads + ", decode=" + toMillis(_decodeNanos.get()) +
+            "ms, trim/encode=" + toMillis(_processNanos.get() - _decodeNanos.get()) +
+            "ms, write=" + toMillis(_writeNanos) + "ms, write wait=" + toMillis(_waitNanos) +
+            "ms].");
+
         // save our updated component ID broker
         saveBroker(_mapfile, broker);
     }
 
-    protected void processComponent (
-        String[] info, TileSet aset, File cfile, OutputStream fout, long newest)
+    /**
+     * Processes the specified component, either immediately or on the supplied executor, and
+     * writes it, or the oldest pending components if too many are pending, to the bundle.
+     *
+     * @return the stream to which subsequent entries should be written.
+     */
+    protected OutputStream queueComponent (
+        ExecutorService exec, LinkedList<Future<ProcessedComponent>> pending, String[] info,
+        TileSet aset, File cfile, OutputStream fout, long newest)
+        throws IOException, BuildException
+    {
+        // If we decide that the entry is up to date and we don't need to process it, bail out.
+        if (skipEntry(composePath(info, BundleUtil.IMAGE_EXTENSION), newest)) {
+            return fout;
+        }
+
+        FutureTask<ProcessedComponent> task =
+            new FutureTask<ProcessedComponent>(new ComponentProcessor(info, aset, cfile));
+        if (exec == null) {
+            task.run();
+            return writeComponent(task, fout, newest);
+        }
+
+        // bound the amount of processed image data awaiting the writer
+        while (pending.size() >= _threads * PENDING_PER_THREAD) {
+            fout = writeComponent(pending.removeFirst(), fout, newest);
+        }
+        exec.execute(task);
+        pending.add(task);
+        return fout;
+    }
+
+    /**
+     * Waits for the supplied component to be processed and writes it to the bundle.
+     *
+     * @return the stream to which subsequent entries should be written.
+     */
+    protected OutputStream writeComponent (
+        Future<ProcessedComponent> task, OutputStream fout, long newest)
+        throws IOException, BuildException
+    {
+        long start = System.nanoTime();
+        ProcessedComponent comp;
+        try {
+            comp = task.get();
+        } catch (InterruptedException ie) {
+            throw new BuildException("Interrupted while bundling components.", ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof BuildException) {
+                throw (BuildException)cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new BuildException("Failure processing component.", cause);
+        }
+        long got = System.nanoTime();
+        _waitNanos += got - start;
+
+        fout = nextEntry(fout, comp.ipath);
+        fout.write(comp.image);
+
+        // then write our trimmed tileset bundle data
+        String tpath = composePath(comp.info, BundleUtil.TILESET_EXTENSION);
+        if (!skipEntry(tpath, newest) && !_keepRawPngs) {
+            fout = nextEntry(fout, tpath);
+            fout.write(comp.tileset);
+        }
+
+        _writeNanos += System.nanoTime() - got;
+        _components++;
+        return fout;
+    }
+
+    /**
+     * Decodes, trims and encodes the image for the specified component, returning the data to be
+     * written to the bundle. This may be called on any thread.
+     */
+    protected ProcessedComponent processComponent (String[] info, TileSet aset, File cfile)
         throws IOException, BuildException
     {
         // construct the path that'll go in the jar file
         String ipath = composePath(
             info, BundleUtil.IMAGE_EXTENSION);
 
-        // If we decide that the entry is up to date and we don't need to process it, bail out.
-        if (skipEntry(ipath, newest)) {
-            return;
+        // work on our own copy of the action tileset, which is shared by many components
+        TileSet cset;
+        try {
+            cset = aset.clone(cfile.getPath());
+        } catch (CloneNotSupportedException cnse) {
+            throw new BuildException("Unable to clone action tileset.", cnse);
         }
+        cset.setImageProvider(new SimpleCachingImageProvider() {
+            @Override
+            protected BufferedImage loadImage (String path)
+                throws IOException {
+                long start = System.nanoTime();
+                try {
+                    return ImageIO.read(new File(path));
+                } finally {
+                    _decodeNanos.addAndGet(System.nanoTime() - start);
+                }
+            }
+        });
 
-        fout = nextEntry(fout, ipath);
-
-        aset.setImagePath(cfile.getPath());
-
+        ByteArrayOutputStream iout = new ByteArrayOutputStream();
         TileSet tset;
         if (_keepRawPngs) {
             // We've elected to keep the pngs as they are and just stuff them into the jar.
             try {
-                tset = aset;
-                BufferedImage image = aset.getRawTileSetImage();
-                ImageIO.write(image, "png", fout);
+                tset = cset;
+                BufferedImage image = cset.getRawTileSetImage();
+                ImageIO.write(image, "png", iout);
             } catch (Throwable t) {
                 System.err.println(
                     "Failure storing tileset in jar" +
                     "[class=" + info[0] + ", name=" + info[1] +
                     ", action=" + info[2] +
-                    ", srcimg=" + aset.getImagePath() + "].");
+                    ", srcimg=" + cset.getImagePath() + "].");
                 t.printStackTrace(System.err);
 
                 String errmsg = "Failure trimming tileset.";
@@ -309,29 +433,36 @@ public class ComponentBundlerTask extends Task
             // create a trimmed tileset based on the source action tileset and
             // stuff the new trimmed image into the jar file at the same time
             try {
-                tset = trim(aset, fout);
+                tset = trim(cset, iout);
                 tset.setImagePath(ipath);
             } catch (Throwable t) {
                 System.err.println(
                     "Failure trimming tileset " +
                     "[class=" + info[0] + ", name=" + info[1] +
                     ", action=" + info[2] +
-                    ", srcimg=" + aset.getImagePath() + "].");
+                    ", srcimg=" + cset.getImagePath() + "].");
                 t.printStackTrace(System.err);
 
                 String errmsg = "Failure trimming tileset.";
                 throw new BuildException(errmsg, t);
             }
         }
-        // then write our trimmed tileset bundle data
-        String tpath = composePath(info, BundleUtil.TILESET_EXTENSION);
-        if (!skipEntry(tpath, newest) && !_keepRawPngs) {
-            fout = nextEntry(fout, tpath);
 
-            ObjectOutputStream oout = new ObjectOutputStream(fout);
+        // serialize our trimmed tileset bundle data
+        byte[] tdata = null;
+        if (!_keepRawPngs) {
+            ByteArrayOutputStream tout = new ByteArrayOutputStream();
+            ObjectOutputStream oout = new ObjectOutputStream(tout);
             oout.writeObject(tset);
             oout.flush();
+            tdata = tout.toByteArray();
         }
+        return new ProcessedComponent(info, ipath, iout.toByteArray(), tdata);
+    }
+
+    protected static long toMillis (long nanos)
+    {
+        return nanos / 1000000L;
     }
 
     protected long getNewestDate (ArrayList<Object> sources)
@@ -529,6 +660,54 @@ public class ComponentBundlerTask extends Task
         }
     }
 
+    /** The bundle data for a processed component. */
+    protected static class ProcessedComponent
+    {
+        /** The component's [class, name, action] triplet. */
+        public String[] info;
+
+        /** The path of the component's image in the bundle. */
+        public String ipath;
+
+        /** The encoded image data and serialized tileset, if any. */
+        public byte[] image, tileset;
+
+        public ProcessedComponent (String[] info, String ipath, byte[] image, byte[] tileset)
+        {
+            this.info = info;
+            this.ipath = ipath;
+            this.image = image;
+            this.tileset = tileset;
+        }
+    }
+
+    /** Processes a component on a worker thread. */
+    protected class ComponentProcessor implements Callable<ProcessedComponent>
+    {
+        public ComponentProcessor (String[] info, TileSet aset, File cfile)
+        {
+            _info = info;
+            _aset = aset;
+            _cfile = cfile;
+        }
+
+        // from interface Callable
+        public ProcessedComponent call ()
+            throws IOException
+        {
+            long start = System.nanoTime();
+            try {
+                return processComponent(_info, _aset, _cfile);
+            } finally {
+                _processNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        protected String[] _info;
+        protected TileSet _aset;
+        protected File _cfile;
+    }
+
     protected static class HashMapIDBroker
         extends HashMap<Tuple<String, String>, Integer> implements ComponentIDBroker
     {
@@ -654,6 +833,21 @@ public class ComponentBundlerTask extends Task
     /** Whether we should keep the bundle jars uncompressed rather than zipped. */
     protected boolean _uncompressed;
 
+    /** The number of threads on which we process components. */
+    protected int _threads = 1;
+
+    /** The time spent decoding and processing (including decoding) images on all threads. */
+    protected AtomicLong _decodeNanos = new AtomicLong(), _processNanos = new AtomicLong();
+
+    /** The time our writer spent writing and waiting for components to be processed. */
+    protected long _writeNanos, _waitNanos;
+
+    /** The number of components written. */
+    protected int _components;
+
+    /** The number of processed components per thread that may await the writer. */
+    protected static final int PENDING_PER_THREAD = 4;
+
     /** Used to separate keys and values in the map file. */
     protected static final String SEP_STR = " := ";
 
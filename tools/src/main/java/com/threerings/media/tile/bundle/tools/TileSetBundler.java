@@ -21,30 +21,45 @@ package com.threerings.media.tile.bundle.tools;
 
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
-import java.util.jar.Manifest;
-import java.util.zip.Deflater;
-
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.apache.commons.digester.Digester;
 import org.xml.sax.SAXException;
 
 import com.samskivert.io.PersistenceException;
 import com.samskivert.io.StreamUtil;
 import com.samskivert.util.HashIntMap;
+import com.samskivert.util.StringUtil;
 
 import com.threerings.resource.FastImageIO;
 
+import com.threerings.media.tools.BundleJarWriter;
+
 import com.threerings.media.tile.ImageProvider;
 import com.threerings.media.tile.ObjectTileSet;
 import com.threerings.media.tile.SimpleCachingImageProvider;
@@ -197,6 +212,27 @@ public class TileSetBundler
         }
     }
 
+    /**
+     * Configures the number of threads used to trim, encode and compress tileset images when
+     * creating bundles. The default of one processes them serially on the calling thread. When
+     * using more than one thread, the image provider used to create a bundle must be thread safe.
+     */
+    public void setThreads (int threads)
+    {
+        _threads = threads;
+    }
+
+    /**
+     * Configures whether bundles are built incrementally. An incrementally built bundle records
+     * a content hash for each of its tileset images, and when the bundle is rebuilt, the already
+     * trimmed and compressed data for any image whose source and tileset definition are unchanged
+     * is copied verbatim from the previous bundle.
+     */
+    public void setIncremental (boolean incremental)
+    {
+        _incremental = incremental;
+    }
+
     /**
      * Creates a tileset bundle at the location specified by the
      * <code>targetPath</code> parameter, based on the description
@@ -350,7 +386,8 @@ public class TileSetBundler
         File target, TileSetBundle bundle, ImageProvider improv, String imageBase, long newestMod)
         throws IOException
     {
-        return createBundleJar(target, bundle, improv, imageBase, _keepRawPngs, _uncompressed);
+        return createBundleJar(target, bundle, improv, imageBase, _keepRawPngs, _uncompressed,
+                               _threads, _incremental);
     }
 
     /**
@@ -368,109 +405,191 @@ public class TileSetBundler
         boolean keepOriginalPngs, boolean uncompressed)
         throws IOException
     {
-        // now we have to create the actual bundle file
-        FileOutputStream fout = new FileOutputStream(target);
-        Manifest manifest = new Manifest();
-        JarOutputStream jar = new JarOutputStream(fout, manifest);
-        jar.setLevel(uncompressed ? Deflater.NO_COMPRESSION : Deflater.BEST_COMPRESSION);
+        return createBundleJar(
+            target, bundle, improv, imageBase, keepOriginalPngs, uncompressed, 1, false);
+    }
+
+    /**
+     * Create a tileset bundle jar file.
+     *
+     * @param target the tileset bundle file that will be created.
+     * @param bundle contains the tilesets we'd like to save out to the bundle.
+     * @param improv the image provider, which must be thread safe if <code>threads</code> is
+     * greater than one.
+     * @param imageBase the base directory for getting images for non-ObjectTileSet tilesets.
+     * @param keepOriginalPngs bundle up the original PNGs as PNGs instead of converting to the
+     * FastImageIO raw format
+     * @param threads the number of threads on which to trim, encode and compress images.
+     * @param incremental whether to record content hashes for our images and copy the data for
+     * unchanged images from the previous version of the bundle (if it was built incrementally).
+     */
+    public static boolean createBundleJar (
+        File target, TileSetBundle bundle, ImageProvider improv, String imageBase,
+        boolean keepOriginalPngs, boolean uncompressed, int threads, boolean incremental)
+        throws IOException
+    {
+        // if we're building incrementally, read the previous version of the bundle, if any
+        PreviousBundle prev = incremental ? PreviousBundle.open(target) : null;
+
+        // we write to a temporary file so that we can copy from the previous bundle as we go
+        File tmp = new File(target.getPath() + ".tmp");
+        BundleJarWriter jar = new BundleJarWriter(tmp);
+        ExecutorService exec = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
 
         try {
             // write all of the image files to the bundle, converting the
-            // tilesets to trimmed tilesets in the process
+            // tilesets to trimmed tilesets in the process; images are processed in parallel if
+            // we have an executor but are always written in order
+            LinkedList<Future<BundledImage>> pending = Lists.newLinkedList();
+            List<BundledImage> images = Lists.newArrayList();
             Iterator<Integer> iditer = bundle.enumerateTileSetIds();
-
-            // Store off the updated TileSets in a separate Map so we can wait to change the
-            // bundle till we're done iterating.
-            HashIntMap<TileSet> toUpdate = new HashIntMap<TileSet>();
             while (iditer.hasNext()) {
                 int tileSetId = iditer.next().intValue();
                 TileSet set = bundle.getTileSet(tileSetId);
-                String imagePath = set.getImagePath();
 
                 // sanity checks
-                if (imagePath == null) {
+                if (set.getImagePath() == null) {
                     log.warning("Tileset contains no image path " +
                                 "[set=" + set + "]. It ain't gonna work.");
                     continue;
                 }
 
-                // if this is an object tileset, trim it
-                if (!keepOriginalPngs && (set instanceof ObjectTileSet)) {
-                    // set the tileset up with an image provider; we
-                    // need to do this so that we can trim it!
-                    set.setImageProvider(improv);
-
-                    // we're going to trim it, so adjust the path
-                    imagePath = adjustImagePath(imagePath);
-                    jar.putNextEntry(new JarEntry(imagePath));
-
-                    try {
-                        // create a trimmed object tileset, which will
-                        // write the trimmed tileset image to the jar
-                        // output stream
-                        TrimmedObjectTileSet tset =
-                            TrimmedObjectTileSet.trimObjectTileSet(
-                                (ObjectTileSet)set, jar);
-                        tset.setImagePath(imagePath);
-                        // replace the original set with the trimmed
-                        // tileset in the tileset bundle
-                        toUpdate.put(tileSetId, tset);
-
-                    } catch (Exception e) {
-                        e.printStackTrace(System.err);
-
-                        String msg = "Error adding tileset to bundle " + imagePath +
-                                     ", " + set.getName() + ": " + e;
-                        throw (IOException) new IOException(msg).initCause(e);
-                    }
-
+                FutureTask<BundledImage> task = new FutureTask<BundledImage>(new ImageBundler(
+                    tileSetId, set, improv, imageBase, keepOriginalPngs, uncompressed,
+                    incremental, prev));
+                if (exec == null) {
+                    task.run();
+                    images.add(writeImage(jar, task));
                 } else {
-                    // read the image file and convert it to our custom
-                    // format in the bundle
-                    File ifile = new File(imageBase, imagePath);
-                    try {
-                        BufferedImage image = ImageIO.read(ifile);
-                        if (!keepOriginalPngs && FastImageIO.canWrite(image)) {
-                            imagePath = adjustImagePath(imagePath);
-                            jar.putNextEntry(new JarEntry(imagePath));
-                            set.setImagePath(imagePath);
-                            FastImageIO.write(image, jar);
-                        } else {
-                            jar.putNextEntry(new JarEntry(imagePath));
-                            FileInputStream imgin = new FileInputStream(ifile);
-                            StreamUtil.copy(imgin, jar);
-                        }
-                    } catch (Exception e) {
-                        String msg = "Failure bundling image " + ifile +
-                            ": " + e;
-                        throw (IOException) new IOException(msg).initCause(e);
+                    // bound the amount of processed image data awaiting the writer
+                    while (pending.size() >= threads * PENDING_PER_THREAD) {
+                        images.add(writeImage(jar, pending.removeFirst()));
                     }
+                    exec.execute(task);
+                    pending.add(task);
+                }
+            }
+            while (!pending.isEmpty()) {
+                images.add(writeImage(jar, pending.removeFirst()));
+            }
+
+            // Store off the updated TileSets in a separate Map so we can wait to change the
+            // bundle till we're done iterating.
+            HashIntMap<TileSet> toUpdate = new HashIntMap<TileSet>();
+            StringBuilder hashes = new StringBuilder();
+            for (BundledImage image : images) {
+                if (image.trimmed != null) {
+                    toUpdate.put(image.tileSetId, image.trimmed);
+                }
+                if (image.hash != null) {
+                    hashes.append(image.hash).append(' ').append(image.entry.path).append('\n');
                 }
             }
             bundle.putAll(toUpdate);
 
+            // record our image hashes so that we can build the next version incrementally
+            if (incremental) {
+                jar.write(BundleJarWriter.compress(
+                    HASHES_PATH, hashes.toString().getBytes("UTF-8"), !uncompressed));
+            }
+
             // now write a serialized representation of the tileset bundle
             // object to the bundle jar file
-            JarEntry entry = new JarEntry(BundleUtil.METADATA_PATH);
-            jar.putNextEntry(entry);
-            ObjectOutputStream oout = new ObjectOutputStream(jar);
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            ObjectOutputStream oout = new ObjectOutputStream(bout);
             oout.writeObject(bundle);
             oout.flush();
+            jar.write(BundleJarWriter.compress(
+                BundleUtil.METADATA_PATH, bout.toByteArray(), !uncompressed));
 
-            // finally close up the jar file and call ourself done
+            // finally close up the jar file, move it into place and call ourself done
             jar.close();
-
+            if (prev != null) {
+                prev.close();
+                prev = null;
+            }
+            if (target.exists() && !target.delete()) {
+                throw new IOException("Unable to replace " + target);
+            }
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Unable to move " + tmp + " into place");
+            }
             return true;
 
         } catch (Exception e) {
             // remove the incomplete jar file and rethrow the exception
-            jar.close();
-            if (!target.delete()) {
-                log.warning("Failed to close botched bundle '" + target + "'.");
+            jar.abort();
+            if (!tmp.delete()) {
+                log.warning("Failed to close botched bundle '" + tmp + "'.");
             }
             String errmsg = "Failed to create bundle " + target + ": " + e;
             throw (IOException) new IOException(errmsg).initCause(e);
+
+        } finally {
+            if (exec != null) {
+                exec.shutdownNow();
+            }
+            if (prev != null) {
+                prev.close();
+            }
+        }
+    }
+
+    /**
+     * Waits for the supplied image to be prepared and writes it to the jar file.
+     */
+    protected static BundledImage writeImage (BundleJarWriter jar, Future<BundledImage> task)
+        throws Exception
+    {
+        BundledImage image;
+        try {
+            image = task.get();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            throw (cause instanceof Exception) ? (Exception)cause : ee;
+        }
+        jar.write(image.entry);
+        return image;
+    }
+
+    /**
+     * Computes a hash of everything that goes into the bundled form of the supplied tileset's
+     * image: the image file itself, the tileset definition and our bundling options.
+     *
+     * @return the hash or null if the image is not available as a file.
+     */
+    protected static String computeHash (
+        TileSet set, File ifile, boolean keepOriginalPngs, boolean uncompressed)
+        throws IOException
+    {
+        if (!ifile.isFile()) {
+            return null;
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw (IOException) new IOException("SHA-1 unavailable").initCause(nsae);
+        }
+        digest.update((HASH_VERSION + ":" + keepOriginalPngs + ":" + uncompressed).getBytes());
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(set);
+        oout.flush();
+        digest.update(bout.toByteArray());
+
+        FileInputStream in = new FileInputStream(ifile);
+        try {
+            byte[] buf = new byte[8192];
+            for (int read; (read = in.read(buf)) > 0; ) {
+                digest.update(buf, 0, read);
+            }
+        } finally {
+            StreamUtil.close(in);
         }
+        return StringUtil.hexlate(digest.digest());
     }
 
     /**
@@ -490,6 +609,226 @@ public class TileSetBundler
 
     }
 
+    /** The bundled form of a tileset image, ready to be written to a bundle. */
+    protected static class BundledImage
+    {
+        /** The id of the tileset whose image this is. */
+        public int tileSetId;
+
+        /** The trimmed tileset that replaces the original in the bundle, if any. */
+        public TileSet trimmed;
+
+        /** The content hash of the image, or null if we're not building incrementally. */
+        public String hash;
+
+        /** The compressed image data. */
+        public BundleJarWriter.Entry entry;
+
+        public BundledImage (int tileSetId, TileSet trimmed, String hash,
+                             BundleJarWriter.Entry entry)
+        {
+            this.tileSetId = tileSetId;
+            this.trimmed = trimmed;
+            this.hash = hash;
+            this.entry = entry;
+        }
+    }
+
+    /** Trims, encodes and compresses (or reuses) a single tileset image. */
+    protected static class ImageBundler implements Callable<BundledImage>
+    {
+        public ImageBundler (int tileSetId, TileSet set, ImageProvider improv, String imageBase,
+                             boolean keepOriginalPngs, boolean uncompressed, boolean incremental,
+                             PreviousBundle prev)
+        {
+            _tileSetId = tileSetId;
+            _set = set;
+            _improv = improv;
+            _imageBase = imageBase;
+            _keepOriginalPngs = keepOriginalPngs;
+            _uncompressed = uncompressed;
+            _incremental = incremental;
+            _prev = prev;
+        }
+
+        // from interface Callable
+        public BundledImage call ()
+            throws IOException
+        {
+            String imagePath = _set.getImagePath();
+            File ifile = new File(_imageBase, imagePath);
+            boolean trim = !_keepOriginalPngs && (_set instanceof ObjectTileSet);
+
+            // hash the tileset before we modify it and see if our previous bundle has it
+            String hash = null;
+            if (_incremental) {
+                hash = computeHash(_set, ifile, _keepOriginalPngs, _uncompressed);
+                if (hash != null && _prev != null) {
+                    BundledImage image = _prev.reuse(_tileSetId, _set, hash, trim);
+                    if (image != null) {
+                        return image;
+                    }
+                }
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            TileSet trimmed = null;
+
+            // if this is an object tileset, trim it
+            if (trim) {
+                // set the tileset up with an image provider; we
+                // need to do this so that we can trim it!
+                _set.setImageProvider(_improv);
+
+                // we're going to trim it, so adjust the path
+                imagePath = adjustImagePath(imagePath);
+
+                try {
+                    // create a trimmed object tileset, which will write the trimmed tileset
+                    // image to our output stream
+                    trimmed = TrimmedObjectTileSet.trimObjectTileSet((ObjectTileSet)_set, out);
+                    trimmed.setImagePath(imagePath);
+
+                } catch (Exception e) {
+                    e.printStackTrace(System.err);
+
+                    String msg = "Error adding tileset to bundle " + imagePath +
+                                 ", " + _set.getName() + ": " + e;
+                    throw (IOException) new IOException(msg).initCause(e);
+                }
+
+            } else {
+                // read the image file and convert it to our custom
+                // format in the bundle
+                try {
+                    BufferedImage image = ImageIO.read(ifile);
+                    if (!_keepOriginalPngs && FastImageIO.canWrite(image)) {
+                        imagePath = adjustImagePath(imagePath);
+                        _set.setImagePath(imagePath);
+                        FastImageIO.write(image, out);
+                    } else {
+                        FileInputStream imgin = new FileInputStream(ifile);
+                        try {
+                            StreamUtil.copy(imgin, out);
+                        } finally {
+                            StreamUtil.close(imgin);
+                        }
+                    }
+                } catch (Exception e) {
+                    String msg = "Failure bundling image " + ifile +
+                        ": " + e;
+                    throw (IOException) new IOException(msg).initCause(e);
+                }
+            }
+
+            return new BundledImage(_tileSetId, trimmed, hash,
+                BundleJarWriter.compress(imagePath, out.toByteArray(), !_uncompressed));
+        }
+
+        protected int _tileSetId;
+        protected TileSet _set;
+        protected ImageProvider _improv;
+        protected String _imageBase;
+        protected boolean _keepOriginalPngs, _uncompressed, _incremental;
+        protected PreviousBundle _prev;
+    }
+
+    /** The previous version of a bundle that we're rebuilding incrementally. */
+    protected static class PreviousBundle
+    {
+        /**
+         * Opens the previous version of the specified bundle.
+         *
+         * @return the previous bundle or null if there is none, it was not built incrementally or
+         * it cannot be read.
+         */
+        public static PreviousBundle open (File target)
+        {
+            if (!target.exists()) {
+                return null;
+            }
+            PreviousBundle prev = new PreviousBundle();
+            try {
+                prev._reader = new BundleJarWriter.Reader(target);
+                byte[] hashes = prev._reader.readData(HASHES_PATH);
+                byte[] metadata = prev._reader.readData(BundleUtil.METADATA_PATH);
+                if (hashes == null || metadata == null) {
+                    prev.close();
+                    return null;
+                }
+
+                BufferedReader bin = new BufferedReader(new InputStreamReader(
+                    new ByteArrayInputStream(hashes), "UTF-8"));
+                for (String line; (line = bin.readLine()) != null; ) {
+                    int sidx = line.indexOf(' ');
+                    if (sidx > 0) {
+                        prev._hashes.put(line.substring(sidx+1), line.substring(0, sidx));
+                    }
+                }
+                prev._bundle = (TileSetBundle)new ObjectInputStream(
+                    new ByteArrayInputStream(metadata)).readObject();
+                return prev;
+
+            } catch (Exception e) {
+                log.warning("Unable to read previous bundle, rebuilding it entirely",
+                            "bundle", target, "error", e);
+                prev.close();
+                return null;
+            }
+        }
+
+        /**
+         * Returns the bundled form of the supplied tileset's image from this bundle if its hash
+         * matches, or null if it must be rebuilt.
+         */
+        public BundledImage reuse (int tileSetId, TileSet set, String hash, boolean trim)
+            throws IOException
+        {
+            String imagePath = set.getImagePath(), adjusted = adjustImagePath(imagePath);
+            if (trim) {
+                // we need our previously trimmed tileset as well as its image
+                TileSet trimmed = _bundle.getTileSet(tileSetId);
+                if (!(trimmed instanceof TrimmedObjectTileSet) ||
+                        !adjusted.equals(trimmed.getImagePath())) {
+                    return null;
+                }
+                BundleJarWriter.Entry entry = read(adjusted, hash);
+                return (entry == null) ? null : new BundledImage(tileSetId, trimmed, hash, entry);
+            }
+
+            // we may or may not have converted the image to our raw format
+            BundleJarWriter.Entry entry = read(adjusted, hash);
+            if (entry != null) {
+                set.setImagePath(adjusted);
+            } else if ((entry = read(imagePath, hash)) == null) {
+                return null;
+            }
+            return new BundledImage(tileSetId, null, hash, entry);
+        }
+
+        public void close ()
+        {
+            if (_reader != null) {
+                try {
+                    _reader.close();
+                } catch (IOException ioe) {
+                    log.warning("Failed to close previous bundle", "error", ioe);
+                }
+                _reader = null;
+            }
+        }
+
+        protected BundleJarWriter.Entry read (String path, String hash)
+            throws IOException
+        {
+            return hash.equals(_hashes.get(path)) ? _reader.read(path) : null;
+        }
+
+        protected BundleJarWriter.Reader _reader;
+        protected Map<String, String> _hashes = Maps.newHashMap();
+        protected TileSetBundle _bundle;
+    }
+
     /** Used to parse our configuration. */
     public static class Mapping
     {
@@ -517,4 +856,19 @@ public class TileSetBundler
 
     /** Normally we compress the jar, but if we want to leave them uncompressed, we set this. */
     protected boolean _uncompressed;
+
+    /** The number of threads on which we process tileset images. */
+    protected int _threads = 1;
+
+    /** Whether we build bundles incrementally. */
+    protected boolean _incremental;
+
+    /** The path of the jar entry containing the content hashes of an incremental bundle. */
+    protected static final String HASHES_PATH = "META-INF/bundle-hashes.txt";
+
+    /** Incorporated into our content hashes; increment when the bundled image format changes. */
+    protected static final int HASH_VERSION = 1;
+
+    /** The number of processed images per thread that may await the writer. */
+    protected static final int PENDING_PER_THREAD = 4;
 }
@@ -82,6 +82,23 @@ public class TileSetBundlerTask extends Task
         _uncompressed = uncompressed;
     }
 
+    /**
+     * Sets the number of threads on which tileset images are trimmed, encoded and compressed.
+     */
+    public void setThreads (int threads)
+    {
+        _threads = threads;
+    }
+
+    /**
+     * Note whether we are supposed to rebuild bundles incrementally, reusing the data for
+     * unchanged images from the previous version of each bundle.
+     */
+    public void setIncremental (boolean incremental)
+    {
+        _incremental = incremental;
+    }
+
     /**
      * Performs the actual work of the task.
      */
@@ -98,6 +115,8 @@ public class TileSetBundlerTask extends Task
         try {
             // create a tileset bundler
             TileSetBundler bundler = createBundler();
+            bundler.setThreads(_threads);
+            bundler.setIncremental(_incremental);
 
             // create our tileset id broker
             MapFileTileSetIDBroker broker =
@@ -183,4 +202,10 @@ public class TileSetBundlerTask extends Task
 
     /** Whether we should keep the bundle jars uncompressed rather than zipped. */
     protected boolean _uncompressed;
+
+    /** The number of threads on which to process tileset images. */
+    protected int _threads = 1;
+
+    /** Whether we should rebuild bundles incrementally. */
+    protected boolean _incremental;
 }
@@ -0,0 +1,335 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.tools;
+
+import java.util.Calendar;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.io.StreamUtil;
+
+import com.threerings.resource.BundleIndex;
+
+/**
+ * Writes bundle jar files from entries that have already been compressed, which allows entries
+ * to be compressed in parallel and allows compressed entries from a previous build of a bundle to
+ * be copied into a new bundle verbatim. Entries are written in the order they are supplied.
+ */
+public class BundleJarWriter
+{
+    /**
+     * A jar entry whose data has already been compressed.
+     */
+    public static class Entry
+    {
+        /** The path of the entry in the jar file. */
+        public final String path;
+
+        /** The compression method, {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}. */
+        public final int method;
+
+        /** The CRC-32 and uncompressed size of the entry's data. */
+        public final long crc, size;
+
+        /** The entry's modification time in milliseconds. */
+        public final long time;
+
+        /** The entry's compressed data. */
+        public final byte[] data;
+
+        public Entry (String path, int method, long crc, long size, long time, byte[] data)
+        {
+            this.path = path;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.time = time;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Reads the raw compressed entries of an existing jar file.
+     */
+    public static class Reader
+    {
+        /**
+         * Opens the supplied jar file for reading.
+         */
+        public Reader (File source)
+            throws IOException
+        {
+            _source = source;
+            _zip = new ZipFile(source);
+            File ifile = File.createTempFile("bundle", BundleIndex.FILE_SUFFIX);
+            try {
+                _index = BundleIndex.build(source, ifile);
+            } finally {
+                ifile.delete();
+            }
+        }
+
+        /**
+         * Returns the specified entry, with its data still compressed, or null if the jar file
+         * contains no such entry.
+         */
+        public Entry read (String path)
+            throws IOException
+        {
+            int idx = _index.find(path);
+            ZipEntry zentry = _zip.getEntry(path);
+            if (idx < 0 || zentry == null) {
+                return null;
+            }
+
+            byte[] data = new byte[_index.getCompressedSize(idx)];
+            RandomAccessFile raf = new RandomAccessFile(_source, "r");
+            try {
+                raf.seek(_index.getDataOffset(idx));
+                raf.readFully(data);
+            } finally {
+                raf.close();
+            }
+            return new Entry(path, _index.getMethod(idx), zentry.getCrc(), zentry.getSize(),
+                             zentry.getTime(), data);
+        }
+
+        /**
+         * Returns the uncompressed contents of the specified entry, or null if the jar file
+         * contains no such entry.
+         */
+        public byte[] readData (String path)
+            throws IOException
+        {
+            int idx = _index.find(path);
+            return (idx < 0) ? null :
+                StreamUtil.toByteArray(_index.openStream(idx, _source));
+        }
+
+        /**
+         * Closes the jar file.
+         */
+        public void close ()
+            throws IOException
+        {
+            _zip.close();
+        }
+
+        protected File _source;
+        protected ZipFile _zip;
+        protected BundleIndex _index;
+    }
+
+    /**
+     * Compresses the supplied data into an entry that can be written to a bundle. This may be
+     * called on any thread.
+     *
+     * @param compress if false, the entry will be stored rather than deflated.
+     */
+    public static Entry compress (String path, byte[] data, boolean compress)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        long now = System.currentTimeMillis();
+        if (!compress) {
+            return new Entry(path, ZipEntry.STORED, crc.getValue(), data.length, now, data);
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return new Entry(path, ZipEntry.DEFLATED, crc.getValue(), data.length, now,
+                             out.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Creates a writer that will write a jar file with an empty manifest to the specified file.
+     */
+    public BundleJarWriter (File target)
+        throws IOException
+    {
+        _out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target)));
+        ByteArrayOutputStream mout = new ByteArrayOutputStream();
+        new Manifest().write(mout);
+        write(compress(JarFile.MANIFEST_NAME, mout.toByteArray(), true));
+    }
+
+    /**
+     * Writes the supplied entry to the jar file.
+     */
+    public void write (Entry entry)
+        throws IOException
+    {
+        if ((long)_out.size() + entry.data.length + entry.path.length() * 3L + 64 > MAX_OFFSET) {
+            throw new IOException("Bundle too large for a non-Zip64 jar file");
+        }
+        WrittenEntry went = new WrittenEntry();
+        went.entry = entry;
+        went.offset = _out.size();
+        went.name = entry.path.getBytes("UTF-8");
+        went.dosTime = toDosTime(entry.time);
+        _entries.add(went);
+
+        writeInt(LOC_SIG);
+        writeHeader(went);
+        _out.write(went.name);
+        _out.write(entry.data);
+    }
+
+    /**
+     * Writes the jar file's central directory and closes it.
+     */
+    public void close ()
+        throws IOException
+    {
+        if (_entries.size() > 0xFFFF) {
+            throw new IOException("Too many entries for a non-Zip64 jar file");
+        }
+        int cenOffset = _out.size();
+        for (WrittenEntry went : _entries) {
+            writeInt(CEN_SIG);
+            writeShort(VERSION);
+            writeHeader(went);
+            writeShort(0); // comment length
+            writeShort(0); // disk number
+            writeShort(0); // internal attributes
+            writeInt(0); // external attributes
+            writeInt(went.offset);
+            _out.write(went.name);
+        }
+        int cenSize = _out.size() - cenOffset;
+
+        writeInt(EOCD_SIG);
+        writeShort(0); // disk number
+        writeShort(0); // central directory disk
+        writeShort(_entries.size());
+        writeShort(_entries.size());
+        writeInt(cenSize);
+        writeInt(cenOffset);
+        writeShort(0); // comment length
+        _out.close();
+    }
+
+    /**
+     * Closes the jar file without finishing it, for use when an error aborts a build.
+     */
+    public void abort ()
+    {
+        StreamUtil.close(_out);
+    }
+
+    /**
+     * Writes the portion of an entry's header common to the local and central headers.
+     */
+    protected void writeHeader (WrittenEntry went)
+        throws IOException
+    {
+        writeShort(VERSION);
+        writeShort(UTF8_FLAG);
+        writeShort(went.entry.method);
+        writeInt(went.dosTime);
+        writeInt((int)went.entry.crc);
+        writeInt(went.entry.data.length);
+        writeInt((int)went.entry.size);
+        writeShort(went.name.length);
+        writeShort(0); // extra field length
+    }
+
+    protected void writeShort (int value)
+        throws IOException
+    {
+        _out.write(value & 0xFF);
+        _out.write((value >>> 8) & 0xFF);
+    }
+
+    protected void writeInt (int value)
+        throws IOException
+    {
+        writeShort(value);
+        writeShort(value >>> 16);
+    }
+
+    /**
+     * Converts a time in milliseconds to the MS-DOS date and time format used by zip files.
+     */
+    protected static int toDosTime (long time)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((year - 1980) << 25) | ((cal.get(Calendar.MONTH) + 1) << 21) |
+            (cal.get(Calendar.DAY_OF_MONTH) << 16) | (cal.get(Calendar.HOUR_OF_DAY) << 11) |
+            (cal.get(Calendar.MINUTE) << 5) | (cal.get(Calendar.SECOND) >> 1);
+    }
+
+    /** Records where we wrote an entry, for the central directory. */
+    protected static class WrittenEntry
+    {
+        public Entry entry;
+        public byte[] name;
+        public int offset;
+        public int dosTime;
+    }
+
+    /** The stream to which we write the jar file. */
+    protected DataOutputStream _out;
+
+    /** The entries written so far. */
+    protected List<WrittenEntry> _entries = Lists.newArrayList();
+
+    /** Zip record signatures. */
+    protected static final int LOC_SIG = 0x04034b50, CEN_SIG = 0x02014b50, EOCD_SIG = 0x06054b50;
+
+    /** The zip version needed to extract our entries (2.0, for deflate). */
+    protected static final int VERSION = 20;
+
+    /** The general purpose flag indicating that entry names are UTF-8 encoded. */
+    protected static final int UTF8_FLAG = 0x0800;
+
+    /** The largest offset we allow, which is well short of requiring Zip64 extensions. */
+    protected static final long MAX_OFFSET = Integer.MAX_VALUE;
+}
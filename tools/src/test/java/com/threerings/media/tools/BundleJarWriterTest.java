@@ -0,0 +1,123 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.tools;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+import java.io.File;
+import java.io.InputStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import com.samskivert.io.StreamUtil;
+
+/**
+ * Tests the {@link BundleJarWriter}.
+ */
+public class BundleJarWriterTest extends TestCase
+{
+    public BundleJarWriterTest ()
+    {
+        super(BundleJarWriterTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+        throws Exception
+    {
+        File first = File.createTempFile("bundlejar", ".jar");
+        File second = File.createTempFile("bundlejar", ".jar");
+        try {
+            // write a jar with a mix of deflated and stored entries
+            Random rando = new Random(42);
+            byte[][] data = new byte[ENTRIES][];
+            BundleJarWriter writer = new BundleJarWriter(first);
+            for (int ii = 0; ii < ENTRIES; ii++) {
+                data[ii] = new byte[rando.nextInt(4096)];
+                for (int bb = 0; bb < data[ii].length; bb++) {
+                    data[ii][bb] = (byte)rando.nextInt(8);
+                }
+                writer.write(BundleJarWriter.compress(getPath(ii), data[ii], ii % 2 == 0));
+            }
+            writer.close();
+            checkJar(first, data);
+
+            // copy its entries verbatim into a second jar, which must read back the same
+            BundleJarWriter.Reader reader = new BundleJarWriter.Reader(first);
+            writer = new BundleJarWriter(second);
+            for (int ii = 0; ii < ENTRIES; ii++) {
+                BundleJarWriter.Entry entry = reader.read(getPath(ii));
+                assertEquals(getPath(ii), ii % 2 == 0 ? ZipEntry.DEFLATED : ZipEntry.STORED,
+                             entry.method);
+                writer.write(entry);
+            }
+            assertNull("missing", reader.read("no/such/entry"));
+            reader.close();
+            writer.close();
+            checkJar(second, data);
+
+        } finally {
+            first.delete();
+            second.delete();
+        }
+    }
+
+    protected void checkJar (File file, byte[][] data)
+        throws Exception
+    {
+        JarFile jar = new JarFile(file);
+        try {
+            assertNotNull("manifest", jar.getManifest());
+            for (int ii = 0; ii < ENTRIES; ii++) {
+                InputStream in = jar.getInputStream(jar.getEntry(getPath(ii)));
+                try {
+                    assertTrue(getPath(ii), Arrays.equals(data[ii], StreamUtil.toByteArray(in)));
+                } finally {
+                    StreamUtil.close(in);
+                }
+            }
+        } finally {
+            jar.close();
+        }
+    }
+
+    protected static String getPath (int idx)
+    {
+        return "dir" + (idx % 5) + "/entry" + idx + ".raw";
+    }
+
+    public static Test suite ()
+    {
+        return new BundleJarWriterTest();
+    }
+
+    public static void main (String[] args)
+        throws Exception
+    {
+        BundleJarWriterTest test = new BundleJarWriterTest();
+        test.runTest();
+    }
+
+    protected static final int ENTRIES = 50;
+}